@@ -3,24 +3,84 @@ package client;
 import java.io.*;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.*;
+import common.MalformedRequestException;
 import common.Protocol;
+import common.Request;
+import common.Response;
+import common.ScanPage;
+import common.Versions;
 
 /**
  * TCP Client for the Key-Value Store.
+ * <p>
+ * {@link #put}, {@link #get} and {@link #delete} open a new connection per request. After
+ * {@link #connect()}, the asynchronous variants pipeline version 2 requests over one persistent
+ * connection instead, keeping up to {@value #MAX_IN_FLIGHT} requests in flight and matching the
+ * responses by request ID. Pipelining needs a server running in selector mode.
+ * </p>
+ * <p>
+ * {@link #mget}, {@link #mput} and {@link #mdelete} send many keys in one batch request and
+ * return one response per key, in request order.
+ * </p>
+ * <p>
+ * {@link #scan} and {@link #scanPrefix} iterate over a range of keys in key order, fetching
+ * {@value #SCAN_PAGE_SIZE} entries per request; {@link #scanPage} and {@link #prefixPage} fetch
+ * single pages. Scans need a server started with an ordered storage engine.
+ * </p>
+ * <p>
+ * After {@link #setCompressionThreshold}, values of at least that many characters are sent
+ * compressed, and GETs accept compressed values back, which are decompressed on arrival.
+ * </p>
  */
 public class KeyValueStoreTCPClient {
     private static final Logger logger = Logger.getLogger(KeyValueStoreTCPClient.class.getName());
+    // maximum number of pipelined requests waiting for their responses
+    private static final int MAX_IN_FLIGHT = 512;
+    // entries fetched per request while iterating over a scan
+    private static final int SCAN_PAGE_SIZE = 256;
     private final String host;
     private final int port;
 
+    // state of the persistent connection used for pipelining
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Map<Integer, CompletableFuture<Response>> inFlight = new ConcurrentHashMap<>();
+    private final Semaphore inFlightPermits = new Semaphore(MAX_IN_FLIGHT);
+    private Socket pipelineSocket;
+    private OutputStream pipelineOutput;
+    // the value length from which values are sent compressed, 0 to disable
+    private volatile int compressionThreshold;
+
     public KeyValueStoreTCPClient(String host, int port) {
         this.host = host;
         this.port = port;
         setupLogger();
     }
 
+    /**
+     * Sends the values of PUT requests compressed from the given length on, and lets GETs receive
+     * compressed values, which saves bandwidth on large values that compress well.
+     * @param threshold The value length in characters from which values are sent compressed, 0 to
+     *                  disable compression, which is the default.
+     */
+    public void setCompressionThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Invalid compression threshold: " + threshold);
+        }
+        this.compressionThreshold = threshold;
+    }
+
     /**
      * Configures logging with millisecond precision timestamps.
      */
@@ -31,12 +91,14 @@ public class KeyValueStoreTCPClient {
 
     /**
      * Sends a request to the TCP server.
-     * @param type  Request type (PUT, GET, DELETE).
+     * @param type  Request type.
      * @param key   The key to operate on.
      * @param value The value for PUT requests (null for GET/DELETE).
+     * @param argument The TTL of PUT_TTL, the expected version of CAS or the delta of INCR requests,
+     *                 Protocol.NO_TTL for the other types.
      * @return Server response or an error message.
      */
-    private String sendRequest(byte type, String key, String value) {
+    private String sendRequest(byte type, String key, String value, long argument) {
         String requestType = getRequestTypeName(type);
 
         if (key == null || key.trim().isEmpty()) {
@@ -51,52 +113,455 @@ public class KeyValueStoreTCPClient {
              InputStream inputStream = socket.getInputStream()) {
 
             // Send request
-            Protocol.writeRequest(outputStream, type, key, value);
+            Protocol.writeRequest(outputStream, Protocol.compressedType(type, value, compressionThreshold), key, value,
+                argument);
             logger.info(String.format("Sent %s request to %s:%d for key: %s", requestType, host, port, key));
 
             // Read response
-            byte[] responseBuffer = new byte[1024];
-            int bytesRead = inputStream.read(responseBuffer);
-
-            if (bytesRead == -1) {
-                logger.warning("Server closed the connection unexpectedly.");
-                return "ERROR: Server closed the connection.";
-            }
-
+            Response response = Protocol.readResponse(inputStream);
             long endTime = System.currentTimeMillis();
-            String response = new String(responseBuffer, 0, bytesRead, StandardCharsets.UTF_8);
 
             logger.info(String.format("Received response in %d ms: %s", (endTime - startTime), response));
-            return response;
+            return type == Protocol.GETV ? response.toVersionedDisplayString() : response.toDisplayString();
 
+        } catch (EOFException e) {
+            logger.warning("Server closed the connection unexpectedly.");
+            return "ERROR: Server closed the connection.";
+        } catch (MalformedRequestException e) {
+            logger.severe("Malformed response from server: " + e.getMessage());
+            return "ERROR: " + e.getMessage();
         } catch (IOException e) {
             logger.severe("Error communicating with server: " + e.getMessage());
             return "ERROR: " + e.getMessage();
         }
     }
 
+    /**
+     * Sends a batch request to the TCP server over a new connection.
+     * @param type   Batch request type (MGET, MPUT, MDELETE).
+     * @param keys   The keys to operate on.
+     * @param values The values for MPUT requests, one per key (null for MGET/MDELETE).
+     * @return One response per key, in request order. If the batch failed as a whole, every entry
+     * carries the error.
+     */
+    private List<Response> sendBatchRequest(byte type, List<String> keys, List<String> values) {
+        String requestType = Protocol.getRequestTypeName(type);
+        long startTime = System.currentTimeMillis();
+
+        try (Socket socket = new Socket(host, port);
+             OutputStream outputStream = socket.getOutputStream();
+             InputStream inputStream = socket.getInputStream()) {
+
+            Protocol.writeBatchRequest(outputStream, Request.NO_REQUEST_ID, type, keys, values);
+            logger.info(String.format("Sent %s request to %s:%d for %d keys", requestType, host, port, keys.size()));
+
+            Response response = Protocol.readResponse(inputStream);
+            long endTime = System.currentTimeMillis();
+
+            logger.info(String.format("Received %s response in %d ms", requestType, (endTime - startTime)));
+            return Protocol.decodeBatchResults(response, keys.size());
+
+        } catch (IllegalArgumentException e) {
+            logger.warning(requestType + " failed: " + e.getMessage());
+            return batchError(keys.size(), e.getMessage());
+        } catch (EOFException e) {
+            logger.warning("Server closed the connection unexpectedly.");
+            return batchError(keys.size(), "Server closed the connection.");
+        } catch (MalformedRequestException e) {
+            logger.severe("Malformed response from server: " + e.getMessage());
+            return batchError(keys.size(), e.getMessage());
+        } catch (IOException e) {
+            logger.severe("Error communicating with server: " + e.getMessage());
+            return batchError(keys.size(), e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a scan request for one page to the TCP server over a new connection.
+     * @param type Scan request type (SCAN, PREFIX).
+     * @see Protocol#createScanRequest
+     * @throws IOException if the request fails or the server answers with an error.
+     */
+    private ScanPage sendScanRequest(byte type, String start, String end, byte[] token, int pageSize)
+        throws IOException {
+        String requestType = Protocol.getRequestTypeName(type);
+        long startTime = System.currentTimeMillis();
+
+        try (Socket socket = new Socket(host, port);
+             OutputStream outputStream = socket.getOutputStream();
+             InputStream inputStream = socket.getInputStream()) {
+
+            Protocol.writeScanRequest(outputStream, Request.NO_REQUEST_ID, type, start, end, token, pageSize);
+            logger.info(String.format("Sent %s request to %s:%d from key: %s", requestType, host, port, start));
+
+            Response response = Protocol.readResponse(inputStream);
+            long endTime = System.currentTimeMillis();
+
+            logger.info(String.format("Received %s response in %d ms", requestType, (endTime - startTime)));
+            if (!response.isOk()) {
+                throw new IOException(requestType + " failed: " + response.toDisplayString());
+            }
+            return Protocol.decodeScanPage(response);
+
+        } catch (MalformedRequestException e) {
+            logger.severe("Malformed response from server: " + e.getMessage());
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the same error response for every entry of a batch.
+     */
+    private static List<Response> batchError(int count, String message) {
+        return Collections.nCopies(count, new Response(Request.NO_REQUEST_ID, Protocol.STATUS_ERROR,
+            message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Opens the persistent connection used by the asynchronous methods and starts the thread that
+     * reads its responses. Does nothing if the connection is already open.
+     * @throws IOException if the connection cannot be opened.
+     */
+    public synchronized void connect() throws IOException {
+        if (pipelineSocket != null) {
+            return;
+        }
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        pipelineOutput = new BufferedOutputStream(socket.getOutputStream());
+        pipelineSocket = socket;
+
+        Thread reader = new Thread(() -> readResponses(socket), "tcp-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+        logger.info(String.format("Opened pipelined connection to %s:%d", host, port));
+    }
+
+    /**
+     * Closes the persistent connection. Requests still in flight complete exceptionally.
+     */
+    public synchronized void close() {
+        if (pipelineSocket == null) {
+            return;
+        }
+        try {
+            pipelineSocket.close();
+        } catch (IOException e) {
+            logger.warning("Error closing pipelined connection: " + e.getMessage());
+        }
+        pipelineSocket = null;
+        pipelineOutput = null;
+    }
+
+    /**
+     * Sends a version 2 request over the persistent connection without waiting for the response.
+     * Blocks while {@value #MAX_IN_FLIGHT} requests are already in flight.
+     * @param type  Request type.
+     * @param key   The key to operate on.
+     * @param value The value for PUT requests (null for GET/DELETE).
+     * @param argument The TTL of PUT_TTL, the expected version of CAS or the delta of INCR requests,
+     *                 Protocol.NO_TTL for the other types.
+     * @return Future completed with the typed server response.
+     */
+    private CompletableFuture<Response> sendRequestAsync(byte type, String key, String value, long argument) {
+        String requestType = Protocol.getRequestTypeName(type);
+
+        if (key == null || key.trim().isEmpty()) {
+            logger.warning(requestType + " failed: Key cannot be empty.");
+            return CompletableFuture.completedFuture(new Response(Request.NO_REQUEST_ID, Protocol.STATUS_ERROR,
+                "Key cannot be empty.".getBytes(StandardCharsets.UTF_8)));
+        }
+
+        byte wireType = Protocol.compressedType(type, value, compressionThreshold);
+        return sendAsync((outputStream, requestId) ->
+            Protocol.writeRequest(outputStream, requestId, wireType, key, value, argument));
+    }
+
+    /**
+     * Sends a version 2 batch request over the persistent connection without waiting for the
+     * response.
+     * @param type   Batch request type (MGET, MPUT, MDELETE).
+     * @param keys   The keys to operate on.
+     * @param values The values for MPUT requests, one per key (null for MGET/MDELETE).
+     * @return Future completed with one response per key, in request order.
+     */
+    private CompletableFuture<List<Response>> sendBatchRequestAsync(byte type, List<String> keys,
+                                                                    List<String> values) {
+        return sendAsync((outputStream, requestId) ->
+            Protocol.writeBatchRequest(outputStream, requestId, type, keys, values))
+            .thenApply(response -> {
+                try {
+                    return Protocol.decodeBatchResults(response, keys.size());
+                } catch (MalformedRequestException e) {
+                    throw new CompletionException(e);
+                }
+            });
+    }
+
+    /**
+     * Assigns a request ID, registers the request as in flight and writes it to the persistent
+     * connection. Blocks while {@value #MAX_IN_FLIGHT} requests are already in flight.
+     * @param writer Writes the frame of the request with the given ID.
+     * @return Future completed with the response frame.
+     */
+    private CompletableFuture<Response> sendAsync(FrameWriter writer) {
+        OutputStream outputStream;
+        synchronized (this) {
+            outputStream = pipelineOutput;
+        }
+        if (outputStream == null) {
+            throw new IllegalStateException("Not connected, call connect() first");
+        }
+
+        inFlightPermits.acquireUninterruptibly();
+        int requestId = nextRequestId.getAndIncrement() & Integer.MAX_VALUE;
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        inFlight.put(requestId, future);
+
+        try {
+            synchronized (outputStream) {
+                writer.write(outputStream, requestId);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            logger.severe("Error sending pipelined request: " + e.getMessage());
+            if (inFlight.remove(requestId) != null) {
+                inFlightPermits.release();
+            }
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Reads response frames from the persistent connection and completes the matching futures,
+     * until the connection is closed.
+     */
+    private void readResponses(Socket socket) {
+        try (InputStream inputStream = new BufferedInputStream(socket.getInputStream())) {
+            while (true) {
+                Response response = Protocol.readResponse(inputStream);
+                CompletableFuture<Response> future = inFlight.remove(response.getRequestId());
+                if (future == null) {
+                    logger.warning("Received response for unknown request ID " + response.getRequestId());
+                    continue;
+                }
+                inFlightPermits.release();
+                future.complete(response);
+            }
+        } catch (IOException | MalformedRequestException e) {
+            logger.info("Pipelined connection closed: " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                if (pipelineSocket == socket) {
+                    pipelineSocket = null;
+                    pipelineOutput = null;
+                }
+            }
+            // fails whatever is still waiting, since no response can arrive anymore
+            for (Integer requestId : inFlight.keySet()) {
+                CompletableFuture<Response> future = inFlight.remove(requestId);
+                if (future != null) {
+                    inFlightPermits.release();
+                    future.completeExceptionally(new IOException("Connection closed"));
+                }
+            }
+        }
+    }
+
     /**
      * Returns a human-readable request type name.
      */
     private String getRequestTypeName(byte type) {
         switch (type) {
             case Protocol.PUT: return "PUT";
+            case Protocol.PUT_TTL: return "PUT_TTL";
             case Protocol.GET: return "GET";
             case Protocol.DELETE: return "DELETE";
+            case Protocol.UPSERT: return "UPSERT";
+            case Protocol.CAS: return "CAS";
+            case Protocol.INCR: return "INCR";
+            case Protocol.APPEND: return "APPEND";
+            case Protocol.GETV: return "GETV";
             default: return "UNKNOWN";
         }
     }
 
     public String put(String key, String value) {
-        return sendRequest(Protocol.PUT, key, value);
+        return sendRequest(Protocol.PUT, key, value, Protocol.NO_TTL);
+    }
+
+    /**
+     * Stores the value unless the key already exists, for the given milliseconds.
+     */
+    public String put(String key, String value, long ttlMillis) {
+        return sendRequest(Protocol.PUT_TTL, key, value, ttlMillis);
     }
 
     public String get(String key) {
-        return sendRequest(Protocol.GET, key, null);
+        return sendRequest(Protocol.GET, key, null, Protocol.NO_TTL);
     }
 
     public String delete(String key) {
-        return sendRequest(Protocol.DELETE, key, null);
+        return sendRequest(Protocol.DELETE, key, null, Protocol.NO_TTL);
+    }
+
+    /**
+     * Stores the value whether or not the key exists.
+     */
+    public String upsert(String key, String value) {
+        return sendRequest(Protocol.UPSERT, key, value, Protocol.NO_TTL);
+    }
+
+    /**
+     * Returns the version of the entry of the key, which {@link #compareAndSet} expects, and its
+     * value.
+     */
+    public String getWithVersion(String key) {
+        return sendRequest(Protocol.GETV, key, null, Protocol.NO_TTL);
+    }
+
+    /**
+     * Stores the value if the key exists and its entry still has the expected version, see
+     * {@link Versions}. Returns CONFLICT otherwise, or NOT_FOUND if the key does not exist.
+     */
+    public String compareAndSet(String key, long expectedVersion, String value) {
+        return sendRequest(Protocol.CAS, key, value, expectedVersion);
+    }
+
+    /**
+     * Adds the delta to the number stored under the key, 0 if it does not exist, and returns the
+     * new number.
+     */
+    public String increment(String key, long delta) {
+        return sendRequest(Protocol.INCR, key, null, delta);
+    }
+
+    /**
+     * Appends the value to the current value of the key, or stores it if the key does not exist.
+     */
+    public String append(String key, String value) {
+        return sendRequest(Protocol.APPEND, key, value, Protocol.NO_TTL);
+    }
+
+    public CompletableFuture<Response> putAsync(String key, String value) {
+        return sendRequestAsync(Protocol.PUT, key, value, Protocol.NO_TTL);
+    }
+
+    /**
+     * Stores the value unless the key already exists, for the given milliseconds.
+     */
+    public CompletableFuture<Response> putAsync(String key, String value, long ttlMillis) {
+        return sendRequestAsync(Protocol.PUT_TTL, key, value, ttlMillis);
+    }
+
+    public CompletableFuture<Response> getAsync(String key) {
+        return sendRequestAsync(Protocol.GET, key, null, Protocol.NO_TTL);
+    }
+
+    public CompletableFuture<Response> deleteAsync(String key) {
+        return sendRequestAsync(Protocol.DELETE, key, null, Protocol.NO_TTL);
+    }
+
+    public CompletableFuture<Response> upsertAsync(String key, String value) {
+        return sendRequestAsync(Protocol.UPSERT, key, value, Protocol.NO_TTL);
+    }
+
+    /**
+     * Returns the version of the entry of the key and its value, see {@link Response#getVersion}.
+     */
+    public CompletableFuture<Response> getWithVersionAsync(String key) {
+        return sendRequestAsync(Protocol.GETV, key, null, Protocol.NO_TTL);
+    }
+
+    /**
+     * Stores the value if the key exists and its entry still has the expected version. A
+     * STATUS_CONFLICT response carries the current version and value.
+     */
+    public CompletableFuture<Response> compareAndSetAsync(String key, long expectedVersion, String value) {
+        return sendRequestAsync(Protocol.CAS, key, value, expectedVersion);
+    }
+
+    public CompletableFuture<Response> incrementAsync(String key, long delta) {
+        return sendRequestAsync(Protocol.INCR, key, null, delta);
+    }
+
+    public CompletableFuture<Response> appendAsync(String key, String value) {
+        return sendRequestAsync(Protocol.APPEND, key, value, Protocol.NO_TTL);
+    }
+
+    public List<Response> mget(List<String> keys) {
+        return sendBatchRequest(Protocol.MGET, keys, null);
+    }
+
+    /**
+     * Stores every entry whose key does not exist yet. The responses follow the iteration order of
+     * the map.
+     */
+    public List<Response> mput(Map<String, String> entries) {
+        return sendBatchRequest(Protocol.MPUT, new ArrayList<>(entries.keySet()), new ArrayList<>(entries.values()));
+    }
+
+    public List<Response> mdelete(List<String> keys) {
+        return sendBatchRequest(Protocol.MDELETE, keys, null);
+    }
+
+    public CompletableFuture<List<Response>> mgetAsync(List<String> keys) {
+        return sendBatchRequestAsync(Protocol.MGET, keys, null);
+    }
+
+    public CompletableFuture<List<Response>> mputAsync(Map<String, String> entries) {
+        return sendBatchRequestAsync(Protocol.MPUT, new ArrayList<>(entries.keySet()),
+            new ArrayList<>(entries.values()));
+    }
+
+    public CompletableFuture<List<Response>> mdeleteAsync(List<String> keys) {
+        return sendBatchRequestAsync(Protocol.MDELETE, keys, null);
+    }
+
+    /**
+     * Fetches one page of the entries from start (inclusive) to end (exclusive), in key order.
+     * @param start    The first key, or null for the first key of the store.
+     * @param end      The key to stop before, or null for no end.
+     * @param token    The continuation token of the previous page, or null for the first page.
+     * @param pageSize The maximum number of entries, up to Protocol.MAX_SCAN_PAGE_SIZE.
+     * @throws IOException if the request fails or the server answers with an error.
+     */
+    public ScanPage scanPage(String start, String end, byte[] token, int pageSize) throws IOException {
+        return sendScanRequest(Protocol.SCAN, start, end, token, pageSize);
+    }
+
+    /**
+     * Fetches one page of the entries whose keys start with the prefix, in key order.
+     * @see #scanPage
+     */
+    public ScanPage prefixPage(String prefix, byte[] token, int pageSize) throws IOException {
+        return sendScanRequest(Protocol.PREFIX, prefix, null, token, pageSize);
+    }
+
+    /**
+     * Returns the entries from start (inclusive) to end (exclusive) in key order, fetched a page at
+     * a time while iterating. The iterator throws UncheckedIOException if a page cannot be fetched.
+     * @param start The first key, or null for the first key of the store.
+     * @param end   The key to stop before, or null for no end.
+     */
+    public Iterator<Map.Entry<String, String>> scan(String start, String end) {
+        return new ScanIterator(token -> scanPage(start, end, token, SCAN_PAGE_SIZE));
+    }
+
+    /**
+     * Returns the entries whose keys start with the prefix in key order, fetched a page at a time
+     * while iterating.
+     * @see #scan
+     */
+    public Iterator<Map.Entry<String, String>> scanPrefix(String prefix) {
+        return new ScanIterator(token -> prefixPage(prefix, token, SCAN_PAGE_SIZE));
+    }
+
+    /**
+     * Writes the frame of one request to the persistent connection.
+     */
+    private interface FrameWriter {
+        void write(OutputStream outputStream, int requestId) throws IOException;
     }
 
     /**
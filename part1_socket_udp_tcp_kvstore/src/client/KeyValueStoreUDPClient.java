@@ -1,21 +1,86 @@
 package client;
 
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
 import java.util.logging.*;
-import java.nio.charset.StandardCharsets;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import common.DatagramFraming;
+import common.MalformedRequestException;
 import common.Protocol;
+import common.Reassembler;
+import common.Request;
+import common.Response;
+import common.ScanPage;
+import common.Versions;
 
 /**
  * UDP Client for the Key-Value Store.
  * Sends PUT, GET, and DELETE requests to the UDP server.
+ * <p>
+ * Every request is sent as a version 2 frame with a request ID over one socket, whose responses
+ * are read by a background thread and matched by request ID. A request that is not answered is
+ * retransmitted with exponential backoff, starting at {@value #INITIAL_RETRY_TIMEOUT} ms, until
+ * {@value #TIMEOUT} ms have passed. Retransmitting a PUT or DELETE is safe because the server
+ * answers a request ID it has already processed from its response cache. At most
+ * {@value #MAX_IN_FLIGHT} requests are outstanding at once.
+ * </p>
+ * <p>
+ * {@link #mget}, {@link #mput} and {@link #mdelete} send many keys in one batch request and
+ * return one response per key, in request order.
+ * </p>
+ * <p>
+ * {@link #scan} and {@link #scanPrefix} iterate over a range of keys in key order, fetching
+ * {@value #SCAN_PAGE_SIZE} entries per request; {@link #scanPage} and {@link #prefixPage} fetch
+ * single pages. Scans need a server started with an ordered storage engine.
+ * </p>
+ * <p>
+ * Requests and responses that do not fit into one datagram are sent as fragments, see
+ * {@link DatagramFraming}.
+ * </p>
+ * <p>
+ * After {@link #setCompressionThreshold}, values of at least that many characters are sent
+ * compressed, and GETs accept compressed values back, which are decompressed on arrival.
+ * </p>
  */
 public class KeyValueStoreUDPClient {
     private static final Logger logger = Logger.getLogger(KeyValueStoreUDPClient.class.getName());
     private final String host;
     private final int port;
     private static final int TIMEOUT = 5000; // 5 seconds timeout
+    // wait before the first retransmission, doubled after every retransmission up to the maximum
+    private static final int INITIAL_RETRY_TIMEOUT = 100;
+    private static final int MAX_RETRY_TIMEOUT = 1600;
+    // maximum number of requests waiting for their responses
+    private static final int MAX_IN_FLIGHT = 64;
+    // entries fetched per request while iterating over a scan
+    private static final int SCAN_PAGE_SIZE = 256;
+    // keeps the fragments of a few responses, e.g. of requests that timed out meanwhile
+    private final Reassembler reassembler = new Reassembler(16, 16L * Protocol.MAX_RESPONSE_LENGTH, TIMEOUT);
+    // IDs of the fragmented requests sent by this client
+    private final AtomicInteger nextMessageId = new AtomicInteger();
+
+    // state of the socket shared by all requests
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Map<Integer, PendingRequest> inFlight = new ConcurrentHashMap<>();
+    private final Semaphore inFlightPermits = new Semaphore(MAX_IN_FLIGHT);
+    // builds the fragments of the request being sent; guarded by itself
+    private final ByteBuffer fragmentBuffer = ByteBuffer.allocate(DatagramFraming.MAX_DATAGRAM_SIZE);
+    private DatagramSocket socket;
+    private InetSocketAddress serverAddress;
+    private ScheduledExecutorService retransmitter;
+    // the value length from which values are sent compressed, 0 to disable
+    private volatile int compressionThreshold;
 
     /**
      * Constructs a KeyValueStoreUDPClient instance.
@@ -28,6 +93,19 @@ public class KeyValueStoreUDPClient {
         setupLogger();
     }
 
+    /**
+     * Sends the values of PUT requests compressed from the given length on, and lets GETs receive
+     * compressed values, which saves bandwidth on large values that compress well.
+     * @param threshold The value length in characters from which values are sent compressed, 0 to
+     *                  disable compression, which is the default.
+     */
+    public void setCompressionThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Invalid compression threshold: " + threshold);
+        }
+        this.compressionThreshold = threshold;
+    }
+
     /**
      * Sets up the logging format including timestamps.
      */
@@ -56,60 +134,374 @@ public class KeyValueStoreUDPClient {
     }
 
     /**
-     * Sends a request to the UDP server.
-     * @param type  The request type (PUT, GET, DELETE).
+     * Sends a request to the UDP server and waits for its response.
+     * @param type  The request type.
      * @param key   The key to operate on.
      * @param value The value for PUT requests (null for GET/DELETE).
+     * @param argument The TTL of PUT_TTL, the expected version of CAS or the delta of INCR requests,
+     *                 Protocol.NO_TTL for the other types.
      * @return Server response or an error message.
      */
-    private String sendRequest(byte type, String key, String value) {
+    private String sendRequest(byte type, String key, String value, long argument) {
+        String requestType = getRequestTypeName(type);
+        long startTime = System.currentTimeMillis();
+
+        try {
+            Response response = sendRequestAsync(type, key, value, argument).get();
+            long endTime = System.currentTimeMillis();
+            logger.info(String.format("Response in %d ms", (endTime - startTime)));
+            return type == Protocol.GETV ? response.toVersionedDisplayString() : response.toDisplayString();
+        } catch (ExecutionException e) {
+            return "ERROR: " + describeFailure(e.getCause(), String.format("%s request for key '%s'", requestType, key));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERROR: Interrupted";
+        }
+    }
+
+    /**
+     * Sends a batch request to the UDP server and waits for its response.
+     * @param type   The batch request type (MGET, MPUT, MDELETE).
+     * @param keys   The keys to operate on.
+     * @param values The values for MPUT requests, one per key (null for MGET/MDELETE).
+     * @return One response per key, in request order. If the batch failed as a whole, every entry
+     * carries the error.
+     */
+    private List<Response> sendBatchRequest(byte type, List<String> keys, List<String> values) {
+        String requestType = Protocol.getRequestTypeName(type);
+        long startTime = System.currentTimeMillis();
+
+        String message;
+        try {
+            List<Response> responses = sendBatchRequestAsync(type, keys, values).get();
+            long endTime = System.currentTimeMillis();
+            logger.info(String.format("%s response for %d keys in %d ms", requestType, keys.size(), (endTime - startTime)));
+            return responses;
+        } catch (ExecutionException e) {
+            message = describeFailure(e.getCause(), String.format("%s request for %d keys", requestType, keys.size()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            message = "Interrupted";
+        }
+        return Collections.nCopies(keys.size(), new Response(Request.NO_REQUEST_ID, Protocol.STATUS_ERROR,
+            message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Sends a scan request for one page to the UDP server and waits for its response, retransmitting
+     * it like a single request.
+     * @param type The scan request type (SCAN, PREFIX).
+     * @see Protocol#createScanRequest
+     * @throws IOException if the request fails or the server answers with an error.
+     */
+    private ScanPage sendScanRequest(byte type, String start, String end, byte[] token, int pageSize)
+        throws IOException {
+        String requestType = Protocol.getRequestTypeName(type);
+        long startTime = System.currentTimeMillis();
+
+        Response response;
+        try {
+            response = sendAsync(requestId -> Protocol.createScanRequest(requestId, type, start, end, token, pageSize),
+                requestId -> String.format("Sent %s request %d to %s:%d from key: %s", requestType, requestId, host,
+                    port, start)).get();
+        } catch (ExecutionException e) {
+            throw new IOException(describeFailure(e.getCause(), requestType + " request from key '" + start + "'"),
+                e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        }
+        long endTime = System.currentTimeMillis();
+        logger.info(String.format("%s response in %d ms", requestType, (endTime - startTime)));
+        if (!response.isOk()) {
+            throw new IOException(requestType + " failed: " + response.toDisplayString());
+        }
+        try {
+            return Protocol.decodeScanPage(response);
+        } catch (MalformedRequestException e) {
+            logger.severe("Malformed response from server: " + e.getMessage());
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Logs why a request failed and returns the error message shown for it.
+     * @param cause       The exception the request completed with.
+     * @param description Describes the request in the log.
+     */
+    private String describeFailure(Throwable cause, String description) {
+        if (cause instanceof SocketTimeoutException) {
+            logger.warning(description + " timed out.");
+            return "Timeout";
+        } else if (cause instanceof UnknownHostException) {
+            logger.severe("Unknown host: " + host);
+            return "Unknown host";
+        } else if (cause instanceof SocketException) {
+            logger.severe("Socket error: " + cause.getMessage());
+            return "Socket issue";
+        } else if (cause instanceof MalformedRequestException || cause instanceof IllegalArgumentException) {
+            logger.severe(description + " failed: " + cause.getMessage());
+            return cause.getMessage();
+        }
+        logger.severe("I/O error: " + cause.getMessage());
+        return "I/O error";
+    }
+
+    /**
+     * Sends a version 2 request without waiting for the response, and retransmits it until it is
+     * answered or the timeout has passed. Blocks while {@value #MAX_IN_FLIGHT} requests are
+     * already in flight.
+     * @param type  The request type.
+     * @param key   The key to operate on.
+     * @param value The value for PUT requests (null for GET/DELETE).
+     * @param argument The TTL of PUT_TTL, the expected version of CAS or the delta of INCR requests,
+     *                 Protocol.NO_TTL for the other types.
+     * @return Future completed with the typed server response, or with a SocketTimeoutException
+     * if no response arrived in time.
+     */
+    private CompletableFuture<Response> sendRequestAsync(byte type, String key, String value, long argument) {
         String requestType = getRequestTypeName(type);
 
         if (key == null || key.trim().isEmpty()) {
             logger.warning(requestType + " failed: Key cannot be empty.");
-            return "ERROR: Key cannot be empty.";
+            return CompletableFuture.completedFuture(new Response(Request.NO_REQUEST_ID, Protocol.STATUS_ERROR,
+                "Key cannot be empty.".getBytes(StandardCharsets.UTF_8)));
+        }
+
+        byte wireType = Protocol.compressedType(type, value, compressionThreshold);
+        return sendAsync(requestId -> Protocol.createRequest(requestId, wireType, key, value, argument),
+            requestId -> String.format("Sent %s request %d to %s:%d for key: %s", requestType, requestId, host, port, key));
+    }
+
+    /**
+     * Sends a version 2 batch request without waiting for the response, retransmitting it like a
+     * single request.
+     * @param type   The batch request type (MGET, MPUT, MDELETE).
+     * @param keys   The keys to operate on.
+     * @param values The values for MPUT requests, one per key (null for MGET/MDELETE).
+     * @return Future completed with one response per key, in request order.
+     */
+    private CompletableFuture<List<Response>> sendBatchRequestAsync(byte type, List<String> keys, List<String> values) {
+        String requestType = Protocol.getRequestTypeName(type);
+        return sendAsync(requestId -> Protocol.createBatchRequest(requestId, type, keys, values),
+            requestId -> String.format("Sent %s request %d to %s:%d for %d keys", requestType, requestId, host, port,
+                keys.size()))
+            .thenApply(response -> {
+                try {
+                    return Protocol.decodeBatchResults(response, keys.size());
+                } catch (MalformedRequestException e) {
+                    throw new CompletionException(e);
+                }
+            });
+    }
+
+    /**
+     * Assigns a request ID, registers the request as in flight, sends it and schedules its
+     * retransmission. Blocks while {@value #MAX_IN_FLIGHT} requests are already in flight.
+     * @param encoder     Encodes the version 2 frame of the request with the given ID.
+     * @param sentMessage Describes the sent request with the given ID in the log.
+     * @return Future completed with the response frame, or with a SocketTimeoutException if no
+     * response arrived in time.
+     */
+    private CompletableFuture<Response> sendAsync(IntFunction<byte[]> encoder, IntFunction<String> sentMessage) {
+        try {
+            open();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
         }
 
-        try (DatagramSocket socket = new DatagramSocket()) {
-            socket.setSoTimeout(TIMEOUT);
+        inFlightPermits.acquireUninterruptibly();
+        int requestId = nextRequestId.getAndIncrement() & Integer.MAX_VALUE;
+        PendingRequest request;
+        try {
+            request = new PendingRequest(requestId, encoder.apply(requestId), nextMessageId.getAndIncrement());
+        } catch (IllegalArgumentException e) {
+            inFlightPermits.release();
+            return CompletableFuture.failedFuture(e);
+        }
+        inFlight.put(requestId, request);
 
-            byte[] requestData = Protocol.createRequest(type, key, value);
-            InetAddress address = InetAddress.getByName(host);
-            DatagramPacket requestPacket = new DatagramPacket(requestData, requestData.length, address, port);
+        try {
+            transmit(request);
+            logger.info(() -> sentMessage.apply(requestId));
+            scheduleRetransmit(request, INITIAL_RETRY_TIMEOUT);
+        } catch (IOException | RejectedExecutionException e) {
+            logger.severe("Error sending request: " + e.getMessage());
+            finish(request);
+            request.future.completeExceptionally(e);
+        }
+        return request.future;
+    }
 
-            long startTime = System.currentTimeMillis();
-            socket.send(requestPacket);
-            logger.info(String.format("Sent %s request to %s:%d for key: %s", requestType, host, port, key));
+    /**
+     * Opens the socket shared by all requests and starts the threads reading responses and
+     * retransmitting requests. Does nothing if the socket is already open.
+     * @throws IOException if the host cannot be resolved or the socket cannot be opened.
+     */
+    private synchronized void open() throws IOException {
+        if (socket != null) {
+            return;
+        }
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(host), port);
+        DatagramSocket datagramSocket = new DatagramSocket();
+        datagramSocket.setReceiveBufferSize(DatagramFraming.SOCKET_RECEIVE_BUFFER_SIZE);
+        serverAddress = address;
+        socket = datagramSocket;
+
+        retransmitter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "udp-client-retransmit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread reader = new Thread(() -> readResponses(datagramSocket), "udp-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
 
-            byte[] receiveBuffer = new byte[1024];
-            DatagramPacket responsePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+    /**
+     * Closes the socket. Requests still in flight complete exceptionally.
+     */
+    public synchronized void close() {
+        if (socket == null) {
+            return;
+        }
+        socket.close();
+        retransmitter.shutdownNow();
+        socket = null;
+        retransmitter = null;
+    }
 
-            try {
-                socket.receive(responsePacket);
-                long endTime = System.currentTimeMillis();
-                String response = new String(responsePacket.getData(), 0, responsePacket.getLength(), StandardCharsets.UTF_8);
+    /**
+     * Sends all datagrams of a request. Retransmissions reuse the message ID, so the server can
+     * complete a fragmented request from the fragments of several attempts.
+     */
+    private void transmit(PendingRequest request) throws IOException {
+        DatagramSocket datagramSocket;
+        InetSocketAddress address;
+        synchronized (this) {
+            datagramSocket = socket;
+            address = serverAddress;
+        }
+        if (datagramSocket == null) {
+            throw new SocketException("Socket closed");
+        }
+        synchronized (fragmentBuffer) {
+            DatagramFraming.send(ByteBuffer.wrap(request.data), request.messageId, fragmentBuffer, datagram ->
+                datagramSocket.send(new DatagramPacket(datagram.array(), datagram.position(), datagram.remaining(),
+                    address)));
+        }
+    }
 
-                logger.info(String.format("Response in %d ms", (endTime - startTime)));
+    /**
+     * Retransmits the request after the given wait unless it has been answered by then.
+     */
+    private void scheduleRetransmit(PendingRequest request, int retryTimeout) {
+        long remaining = request.deadline - System.nanoTime();
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = retransmitter;
+        }
+        if (executor == null) {
+            throw new RejectedExecutionException("Socket closed");
+        }
+        long delay = Math.min(TimeUnit.MILLISECONDS.toNanos(retryTimeout), Math.max(remaining, 0));
+        executor.schedule(() -> retransmit(request, retryTimeout), delay, TimeUnit.NANOSECONDS);
+    }
 
-                return response;
-            } catch (SocketTimeoutException e) {
-                logger.warning(String.format("%s request for key '%s' timed out.", requestType, key));
-                return "ERROR: Timeout";
+    /**
+     * Runs on the retransmit thread once the wait for a response has passed: gives up after the
+     * timeout, otherwise sends the request again and doubles the wait.
+     */
+    private void retransmit(PendingRequest request, int retryTimeout) {
+        if (request.future.isDone()) {
+            return;
+        }
+        if (System.nanoTime() - request.deadline >= 0) {
+            if (finish(request)) {
+                request.future.completeExceptionally(new SocketTimeoutException(
+                    "No response to request " + request.requestId + " after " + request.attempts + " attempts"));
             }
+            return;
+        }
 
+        request.attempts++;
+        logger.info(String.format("Retransmitting request %d (attempt %d)", request.requestId, request.attempts));
+        try {
+            transmit(request);
+            scheduleRetransmit(request, Math.min(retryTimeout * 2, MAX_RETRY_TIMEOUT));
+        } catch (IOException | RejectedExecutionException e) {
+            if (finish(request)) {
+                request.future.completeExceptionally(e);
+            }
+        }
+    }
 
-        } catch (UnknownHostException e) {
-            logger.severe("Unknown host: " + host);
-            return "ERROR: Unknown host";
-        } catch (SocketException e) {
-            logger.severe("Socket error: " + e.getMessage());
-            return "ERROR: Socket issue";
-        } catch (IOException e) {
-            logger.severe("I/O error: " + e.getMessage());
-            return "ERROR: I/O error";
+    /**
+     * Removes the request from the in-flight requests.
+     * @return true if this call removed it, i.e. the caller completes its future.
+     */
+    private boolean finish(PendingRequest request) {
+        if (inFlight.remove(request.requestId, request)) {
+            inFlightPermits.release();
+            return true;
         }
+        return false;
     }
 
+    /**
+     * Receives responses, reassembles fragmented ones and completes the matching requests, until
+     * the socket is closed. Responses to retransmissions that were already answered are ignored.
+     */
+    private void readResponses(DatagramSocket datagramSocket) {
+        byte[] receiveBuffer = new byte[DatagramFraming.MAX_RECEIVE_SIZE];
+        DatagramPacket responsePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        try {
+            while (true) {
+                responsePacket.setLength(receiveBuffer.length);
+                datagramSocket.receive(responsePacket);
+
+                Response response;
+                try {
+                    ByteBuffer datagram = ByteBuffer.wrap(receiveBuffer, 0, responsePacket.getLength());
+                    if (DatagramFraming.isFragment(datagram)) {
+                        byte[] responseData = reassembler.add(responsePacket.getSocketAddress(), datagram);
+                        if (responseData == null) {
+                            continue;
+                        }
+                        response = Protocol.parseResponse(responseData, responseData.length);
+                    } else {
+                        response = Protocol.parseResponse(receiveBuffer, responsePacket.getLength());
+                    }
+                } catch (MalformedRequestException e) {
+                    logger.severe("Malformed response from server: " + e.getMessage());
+                    continue;
+                }
+
+                PendingRequest request = inFlight.get(response.getRequestId());
+                if (request == null || !finish(request)) {
+                    logger.fine("Ignored duplicate response to request " + response.getRequestId());
+                    continue;
+                }
+                request.future.complete(response);
+            }
+        } catch (IOException e) {
+            logger.info("UDP socket closed: " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                if (socket == datagramSocket) {
+                    socket = null;
+                    retransmitter.shutdownNow();
+                    retransmitter = null;
+                }
+            }
+            // fails whatever is still waiting, since no response can arrive anymore
+            for (PendingRequest request : inFlight.values()) {
+                if (finish(request)) {
+                    request.future.completeExceptionally(new SocketException("Socket closed"));
+                }
+            }
+        }
+    }
 
     /**
      * Returns a human-readable request type name.
@@ -117,22 +509,187 @@ public class KeyValueStoreUDPClient {
     private String getRequestTypeName(byte type) {
         switch (type) {
             case Protocol.PUT: return "PUT";
+            case Protocol.PUT_TTL: return "PUT_TTL";
             case Protocol.GET: return "GET";
             case Protocol.DELETE: return "DELETE";
+            case Protocol.UPSERT: return "UPSERT";
+            case Protocol.CAS: return "CAS";
+            case Protocol.INCR: return "INCR";
+            case Protocol.APPEND: return "APPEND";
+            case Protocol.GETV: return "GETV";
             default: return "UNKNOWN";
         }
     }
 
     public String put(String key, String value) {
-        return sendRequest(Protocol.PUT, key, value);
+        return sendRequest(Protocol.PUT, key, value, Protocol.NO_TTL);
+    }
+
+    /**
+     * Stores the value unless the key already exists, for the given milliseconds.
+     */
+    public String put(String key, String value, long ttlMillis) {
+        return sendRequest(Protocol.PUT_TTL, key, value, ttlMillis);
     }
 
     public String get(String key) {
-        return sendRequest(Protocol.GET, key, null);
+        return sendRequest(Protocol.GET, key, null, Protocol.NO_TTL);
     }
 
     public String delete(String key) {
-        return sendRequest(Protocol.DELETE, key, null);
+        return sendRequest(Protocol.DELETE, key, null, Protocol.NO_TTL);
+    }
+
+    /**
+     * Stores the value whether or not the key exists.
+     */
+    public String upsert(String key, String value) {
+        return sendRequest(Protocol.UPSERT, key, value, Protocol.NO_TTL);
+    }
+
+    /**
+     * Returns the version of the entry of the key, which {@link #compareAndSet} expects, and its
+     * value.
+     */
+    public String getWithVersion(String key) {
+        return sendRequest(Protocol.GETV, key, null, Protocol.NO_TTL);
+    }
+
+    /**
+     * Stores the value if the key exists and its entry still has the expected version, see
+     * {@link Versions}. Returns CONFLICT otherwise, or NOT_FOUND if the key does not exist.
+     */
+    public String compareAndSet(String key, long expectedVersion, String value) {
+        return sendRequest(Protocol.CAS, key, value, expectedVersion);
+    }
+
+    /**
+     * Adds the delta to the number stored under the key, 0 if it does not exist, and returns the
+     * new number.
+     */
+    public String increment(String key, long delta) {
+        return sendRequest(Protocol.INCR, key, null, delta);
+    }
+
+    /**
+     * Appends the value to the current value of the key, or stores it if the key does not exist.
+     */
+    public String append(String key, String value) {
+        return sendRequest(Protocol.APPEND, key, value, Protocol.NO_TTL);
+    }
+
+    public CompletableFuture<Response> putAsync(String key, String value) {
+        return sendRequestAsync(Protocol.PUT, key, value, Protocol.NO_TTL);
+    }
+
+    /**
+     * Stores the value unless the key already exists, for the given milliseconds.
+     */
+    public CompletableFuture<Response> putAsync(String key, String value, long ttlMillis) {
+        return sendRequestAsync(Protocol.PUT_TTL, key, value, ttlMillis);
+    }
+
+    public CompletableFuture<Response> getAsync(String key) {
+        return sendRequestAsync(Protocol.GET, key, null, Protocol.NO_TTL);
+    }
+
+    public CompletableFuture<Response> deleteAsync(String key) {
+        return sendRequestAsync(Protocol.DELETE, key, null, Protocol.NO_TTL);
+    }
+
+    public CompletableFuture<Response> upsertAsync(String key, String value) {
+        return sendRequestAsync(Protocol.UPSERT, key, value, Protocol.NO_TTL);
+    }
+
+    /**
+     * Returns the version of the entry of the key and its value, see {@link Response#getVersion}.
+     */
+    public CompletableFuture<Response> getWithVersionAsync(String key) {
+        return sendRequestAsync(Protocol.GETV, key, null, Protocol.NO_TTL);
+    }
+
+    /**
+     * Stores the value if the key exists and its entry still has the expected version. A
+     * STATUS_CONFLICT response carries the current version and value.
+     */
+    public CompletableFuture<Response> compareAndSetAsync(String key, long expectedVersion, String value) {
+        return sendRequestAsync(Protocol.CAS, key, value, expectedVersion);
+    }
+
+    public CompletableFuture<Response> incrementAsync(String key, long delta) {
+        return sendRequestAsync(Protocol.INCR, key, null, delta);
+    }
+
+    public CompletableFuture<Response> appendAsync(String key, String value) {
+        return sendRequestAsync(Protocol.APPEND, key, value, Protocol.NO_TTL);
+    }
+
+    public List<Response> mget(List<String> keys) {
+        return sendBatchRequest(Protocol.MGET, keys, null);
+    }
+
+    /**
+     * Stores every entry whose key does not exist yet. The responses follow the iteration order of
+     * the map.
+     */
+    public List<Response> mput(Map<String, String> entries) {
+        return sendBatchRequest(Protocol.MPUT, new ArrayList<>(entries.keySet()), new ArrayList<>(entries.values()));
+    }
+
+    public List<Response> mdelete(List<String> keys) {
+        return sendBatchRequest(Protocol.MDELETE, keys, null);
+    }
+
+    public CompletableFuture<List<Response>> mgetAsync(List<String> keys) {
+        return sendBatchRequestAsync(Protocol.MGET, keys, null);
+    }
+
+    public CompletableFuture<List<Response>> mputAsync(Map<String, String> entries) {
+        return sendBatchRequestAsync(Protocol.MPUT, new ArrayList<>(entries.keySet()),
+            new ArrayList<>(entries.values()));
+    }
+
+    public CompletableFuture<List<Response>> mdeleteAsync(List<String> keys) {
+        return sendBatchRequestAsync(Protocol.MDELETE, keys, null);
+    }
+
+    /**
+     * Fetches one page of the entries from start (inclusive) to end (exclusive), in key order.
+     * @param start    The first key, or null for the first key of the store.
+     * @param end      The key to stop before, or null for no end.
+     * @param token    The continuation token of the previous page, or null for the first page.
+     * @param pageSize The maximum number of entries, up to Protocol.MAX_SCAN_PAGE_SIZE.
+     * @throws IOException if the request fails or the server answers with an error.
+     */
+    public ScanPage scanPage(String start, String end, byte[] token, int pageSize) throws IOException {
+        return sendScanRequest(Protocol.SCAN, start, end, token, pageSize);
+    }
+
+    /**
+     * Fetches one page of the entries whose keys start with the prefix, in key order.
+     * @see #scanPage
+     */
+    public ScanPage prefixPage(String prefix, byte[] token, int pageSize) throws IOException {
+        return sendScanRequest(Protocol.PREFIX, prefix, null, token, pageSize);
+    }
+
+    /**
+     * Returns the entries from start (inclusive) to end (exclusive) in key order, fetched a page at
+     * a time while iterating. The iterator throws UncheckedIOException if a page cannot be fetched.
+     * @param start The first key, or null for the first key of the store.
+     * @param end   The key to stop before, or null for no end.
+     */
+    public Iterator<Map.Entry<String, String>> scan(String start, String end) {
+        return new ScanIterator(token -> scanPage(start, end, token, SCAN_PAGE_SIZE));
+    }
+
+    /**
+     * Returns the entries whose keys start with the prefix in key order, fetched a page at a time
+     * while iterating.
+     * @see #scan
+     */
+    public Iterator<Map.Entry<String, String>> scanPrefix(String prefix) {
+        return new ScanIterator(token -> prefixPage(prefix, token, SCAN_PAGE_SIZE));
     }
 
     /**
@@ -207,4 +764,22 @@ public class KeyValueStoreUDPClient {
         }
     }
 
+    /**
+     * A request waiting for its response, with what is needed to retransmit it.
+     */
+    private static final class PendingRequest {
+        private final int requestId;
+        private final byte[] data;
+        private final int messageId;
+        private final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        private final CompletableFuture<Response> future = new CompletableFuture<>();
+        // only touched by the sending thread and then the retransmit thread
+        private volatile int attempts = 1;
+
+        private PendingRequest(int requestId, byte[] data, int messageId) {
+            this.requestId = requestId;
+            this.data = data;
+            this.messageId = messageId;
+        }
+    }
 }
@@ -0,0 +1,63 @@
+package client;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import common.ScanPage;
+
+/**
+ * Iterates over the entries of a SCAN or PREFIX request, fetching the next page only once the
+ * current one is used up, so that only one page is held at a time however many keys match.
+ */
+class ScanIterator implements Iterator<Map.Entry<String, String>> {
+
+    /**
+     * Requests one page of the scan.
+     */
+    @FunctionalInterface
+    interface PageFetcher {
+        /**
+         * @param token The continuation token of the previous page, or null for the first page.
+         * @throws IOException if the page cannot be fetched.
+         */
+        ScanPage fetch(byte[] token) throws IOException;
+    }
+
+    private final PageFetcher fetcher;
+    private ScanPage page;
+    private int index;
+
+    ScanIterator(PageFetcher fetcher) {
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * @throws UncheckedIOException if the next page cannot be fetched.
+     */
+    @Override
+    public boolean hasNext() {
+        try {
+            while (page == null || (index == page.getKeys().size() && page.hasMore())) {
+                page = fetcher.fetch(page != null ? page.getContinuationToken() : null);
+                index = 0;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to fetch the next scan page", e);
+        }
+        return index < page.getKeys().size();
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<String, String> entry =
+            new AbstractMap.SimpleImmutableEntry<>(page.getKeys().get(index), page.getValues().get(index));
+        index++;
+        return entry;
+    }
+}
@@ -0,0 +1,214 @@
+package common;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.*;
+
+/**
+ * A logging handler that moves formatting and console output off the threads that log.
+ * <p>
+ * {@link #publish} only puts the record into a bounded ring buffer, which never blocks: when the
+ * buffer is full the record is dropped and counted, and the writer reports the number of dropped
+ * records with the next line it writes. A background thread takes the records out of the buffer,
+ * formats them with the {@code java.util.logging.SimpleFormatter.format} pattern and writes them
+ * in batches. Records logged with parameters are formatted on that thread too, so the logging
+ * thread only pays for capturing the parameters, which must not change afterwards.
+ * </p>
+ * <p>
+ * Messages logged for every operation go through {@link #isSampled}, which keeps one of every N
+ * messages of a level, with N read from the system property {@code kvstore.log.sample.<LEVEL>}
+ * (e.g. {@code -Dkvstore.log.sample.INFO=100}) and defaulting to 1.
+ * </p>
+ */
+public final class AsyncLogHandler extends Handler {
+    // capacity of the ring buffer between the logging threads and the writer
+    public static final int DEFAULT_CAPACITY = 8192;
+    private static final String DEFAULT_FORMAT = "[%1$tF %1$tT.%1$tL] %4$s: %5$s%6$s%n";
+    // sampling rates and counters by level, for the messages logged per operation
+    private static final Map<Level, Integer> sampleRates = new ConcurrentHashMap<>();
+    private static final Map<Level, AtomicLong> sampleCounters = new ConcurrentHashMap<>();
+    private static AsyncLogHandler installed;
+
+    private final BlockingQueue<LogRecord> buffer;
+    private final AtomicLong dropped = new AtomicLong();
+    private final PrintStream out;
+    private final String format;
+    // held by the writer while it writes a batch, so that flush() writes after it
+    private final Object writeLock = new Object();
+    private long reportedDrops;
+    private volatile boolean closed;
+
+    /**
+     * Creates a handler and starts its writer thread.
+     * @param out      The stream the records are written to.
+     * @param capacity The number of records the buffer holds before records are dropped.
+     */
+    public AsyncLogHandler(PrintStream out, int capacity) {
+        this.out = out;
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        String pattern = LogManager.getLogManager().getProperty("java.util.logging.SimpleFormatter.format");
+        this.format = System.getProperty("java.util.logging.SimpleFormatter.format",
+            pattern != null ? pattern : DEFAULT_FORMAT);
+        setFormatter(new SimpleFormatter());
+
+        Thread writer = new Thread(this::writeRecords, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Replaces the console handlers of the root logger with an AsyncLogHandler writing to
+     * System.err, and drains it when the JVM exits. Installs at most one handler per JVM.
+     * @return the installed handler.
+     */
+    public static synchronized AsyncLogHandler install() {
+        if (installed != null) {
+            return installed;
+        }
+        Logger root = Logger.getLogger("");
+        Level level = Level.INFO;
+        for (Handler handler : root.getHandlers()) {
+            if (handler instanceof ConsoleHandler) {
+                level = handler.getLevel();
+                root.removeHandler(handler);
+                handler.close();
+            }
+        }
+
+        AsyncLogHandler handler = new AsyncLogHandler(System.err, DEFAULT_CAPACITY);
+        handler.setLevel(level);
+        root.addHandler(handler);
+        Runtime.getRuntime().addShutdownHook(new Thread(handler::close, "log-writer-shutdown"));
+        installed = handler;
+        return handler;
+    }
+
+    /**
+     * Decides whether a message logged for every operation is written. Call it before building
+     * the message, so that skipped messages cost nothing.
+     * @return false if the level is disabled for the logger, or if the message is sampled out.
+     */
+    public static boolean isSampled(Logger logger, Level level) {
+        if (!logger.isLoggable(level)) {
+            return false;
+        }
+        int rate = sampleRates.computeIfAbsent(level,
+            l -> Math.max(1, Integer.getInteger("kvstore.log.sample." + l.getName(), 1)));
+        if (rate == 1) {
+            return true;
+        }
+        return sampleCounters.computeIfAbsent(level, l -> new AtomicLong()).getAndIncrement() % rate == 0;
+    }
+
+    /**
+     * Keeps one of every rate messages of the level passed to {@link #isSampled}.
+     */
+    public static void setSampleRate(Level level, int rate) {
+        if (rate < 1) {
+            throw new IllegalArgumentException("Sample rate must be positive");
+        }
+        sampleRates.put(level, rate);
+    }
+
+    /**
+     * Queues the record for the writer, or drops it if the buffer is full. Never blocks.
+     */
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        if (!buffer.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes every queued record before returning.
+     */
+    @Override
+    public void flush() {
+        synchronized (writeLock) {
+            drain();
+        }
+    }
+
+    /**
+     * Writes the queued records and stops accepting new ones.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        flush();
+    }
+
+    /**
+     * Returns the number of records dropped because the buffer was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * The loop of the writer thread: waits for a record, then writes everything queued by then
+     * and flushes the stream once per batch.
+     */
+    private void writeRecords() {
+        try {
+            while (true) {
+                LogRecord record = buffer.take();
+                synchronized (writeLock) {
+                    write(record);
+                    drain();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        LogRecord record;
+        while ((record = buffer.poll()) != null) {
+            write(record);
+        }
+        long drops = dropped.get();
+        if (drops > reportedDrops) {
+            write(new LogRecord(Level.WARNING, (drops - reportedDrops) + " log records dropped, buffer full"));
+            reportedDrops = drops;
+        }
+        out.flush();
+    }
+
+    /**
+     * Formats one record. The logger name stands in for the source, because inferring the caller
+     * is only possible on the thread that logged.
+     */
+    private void write(LogRecord record) {
+        try {
+            String thrown = "";
+            if (record.getThrown() != null) {
+                StringWriter trace = new StringWriter();
+                PrintWriter writer = new PrintWriter(trace);
+                writer.println();
+                record.getThrown().printStackTrace(writer);
+                writer.close();
+                thrown = trace.toString();
+            }
+            String source = record.getLoggerName() != null ? record.getLoggerName() : "";
+            out.print(String.format(format,
+                ZonedDateTime.ofInstant(record.getInstant(), ZoneId.systemDefault()),
+                source, source, record.getLevel().getLocalizedName(), getFormatter().formatMessage(record), thrown));
+        } catch (RuntimeException e) {
+            reportError("Failed to write log record", e, ErrorManager.WRITE_FAILURE);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A decoded MGET, MPUT or MDELETE request whose keys and values refer to the received frame
+ * instead of being copied out of it.
+ * <p>
+ * Created by {@link Protocol#decodeBatchRequest(ByteBuffer)}. Like {@link RequestView}, it is only
+ * valid as long as the underlying buffer is not reused for another frame.
+ * </p>
+ */
+public class BatchRequestView {
+    private final ByteBuffer buffer;
+    private final int requestId;
+    private final byte type;
+    // offsets and lengths of the keys and values inside the buffer, by entry
+    private final int[] keyOffsets;
+    private final int[] keyLengths;
+    private final int[] valueOffsets;
+    private final int[] valueLengths;
+
+    BatchRequestView(ByteBuffer buffer, int requestId, byte type, int[] keyOffsets, int[] keyLengths,
+                     int[] valueOffsets, int[] valueLengths) {
+        this.buffer = buffer;
+        this.requestId = requestId;
+        this.type = type;
+        this.keyOffsets = keyOffsets;
+        this.keyLengths = keyLengths;
+        this.valueOffsets = valueOffsets;
+        this.valueLengths = valueLengths;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * Returns the number of entries in the batch.
+     */
+    public int size() {
+        return keyOffsets.length;
+    }
+
+    /**
+     * Returns a view of the key bytes of an entry. The returned buffer must not be modified.
+     */
+    public ByteBuffer key(int index) {
+        return buffer.slice(keyOffsets[index], keyLengths[index]);
+    }
+
+    /**
+     * Copies the key bytes of an entry out of the frame, for when the key has to outlive it.
+     */
+    public byte[] copyKey(int index) {
+        byte[] bytes = new byte[keyLengths[index]];
+        buffer.get(keyOffsets[index], bytes);
+        return bytes;
+    }
+
+    /**
+     * Copies the value bytes of an entry out of the frame.
+     * @return the value bytes, or null if the entry has no value.
+     */
+    public byte[] copyValue(int index) {
+        if (valueLengths[index] == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[valueLengths[index]];
+        buffer.get(valueOffsets[index], bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns the key of an entry decoded as a String.
+     */
+    public String getKey(int index) {
+        return new String(copyKey(index), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,128 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The compressed form of values, sent in frames flagged with {@link Protocol#COMPRESSED} and kept
+ * as it is by the server, which only decompresses it to answer clients that cannot take it.
+ * <p>
+ * A compressed value is {@link #COMPRESSED_VALUE}(1) + uncompressed length(4) + an {@link Lz4}
+ * block. Neither {@link #COMPRESSED_VALUE} nor {@link #ESCAPED_VALUE} can start UTF-8 text, so the
+ * server stores compressed values next to raw ones and tells them apart by their first byte. The
+ * rare raw values starting with either byte are stored behind an extra {@link #ESCAPED_VALUE}.
+ * </p>
+ */
+public final class CompressedValues {
+    public static final byte COMPRESSED_VALUE = (byte) 0xC0;
+    public static final byte ESCAPED_VALUE = (byte) 0xC1;
+    // the system property holding the value length from which values are compressed, 0 to disable
+    public static final String THRESHOLD_PROPERTY = "kvstore.compression.threshold";
+    public static final int DEFAULT_THRESHOLD = 1024;
+    private static final int HEADER_LENGTH = 1 + 4;
+
+    private CompressedValues() {
+    }
+
+    /**
+     * Returns the configured value length from which values are compressed, 0 if compression is
+     * disabled.
+     * @throws IllegalArgumentException if the threshold is not a non-negative number.
+     */
+    public static int threshold() {
+        String value = System.getProperty(THRESHOLD_PROPERTY, Integer.toString(DEFAULT_THRESHOLD));
+        try {
+            int threshold = Integer.parseInt(value);
+            if (threshold >= 0) {
+                return threshold;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid compression threshold: " + value);
+    }
+
+    /**
+     * Compresses a value.
+     * @return The compressed value, or null if it is not smaller than the value.
+     */
+    public static byte[] compress(byte[] value) {
+        byte[] compressed = new byte[HEADER_LENGTH + Lz4.maxCompressedLength(value.length)];
+        compressed[0] = COMPRESSED_VALUE;
+        ByteBuffer.wrap(compressed).putInt(1, value.length);
+        int length = HEADER_LENGTH + Lz4.compress(value, 0, value.length, compressed, HEADER_LENGTH);
+        return length < value.length ? Arrays.copyOf(compressed, length) : null;
+    }
+
+    /**
+     * Returns true if the stored or received bytes are a compressed value.
+     */
+    public static boolean isCompressed(byte[] value) {
+        return value.length >= HEADER_LENGTH && value[0] == COMPRESSED_VALUE;
+    }
+
+    /**
+     * Checks the header of a compressed value received in a frame, without decompressing it.
+     * @throws MalformedRequestException if the bytes are not a compressed value of at most
+     *                                   MAX_VALUE_LENGTH bytes.
+     */
+    static void validate(ByteBuffer frame, int offset, int length) throws MalformedRequestException {
+        if (length < HEADER_LENGTH || frame.get(offset) != COMPRESSED_VALUE) {
+            throw new MalformedRequestException("Invalid compressed value");
+        }
+        int originalLength = frame.getInt(offset + 1);
+        if (originalLength <= 0 || originalLength > Protocol.MAX_VALUE_LENGTH) {
+            throw new MalformedRequestException("Invalid uncompressed value length: " + originalLength);
+        }
+    }
+
+    /**
+     * Returns the form in which the server stores a raw value: compressed if it has at least
+     * threshold bytes and compresses, escaped if it starts like a stored form, as it is otherwise.
+     * @param threshold The value length from which values are compressed, 0 to never compress.
+     */
+    public static byte[] encode(byte[] value, int threshold) {
+        if (threshold > 0 && value.length >= threshold) {
+            byte[] compressed = compress(value);
+            if (compressed != null) {
+                return compressed;
+            }
+        }
+        if (value.length > 0 && (value[0] == COMPRESSED_VALUE || value[0] == ESCAPED_VALUE)) {
+            byte[] escaped = new byte[value.length + 1];
+            escaped[0] = ESCAPED_VALUE;
+            System.arraycopy(value, 0, escaped, 1, value.length);
+            return escaped;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the raw value of a stored form made by {@link #encode}, or received as a compressed
+     * value.
+     * @throws CorruptValueException if a compressed value is corrupt.
+     */
+    public static byte[] decode(byte[] stored) {
+        if (stored.length == 0) {
+            return stored;
+        }
+        if (stored[0] == ESCAPED_VALUE) {
+            return Arrays.copyOfRange(stored, 1, stored.length);
+        }
+        if (stored[0] != COMPRESSED_VALUE) {
+            return stored;
+        }
+        if (stored.length < HEADER_LENGTH) {
+            throw new CorruptValueException("Corrupt compressed value");
+        }
+        int originalLength = ByteBuffer.wrap(stored).getInt(1);
+        if (originalLength < 0 || originalLength > Protocol.MAX_VALUE_LENGTH) {
+            throw new CorruptValueException("Corrupt compressed value");
+        }
+        try {
+            return Lz4.decompress(stored, HEADER_LENGTH, stored.length - HEADER_LENGTH, originalLength);
+        } catch (IllegalArgumentException e) {
+            throw new CorruptValueException("Corrupt compressed value", e);
+        }
+    }
+}
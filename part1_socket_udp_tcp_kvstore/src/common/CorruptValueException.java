@@ -0,0 +1,26 @@
+package common;
+
+/**
+ * Thrown by {@link CompressedValues#decode} when a compressed value does not decompress, so that
+ * callers can tell it apart from other invalid arguments.
+ */
+public class CorruptValueException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor with a custom message.
+     * @param message Detailed error message.
+     */
+    public CorruptValueException(String message) {
+        super(message);
+    }
+
+    /**
+     * Constructor with a custom message and cause.
+     * @param message Detailed error message.
+     * @param cause The underlying cause of this exception.
+     */
+    public CorruptValueException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,86 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits requests and responses that do not fit into one datagram into numbered fragments.
+ * <p>
+ * A message of at most {@link #MAX_DATAGRAM_SIZE} bytes is sent as a single datagram, exactly as
+ * before. A larger message is sent as fragments, each a datagram of the form
+ * {@link Protocol#FRAGMENT}(1) + message ID(4) + fragment index(2) + fragment count(2) + payload.
+ * The receiver collects the fragments in a {@link Reassembler} until the message is complete.
+ * </p>
+ */
+public class DatagramFraming {
+    // largest datagram sent, chosen to fit into the MTU of common links without IP fragmentation
+    public static final int MAX_DATAGRAM_SIZE = 1400;
+    // largest datagram accepted, i.e. the maximum UDP payload
+    public static final int MAX_RECEIVE_SIZE = 65507;
+    public static final int FRAGMENT_HEADER_LENGTH = 1 + 4 + 2 + 2;
+    public static final int MAX_FRAGMENT_PAYLOAD = MAX_DATAGRAM_SIZE - FRAGMENT_HEADER_LENGTH;
+    // socket receive buffer requested from the kernel, so that the burst of fragments of a
+    // full-size message is queued instead of dropped while the receiver is busy
+    public static final int SOCKET_RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Receives each datagram of a message to be sent.
+     */
+    public interface DatagramSink {
+        /**
+         * Sends one datagram, spanning from the position to the limit of the buffer.
+         */
+        void send(ByteBuffer datagram) throws IOException;
+    }
+
+    /**
+     * Returns true if the datagram is a fragment of a larger message.
+     */
+    public static boolean isFragment(ByteBuffer datagram) {
+        return datagram.remaining() > 0 && datagram.get(datagram.position()) == Protocol.FRAGMENT;
+    }
+
+    /**
+     * Returns the number of fragments a message of the given length is split into.
+     */
+    public static int getFragmentCount(int messageLength) {
+        return (messageLength + MAX_FRAGMENT_PAYLOAD - 1) / MAX_FRAGMENT_PAYLOAD;
+    }
+
+    /**
+     * Sends a message as one datagram, or as fragments if it is larger than MAX_DATAGRAM_SIZE.
+     *
+     * @param message   The message, from its position to its limit; left unchanged.
+     * @param messageId The ID tying the fragments together, unique per sender.
+     * @param scratch   A buffer of at least MAX_DATAGRAM_SIZE bytes the fragments are built in;
+     *                  heap or direct, matching what the sink needs.
+     * @param sink      Sends each datagram.
+     */
+    public static void send(ByteBuffer message, int messageId, ByteBuffer scratch, DatagramSink sink)
+        throws IOException {
+        int length = message.remaining();
+        if (length <= MAX_DATAGRAM_SIZE) {
+            sink.send(message.duplicate());
+            return;
+        }
+
+        int count = getFragmentCount(length);
+        if (count > 0xFFFF) {
+            throw new IllegalArgumentException("Message too large to fragment: " + length + " bytes");
+        }
+        for (int index = 0; index < count; index++) {
+            int offset = message.position() + index * MAX_FRAGMENT_PAYLOAD;
+            int payloadLength = Math.min(MAX_FRAGMENT_PAYLOAD, message.limit() - offset);
+
+            scratch.clear();
+            scratch.put(Protocol.FRAGMENT);
+            scratch.putInt(messageId);
+            scratch.putShort((short) index);
+            scratch.putShort((short) count);
+            scratch.put(scratch.position(), message, offset, payloadLength);
+            scratch.position(scratch.position() + payloadLength);
+            scratch.flip();
+            sink.send(scratch);
+        }
+    }
+}
@@ -1,35 +1,224 @@
 package common;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Handles encoding and decoding of requests for the key-value store communication protocol.
+ * <p>
+ * Two request layouts are understood:
+ * <ul>
+ *     <li>version 1: type(1) + key length(4) + value length(4) + key + value, answered with
+ *     status(1) + value length(4) + value.</li>
+ *     <li>version 2: {@link #VERSION_2}(1) + request ID(4) followed by the version 1 layout, answered
+ *     with {@link #VERSION_2}(1) + request ID(4) followed by the version 1 response.</li>
+ * </ul>
+ * The request ID lets a client keep many requests in flight on one connection and match the
+ * responses, which the server may send in any order.
+ * </p>
+ * <p>
+ * {@link #PUT_TTL} is a PUT whose entry expires after a TTL: type(1) + key length(4) + value length(4)
+ * + TTL in milliseconds(8) + key + value, optionally behind the version 2 header, and answered like a
+ * PUT.
+ * </p>
+ * <p>
+ * The update types overwrite existing keys in one request, each applied atomically by the server:
+ * <ul>
+ *     <li>{@link #UPSERT} stores the value whether or not the key exists, in the PUT layout.</li>
+ *     <li>{@link #CAS} stores the value only if the key exists and its entry still has the expected
+ *     {@link Versions version}, in the PUT_TTL layout with the version in place of the TTL. A
+ *     mismatch is answered with {@link #STATUS_CONFLICT} and the current version(8) followed by the
+ *     current value.</li>
+ *     <li>{@link #INCR} adds a delta to the decimal number stored under the key, 0 if it does not
+ *     exist, in the PUT_TTL layout with the delta in place of the TTL and no value. It is answered
+ *     with the new number.</li>
+ *     <li>{@link #APPEND} appends the value to the current value of the key, or stores it if the
+ *     key does not exist, in the PUT layout.</li>
+ * </ul>
+ * The version a CAS expects is read with {@link #GETV}, a GET answered with the version(8) of the
+ * entry followed by its value, never compressed.
+ * </p>
+ * <p>
+ * The batch types {@link #MGET}, {@link #MPUT} and {@link #MDELETE} carry many keys in one request:
+ * type(1) + entry count(4) followed by key length(4) + value length(4) + key + value per entry,
+ * optionally behind the version 2 header. A batch is answered with one OK response whose value
+ * holds entry count(4) followed by status(1) + value length(4) + value per entry, in request order.
+ * </p>
+ * <p>
+ * The scan types {@link #SCAN} and {@link #PREFIX} list the entries of a key range in key order, a
+ * page at a time: type(1) + start length(4) + end length(4) + token length(4) + page size(4) + start
+ * + end + token, optionally behind the version 2 header. SCAN covers the keys from start
+ * (inclusive, empty for the first key) to end (exclusive, empty for no end); PREFIX carries the
+ * prefix as start and an empty end. The token is empty for the first page, and the continuation
+ * token of the previous page otherwise. A page is answered with one OK response whose value holds
+ * entry count(4) + more(1) followed by key length(4) + value length(4) + key + value per entry.
+ * If more is 1, the last key of the page is the continuation token of the next page.
+ * </p>
+ * <p>
+ * {@link #COMPRESSED} is OR'd into the type of a PUT, PUT_TTL or UPSERT whose value is sent in the
+ * compressed form of {@link CompressedValues}, which the server stores as it is, and into the type
+ * of a GET whose client accepts that form back. The server then ORs it into the OK status of a
+ * response whose value is compressed. {@link #readResponse} decompresses such values and clears the
+ * flag, so callers only ever see plain values and statuses.
+ * </p>
+ * <p>
+ * Over UDP, a request or response larger than one datagram is split into {@link #FRAGMENT}
+ * datagrams by {@link DatagramFraming}; the reassembled message has the same layout as above.
+ * </p>
  */
 public class Protocol {
     // using byte instead of int to improve the efficiency.
     public static final byte PUT = 0x01;
     public static final byte GET = 0x02;
     public static final byte DELETE = 0x03;
+    // batch request types, each carrying up to MAX_BATCH_SIZE keys or key-value pairs
+    public static final byte MGET = 0x04;
+    public static final byte MPUT = 0x05;
+    public static final byte MDELETE = 0x06;
+    // scan request types, each answered with one page of up to MAX_SCAN_PAGE_SIZE entries
+    public static final byte SCAN = 0x07;
+    public static final byte PREFIX = 0x08;
+    // a PUT whose entry expires
+    public static final byte PUT_TTL = 0x09;
+    // update request types, which overwrite existing keys
+    public static final byte UPSERT = 0x0A;
+    public static final byte CAS = 0x0B;
+    public static final byte INCR = 0x0C;
+    public static final byte APPEND = 0x0D;
+    // a GET answered with the version of the entry, which CAS requests expect
+    public static final byte GETV = 0x0E;
+    // flag OR'd into PUT, PUT_TTL, UPSERT and GET types, and into the OK status, for compressed values
+    public static final byte COMPRESSED = 0x40;
+    // leading byte of version 2 frames, chosen outside the range of the request types and statuses
+    public static final byte VERSION_2 = (byte) 0xF2;
+    // leading byte of UDP datagrams carrying one fragment of a larger message, see DatagramFraming
+    public static final byte FRAGMENT = (byte) 0xF7;
+    // response statuses; the value carries the GET result, or the message of an ERROR
+    public static final byte STATUS_OK = 0x00;
+    public static final byte STATUS_NOT_FOUND = 0x01;
+    public static final byte STATUS_KEY_EXISTS = 0x02;
+    public static final byte STATUS_ERROR = 0x03;
+    // a CAS found another version; the value carries the current version and value
+    public static final byte STATUS_CONFLICT = 0x04;
     public static final int MAX_KEY_LENGTH = 1024; // maximum allowed key length
-    public static final int MAX_VALUE_LENGTH = 4096; // maximum allowed value length
+    public static final int MAX_VALUE_LENGTH = 1024 * 1024; // maximum allowed value length
+    public static final int MAX_BATCH_SIZE = 1024; // maximum number of entries in a batch request
+    public static final int MAX_SCAN_PAGE_SIZE = 1024; // maximum number of entries in a scan page
+    public static final long NO_TTL = 0; // the TTL, version or delta of requests that carry none
+    // maximum length of an encoded request, i.e. a version 2 header plus the largest key and value
+    public static final int MAX_REQUEST_LENGTH = 1 + 4 + 1 + 4 + 4 + 8 + MAX_KEY_LENGTH + MAX_VALUE_LENGTH;
+    // maximum length of an encoded response; leaves room for error messages quoting a key, and for
+    // a scan page holding the largest entry
+    public static final int MAX_RESPONSE_LENGTH = 1 + 4 + 1 + 4 + 4 + 1 + 4 + 4 + MAX_KEY_LENGTH + MAX_VALUE_LENGTH;
 
     /**
      * Validates the request type.
      * @throws MalformedRequestException if the type is invalid.
      */
     private static void validateRequestType(byte type) throws MalformedRequestException {
-        if (type != PUT && type != GET && type != DELETE) {
+        byte baseType = (byte) (type & ~COMPRESSED);
+        if (baseType < PUT || baseType > GETV || isBatchType(baseType) || isScanType(baseType)
+            || type != baseType && baseType != PUT && baseType != PUT_TTL && baseType != UPSERT && baseType != GET) {
             throw new MalformedRequestException("Invalid request type: " + type);
         }
     }
 
+    /**
+     * Returns true if requests of the type carry an 8-byte argument: the TTL of PUT_TTL, the
+     * expected version of CAS or the delta of INCR.
+     */
+    private static boolean hasArgument(byte type) {
+        return type == PUT_TTL || type == CAS || type == INCR;
+    }
+
+    /**
+     * Returns true if the type is one of the batch request types.
+     */
+    public static boolean isBatchType(byte type) {
+        return type == MGET || type == MPUT || type == MDELETE;
+    }
+
+    /**
+     * Returns true if the type is one of the scan request types.
+     */
+    public static boolean isScanType(byte type) {
+        return type == SCAN || type == PREFIX;
+    }
+
+    /**
+     * Validates the response status.
+     * @throws MalformedRequestException if the status is invalid.
+     */
+    private static void validateStatus(byte status) throws MalformedRequestException {
+        if (status < STATUS_OK || status > STATUS_CONFLICT) {
+            throw new MalformedRequestException("Invalid response status: " + status);
+        }
+    }
+
+    /**
+     * Returns a human-readable status name.
+     */
+    public static String getStatusName(byte status) {
+        switch (status) {
+            case STATUS_OK: return "OK";
+            case STATUS_NOT_FOUND: return "NOT_FOUND";
+            case STATUS_KEY_EXISTS: return "KEY_EXISTS";
+            case STATUS_ERROR: return "ERROR";
+            case STATUS_CONFLICT: return "CONFLICT";
+            default: return "UNKNOWN";
+        }
+    }
+
+    /**
+     * Returns a human-readable request type name.
+     */
+    public static String getRequestTypeName(byte type) {
+        switch (type) {
+            case PUT: return "PUT";
+            case GET: return "GET";
+            case DELETE: return "DELETE";
+            case MGET: return "MGET";
+            case MPUT: return "MPUT";
+            case MDELETE: return "MDELETE";
+            case SCAN: return "SCAN";
+            case PREFIX: return "PREFIX";
+            case PUT_TTL: return "PUT_TTL";
+            case UPSERT: return "UPSERT";
+            case CAS: return "CAS";
+            case INCR: return "INCR";
+            case APPEND: return "APPEND";
+            case GETV: return "GETV";
+            default: return "UNKNOWN";
+        }
+    }
+
+    /**
+     * Returns the type a client that wants compressed values sends a request with: PUT, PUT_TTL and
+     * UPSERT flagged with COMPRESSED if the value has at least threshold characters, and GET flagged with
+     * COMPRESSED so that the server may answer with the stored compressed value.
+     *
+     * @param threshold The value length from which values are sent compressed, 0 to disable.
+     */
+    public static byte compressedType(byte type, String value, int threshold) {
+        if (threshold <= 0) {
+            return type;
+        }
+        if (type == GET
+            || (type == PUT || type == PUT_TTL || type == UPSERT) && value != null && value.length() >= threshold) {
+            return (byte) (type | COMPRESSED);
+        }
+        return type;
+    }
+
     /**
      * Creates a request packet in byte array format.
      * This method will be called by the Client to structure its requested data
@@ -40,6 +229,22 @@ public class Protocol {
      * @return Byte array representing the request.
      */
     public static byte[] createRequest(byte type, String key, String value) {
+        return createRequest(type, key, value, NO_TTL);
+    }
+
+    /**
+     * Creates a request packet in byte array format, with the argument of a PUT_TTL, CAS or INCR
+     * request. A PUT, PUT_TTL or UPSERT type flagged with COMPRESSED sends the value compressed,
+     * unless compressing does not make it smaller, in which case the flag is dropped.
+     *
+     * @param type The request type, optionally flagged with COMPRESSED.
+     * @param key  The key.
+     * @param value The value (nullable for GET/DELETE/INCR).
+     * @param argument The milliseconds a PUT_TTL entry lives, at least 1; the expected version of a
+     *                 CAS; the delta of an INCR; NO_TTL for the other types.
+     * @return Byte array representing the request.
+     */
+    public static byte[] createRequest(byte type, String key, String value, long argument) {
         // transforms the key, value of String datatype to byte array by method
         // `String.getBytes(StandardCharsets.UTF_8)`
         byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
@@ -54,19 +259,179 @@ public class Protocol {
             throw new IllegalArgumentException("Value length exceeds maximum limit: "
                 + MAX_VALUE_LENGTH);
         }
+        byte baseType = (byte) (type & ~COMPRESSED);
+        if (baseType == PUT_TTL && argument <= 0) {
+            throw new IllegalArgumentException("TTL must be positive: " + argument);
+        }
+        if (type != baseType && baseType != GET) {
+            byte[] compressed = CompressedValues.compress(valueBytes);
+            if (compressed != null) {
+                valueBytes = compressed;
+            } else {
+                type = baseType;
+            }
+        }
 
         // creates the ByteBuffer which can be parsed directly by the server.
-        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 4 + keyBytes.length + valueBytes.length);
+        int argumentLength = hasArgument(baseType) ? 8 : 0;
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 4 + argumentLength + keyBytes.length + valueBytes.length);
+        writeRequestBody(buffer, type, keyBytes, valueBytes, argument);
+        return buffer.array();
+    }
 
+    /**
+     * Creates a version 2 request packet, which carries a request ID used to match the response.
+     *
+     * @param requestId The ID echoed back in the response frame.
+     * @param type The request type (PUT, GET, DELETE).
+     * @param key  The key.
+     * @param value The value (nullable for GET/DELETE).
+     * @return Byte array representing the request.
+     */
+    public static byte[] createRequest(int requestId, byte type, String key, String value) {
+        return createRequest(requestId, type, key, value, NO_TTL);
+    }
+
+    /**
+     * Creates a version 2 request packet, with the argument of a PUT_TTL, CAS or INCR request.
+     *
+     * @param requestId The ID echoed back in the response frame.
+     * @param type The request type, optionally flagged with COMPRESSED.
+     * @param key  The key.
+     * @param value The value (nullable for GET/DELETE/INCR).
+     * @param argument The milliseconds a PUT_TTL entry lives, at least 1; the expected version of a
+     *                 CAS; the delta of an INCR; NO_TTL for the other types.
+     * @return Byte array representing the request.
+     */
+    public static byte[] createRequest(int requestId, byte type, String key, String value, long argument) {
+        byte[] body = createRequest(type, key, value, argument);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + body.length);
+        buffer.put(VERSION_2);
+        buffer.putInt(requestId);
+        buffer.put(body);
+        return buffer.array();
+    }
+
+    /**
+     * Writes the version 1 request layout into the buffer.
+     */
+    private static void writeRequestBody(ByteBuffer buffer, byte type, byte[] keyBytes, byte[] valueBytes,
+                                         long argument) {
         // header
         buffer.put(type);
         buffer.putInt(keyBytes.length);
         buffer.putInt(valueBytes.length);
+        if (hasArgument((byte) (type & ~COMPRESSED))) {
+            buffer.putLong(argument);
+        }
 
         // data
         buffer.put(keyBytes);
         buffer.put(valueBytes);
+    }
+
+    /**
+     * Creates a batch request packet.
+     *
+     * @param requestId The ID echoed back in the response frame, or Request.NO_REQUEST_ID for a
+     *                  version 1 request.
+     * @param type The batch request type (MGET, MPUT, MDELETE).
+     * @param keys The keys.
+     * @param values The values, one per key, for MPUT (null for MGET/MDELETE).
+     * @return Byte array representing the request.
+     */
+    public static byte[] createBatchRequest(int requestId, byte type, List<String> keys, List<String> values) {
+        if (!isBatchType(type)) {
+            throw new IllegalArgumentException("Not a batch request type: " + type);
+        }
+        if (keys.isEmpty() || keys.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Batch size must be between 1 and " + MAX_BATCH_SIZE);
+        }
+        if (values != null && values.size() != keys.size()) {
+            throw new IllegalArgumentException("Batch has " + keys.size() + " keys but " + values.size() + " values");
+        }
 
+        int length = (requestId != Request.NO_REQUEST_ID ? 1 + 4 : 0) + 1 + 4;
+        byte[][] keyBytes = new byte[keys.size()][];
+        byte[][] valueBytes = new byte[keys.size()][];
+        for (int i = 0; i < keys.size(); i++) {
+            keyBytes[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+            String value = (values != null) ? values.get(i) : null;
+            valueBytes[i] = (value != null) ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            if (keyBytes[i].length == 0 || keyBytes[i].length > MAX_KEY_LENGTH) {
+                throw new IllegalArgumentException("Key length must be between 1 and " + MAX_KEY_LENGTH);
+            }
+            if (valueBytes[i].length > MAX_VALUE_LENGTH) {
+                throw new IllegalArgumentException("Value length exceeds maximum limit: " + MAX_VALUE_LENGTH);
+            }
+            length += 4 + 4 + keyBytes[i].length + valueBytes[i].length;
+        }
+        if (length > MAX_REQUEST_LENGTH) {
+            throw new IllegalArgumentException("Batch request length exceeds maximum limit: " + MAX_REQUEST_LENGTH);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        if (requestId != Request.NO_REQUEST_ID) {
+            buffer.put(VERSION_2);
+            buffer.putInt(requestId);
+        }
+        buffer.put(type);
+        buffer.putInt(keys.size());
+        for (int i = 0; i < keyBytes.length; i++) {
+            buffer.putInt(keyBytes[i].length);
+            buffer.putInt(valueBytes[i].length);
+            buffer.put(keyBytes[i]);
+            buffer.put(valueBytes[i]);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Creates a scan request packet asking for one page.
+     *
+     * @param requestId The ID echoed back in the response frame, or Request.NO_REQUEST_ID for a
+     *                  version 1 request.
+     * @param type The scan request type (SCAN, PREFIX).
+     * @param start The first key of a SCAN, or the prefix of a PREFIX (nullable for the first key).
+     * @param end The key a SCAN stops before (null for no end, and for PREFIX).
+     * @param token The continuation token of the previous page (null for the first page).
+     * @param pageSize The maximum number of entries in the page.
+     * @return Byte array representing the request.
+     */
+    public static byte[] createScanRequest(int requestId, byte type, String start, String end, byte[] token,
+                                           int pageSize) {
+        if (!isScanType(type)) {
+            throw new IllegalArgumentException("Not a scan request type: " + type);
+        }
+        if (type == PREFIX && end != null) {
+            throw new IllegalArgumentException("A prefix scan has no end key");
+        }
+        if (pageSize <= 0 || pageSize > MAX_SCAN_PAGE_SIZE) {
+            throw new IllegalArgumentException("Page size must be between 1 and " + MAX_SCAN_PAGE_SIZE);
+        }
+        byte[] startBytes = (start != null) ? start.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[] endBytes = (end != null) ? end.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[] tokenBytes = (token != null) ? token : new byte[0];
+        if (startBytes.length > MAX_KEY_LENGTH || endBytes.length > MAX_KEY_LENGTH
+            || tokenBytes.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Key length exceeds maximum limit: " + MAX_KEY_LENGTH);
+        }
+
+        int length = (requestId != Request.NO_REQUEST_ID ? 1 + 4 : 0) + 1 + 4 + 4 + 4 + 4
+            + startBytes.length + endBytes.length + tokenBytes.length;
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        if (requestId != Request.NO_REQUEST_ID) {
+            buffer.put(VERSION_2);
+            buffer.putInt(requestId);
+        }
+        buffer.put(type);
+        buffer.putInt(startBytes.length);
+        buffer.putInt(endBytes.length);
+        buffer.putInt(tokenBytes.length);
+        buffer.putInt(pageSize);
+        buffer.put(startBytes);
+        buffer.put(endBytes);
+        buffer.put(tokenBytes);
         return buffer.array();
     }
 
@@ -74,7 +439,11 @@ public class Protocol {
      * Converts a Request object into a byte array.
      */
     public static byte[] toByteArray(Request request) {
-        return createRequest(request.getType(), request.getKey(), request.getValue());
+        if (request.hasRequestId()) {
+            return createRequest(request.getRequestId(), request.getType(), request.getKey(),
+                request.getValue(), request.getTtlMillis());
+        }
+        return createRequest(request.getType(), request.getKey(), request.getValue(), request.getTtlMillis());
     }
 
     /**
@@ -87,43 +456,501 @@ public class Protocol {
      * @throws MalformedRequestException if the request is malformed.
      */
     public static Request parseRequest(byte[] data) throws MalformedRequestException {
-        try {
-            ByteBuffer buffer = ByteBuffer.wrap(data);
+        RequestView view = new RequestView();
+        decodeRequest(ByteBuffer.wrap(data), view);
+        return view.toRequest();
+    }
 
-            // Read header
-            byte type = buffer.get();
-            validateRequestType(type);
+    /**
+     * Decodes a received request in place, without copying the key or value out of the buffer.
+     * The frame spans from the position to the limit of the buffer, which are left unchanged.
+     *
+     * @param frame The raw request data, heap or direct.
+     * @param view The view to decode into; its previous state is overwritten.
+     * @throws MalformedRequestException if the request is malformed.
+     */
+    public static void decodeRequest(ByteBuffer frame, RequestView view) throws MalformedRequestException {
+        int offset = frame.position();
+        int limit = frame.limit();
+        if (limit - offset < 1 + 4 + 4) {
+            throw new MalformedRequestException("Incomplete request data");
+        }
 
-            int keyLength = buffer.getInt();
-            int valueLength = buffer.getInt();
+        // Read the request ID of version 2 requests
+        int requestId = Request.NO_REQUEST_ID;
+        if (frame.get(offset) == VERSION_2) {
+            if (limit - offset < 1 + 4 + 1 + 4 + 4) {
+                throw new MalformedRequestException("Incomplete request data");
+            }
+            requestId = frame.getInt(offset + 1);
+            if (requestId < 0) {
+                throw new MalformedRequestException("Invalid request ID: " + requestId);
+            }
+            offset += 1 + 4;
+        }
+
+        // Read header
+        byte type = frame.get(offset);
+        validateRequestType(type);
+        boolean compressed = (type & COMPRESSED) != 0;
+        type &= ~COMPRESSED;
 
-            // Validate key and value lengths
+        int keyLength = frame.getInt(offset + 1);
+        int valueLength = frame.getInt(offset + 5);
+        offset += 1 + 4 + 4;
+        long argument = NO_TTL;
+        if (hasArgument(type)) {
+            if (limit - offset < 8) {
+                throw new MalformedRequestException("Incomplete request data");
+            }
+            argument = frame.getLong(offset);
+            if (type == PUT_TTL && argument <= 0) {
+                throw new MalformedRequestException("Invalid TTL: " + argument);
+            }
+            offset += 8;
+        }
+
+        // Validate key and value lengths
+        if (keyLength <= 0 || keyLength > MAX_KEY_LENGTH) {
+            throw new MalformedRequestException("Invalid key length: " + keyLength);
+        }
+        if (valueLength < 0 || valueLength > MAX_VALUE_LENGTH) {
+            throw new MalformedRequestException("Invalid value length: " + valueLength);
+        }
+        if (limit - offset < keyLength + valueLength) {
+            throw new MalformedRequestException("Incomplete request: insufficient data");
+        }
+        if (compressed && type != GET) {
+            CompressedValues.validate(frame, offset + keyLength, valueLength);
+        }
+
+        view.set(frame, requestId, type, compressed, offset, keyLength, offset + keyLength, valueLength,
+            argument);
+    }
+
+    /**
+     * Returns the request type of a raw request spanning from the position to the limit of the
+     * buffer, without parsing the rest of it.
+     *
+     * @return The request type, or 0 for truncated requests.
+     */
+    public static byte peekRequestType(ByteBuffer frame) {
+        int offset = frame.position();
+        if (frame.limit() > offset && frame.get(offset) == VERSION_2) {
+            offset += 1 + 4;
+        }
+        return frame.limit() > offset ? frame.get(offset) : 0;
+    }
+
+    /**
+     * Decodes a received batch request in place. The frame spans from the position to the limit of
+     * the buffer, which are left unchanged.
+     *
+     * @param frame The raw request data, heap or direct.
+     * @return The decoded batch, referring to the keys and values inside the frame.
+     * @throws MalformedRequestException if the request is malformed.
+     */
+    public static BatchRequestView decodeBatchRequest(ByteBuffer frame) throws MalformedRequestException {
+        int offset = frame.position();
+        int limit = frame.limit();
+
+        int requestId = Request.NO_REQUEST_ID;
+        if (limit - offset >= 1 && frame.get(offset) == VERSION_2) {
+            if (limit - offset < 1 + 4) {
+                throw new MalformedRequestException("Incomplete request data");
+            }
+            requestId = frame.getInt(offset + 1);
+            if (requestId < 0) {
+                throw new MalformedRequestException("Invalid request ID: " + requestId);
+            }
+            offset += 1 + 4;
+        }
+        if (limit - offset < 1 + 4) {
+            throw new MalformedRequestException("Incomplete request data");
+        }
+
+        byte type = frame.get(offset);
+        if (!isBatchType(type)) {
+            throw new MalformedRequestException("Invalid batch request type: " + type);
+        }
+        int count = frame.getInt(offset + 1);
+        if (count <= 0 || count > MAX_BATCH_SIZE) {
+            throw new MalformedRequestException("Invalid batch size: " + count);
+        }
+        offset += 1 + 4;
+
+        int[] keyOffsets = new int[count];
+        int[] keyLengths = new int[count];
+        int[] valueOffsets = new int[count];
+        int[] valueLengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (limit - offset < 4 + 4) {
+                throw new MalformedRequestException("Incomplete request: insufficient data");
+            }
+            int keyLength = frame.getInt(offset);
+            int valueLength = frame.getInt(offset + 4);
+            offset += 4 + 4;
             if (keyLength <= 0 || keyLength > MAX_KEY_LENGTH) {
                 throw new MalformedRequestException("Invalid key length: " + keyLength);
             }
             if (valueLength < 0 || valueLength > MAX_VALUE_LENGTH) {
                 throw new MalformedRequestException("Invalid value length: " + valueLength);
             }
-            if (buffer.remaining() < keyLength + valueLength) {
+            if (limit - offset < keyLength + valueLength) {
                 throw new MalformedRequestException("Incomplete request: insufficient data");
             }
+            keyOffsets[i] = offset;
+            keyLengths[i] = keyLength;
+            valueOffsets[i] = offset + keyLength;
+            valueLengths[i] = valueLength;
+            offset += keyLength + valueLength;
+        }
+
+        return new BatchRequestView(frame, requestId, type, keyOffsets, keyLengths, valueOffsets, valueLengths);
+    }
 
-            // Read key
-            byte[] keyBytes = new byte[keyLength];
-            buffer.get(keyBytes);
-            String key = new String(keyBytes, StandardCharsets.UTF_8);
+    /**
+     * Decodes a received scan request in place. The frame spans from the position to the limit of
+     * the buffer, which are left unchanged.
+     *
+     * @param frame The raw request data, heap or direct.
+     * @return The decoded scan, referring to the keys inside the frame.
+     * @throws MalformedRequestException if the request is malformed.
+     */
+    public static ScanRequestView decodeScanRequest(ByteBuffer frame) throws MalformedRequestException {
+        int offset = frame.position();
+        int limit = frame.limit();
 
-            // Read value
-            String value = null;
-            if (valueLength > 0) {
-                byte[] valueBytes = new byte[valueLength];
-                buffer.get(valueBytes);
-                value = new String(valueBytes, StandardCharsets.UTF_8);
+        int requestId = Request.NO_REQUEST_ID;
+        if (limit - offset >= 1 && frame.get(offset) == VERSION_2) {
+            if (limit - offset < 1 + 4) {
+                throw new MalformedRequestException("Incomplete request data");
             }
+            requestId = frame.getInt(offset + 1);
+            if (requestId < 0) {
+                throw new MalformedRequestException("Invalid request ID: " + requestId);
+            }
+            offset += 1 + 4;
+        }
+        if (limit - offset < 1 + 4 + 4 + 4 + 4) {
+            throw new MalformedRequestException("Incomplete request data");
+        }
+
+        byte type = frame.get(offset);
+        if (!isScanType(type)) {
+            throw new MalformedRequestException("Invalid scan request type: " + type);
+        }
+        int startLength = frame.getInt(offset + 1);
+        int endLength = frame.getInt(offset + 5);
+        int tokenLength = frame.getInt(offset + 9);
+        int pageSize = frame.getInt(offset + 13);
+        offset += 1 + 4 + 4 + 4 + 4;
+        for (int length : new int[] {startLength, endLength, tokenLength}) {
+            if (length < 0 || length > MAX_KEY_LENGTH) {
+                throw new MalformedRequestException("Invalid key length: " + length);
+            }
+        }
+        if (type == PREFIX && endLength != 0) {
+            throw new MalformedRequestException("A prefix scan has no end key");
+        }
+        if (pageSize <= 0 || pageSize > MAX_SCAN_PAGE_SIZE) {
+            throw new MalformedRequestException("Invalid page size: " + pageSize);
+        }
+        if (limit - offset < startLength + endLength + tokenLength) {
+            throw new MalformedRequestException("Incomplete request: insufficient data");
+        }
+
+        return new ScanRequestView(requestId, type, frame.slice(offset, startLength),
+            frame.slice(offset + startLength, endLength), frame.slice(offset + startLength + endLength, tokenLength),
+            pageSize);
+    }
+
+    /**
+     * Returns the encoded length of a scan page entry.
+     */
+    public static int getScanEntryLength(ByteBuffer key, byte[] value) {
+        return 4 + 4 + key.remaining() + value.length;
+    }
+
+    /**
+     * Encodes the entries of a scan page into the value of its response.
+     *
+     * @param keys The keys, in key order, from their positions to their limits.
+     * @param values The value of every key.
+     * @param more Whether entries follow after the last key of the page.
+     * @return The response value.
+     */
+    public static byte[] encodeScanPage(List<ByteBuffer> keys, List<byte[]> values, boolean more) {
+        int length = 4 + 1;
+        for (int i = 0; i < keys.size(); i++) {
+            length += getScanEntryLength(keys.get(i), values.get(i));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(keys.size());
+        buffer.put((byte) (more ? 1 : 0));
+        for (int i = 0; i < keys.size(); i++) {
+            ByteBuffer key = keys.get(i);
+            buffer.putInt(key.remaining());
+            buffer.putInt(values.get(i).length);
+            buffer.put(key.duplicate());
+            buffer.put(values.get(i));
+        }
+        return buffer.array();
+    }
 
-            return new Request(type, key, value);
-        } catch (BufferUnderflowException e) {
-            throw new MalformedRequestException("Incomplete request data", e);
+    /**
+     * Decodes the page of a scan response.
+     *
+     * @param response The OK response to the scan request.
+     * @return The entries of the page and the continuation token of the next one.
+     * @throws MalformedRequestException if the response is not OK, or the page is malformed.
+     */
+    public static ScanPage decodeScanPage(Response response) throws MalformedRequestException {
+        if (!response.isOk()) {
+            throw new MalformedRequestException("Not a scan page: " + response.toDisplayString());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(response.getValue() != null ? response.getValue() : new byte[0]);
+        if (buffer.remaining() < 4 + 1) {
+            throw new MalformedRequestException("Incomplete scan response data");
+        }
+        int count = buffer.getInt();
+        boolean more = buffer.get() != 0;
+        if (count < 0 || count > MAX_SCAN_PAGE_SIZE || (more && count == 0)) {
+            throw new MalformedRequestException("Invalid scan page size: " + count);
+        }
+        List<String> keys = new ArrayList<>(count);
+        List<String> values = new ArrayList<>(count);
+        byte[] lastKey = null;
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < 4 + 4) {
+                throw new MalformedRequestException("Incomplete scan response data");
+            }
+            int keyLength = buffer.getInt();
+            int valueLength = buffer.getInt();
+            if (keyLength <= 0 || valueLength < 0 || (long) keyLength + valueLength > buffer.remaining()) {
+                throw new MalformedRequestException("Invalid scan entry length");
+            }
+            lastKey = new byte[keyLength];
+            buffer.get(lastKey);
+            byte[] value = new byte[valueLength];
+            buffer.get(value);
+            keys.add(new String(lastKey, StandardCharsets.UTF_8));
+            values.add(new String(value, StandardCharsets.UTF_8));
+        }
+        return new ScanPage(keys, values, more ? lastKey : null);
+    }
+
+    /**
+     * Encodes the per-entry results of a batch into the value of its response.
+     *
+     * @param statuses The status of every entry, in request order.
+     * @param values The value of every entry (entries nullable).
+     * @return The response value.
+     */
+    public static byte[] encodeBatchResults(byte[] statuses, byte[][] values) {
+        int length = 4;
+        for (byte[] value : values) {
+            length += 1 + 4 + (value != null ? value.length : 0);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(statuses.length);
+        for (int i = 0; i < statuses.length; i++) {
+            buffer.put(statuses[i]);
+            if (values[i] == null) {
+                buffer.putInt(0);
+            } else {
+                buffer.putInt(values[i].length);
+                buffer.put(values[i]);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decodes the per-entry results of a batch response. A response that is not OK failed as a
+     * whole, for example because the batch was malformed, and is returned for every entry.
+     *
+     * @param response The response to the batch request.
+     * @param count The number of entries in the batch request.
+     * @return One response per entry, in request order.
+     * @throws MalformedRequestException if the results are malformed or do not match the count.
+     */
+    public static List<Response> decodeBatchResults(Response response, int count) throws MalformedRequestException {
+        if (!response.isOk()) {
+            return Collections.nCopies(count, response);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(response.getValue() != null ? response.getValue() : new byte[0]);
+        if (buffer.remaining() < 4 || buffer.getInt() != count) {
+            throw new MalformedRequestException("Batch response does not match the " + count + " requested entries");
+        }
+        List<Response> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < 1 + 4) {
+                throw new MalformedRequestException("Incomplete batch response data");
+            }
+            byte status = buffer.get();
+            validateStatus(status);
+            int valueLength = buffer.getInt();
+            if (valueLength < 0 || valueLength > buffer.remaining()) {
+                throw new MalformedRequestException("Invalid response value length: " + valueLength);
+            }
+            byte[] value = new byte[valueLength];
+            buffer.get(value);
+            results.add(new Response(response.getRequestId(), status, value));
+        }
+        return results;
+    }
+
+    /**
+     * Returns the request ID of a raw request without parsing the rest of it, so that even a
+     * malformed version 2 request can be answered with a response frame.
+     *
+     * @param data The raw request data.
+     * @return The request ID, or Request.NO_REQUEST_ID for version 1 or truncated requests.
+     */
+    public static int peekRequestId(byte[] data) {
+        return peekRequestId(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Returns the request ID of a raw request spanning from the position to the limit of the buffer.
+     *
+     * @param frame The raw request data.
+     * @return The request ID, or Request.NO_REQUEST_ID for version 1 or truncated requests.
+     */
+    public static int peekRequestId(ByteBuffer frame) {
+        int offset = frame.position();
+        if (frame.limit() - offset < 5 || frame.get(offset) != VERSION_2) {
+            return Request.NO_REQUEST_ID;
+        }
+        int requestId = frame.getInt(offset + 1);
+        return requestId < 0 ? Request.NO_REQUEST_ID : requestId;
+    }
+
+    /**
+     * Returns the encoded length of a response.
+     *
+     * @param requestId The ID of the request being answered, or Request.NO_REQUEST_ID.
+     * @param value The value bytes (nullable).
+     */
+    public static int getResponseLength(int requestId, byte[] value) {
+        int header = (requestId != Request.NO_REQUEST_ID) ? 1 + 4 + 1 + 4 : 1 + 4;
+        return header + (value != null ? value.length : 0);
+    }
+
+    /**
+     * Creates a response in byte array format.
+     *
+     * @param requestId The ID of the request being answered, or Request.NO_REQUEST_ID for a version
+     *                  1 request.
+     * @param status The response status.
+     * @param value The value bytes (nullable).
+     * @return Byte array representing the response.
+     */
+    public static byte[] createResponse(int requestId, byte status, byte[] value) {
+        ByteBuffer buffer = ByteBuffer.allocate(getResponseLength(requestId, value));
+        writeResponse(buffer, requestId, status, value);
+        return buffer.array();
+    }
+
+    /**
+     * Writes a response into a buffer, starting at its position (Used by UDP).
+     *
+     * @param buffer The buffer, heap or direct, with enough space remaining.
+     * @param requestId The ID of the request being answered, or Request.NO_REQUEST_ID.
+     * @param status The response status.
+     * @param value The value bytes (nullable).
+     */
+    public static void writeResponse(ByteBuffer buffer, int requestId, byte status, byte[] value) {
+        if (requestId != Request.NO_REQUEST_ID) {
+            buffer.put(VERSION_2);
+            buffer.putInt(requestId);
+        }
+        buffer.put(status);
+        if (value == null) {
+            buffer.putInt(0);
+        } else {
+            buffer.putInt(value.length);
+            buffer.put(value);
+        }
+    }
+
+    /**
+     * Writes a response to an OutputStream (Used by TCP). The stream is not flushed.
+     *
+     * @param outputStream The stream to write to.
+     * @param requestId The ID of the request being answered, or Request.NO_REQUEST_ID.
+     * @param status The response status.
+     * @param value The value bytes (nullable).
+     */
+    public static void writeResponse(DataOutputStream outputStream, int requestId, byte status, byte[] value)
+        throws IOException {
+        if (requestId != Request.NO_REQUEST_ID) {
+            outputStream.writeByte(VERSION_2);
+            outputStream.writeInt(requestId);
+        }
+        outputStream.writeByte(status);
+        if (value == null) {
+            outputStream.writeInt(0);
+        } else {
+            outputStream.writeInt(value.length);
+            outputStream.write(value);
+        }
+    }
+
+    /**
+     * Reads a response of either version from an InputStream (Used by TCP). A compressed value is
+     * decompressed, and returned with the plain OK status.
+     *
+     * @throws MalformedRequestException if the response is malformed.
+     */
+    public static Response readResponse(InputStream inputStream) throws IOException, MalformedRequestException {
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+
+        int requestId = Request.NO_REQUEST_ID;
+        byte status = dataInputStream.readByte();
+        if (status == VERSION_2) {
+            requestId = dataInputStream.readInt();
+            status = dataInputStream.readByte();
+        }
+        boolean compressed = status == (STATUS_OK | COMPRESSED);
+        if (compressed) {
+            status = STATUS_OK;
+        }
+        validateStatus(status);
+
+        int valueLength = dataInputStream.readInt();
+        if (valueLength < 0 || valueLength > MAX_RESPONSE_LENGTH) {
+            throw new MalformedRequestException("Invalid response value length: " + valueLength);
+        }
+        byte[] value = new byte[valueLength];
+        dataInputStream.readFully(value);
+        if (compressed) {
+            if (!CompressedValues.isCompressed(value)) {
+                throw new MalformedRequestException("Invalid compressed value");
+            }
+            try {
+                value = CompressedValues.decode(value);
+            } catch (CorruptValueException e) {
+                throw new MalformedRequestException("Corrupt compressed value", e);
+            }
+        }
+
+        return new Response(requestId, status, value);
+    }
+
+    /**
+     * Parses a received response packet (Used by UDP).
+     *
+     * @param data The raw response data.
+     * @param length The number of valid bytes in data.
+     * @throws MalformedRequestException if the response is malformed or truncated.
+     */
+    public static Response parseResponse(byte[] data, int length) throws MalformedRequestException {
+        try {
+            return readResponse(new ByteArrayInputStream(data, 0, length));
+        } catch (IOException e) {
+            throw new MalformedRequestException("Incomplete response data", e);
         }
     }
 
@@ -131,7 +958,69 @@ public class Protocol {
      * Writes a request to an OutputStream (Used by TCP).
      */
     public static void writeRequest(OutputStream outputStream, byte type, String key, String value) throws IOException {
-        byte[] requestData = createRequest(type, key, value);
+        writeRequest(outputStream, type, key, value, NO_TTL);
+    }
+
+    /**
+     * Writes a request with the argument of a PUT_TTL, CAS or INCR request to an OutputStream (Used
+     * by TCP).
+     */
+    public static void writeRequest(OutputStream outputStream, byte type, String key, String value, long argument)
+        throws IOException {
+        byte[] requestData = createRequest(type, key, value, argument);
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+
+        dataOutputStream.writeInt(requestData.length);
+        dataOutputStream.write(requestData);
+        dataOutputStream.flush();
+    }
+
+    /**
+     * Writes a version 2 request to an OutputStream (Used by TCP).
+     */
+    public static void writeRequest(OutputStream outputStream, int requestId, byte type, String key, String value)
+        throws IOException {
+        writeRequest(outputStream, requestId, type, key, value, NO_TTL);
+    }
+
+    /**
+     * Writes a version 2 request with the argument of a PUT_TTL, CAS or INCR request to an
+     * OutputStream (Used by TCP).
+     */
+    public static void writeRequest(OutputStream outputStream, int requestId, byte type, String key, String value,
+                                    long argument) throws IOException {
+        byte[] requestData = createRequest(requestId, type, key, value, argument);
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+
+        dataOutputStream.writeInt(requestData.length);
+        dataOutputStream.write(requestData);
+        dataOutputStream.flush();
+    }
+
+    /**
+     * Writes a batch request to an OutputStream (Used by TCP).
+     *
+     * @param requestId The request ID, or Request.NO_REQUEST_ID for a version 1 request.
+     */
+    public static void writeBatchRequest(OutputStream outputStream, int requestId, byte type, List<String> keys,
+                                         List<String> values) throws IOException {
+        byte[] requestData = createBatchRequest(requestId, type, keys, values);
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+
+        dataOutputStream.writeInt(requestData.length);
+        dataOutputStream.write(requestData);
+        dataOutputStream.flush();
+    }
+
+    /**
+     * Writes a scan request to an OutputStream (Used by TCP).
+     *
+     * @param requestId The request ID, or Request.NO_REQUEST_ID for a version 1 request.
+     * @see #createScanRequest
+     */
+    public static void writeScanRequest(OutputStream outputStream, int requestId, byte type, String start,
+                                        String end, byte[] token, int pageSize) throws IOException {
+        byte[] requestData = createScanRequest(requestId, type, start, end, token, pageSize);
         DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
 
         dataOutputStream.writeInt(requestData.length);
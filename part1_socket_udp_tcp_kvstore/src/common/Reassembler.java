@@ -0,0 +1,177 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Collects the fragments sent by {@link DatagramFraming} until a message is complete.
+ * <p>
+ * Partial messages are keyed by the address of the sender and the message ID, so concurrent senders
+ * never mix up their fragments. Fragments may arrive in any order, and duplicates are ignored.
+ * A message that is not completed within the timeout is dropped, and when more than the allowed
+ * number of messages or bytes is pending, the oldest partial messages are dropped first. A lost
+ * fragment therefore only costs the memory of its message until it is evicted. Thread-safe.
+ * </p>
+ */
+public class Reassembler {
+    // the most fragments a message within the protocol limits can be split into
+    private static final int MAX_FRAGMENT_COUNT =
+        DatagramFraming.getFragmentCount(Math.max(Protocol.MAX_REQUEST_LENGTH, Protocol.MAX_RESPONSE_LENGTH));
+
+    private final int maxPendingMessages;
+    private final long maxPendingBytes;
+    private final long timeoutNanos;
+    // insertion order is arrival order of the first fragment, so the oldest messages come first
+    private final LinkedHashMap<Key, PartialMessage> pending = new LinkedHashMap<>();
+    private long pendingBytes;
+
+    /**
+     * @param maxPendingMessages The most partial messages kept at once.
+     * @param maxPendingBytes    The most fragment payload bytes kept at once.
+     * @param timeoutMillis      How long a partial message is kept after its first fragment arrived.
+     */
+    public Reassembler(int maxPendingMessages, long maxPendingBytes, long timeoutMillis) {
+        this.maxPendingMessages = maxPendingMessages;
+        this.maxPendingBytes = maxPendingBytes;
+        this.timeoutNanos = timeoutMillis * 1_000_000L;
+    }
+
+    /**
+     * Adds a received fragment.
+     * @param sender   The address the fragment came from.
+     * @param fragment The fragment datagram, from its position to its limit; consumed by this call.
+     * @return the complete message once its last missing fragment arrived, otherwise null.
+     * @throws MalformedRequestException if the fragment header is invalid.
+     */
+    public synchronized byte[] add(Object sender, ByteBuffer fragment) throws MalformedRequestException {
+        if (fragment.remaining() < DatagramFraming.FRAGMENT_HEADER_LENGTH || fragment.get() != Protocol.FRAGMENT) {
+            throw new MalformedRequestException("Invalid fragment header");
+        }
+        int messageId = fragment.getInt();
+        int index = Short.toUnsignedInt(fragment.getShort());
+        int count = Short.toUnsignedInt(fragment.getShort());
+        int payloadLength = fragment.remaining();
+        if (count < 2 || count > MAX_FRAGMENT_COUNT || index >= count) {
+            throw new MalformedRequestException("Invalid fragment " + index + " of " + count);
+        }
+        if (payloadLength == 0 || payloadLength > DatagramFraming.MAX_FRAGMENT_PAYLOAD) {
+            throw new MalformedRequestException("Invalid fragment payload length: " + payloadLength);
+        }
+
+        long now = System.nanoTime();
+        evictExpired(now);
+
+        Key key = new Key(sender, messageId);
+        PartialMessage message = pending.get(key);
+        if (message == null) {
+            message = new PartialMessage(count, now + timeoutNanos);
+            pending.put(key, message);
+        } else if (message.fragments.length != count) {
+            throw new MalformedRequestException("Fragment count changed from "
+                + message.fragments.length + " to " + count + " for message " + messageId);
+        }
+        if (message.fragments[index] != null) {
+            return null;
+        }
+
+        byte[] payload = new byte[payloadLength];
+        fragment.get(payload);
+        message.fragments[index] = payload;
+        message.received++;
+        message.length += payloadLength;
+        pendingBytes += payloadLength;
+
+        if (message.received < count) {
+            evictOldest();
+            return null;
+        }
+
+        pending.remove(key);
+        pendingBytes -= message.length;
+        byte[] data = new byte[message.length];
+        int offset = 0;
+        for (byte[] part : message.fragments) {
+            System.arraycopy(part, 0, data, offset, part.length);
+            offset += part.length;
+        }
+        return data;
+    }
+
+    /**
+     * Returns the number of partial messages currently kept.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Drops the partial messages whose timeout has passed.
+     */
+    private void evictExpired(long now) {
+        Iterator<PartialMessage> it = pending.values().iterator();
+        while (it.hasNext()) {
+            PartialMessage message = it.next();
+            if (message.deadline - now > 0) {
+                // later entries arrived later, so they have not expired either
+                return;
+            }
+            pendingBytes -= message.length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Drops the oldest partial messages until the limits are met again.
+     */
+    private void evictOldest() {
+        Iterator<PartialMessage> it = pending.values().iterator();
+        while ((pending.size() > maxPendingMessages || pendingBytes > maxPendingBytes) && it.hasNext()) {
+            pendingBytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Identifies a message by its sender and the ID the sender chose for it.
+     */
+    private static final class Key {
+        private final Object sender;
+        private final int messageId;
+
+        private Key(Object sender, int messageId) {
+            this.sender = sender;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return messageId == other.messageId && Objects.equals(sender, other.sender);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(sender) + messageId;
+        }
+    }
+
+    /**
+     * The fragments of one message received so far.
+     */
+    private static final class PartialMessage {
+        private final byte[][] fragments;
+        private final long deadline;
+        private int received;
+        private int length;
+
+        private PartialMessage(int count, long deadline) {
+            this.fragments = new byte[count][];
+            this.deadline = deadline;
+        }
+    }
+}
@@ -6,9 +6,15 @@ import java.util.Objects;
  * Represents a request in the key-value store system.
  */
 public class Request {
+    // request ID of version 1 requests, which carry none
+    public static final int NO_REQUEST_ID = -1;
+
+    private final int requestId;
     private final byte type;
     private final String key;
     private final String value;
+    // the TTL of PUT_TTL, the expected version of CAS or the delta of INCR
+    private final long argument;
 
     /**
      * Constructs a new Request.
@@ -19,12 +25,54 @@ public class Request {
      * @throws IllegalArgumentException if key is null or empty.
      */
     public Request(byte type, String key, String value) {
+        this(NO_REQUEST_ID, type, key, value);
+    }
+
+    /**
+     * Constructs a new Request carrying a request ID.
+     *
+     * @param requestId The non-negative ID echoed back in the response, or NO_REQUEST_ID.
+     * @param type  The request type (PUT, GET, DELETE).
+     * @param key   The key associated with the request (cannot be null or empty).
+     * @param value The value associated with the request (can be null for GET/DELETE).
+     * @throws IllegalArgumentException if key is null or empty.
+     */
+    public Request(int requestId, byte type, String key, String value) {
+        this(requestId, type, key, value, Protocol.NO_TTL);
+    }
+
+    /**
+     * Constructs a new Request carrying a request ID and the argument of a PUT_TTL, CAS or INCR
+     * request.
+     *
+     * @param requestId The non-negative ID echoed back in the response, or NO_REQUEST_ID.
+     * @param type  The request type.
+     * @param key   The key associated with the request (cannot be null or empty).
+     * @param value The value associated with the request (can be null for GET/DELETE/INCR).
+     * @param argument The milliseconds a PUT_TTL entry lives, the expected version of a CAS or the
+     *                 delta of an INCR; Protocol.NO_TTL for the other types.
+     * @throws IllegalArgumentException if key is null or empty.
+     */
+    public Request(int requestId, byte type, String key, String value, long argument) {
         if (key == null || key.trim().isEmpty()) {
             throw new IllegalArgumentException("Key cannot be null or empty");
         }
+        this.requestId = requestId;
         this.type = type;
         this.key = key;
         this.value = value;
+        this.argument = argument;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Returns true if this request came in a version 2 frame and expects a response frame.
+     */
+    public boolean hasRequestId() {
+        return requestId != NO_REQUEST_ID;
     }
 
     public byte getType() {
@@ -39,12 +87,21 @@ public class Request {
         return value;
     }
 
+    public long getTtlMillis() {
+        return type == Protocol.PUT_TTL ? argument : Protocol.NO_TTL;
+    }
+
+    public long getArgument() {
+        return argument;
+    }
+
     /**
      * Returns a string representation of the request.
      */
     @Override
     public String toString() {
-        return String.format("Request{type=%d, key='%s', value='%s'}", type, key, value);
+        return String.format("Request{requestId=%d, type=%d, key='%s', value='%s', argument=%d}",
+            requestId, type, key, value, argument);
     }
 
     /**
@@ -55,7 +112,9 @@ public class Request {
         if (this == obj) return true;
         if (obj == null || getClass() != obj.getClass()) return false;
         Request request = (Request) obj;
-        return type == request.type &&
+        return requestId == request.requestId &&
+            type == request.type &&
+            argument == request.argument &&
             key.equals(request.key) &&
             Objects.equals(value, request.value);
     }
@@ -65,6 +124,6 @@ public class Request {
      */
     @Override
     public int hashCode() {
-        return Objects.hash(type, key, value);
+        return Objects.hash(requestId, type, key, value, argument);
     }
 }
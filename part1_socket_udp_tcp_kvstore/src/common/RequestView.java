@@ -0,0 +1,167 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A decoded request that refers to the key and value inside the received frame instead of copying
+ * them.
+ * <p>
+ * {@link Protocol#decodeRequest(ByteBuffer, RequestView)} only records where the key and value lie
+ * in the (possibly direct) buffer. {@link #key()} and {@link #value()} return views of those bytes,
+ * and Strings are only decoded when {@link #getKey()} or {@link #getValue()} is called. A view is
+ * reusable: decoding the next frame into it overwrites its state. It is only valid as long as the
+ * underlying buffer is not reused for another frame.
+ * </p>
+ * <p>
+ * The type never carries the {@link Protocol#COMPRESSED} flag, which {@link #isCompressed()}
+ * reports instead. The value bytes of a compressed PUT are in the compressed form, and only
+ * {@link #getValue()} decompresses them.
+ * </p>
+ */
+public class RequestView {
+    private ByteBuffer buffer;
+    private int requestId = Request.NO_REQUEST_ID;
+    private byte type;
+    private boolean compressed;
+    private int keyOffset;
+    private int keyLength;
+    private int valueOffset;
+    private int valueLength;
+    // the TTL of PUT_TTL, the expected version of CAS or the delta of INCR
+    private long argument;
+    // created on first use
+    private ByteBuffer keySlice;
+    private String key;
+    private String value;
+
+    /**
+     * Points this view at a new frame. Called by the decoder once the frame is validated.
+     */
+    void set(ByteBuffer buffer, int requestId, byte type, boolean compressed,
+             int keyOffset, int keyLength, int valueOffset, int valueLength, long argument) {
+        this.buffer = buffer;
+        this.requestId = requestId;
+        this.type = type;
+        this.compressed = compressed;
+        this.keyOffset = keyOffset;
+        this.keyLength = keyLength;
+        this.valueOffset = valueOffset;
+        this.valueLength = valueLength;
+        this.argument = argument;
+        this.keySlice = null;
+        this.key = null;
+        this.value = null;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Returns true if this request came in a version 2 frame and expects a response frame.
+     */
+    public boolean hasRequestId() {
+        return requestId != Request.NO_REQUEST_ID;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * Returns true if the request was flagged with Protocol.COMPRESSED: a PUT or PUT_TTL whose
+     * value is compressed, or a GET whose client accepts a compressed value.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Returns the milliseconds the entry of a PUT_TTL request lives, or Protocol.NO_TTL.
+     */
+    public long getTtlMillis() {
+        return type == Protocol.PUT_TTL ? argument : Protocol.NO_TTL;
+    }
+
+    /**
+     * Returns the 8-byte argument of the request: the TTL of PUT_TTL, the expected version of CAS
+     * or the delta of INCR; Protocol.NO_TTL for the other types.
+     */
+    public long getArgument() {
+        return argument;
+    }
+
+    /**
+     * Returns a view of the key bytes. The returned buffer must not be modified.
+     */
+    public ByteBuffer key() {
+        if (keySlice == null) {
+            keySlice = buffer.slice(keyOffset, keyLength);
+        }
+        return keySlice;
+    }
+
+    /**
+     * Returns a view of the value bytes, or null if the request has no value.
+     */
+    public ByteBuffer value() {
+        return valueLength > 0 ? buffer.slice(valueOffset, valueLength) : null;
+    }
+
+    public int getValueLength() {
+        return valueLength;
+    }
+
+    /**
+     * Copies the key bytes out of the frame, for when the key has to outlive it.
+     */
+    public byte[] copyKey() {
+        byte[] bytes = new byte[keyLength];
+        buffer.get(keyOffset, bytes);
+        return bytes;
+    }
+
+    /**
+     * Copies the value bytes out of the frame, for when the value has to outlive it.
+     * @return the value bytes, or null if the request has no value.
+     */
+    public byte[] copyValue() {
+        if (valueLength == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[valueLength];
+        buffer.get(valueOffset, bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns the key decoded as a String, decoding it on first use.
+     */
+    public String getKey() {
+        if (key == null) {
+            key = new String(copyKey(), StandardCharsets.UTF_8);
+        }
+        return key;
+    }
+
+    /**
+     * Returns the value decoded as a String, decompressing and decoding it on first use.
+     * @return the value, or null if the request has no value.
+     * @throws CorruptValueException if a compressed value is corrupt.
+     */
+    public String getValue() {
+        if (value == null && valueLength > 0) {
+            byte[] bytes = copyValue();
+            value = new String(compressed ? CompressedValues.decode(bytes) : bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    /**
+     * Materializes this view as a standalone Request.
+     */
+    public Request toRequest() {
+        return new Request(requestId, type, getKey(), getValue(), argument);
+    }
+}
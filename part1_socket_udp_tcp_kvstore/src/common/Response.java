@@ -0,0 +1,97 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Represents a response in the key-value store system: a status and an optional value.
+ */
+public class Response {
+    private final int requestId;
+    private final byte status;
+    private final byte[] value;
+
+    /**
+     * Constructs a new Response.
+     *
+     * @param requestId The ID of the request this response answers, or Request.NO_REQUEST_ID.
+     * @param status    The response status, one of the Protocol.STATUS_* constants.
+     * @param value     The value bytes: the GET result, or the message of an ERROR.
+     */
+    public Response(int requestId, byte status, byte[] value) {
+        this.requestId = requestId;
+        this.status = status;
+        this.value = value;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public byte getStatus() {
+        return status;
+    }
+
+    public boolean isOk() {
+        return status == Protocol.STATUS_OK;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the value decoded as a String, or null if the response carries no value.
+     */
+    public String getValueAsString() {
+        return (value == null || value.length == 0) ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the version leading the value of a successful GETV response, or of a CAS conflict.
+     * @throws IllegalArgumentException if the response carries no version.
+     */
+    public long getVersion() {
+        return Versions.read(value);
+    }
+
+    /**
+     * Returns the value following the version in a successful GETV response, or in a CAS
+     * conflict, decoded as a String.
+     * @throws IllegalArgumentException if the response carries no version.
+     */
+    public String getVersionedValueAsString() {
+        return new String(Versions.strip(value), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the text shown to users for a GETV response: the version and value if it succeeded,
+     * like {@link #toDisplayString} otherwise.
+     */
+    public String toVersionedDisplayString() {
+        if (status != Protocol.STATUS_OK) {
+            return toDisplayString();
+        }
+        return "version " + getVersion() + ": " + getVersionedValueAsString();
+    }
+
+    /**
+     * Returns the text shown to users: the value of a successful GET, the message of an ERROR, or
+     * the status name otherwise.
+     */
+    public String toDisplayString() {
+        String text = getValueAsString();
+        if (status == Protocol.STATUS_ERROR) {
+            return "ERROR: " + (text != null ? text : "Unknown error");
+        }
+        return (status == Protocol.STATUS_OK && text != null) ? text : Protocol.getStatusName(status);
+    }
+
+    /**
+     * Returns a string representation of the response.
+     */
+    @Override
+    public String toString() {
+        return String.format("Response{requestId=%d, status=%s, value='%s'}",
+            requestId, Protocol.getStatusName(status), getValueAsString());
+    }
+}
@@ -0,0 +1,44 @@
+package common;
+
+import java.util.List;
+
+/**
+ * One page of the entries of a SCAN or PREFIX request, in key order.
+ * <p>
+ * Decoded by {@link Protocol#decodeScanPage(Response)}. The continuation token asks the server for
+ * the page after this one; it is null on the last page.
+ * </p>
+ */
+public class ScanPage {
+    private final List<String> keys;
+    private final List<String> values;
+    private final byte[] continuationToken;
+
+    public ScanPage(List<String> keys, List<String> values, byte[] continuationToken) {
+        this.keys = keys;
+        this.values = values;
+        this.continuationToken = continuationToken;
+    }
+
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    /**
+     * Returns the value of every key, in the order of {@link #getKeys()}.
+     */
+    public List<String> getValues() {
+        return values;
+    }
+
+    /**
+     * Returns the token to pass with the request for the next page, or null if this page is the last.
+     */
+    public byte[] getContinuationToken() {
+        return continuationToken;
+    }
+
+    public boolean hasMore() {
+        return continuationToken != null;
+    }
+}
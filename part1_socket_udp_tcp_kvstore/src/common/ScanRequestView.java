@@ -0,0 +1,74 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A decoded SCAN or PREFIX request whose keys refer to the received frame instead of being copied
+ * out of it.
+ * <p>
+ * Created by {@link Protocol#decodeScanRequest(ByteBuffer)}. Like {@link RequestView}, it is only
+ * valid as long as the underlying buffer is not reused for another frame.
+ * </p>
+ */
+public class ScanRequestView {
+    private final int requestId;
+    private final byte type;
+    private final ByteBuffer start;
+    private final ByteBuffer end;
+    private final ByteBuffer token;
+    private final int pageSize;
+
+    ScanRequestView(int requestId, byte type, ByteBuffer start, ByteBuffer end, ByteBuffer token, int pageSize) {
+        this.requestId = requestId;
+        this.type = type;
+        this.start = start;
+        this.end = end;
+        this.token = token;
+        this.pageSize = pageSize;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * Returns a view of the first key of a SCAN, or of the prefix of a PREFIX; empty for the first
+     * key. The returned buffer must not be modified.
+     */
+    public ByteBuffer start() {
+        return start.duplicate();
+    }
+
+    /**
+     * Returns a view of the key a SCAN stops before; empty if the scan has no end.
+     */
+    public ByteBuffer end() {
+        return end.duplicate();
+    }
+
+    /**
+     * Returns a view of the continuation token of the previous page; empty for the first page.
+     */
+    public ByteBuffer token() {
+        return token.duplicate();
+    }
+
+    /**
+     * Returns the maximum number of entries in the page.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Returns the start key or prefix decoded as a String.
+     */
+    public String getStart() {
+        return StandardCharsets.UTF_8.decode(start()).toString();
+    }
+}
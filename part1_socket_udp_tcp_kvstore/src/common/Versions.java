@@ -0,0 +1,64 @@
+package common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The versions compared by {@link Protocol#CAS} requests.
+ * <p>
+ * Every write of a key gives its entry a new version, which the server keeps next to the entry and
+ * returns with the value of a {@link Protocol#GETV} request. Versions come from one counter per
+ * server, which {@link #next} keeps ahead of the clock: the time of the write in milliseconds,
+ * shifted left by {@value #SEQUENCE_BITS} bits, or one more than the previous version if that is
+ * larger. A version is therefore never handed out twice, even to a key deleted and written again,
+ * or across a restart, and a CAS fails whenever the key was written since the client read it,
+ * even if the value was changed back in the meantime.
+ * </p>
+ * <p>
+ * An entry restored from disk after a restart has version 0 until it is written again.
+ * </p>
+ */
+public final class Versions {
+    // the bits below the time, which number the writes within one millisecond
+    private static final int SEQUENCE_BITS = 20;
+
+    private Versions() {
+    }
+
+    /**
+     * Returns the version following the previous one.
+     * @param previous The last version handed out, or 0.
+     * @param now      The current time in milliseconds since the epoch.
+     */
+    public static long next(long previous, long now) {
+        return Math.max(previous + 1, now << SEQUENCE_BITS);
+    }
+
+    /**
+     * Returns the value of a GETV response, or of a CAS conflict: version(8) followed by the value.
+     */
+    public static byte[] prepend(long version, byte[] value) {
+        return ByteBuffer.allocate(8 + value.length).putLong(version).put(value).array();
+    }
+
+    /**
+     * Returns the version leading a value built by {@link #prepend}.
+     * @throws IllegalArgumentException if the value is too short to hold a version.
+     */
+    public static long read(byte[] versioned) {
+        if (versioned == null || versioned.length < 8) {
+            throw new IllegalArgumentException("The value carries no version");
+        }
+        return ByteBuffer.wrap(versioned).getLong();
+    }
+
+    /**
+     * Returns the value following the version in a value built by {@link #prepend}.
+     * @throws IllegalArgumentException if the value is too short to hold a version.
+     */
+    public static byte[] strip(byte[] versioned) {
+        read(versioned);
+        byte[] value = new byte[versioned.length - 8];
+        System.arraycopy(versioned, 8, value, 0, value.length);
+        return value;
+    }
+}
@@ -2,39 +2,99 @@ package server;
 
 import java.io.*;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.*;
-import common.MalformedRequestException;
+import common.AsyncLogHandler;
 import common.Protocol;
-import common.Request;
+import common.RequestView;
+import storage.StorageEngine;
+import storage.StorageEngines;
 
 /**
  * TCP Key-Value Store Server
- * Handles PUT, GET, and DELETE operations over TCP.
+ * Handles PUT, GET, and DELETE operations and their MGET, MPUT and MDELETE batch variants over TCP.
+ * <p>
+ * The server runs in one of the following modes:
+ * <ul>
+ *     <li>{@link Mode#SERIAL}: accepts one connection at a time and serves a single request on it.</li>
+ *     <li>{@link Mode#SELECTOR}: a non-blocking selector loop keeps connections open, serves many
+ *     requests per connection and processes them on a worker pool. Version 2 requests may be
+ *     pipelined and are answered as soon as they complete, possibly out of order.</li>
+ *     <li>{@link Mode#VIRTUAL}: every connection is served by its own virtual thread running the
+ *     blocking read loop, so many mostly idle connections do not tie up platform threads.</li>
+ * </ul>
+ * </p>
  */
 public class KeyValueStoreTCPServer {
     private static final Logger logger = Logger.getLogger(KeyValueStoreTCPServer.class.getName());
+    // initial size of the per-connection frame buffer in virtual mode, grown for larger frames
+    private static final int INITIAL_FRAME_BUFFER_SIZE = 256;
     private final int port;
-    private final Map<String, String> store = new HashMap<>();
+    private final Mode mode;
+    // owns the store; safe to use from the several threads of the selector and virtual modes
+    private final RequestHandler requestHandler;
+
+    /**
+     * The ways the server can accept and serve connections.
+     */
+    public enum Mode {
+        /** One connection, one request at a time on the accepting thread. */
+        SERIAL,
+        /** Non-blocking selector loop with persistent connections and a worker pool. */
+        SELECTOR,
+        /** Blocking reads on persistent connections, one virtual thread per connection. */
+        VIRTUAL
+    }
 
     public KeyValueStoreTCPServer(int port) {
+        this(port, Mode.SERIAL);
+    }
+
+    /**
+     * Constructs a server using the storage engine configured by the
+     * {@value StorageEngines#ENGINE_PROPERTY} system property.
+     */
+    public KeyValueStoreTCPServer(int port, Mode mode) {
+        this(port, mode, StorageEngines.fromSystemProperty());
+    }
+
+    /**
+     * @param port  The port number the server listens on.
+     * @param mode  The way connections are accepted and served.
+     * @param store The engine holding the entries.
+     */
+    public KeyValueStoreTCPServer(int port, Mode mode, StorageEngine store) {
         this.port = port;
+        this.mode = mode;
+        this.requestHandler = new RequestHandler(logger, store);
         setupLogger();
     }
 
     /**
-     * Sets up logging format with millisecond precision.
+     * Sets up logging format with millisecond precision, and moves the console output onto a
+     * background writer so that request threads never wait for it.
      */
     private void setupLogger() {
         System.setProperty("java.util.logging.SimpleFormatter.format",
             "[%1$tF %1$tT.%1$tL] %4$s: %5$s%n");
+        AsyncLogHandler.install();
     }
 
     /**
      * Starts the TCP server and listens for connections.
      */
     public void start() {
+        if (mode == Mode.SELECTOR) {
+            startSelector();
+            return;
+        }
+        if (mode == Mode.VIRTUAL) {
+            startVirtualThreads();
+            return;
+        }
+
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             logger.info("TCP Server started on port " + port);
 
@@ -56,33 +116,121 @@ public class KeyValueStoreTCPServer {
         }
     }
 
+    /**
+     * Starts the selector loop, processing requests on a pool with one worker per core.
+     */
+    private void startSelector() {
+        ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            new SelectorTCPServer(port, workers,
+                (frame, remote) -> requestHandler.handleFrame(ByteBuffer.wrap(frame), remote)).run();
+        } catch (IOException e) {
+            logger.severe("Could not start server: " + e.getMessage());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Accepts connections and serves each of them on a new virtual thread.
+     */
+    private void startVirtualThreads() {
+        try (ServerSocket serverSocket = new ServerSocket(port);
+             ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor()) {
+            logger.info("TCP Server (virtual thread mode) started on port " + port);
+
+            while (true) {
+                try {
+                    Socket clientSocket = serverSocket.accept();
+                    connections.execute(() -> serveConnection(clientSocket));
+                } catch (IOException e) {
+                    logger.warning("Error accepting client connection: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            logger.severe("Could not start server: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serves requests on a persistent connection until the client closes it. Runs on the virtual
+     * thread of the connection, so blocking on the socket only parks that virtual thread. The frame
+     * buffer, the decoded view and the reply are reused for every request of the connection.
+     */
+    private void serveConnection(Socket clientSocket) {
+        String remote = clientSocket.getInetAddress() + ":" + clientSocket.getPort();
+        logger.info("Accepted connection from " + remote);
+
+        try (Socket socket = clientSocket;
+             DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            socket.setTcpNoDelay(true);
+            byte[] frameBuffer = new byte[INITIAL_FRAME_BUFFER_SIZE];
+            ByteBuffer frame = ByteBuffer.wrap(frameBuffer);
+            RequestView view = new RequestView();
+            Reply reply = new Reply();
+
+            while (true) {
+                int frameLength;
+                try {
+                    frameLength = inputStream.readInt();
+                } catch (EOFException e) {
+                    logger.info("Connection closed by " + remote);
+                    return;
+                }
+                if (frameLength <= 0 || frameLength > Protocol.MAX_REQUEST_LENGTH) {
+                    // the stream cannot be re-synchronised after a bad length prefix
+                    logger.warning("Invalid frame length " + frameLength + " from " + remote);
+                    return;
+                }
+                if (frameLength > frameBuffer.length) {
+                    frameBuffer = new byte[frameLength];
+                    frame = ByteBuffer.wrap(frameBuffer);
+                }
+                inputStream.readFully(frameBuffer, 0, frameLength);
+                frame.clear().limit(frameLength);
+
+                requestHandler.handleFrame(frame, view, remote, reply);
+                reply.writeTo(outputStream);
+                outputStream.flush();
+            }
+        } catch (IOException e) {
+            logger.warning("Error processing client request: " + e.getMessage());
+        }
+    }
+
     /**
      * Handles a single client request.
      */
     private void handleClient(Socket clientSocket) {
-        try (InputStream inputStream = clientSocket.getInputStream();
+        try (DataInputStream inputStream = new DataInputStream(clientSocket.getInputStream());
              OutputStream outputStream = clientSocket.getOutputStream()) {
 
-            // Read and parse request
-            Request request = Protocol.readRequest(inputStream);
+            // Read request
+            int frameLength = inputStream.readInt();
+            if (frameLength <= 0 || frameLength > Protocol.MAX_REQUEST_LENGTH) {
+                logger.warning("Invalid frame length " + frameLength + " from " + clientSocket.getInetAddress()
+                    + ":" + clientSocket.getPort());
+                return;
+            }
+            byte[] frame = new byte[frameLength];
+            inputStream.readFully(frame);
             long startTime = System.currentTimeMillis();
-            logger.info(String.format("Received %s request from %s:%d for key: %s",
-                getRequestTypeName(request.getType()),
-                clientSocket.getInetAddress(), clientSocket.getPort(),
-                request.getKey()));
 
-            // Process request
-            byte[] responseData = handleRequest(request);
+            // Decode and process request
+            byte[] responseData = requestHandler.handleFrame(ByteBuffer.wrap(frame),
+                clientSocket.getInetAddress() + ":" + clientSocket.getPort());
 
             // Send response
             outputStream.write(responseData);
             outputStream.flush();
             long endTime = System.currentTimeMillis();
-            logger.info(String.format("Response sent in %d ms to %s:%d",
-                (endTime - startTime),
-                clientSocket.getInetAddress(), clientSocket.getPort()));
+            if (AsyncLogHandler.isSampled(logger, Level.INFO)) {
+                logger.log(Level.INFO, "Response sent in {0,number,#} ms to {1}:{2,number,#}",
+                    new Object[]{endTime - startTime, clientSocket.getInetAddress(), clientSocket.getPort()});
+            }
 
-        } catch (IOException | MalformedRequestException e) {
+        } catch (IOException e) {
             logger.warning("Error processing client request: " + e.getMessage());
         } finally {
             try {
@@ -93,74 +241,32 @@ public class KeyValueStoreTCPServer {
         }
     }
 
-    /**
-     * Processes the request and generates a response.
-     */
-    private byte[] handleRequest(Request request) {
-        String response;
-
-        switch (request.getType()) {
-            case Protocol.PUT:
-                if (store.containsKey(request.getKey())) {
-                    response = String.format("The key %s has been already existed", request.getKey());
-                    logger.info(String.format("PUT failed: The key %s has been already existed", request.getKey()));
-                } else {
-                    store.put(request.getKey(), request.getValue());
-                    response = "OK";
-                    logger.info(String.format("PUT: %s = %s", request.getKey(), request.getValue()));
-                }
-                break;
-
-            case Protocol.GET:
-                response = store.getOrDefault(request.getKey(), "NOT_FOUND");
-                logger.info(String.format("GET: %s -> %s", request.getKey(), response));
-                break;
-
-            case Protocol.DELETE:
-                if (store.containsKey(request.getKey())) {
-                    store.remove(request.getKey());
-                    response = "OK";
-                    logger.info(String.format("DELETE: %s", request.getKey()));
-                } else {
-                    response = String.format("The key %s is not found", request.getKey());
-                    logger.info(String.format("DELETE failed: The key %s is not found", request.getKey()));
-                }
-                break;
-
-            default:
-                response = "ERROR: Unknown operation";
-                logger.warning("Unknown operation type: " + request.getType());
-        }
-        return response.getBytes(StandardCharsets.UTF_8);
-    }
-
-    /**
-     * Returns a human-readable request type name.
-     */
-    private String getRequestTypeName(byte type) {
-        switch (type) {
-            case Protocol.PUT: return "PUT";
-            case Protocol.GET: return "GET";
-            case Protocol.DELETE: return "DELETE";
-            default: return "UNKNOWN";
-        }
-    }
-
     /**
      * Main method to start the server.
      */
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java KeyValueStoreTCPServer <port>");
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: java KeyValueStoreTCPServer <port> [serial|selector|virtual]");
+            return;
+        }
+
+        StorageEngine store;
+        try {
+            store = StorageEngines.fromSystemProperty();
+        } catch (IllegalArgumentException | UncheckedIOException e) {
+            System.out.println("Error: " + e.getMessage());
             return;
         }
 
         try {
             int port = Integer.parseInt(args[0]);
-            KeyValueStoreTCPServer server = new KeyValueStoreTCPServer(port);
+            Mode mode = (args.length == 2) ? Mode.valueOf(args[1].toUpperCase()) : Mode.SERIAL;
+            KeyValueStoreTCPServer server = new KeyValueStoreTCPServer(port, mode, store);
             server.start();
         } catch (NumberFormatException e) {
             System.out.println("Error: Port must be a number.");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: Mode must be one of serial, selector, virtual.");
         }
     }
 }
@@ -1,40 +1,118 @@
 package server;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.*;
+import common.AsyncLogHandler;
+import common.DatagramFraming;
 import common.MalformedRequestException;
 import common.Protocol;
+import common.Reassembler;
 import common.Request;
+import common.RequestView;
+import storage.StorageEngine;
+import storage.StorageEngines;
 
 /**
  * UDP Key-Value Store Server
- * Listens for incoming UDP requests and processes PUT, GET, and DELETE commands.
+ * Listens for incoming UDP requests and processes PUT, GET, and DELETE commands and their batch variants.
+ * <p>
+ * With a single worker, one thread receives, processes and answers every datagram. With several
+ * workers, each worker thread runs the same loop on its own {@link DatagramChannel}; the channels
+ * are bound to the same port with SO_REUSEPORT so the kernel spreads the clients across them.
+ * Where SO_REUSEPORT is unsupported, the workers share one channel instead. Every worker owns its
+ * direct receive and send buffers, and the store behind them is concurrent.
+ * </p>
+ * <p>
+ * Requests and responses larger than one datagram travel as fragments (see {@link DatagramFraming}).
+ * Incoming fragments are collected in a {@link Reassembler} shared by all workers, which bounds the
+ * memory held by incomplete requests and drops them after a timeout.
+ * </p>
+ * <p>
+ * Clients retransmit requests whose response got lost. The responses to version 2 requests are
+ * therefore kept in a {@link ResponseCache} for a while, and a retransmitted request is answered
+ * from there instead of running a PUT or DELETE a second time.
+ * </p>
+ * <p>
+ * A request whose processing throws is answered with a {@link Protocol#STATUS_ERROR} response,
+ * which also completes its cache entry, and the worker goes on with the next datagram.
+ * </p>
  */
 public class KeyValueStoreUDPServer {
     private static final Logger logger = Logger.getLogger(KeyValueStoreUDPServer.class.getName());
+    // large enough for any datagram, so an unfragmented request is never truncated
+    private static final int RECEIVE_BUFFER_SIZE = DatagramFraming.MAX_RECEIVE_SIZE;
+    // limits on the fragments of incomplete requests kept across all clients
+    private static final int MAX_PENDING_MESSAGES = 1024;
+    private static final long MAX_PENDING_BYTES = 64L * 1024 * 1024;
+    private static final long REASSEMBLY_TIMEOUT_MS = 5000;
+    // limits on the responses kept for retransmitted requests; the time to live comfortably
+    // outlasts the retry window of the clients
+    private static final int MAX_CACHED_RESPONSES = 65536;
+    private static final long MAX_CACHED_RESPONSE_BYTES = 64L * 1024 * 1024;
+    private static final long RESPONSE_CACHE_TTL_MS = 30000;
     private final int port;
-    private final Map<String, String> store = new HashMap<>();
+    private final int workers;
+    private final RequestHandler requestHandler;
+    private final Reassembler reassembler =
+        new Reassembler(MAX_PENDING_MESSAGES, MAX_PENDING_BYTES, REASSEMBLY_TIMEOUT_MS);
+    private final ResponseCache responseCache =
+        new ResponseCache(MAX_CACHED_RESPONSES, MAX_CACHED_RESPONSE_BYTES, RESPONSE_CACHE_TTL_MS);
+    // IDs of the fragmented responses to version 1 requests sent by this server
+    private final AtomicInteger nextMessageId = new AtomicInteger();
 
     /**
-     * Constructs a KeyValueStoreUDPServer instance.
+     * Constructs a single-threaded KeyValueStoreUDPServer instance.
      * Sets up the logging format by calling method <method>setupLogger()</method>
      * @param port The port number the server listens on.
      */
     public KeyValueStoreUDPServer(int port) {
+        this(port, 1);
+    }
+
+    /**
+     * Constructs a KeyValueStoreUDPServer instance using the storage engine configured by the
+     * {@value StorageEngines#ENGINE_PROPERTY} system property.
+     * @param port    The port number the server listens on.
+     * @param workers The number of threads receiving and processing datagrams.
+     */
+    public KeyValueStoreUDPServer(int port, int workers) {
+        this(port, workers, StorageEngines.fromSystemProperty());
+    }
+
+    /**
+     * Constructs a KeyValueStoreUDPServer instance.
+     * @param port    The port number the server listens on.
+     * @param workers The number of threads receiving and processing datagrams.
+     * @param store   The engine holding the entries.
+     */
+    public KeyValueStoreUDPServer(int port, int workers, StorageEngine store) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Number of workers must be positive");
+        }
         this.port = port;
+        this.workers = workers;
+        this.requestHandler = new RequestHandler(logger, store);
         setupLogger();
     }
 
     /**
      * Sets up logging format with timestamps to make it more readable.
      * The format is [YYYY-MM-DD HH:MM:SS.SSS] INFO/WARNING/SEVERE: logging information
+     * The console output is written by a background thread, so that workers never wait for it.
      */
     private void setupLogger() {
         System.setProperty("java.util.logging.SimpleFormatter.format",
             "[%1$tF %1$tT.%1$tL] %4$s: %5$s%n");
+        AsyncLogHandler.install();
     }
 
 
@@ -42,18 +120,30 @@ public class KeyValueStoreUDPServer {
      * Starts the UDP server, continuously listening for requests.
      */
     public void start() {
+        if (workers > 1) {
+            startWorkers();
+            return;
+        }
+
         // trying to create a UDP server, and bind the listening port
         try (DatagramSocket socket = new DatagramSocket(port)) {
+            socket.setReceiveBufferSize(DatagramFraming.SOCKET_RECEIVE_BUFFER_SIZE);
             logger.info("UDP Key-Value Store Server started on port " + port);
 
-            // since UDP is connectionless, not reliable, a relatively smaller size 1024 is set as
-            // the maximum data size the receiveBuffer can receive
-            byte[] receiveBuffer = new byte[1024];
+            byte[] receiveBuffer = new byte[RECEIVE_BUFFER_SIZE];
+            // the packets, the buffer views, the decoded request and the reply are reused for every
+            // datagram, so that handling a request copies nothing but the response
+            DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+            ByteBuffer frame = ByteBuffer.wrap(receiveBuffer);
+            RequestView view = new RequestView();
+            Reply reply = new Reply();
+            ByteBuffer responseBuffer = ByteBuffer.allocate(Protocol.MAX_RESPONSE_LENGTH);
+            ByteBuffer fragmentBuffer = ByteBuffer.allocate(DatagramFraming.MAX_DATAGRAM_SIZE);
+            DatagramPacket responsePacket = new DatagramPacket(responseBuffer.array(), 0);
 
             // `while true` prevents the termination of this server until being force killed
             while (true) {
-                // create a DatagramPacket instance to hold the received data
-                DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+                receivePacket.setLength(receiveBuffer.length);
                 try {
                     // wait for a packet
                     // the server will be always waiting until a request is received
@@ -67,28 +157,40 @@ public class KeyValueStoreUDPServer {
                     int clientPort = receivePacket.getPort();
                     int receivedLength = receivePacket.getLength();
 
-                    logger.info(String.format(
-                        "Received request of length %d from %s:%d",
-                        receivedLength, clientAddress.getHostAddress(), clientPort
-                    ));
+                    if (logged()) {
+                        logger.log(Level.INFO, "Received request of length {0,number,#} from {1}:{2,number,#}",
+                            new Object[]{receivedLength, clientAddress.getHostAddress(), clientPort});
+                    }
 
-                    // process the request by calling the method `handleRequest`
-                    byte[] responseData = handleRequest(
-                        Arrays.copyOf(receivePacket.getData(), receivedLength)
-                    );
+                    // process the request in place, unless it is a fragment of a larger one
+                    frame.clear().limit(receivedLength);
+                    SocketAddress client = receivePacket.getSocketAddress();
+                    ByteBuffer request = reassemble(frame, client);
+                    if (request == null) {
+                        continue;
+                    }
+                    int requestId = Protocol.peekRequestId(request);
+                    ByteBuffer response = respond(request, requestId, client, view, reply, responseBuffer);
+                    if (response == null) {
+                        continue;
+                    }
 
                     // send response
-                    DatagramPacket responsePacket = new DatagramPacket(
-                        responseData,
-                        responseData.length,
-                        clientAddress,
-                        clientPort
-                    );
-                    socket.send(responsePacket);
-                    logger.info(String.format("Response sent to %s:%d", clientAddress.getHostAddress(), clientPort));
+                    responsePacket.setAddress(clientAddress);
+                    responsePacket.setPort(clientPort);
+                    DatagramFraming.send(response, getMessageId(requestId), fragmentBuffer, datagram -> {
+                        responsePacket.setData(datagram.array(), datagram.position(), datagram.remaining());
+                        socket.send(responsePacket);
+                    });
+                    if (logged()) {
+                        logger.log(Level.INFO, "Response sent to {0}:{1,number,#}",
+                            new Object[]{clientAddress.getHostAddress(), clientPort});
+                    }
 
                 } catch (IOException e) {
                     logger.warning("Error processing request: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Failed to process a request", e);
                 }
             }
         } catch (SocketException e) {
@@ -97,66 +199,204 @@ public class KeyValueStoreUDPServer {
     }
 
     /**
-     * Processes an incoming request and returns a response.
-     * @param data The raw request data.
-     * @return The response bytes.
+     * Binds the receive channels and runs one worker thread per channel until they all stop.
      */
-    private byte[] handleRequest(byte[] data) {
+    private void startWorkers() {
+        List<DatagramChannel> channels = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
         try {
-            Request request = Protocol.parseRequest(data);
-
-            switch (request.getType()) {
-                case Protocol.PUT:
-                    if (store.containsKey(request.getKey())) {
-                        logger.info(String.format("PUT failed: The key %s has been already existed", request.getKey()));
-                        return String.format("The key %s has been already existed", request.getKey()).getBytes(StandardCharsets.UTF_8);
-                    } else {
-                        store.put(request.getKey(), request.getValue());
-                        logger.info(String.format("PUT: %s = %s", request.getKey(), request.getValue()));
-                        return "OK".getBytes(StandardCharsets.UTF_8);
-                    }
+            boolean reusePort;
+            try (DatagramChannel probe = DatagramChannel.open()) {
+                reusePort = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            }
 
-                case Protocol.GET:
-                    String value = store.get(request.getKey());
-                    logger.info(String.format("GET: %s -> %s", request.getKey(), (value != null) ? value : "NOT_FOUND"));
-                    return (value != null ? value : "NOT_FOUND").getBytes(StandardCharsets.UTF_8);
-
-                case Protocol.DELETE:
-                    if (store.containsKey(request.getKey())) {
-                        store.remove(request.getKey());
-                        logger.info(String.format("DELETE: %s", request.getKey()));
-                        return "OK".getBytes(StandardCharsets.UTF_8);
-                    } else {
-                        logger.info(String.format("DELETE failed: The key %s is not found", request.getKey()));
-                        return String.format("The key %s is not found", request.getKey()).getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < workers; i++) {
+                DatagramChannel channel;
+                if (i == 0 || reusePort) {
+                    channel = DatagramChannel.open();
+                    if (reusePort) {
+                        channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
                     }
+                    channel.setOption(StandardSocketOptions.SO_RCVBUF, DatagramFraming.SOCKET_RECEIVE_BUFFER_SIZE);
+                    channel.bind(new InetSocketAddress(port));
+                    channels.add(channel);
+                } else {
+                    // without SO_REUSEPORT the workers take turns receiving on the first channel
+                    channel = channels.get(0);
+                }
+                Thread thread = new Thread(() -> serve(channel), "udp-worker-" + i);
+                threads.add(thread);
+            }
+            logger.info(String.format("UDP Key-Value Store Server started on port %d with %d workers on %d channels",
+                port, workers, channels.size()));
 
-                default:
-                    throw new MalformedRequestException("Unknown operation type: " + request.getType());
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
             }
+        } catch (IOException e) {
+            logger.severe("Failed to start server: Could not bind to port " + port + ". " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (DatagramChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.warning("Error closing channel: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * The loop of one worker: receive, process and answer datagrams on the channel until it is
+     * closed. The direct buffers, the decoded request and the reply belong to this worker and are
+     * reused for every datagram.
+     */
+    private void serve(DatagramChannel channel) {
+        ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+        ByteBuffer responseBuffer = ByteBuffer.allocateDirect(Protocol.MAX_RESPONSE_LENGTH);
+        ByteBuffer fragmentBuffer = ByteBuffer.allocateDirect(DatagramFraming.MAX_DATAGRAM_SIZE);
+        RequestView view = new RequestView();
+        Reply reply = new Reply();
+
+        while (true) {
+            try {
+                receiveBuffer.clear();
+                SocketAddress client = channel.receive(receiveBuffer);
+                receiveBuffer.flip();
+                int receivedLength = receiveBuffer.remaining();
+                if (logged()) {
+                    logger.log(Level.INFO, "Received request of length {0,number,#} from {1}",
+                        new Object[]{receivedLength, client});
+                }
+
+                ByteBuffer request = reassemble(receiveBuffer, client);
+                if (request == null) {
+                    continue;
+                }
+                int requestId = Protocol.peekRequestId(request);
+                ByteBuffer response = respond(request, requestId, client, view, reply, responseBuffer);
+                if (response == null) {
+                    continue;
+                }
+
+                DatagramFraming.send(response, getMessageId(requestId), fragmentBuffer,
+                    datagram -> channel.send(datagram, client));
+                if (logged()) {
+                    logger.log(Level.INFO, "Response sent to {0}", client);
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                logger.warning("Error processing request: " + e.getMessage());
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Failed to process a request", e);
+            }
+        }
+    }
+
+    /**
+     * Processes a complete request into the response buffer, or an error response if processing
+     * fails. A retransmitted version 2 request is answered with the cached response instead.
+     * @return the response to send, or null if the request is still being processed by another
+     * worker and the retransmission is dropped.
+     */
+    private ByteBuffer respond(ByteBuffer request, int requestId, SocketAddress client, RequestView view,
+                               Reply reply, ByteBuffer responseBuffer) {
+        if (requestId != Request.NO_REQUEST_ID) {
+            byte[] cached = responseCache.begin(client, requestId);
+            if (cached == ResponseCache.IN_PROGRESS) {
+                if (logged()) {
+                    logger.log(Level.INFO, "Dropped retransmission of request {0,number,#} from {1}, still in progress",
+                        new Object[]{requestId, client});
+                }
+                return null;
+            }
+            if (cached != null) {
+                if (logged()) {
+                    logger.log(Level.INFO, "Answered retransmission of request {0,number,#} from {1} from cache",
+                        new Object[]{requestId, client});
+                }
+                return ByteBuffer.wrap(cached);
+            }
+        }
+
+        try {
+            requestHandler.handleFrame(request, view, client, reply);
+        } catch (RuntimeException e) {
+            // the cache entry reserved above must be completed, or retransmissions are dropped
+            logger.log(Level.SEVERE, "Failed to process a request from " + client, e);
+            reply.set(requestId, Protocol.STATUS_ERROR, ("Internal error - " + e).getBytes(StandardCharsets.UTF_8));
+        }
+        responseBuffer.clear();
+        reply.writeTo(responseBuffer);
+        responseBuffer.flip();
+
+        if (requestId != Request.NO_REQUEST_ID) {
+            byte[] response = new byte[responseBuffer.remaining()];
+            responseBuffer.get(responseBuffer.position(), response);
+            responseCache.complete(client, requestId, response);
+        }
+        return responseBuffer;
+    }
+
+    /**
+     * Returns the message ID the fragments of a response are sent with. Responses to version 2
+     * requests use the request ID, so the fragments of a cached response sent again for a
+     * retransmitted request complete the ones the client already received.
+     */
+    private int getMessageId(int requestId) {
+        return requestId != Request.NO_REQUEST_ID ? requestId : nextMessageId.getAndIncrement();
+    }
+
+    /**
+     * Passes an unfragmented request through, and collects fragments until their request is
+     * complete.
+     * @return the request frame, or null if more fragments are needed or the fragment is malformed.
+     */
+    private ByteBuffer reassemble(ByteBuffer datagram, SocketAddress client) {
+        if (!DatagramFraming.isFragment(datagram)) {
+            return datagram;
+        }
+        try {
+            byte[] request = reassembler.add(client, datagram);
+            return request != null ? ByteBuffer.wrap(request) : null;
         } catch (MalformedRequestException e) {
-            logger.warning("Received malformed request: " + e.getMessage());
-            return ("ERROR: Malformed request - " + e.getMessage()).getBytes(StandardCharsets.UTF_8);
+            logger.warning("Received malformed fragment from " + client + ": " + e.getMessage());
+            return null;
         }
     }
 
+    /**
+     * Returns true if the per-datagram message about to be logged is sampled.
+     */
+    private boolean logged() {
+        return AsyncLogHandler.isSampled(logger, Level.INFO);
+    }
 
     /**
      * Main method to start the server.
-     * @param args Command line arguments (expects port number).
+     * @param args Command line arguments (expects port number and optionally the number of workers).
      */
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java KeyValueStoreUDPServer <port>");
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: java KeyValueStoreUDPServer <port> [workers]");
             return;
         }
 
         try {
             int port = Integer.parseInt(args[0]);
-            KeyValueStoreUDPServer server = new KeyValueStoreUDPServer(port);
+            int workers = (args.length == 2) ? Integer.parseInt(args[1]) : 1;
+            KeyValueStoreUDPServer server = new KeyValueStoreUDPServer(port, workers);
             server.start();
         } catch (NumberFormatException e) {
-            System.out.println("Error: Port must be a valid number.");
+            System.out.println("Error: Port and workers must be valid numbers.");
+        } catch (IllegalArgumentException | UncheckedIOException e) {
+            System.out.println("Error: " + e.getMessage());
         }
     }
 }
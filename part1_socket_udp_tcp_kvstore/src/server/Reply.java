@@ -0,0 +1,69 @@
+package server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import common.Protocol;
+import common.Request;
+
+/**
+ * The outcome of one request: the request ID to echo, a status and an optional value.
+ * <p>
+ * A reply is filled in by {@link RequestHandler} and reused for every request of a connection or a
+ * worker, so that the value of a GET can be written straight from the store to the transport.
+ * </p>
+ */
+final class Reply {
+    private int requestId = Request.NO_REQUEST_ID;
+    private byte status;
+    private byte[] value;
+
+    /**
+     * Overwrites the state of this reply.
+     * @param requestId The ID of the request being answered, or Request.NO_REQUEST_ID.
+     * @param status    One of the Protocol.STATUS_* constants, STATUS_OK optionally flagged with
+     *                  Protocol.COMPRESSED.
+     * @param value     The value bytes (nullable).
+     */
+    void set(int requestId, byte status, byte[] value) {
+        this.requestId = requestId;
+        this.status = status;
+        this.value = value;
+    }
+
+    byte getStatus() {
+        return status;
+    }
+
+    byte[] getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the encoded length of this reply.
+     */
+    int length() {
+        return Protocol.getResponseLength(requestId, value);
+    }
+
+    /**
+     * Encodes this reply into a new byte array.
+     */
+    byte[] toByteArray() {
+        return Protocol.createResponse(requestId, status, value);
+    }
+
+    /**
+     * Encodes this reply into the buffer, starting at its position.
+     */
+    void writeTo(ByteBuffer buffer) {
+        Protocol.writeResponse(buffer, requestId, status, value);
+    }
+
+    /**
+     * Encodes this reply onto the stream, without flushing it.
+     */
+    void writeTo(DataOutputStream outputStream) throws IOException {
+        Protocol.writeResponse(outputStream, requestId, status, value);
+    }
+}
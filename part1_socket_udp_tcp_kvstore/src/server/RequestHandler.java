@@ -0,0 +1,537 @@
+package server;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import common.AsyncLogHandler;
+import common.BatchRequestView;
+import common.CompressedValues;
+import common.CorruptValueException;
+import common.MalformedRequestException;
+import common.Protocol;
+import common.RequestView;
+import common.ScanRequestView;
+import common.Versions;
+import storage.StorageEngine;
+
+/**
+ * Executes decoded requests against the key-value store. Shared by the TCP and UDP servers.
+ * <p>
+ * The entries are kept by a {@link StorageEngine}. A GET looks the engine up with the key view of
+ * the received frame and answers with the stored value bytes. Strings are only built for logging
+ * and for error messages. Outcomes are reported as typed
+ * statuses in a {@link Reply}.
+ * </p>
+ * <p>
+ * The per-operation log messages are sampled (see {@link AsyncLogHandler#isSampled}) and logged
+ * with parameters, so that only sampled operations capture their key, and values are only decoded
+ * when the log writer formats the message.
+ * </p>
+ * <p>
+ * The update requests UPSERT, CAS, INCR and APPEND read and write their key in one
+ * {@link StorageEngine#update}, so that they are atomic without a lock in the handler, and replace
+ * the GET, DELETE and PUT a client would need otherwise.
+ * </p>
+ * <p>
+ * A batch request runs every entry exactly like the corresponding single request and collects
+ * the per-entry statuses and values into the value of one OK reply. Entries are not atomic as a
+ * group: each one succeeds or fails on its own.
+ * </p>
+ * <p>
+ * A scan request is answered with one page of entries read from an ordered engine (see
+ * {@link StorageEngine#isOrdered}), starting after the continuation token of the previous page.
+ * The token is the last key of that page, so the server keeps no state between pages, and a page
+ * never holds more than the requested number of entries or MAX_RESPONSE_LENGTH bytes.
+ * </p>
+ * <p>
+ * Values at least as long as the {@value CompressedValues#THRESHOLD_PROPERTY} system property
+ * (default {@value CompressedValues#DEFAULT_THRESHOLD} bytes, 0 to disable) are stored compressed
+ * when that makes them smaller (see {@link CompressedValues}), and values a client sent compressed
+ * are stored as they are. They are only decompressed when read, except for the GETs of clients
+ * that accept compressed values, which get the stored bytes.
+ * </p>
+ */
+class RequestHandler {
+    private static final byte[] EMPTY_VALUE =
+        "Value cannot be empty for PUT".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] UNKNOWN_OPERATION = "Unknown operation".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CORRUPT_VALUE = "Corrupt compressed value".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NOT_A_NUMBER = "The value is not a number".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] OVERFLOW = "The increment overflows".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] VALUE_TOO_LONG = ("The value would exceed " + Protocol.MAX_VALUE_LENGTH
+        + " bytes").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NO_VALUE = new byte[0];
+    private static final byte[] BATCH_TOO_LARGE =
+        "Batch response too large".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NOT_EXPIRING =
+        "The storage engine does not expire entries".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NOT_ORDERED = ("The storage engine does not keep its keys in order; "
+        + "start the server with -Dkvstore.engine=skiplist or lsm").getBytes(StandardCharsets.UTF_8);
+    // room left for the per-entry results in the value of a batch response
+    private static final int MAX_BATCH_RESULTS_LENGTH = Protocol.MAX_RESPONSE_LENGTH - (1 + 4 + 1 + 4) - 4;
+    // room left for the entries in the value of a scan response
+    private static final int MAX_SCAN_PAGE_LENGTH = Protocol.MAX_RESPONSE_LENGTH - (1 + 4 + 1 + 4) - 4 - 1;
+
+    private final Logger logger;
+    private final StorageEngine store;
+    // the value length from which values are stored compressed, 0 to disable
+    private final int compressionThreshold;
+
+    /**
+     * @param logger The logger of the server using this handler.
+     * @param store  The engine holding the entries.
+     * @throws IllegalArgumentException if the compression threshold property is invalid.
+     */
+    RequestHandler(Logger logger, StorageEngine store) {
+        this.logger = logger;
+        this.store = store;
+        this.compressionThreshold = CompressedValues.threshold();
+    }
+
+    /**
+     * Decodes and processes one request frame. A malformed frame is answered with an error.
+     * @param frame  The raw request, from the position to the limit of the buffer.
+     * @param view   The view to decode into, reusable across calls.
+     * @param remote The address of the client, only turned into a String when it is logged.
+     * @param reply  The reply to fill in, reusable across calls.
+     */
+    void handleFrame(ByteBuffer frame, RequestView view, Object remote, Reply reply) {
+        try {
+            byte type = Protocol.peekRequestType(frame);
+            if (Protocol.isBatchType(type)) {
+                handleBatch(Protocol.decodeBatchRequest(frame), remote, reply);
+                return;
+            }
+            if (Protocol.isScanType(type)) {
+                handleScan(Protocol.decodeScanRequest(frame), remote, reply);
+                return;
+            }
+            Protocol.decodeRequest(frame, view);
+            if (logged()) {
+                log("Received {0} request from {1} for key: {2}",
+                    Protocol.getRequestTypeName(view.getType()), remote, view.getKey());
+            }
+            handleRequest(view, reply);
+        } catch (MalformedRequestException e) {
+            logger.warning("Received malformed request from " + remote + ": " + e.getMessage());
+            reply.set(Protocol.peekRequestId(frame), Protocol.STATUS_ERROR,
+                ("Malformed request - " + e.getMessage()).getBytes(StandardCharsets.UTF_8));
+        } catch (UncheckedIOException e) {
+            // the write could not be made durable, so it must not be acknowledged
+            logger.severe("Storage failure for request from " + remote + ": " + e.getMessage());
+            reply.set(Protocol.peekRequestId(frame), Protocol.STATUS_ERROR,
+                ("Storage failure - " + e.getMessage()).getBytes(StandardCharsets.UTF_8));
+        } catch (UnsupportedOperationException e) {
+            logger.warning("Unsupported request from " + remote + ": " + e.getMessage());
+            reply.set(Protocol.peekRequestId(frame), Protocol.STATUS_ERROR,
+                e.getMessage().getBytes(StandardCharsets.UTF_8));
+        } catch (CorruptValueException e) {
+            // a value sent compressed was stored without decompressing it, and did not decompress
+            logger.severe("Corrupt compressed value for request from " + remote + ": " + e.getMessage());
+            reply.set(Protocol.peekRequestId(frame), Protocol.STATUS_ERROR, CORRUPT_VALUE);
+        }
+    }
+
+    /**
+     * Decodes and processes one request frame into a new byte array.
+     * @see #handleFrame(ByteBuffer, RequestView, Object, Reply)
+     */
+    byte[] handleFrame(ByteBuffer frame, Object remote) {
+        Reply reply = new Reply();
+        handleFrame(frame, new RequestView(), remote, reply);
+        return reply.toByteArray();
+    }
+
+    /**
+     * Processes a decoded batch request entry by entry. MGET values that would make the response
+     * larger than MAX_RESPONSE_LENGTH are answered with a per-entry error instead.
+     */
+    void handleBatch(BatchRequestView batch, Object remote, Reply reply) {
+        int count = batch.size();
+        byte[] statuses = new byte[count];
+        byte[][] values = new byte[count][];
+        int succeeded = 0;
+        int resultsLength = 4;
+
+        for (int i = 0; i < count; i++) {
+            switch (batch.getType()) {
+                case Protocol.MGET: {
+                    byte[] value = store.get(batch.key(i));
+                    if (value != null) {
+                        value = CompressedValues.decode(value);
+                    }
+                    if (value == null) {
+                        statuses[i] = Protocol.STATUS_NOT_FOUND;
+                    } else if (resultsLength + 1 + 4 + value.length > MAX_BATCH_RESULTS_LENGTH) {
+                        statuses[i] = Protocol.STATUS_ERROR;
+                        values[i] = BATCH_TOO_LARGE;
+                    } else {
+                        statuses[i] = Protocol.STATUS_OK;
+                        values[i] = value;
+                    }
+                    break;
+                }
+
+                case Protocol.MPUT: {
+                    byte[] value = batch.copyValue(i);
+                    if (value == null) {
+                        statuses[i] = Protocol.STATUS_ERROR;
+                        values[i] = EMPTY_VALUE;
+                    } else {
+                        statuses[i] = put(batch.copyKey(i), CompressedValues.encode(value, compressionThreshold));
+                    }
+                    break;
+                }
+
+                default:
+                    statuses[i] = delete(batch.key(i));
+            }
+            resultsLength += 1 + 4 + (values[i] != null ? values[i].length : 0);
+            if (statuses[i] == Protocol.STATUS_OK) {
+                succeeded++;
+            }
+        }
+
+        if (logged()) {
+            log("{0} from {1}: {2,number,#} of {3,number,#} entries succeeded",
+                Protocol.getRequestTypeName(batch.getType()), remote, succeeded, count);
+        }
+        reply.set(batch.getRequestId(), Protocol.STATUS_OK, Protocol.encodeBatchResults(statuses, values));
+    }
+
+    /**
+     * Answers a decoded scan request with the page of entries after its continuation token.
+     */
+    void handleScan(ScanRequestView scan, Object remote, Reply reply) {
+        if (!store.isOrdered()) {
+            reply.set(scan.getRequestId(), Protocol.STATUS_ERROR, NOT_ORDERED);
+            return;
+        }
+        ByteBuffer start = scan.start();
+        ByteBuffer token = scan.token();
+        // PREFIX and SCAN both start at the start key; the prefix bounds a PREFIX instead of an end key
+        ByteBuffer end = scan.getType() == Protocol.SCAN && scan.end().hasRemaining() ? scan.end() : null;
+        ByteBuffer prefix = scan.getType() == Protocol.PREFIX ? start : null;
+        boolean resume = token.hasRemaining() && StorageEngine.compareKeys(token, start) >= 0;
+
+        List<ByteBuffer> keys = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        boolean[] more = new boolean[1];
+        int[] pageLength = new int[1];
+        store.scanFrom(resume ? token : start, !resume, (key, stored) -> {
+            if ((end != null && StorageEngine.compareKeys(key, end) >= 0) || (prefix != null && !hasPrefix(key, prefix))) {
+                return false;
+            }
+            byte[] value = CompressedValues.decode(stored);
+            int length = Protocol.getScanEntryLength(key, value);
+            if (keys.size() == scan.getPageSize() || pageLength[0] + length > MAX_SCAN_PAGE_LENGTH) {
+                more[0] = true;
+                return false;
+            }
+            keys.add(key);
+            values.add(value);
+            pageLength[0] += length;
+            return true;
+        });
+
+        if (logged()) {
+            log("{0} from {1} for {2}: {3,number,#} entries", Protocol.getRequestTypeName(scan.getType()), remote,
+                scan.getStart(), keys.size());
+        }
+        reply.set(scan.getRequestId(), Protocol.STATUS_OK, Protocol.encodeScanPage(keys, values, more[0]));
+    }
+
+    private static boolean hasPrefix(ByteBuffer key, ByteBuffer prefix) {
+        return key.remaining() >= prefix.remaining()
+            && key.slice(key.position(), prefix.remaining()).equals(prefix);
+    }
+
+    /**
+     * Stores the value unless the key already exists.
+     * @return STATUS_OK, or STATUS_KEY_EXISTS if the key is taken.
+     */
+    private byte put(byte[] key, byte[] value) {
+        return store.putIfAbsent(key, value) ? Protocol.STATUS_OK : Protocol.STATUS_KEY_EXISTS;
+    }
+
+    /**
+     * Stores the value unless the key already exists, expiring after the TTL.
+     * @return STATUS_OK, or STATUS_KEY_EXISTS if the key is taken.
+     */
+    private byte put(byte[] key, byte[] value, long ttlMillis) {
+        long now = System.currentTimeMillis();
+        long expiresAt = ttlMillis < Long.MAX_VALUE - now ? now + ttlMillis : Long.MAX_VALUE;
+        return store.putIfAbsent(key, value, expiresAt) ? Protocol.STATUS_OK : Protocol.STATUS_KEY_EXISTS;
+    }
+
+    /**
+     * Removes the key.
+     * @return STATUS_OK, or STATUS_NOT_FOUND if the key did not exist.
+     */
+    private byte delete(ByteBuffer key) {
+        return store.delete(key) ? Protocol.STATUS_OK : Protocol.STATUS_NOT_FOUND;
+    }
+
+    /**
+     * Processes a decoded request. Version 2 requests are answered with their request ID.
+     */
+    void handleRequest(RequestView request, Reply reply) {
+        int requestId = request.getRequestId();
+        switch (request.getType()) {
+            case Protocol.PUT:
+            case Protocol.PUT_TTL: {
+                byte[] value = request.copyValue();
+                if (value != null && !request.isCompressed()) {
+                    value = CompressedValues.encode(value, compressionThreshold);
+                }
+                long ttlMillis = request.getTtlMillis();
+                if (value == null) {
+                    if (logged()) {
+                        log("PUT failed: The value of key {0} is empty", request.getKey());
+                    }
+                    reply.set(requestId, Protocol.STATUS_ERROR, EMPTY_VALUE);
+                } else if (ttlMillis != Protocol.NO_TTL && !store.isExpiring()) {
+                    logger.warning("PUT_TTL failed: The storage engine does not expire entries");
+                    reply.set(requestId, Protocol.STATUS_ERROR, NOT_EXPIRING);
+                } else if ((ttlMillis == Protocol.NO_TTL ? put(request.copyKey(), value)
+                    : put(request.copyKey(), value, ttlMillis)) == Protocol.STATUS_KEY_EXISTS) {
+                    if (logged()) {
+                        log("PUT failed: The key {0} has been already existed", request.getKey());
+                    }
+                    reply.set(requestId, Protocol.STATUS_KEY_EXISTS, null);
+                } else {
+                    if (logged()) {
+                        if (ttlMillis == Protocol.NO_TTL) {
+                            log("PUT: {0} = {1}", request.getKey(), new Utf8(value));
+                        } else {
+                            log("PUT: {0} = {1} for {2,number,#} ms", request.getKey(), new Utf8(value), ttlMillis);
+                        }
+                    }
+                    reply.set(requestId, Protocol.STATUS_OK, null);
+                }
+                break;
+            }
+
+            case Protocol.GET: {
+                byte[] value = store.get(request.key());
+                if (logged()) {
+                    log("GET: {0} -> {1}", request.getKey(), value != null ? new Utf8(value) : "NOT_FOUND");
+                }
+                if (value == null) {
+                    reply.set(requestId, Protocol.STATUS_NOT_FOUND, null);
+                } else if (request.isCompressed() && CompressedValues.isCompressed(value)) {
+                    reply.set(requestId, (byte) (Protocol.STATUS_OK | Protocol.COMPRESSED), value);
+                } else {
+                    reply.set(requestId, Protocol.STATUS_OK, CompressedValues.decode(value));
+                }
+                break;
+            }
+
+            case Protocol.GETV: {
+                // the version first, so that it is never newer than the value
+                long version = store.getVersion(request.key());
+                byte[] value = store.get(request.key());
+                if (logged()) {
+                    log("GETV: {0} -> {1}", request.getKey(), value != null ? Long.toString(version) : "NOT_FOUND");
+                }
+                if (value == null) {
+                    reply.set(requestId, Protocol.STATUS_NOT_FOUND, null);
+                } else {
+                    reply.set(requestId, Protocol.STATUS_OK, Versions.prepend(version, CompressedValues.decode(value)));
+                }
+                break;
+            }
+
+            case Protocol.UPSERT: {
+                byte[] value = request.copyValue();
+                if (value == null) {
+                    reply.set(requestId, Protocol.STATUS_ERROR, EMPTY_VALUE);
+                    break;
+                }
+                if (!request.isCompressed()) {
+                    value = CompressedValues.encode(value, compressionThreshold);
+                }
+                store.put(request.copyKey(), value);
+                if (logged()) {
+                    log("UPSERT: {0} = {1}", request.getKey(), new Utf8(value));
+                }
+                reply.set(requestId, Protocol.STATUS_OK, null);
+                break;
+            }
+
+            case Protocol.CAS:
+                compareAndSet(request, reply);
+                break;
+
+            case Protocol.INCR:
+                increment(request, reply);
+                break;
+
+            case Protocol.APPEND:
+                append(request, reply);
+                break;
+
+            case Protocol.DELETE:
+                if (delete(request.key()) == Protocol.STATUS_OK) {
+                    if (logged()) {
+                        log("DELETE: {0}", request.getKey());
+                    }
+                    reply.set(requestId, Protocol.STATUS_OK, null);
+                } else {
+                    if (logged()) {
+                        log("DELETE failed: The key {0} is not found", request.getKey());
+                    }
+                    reply.set(requestId, Protocol.STATUS_NOT_FOUND, null);
+                }
+                break;
+
+            default:
+                logger.warning("Unknown operation type: " + request.getType());
+                reply.set(requestId, Protocol.STATUS_ERROR, UNKNOWN_OPERATION);
+        }
+    }
+
+    /**
+     * Stores the value of a CAS request if the key exists and its entry has the expected version.
+     * A mismatch is answered with STATUS_CONFLICT and the current version and value, which spares
+     * the client a GETV before it retries.
+     */
+    private void compareAndSet(RequestView request, Reply reply) {
+        int requestId = request.getRequestId();
+        byte[] value = request.copyValue();
+        if (value == null) {
+            reply.set(requestId, Protocol.STATUS_ERROR, EMPTY_VALUE);
+            return;
+        }
+        byte[] stored = CompressedValues.encode(value, compressionThreshold);
+        long expected = request.getArgument();
+        byte[][] current = new byte[1][];
+        byte[] updated = store.update(request.copyKey(), previous -> {
+            if (previous == null) {
+                return null;
+            }
+            // the update holds the write lock of the key, so the version cannot change meanwhile
+            long version = store.getVersion(request.key());
+            if (version != expected) {
+                current[0] = Versions.prepend(version, CompressedValues.decode(previous));
+                return null;
+            }
+            return stored;
+        });
+        if (updated != null) {
+            if (logged()) {
+                // the raw value of the request, not its stored form, which may be compressed
+                log("CAS: {0} = {1}", request.getKey(), new Utf8(value));
+            }
+            reply.set(requestId, Protocol.STATUS_OK, null);
+        } else if (current[0] == null) {
+            reply.set(requestId, Protocol.STATUS_NOT_FOUND, null);
+        } else {
+            if (logged()) {
+                log("CAS failed: The key {0} has another version", request.getKey());
+            }
+            reply.set(requestId, Protocol.STATUS_CONFLICT, current[0]);
+        }
+    }
+
+    /**
+     * Adds the delta of an INCR request to the decimal number stored under the key, or to 0 if the
+     * key does not exist, and answers with the new number.
+     */
+    private void increment(RequestView request, Reply reply) {
+        int requestId = request.getRequestId();
+        long delta = request.getArgument();
+        byte[] updated;
+        try {
+            updated = store.update(request.copyKey(), previous -> {
+                long count = previous == null ? 0
+                    : Long.parseLong(new String(CompressedValues.decode(previous), StandardCharsets.UTF_8));
+                return Long.toString(Math.addExact(count, delta)).getBytes(StandardCharsets.UTF_8);
+            });
+        } catch (NumberFormatException e) {
+            reply.set(requestId, Protocol.STATUS_ERROR, NOT_A_NUMBER);
+            return;
+        } catch (ArithmeticException e) {
+            reply.set(requestId, Protocol.STATUS_ERROR, OVERFLOW);
+            return;
+        }
+        if (logged()) {
+            log("INCR: {0} += {1,number,#} -> {2}", request.getKey(), delta, new Utf8(updated));
+        }
+        reply.set(requestId, Protocol.STATUS_OK, updated);
+    }
+
+    /**
+     * Appends the value of an APPEND request to the current value of the key, or stores it if the
+     * key does not exist.
+     */
+    private void append(RequestView request, Reply reply) {
+        int requestId = request.getRequestId();
+        byte[] suffix = request.copyValue();
+        if (suffix == null) {
+            reply.set(requestId, Protocol.STATUS_ERROR, EMPTY_VALUE);
+            return;
+        }
+        int[] length = new int[1];
+        byte[] updated = store.update(request.copyKey(), previous -> {
+            byte[] raw = previous == null ? NO_VALUE : CompressedValues.decode(previous);
+            if (raw.length + suffix.length > Protocol.MAX_VALUE_LENGTH) {
+                return null;
+            }
+            length[0] = raw.length + suffix.length;
+            byte[] value = Arrays.copyOf(raw, length[0]);
+            System.arraycopy(suffix, 0, value, raw.length, suffix.length);
+            return CompressedValues.encode(value, compressionThreshold);
+        });
+        if (updated == null) {
+            reply.set(requestId, Protocol.STATUS_ERROR, VALUE_TOO_LONG);
+            return;
+        }
+        if (logged()) {
+            // the suffix and the new length, since the whole value may be large and compressed
+            log("APPEND: {0} += {1} -> {2,number,#} bytes", request.getKey(), new Utf8(suffix), length[0]);
+        }
+        reply.set(requestId, Protocol.STATUS_OK, null);
+    }
+
+    /**
+     * Returns true if the per-operation message about to be logged is sampled.
+     */
+    private boolean logged() {
+        return AsyncLogHandler.isSampled(logger, Level.INFO);
+    }
+
+    /**
+     * Logs a per-operation message. The parameters are formatted later by the log writer, so they
+     * must not refer to buffers that are reused for the next request.
+     */
+    private void log(String pattern, Object... params) {
+        logger.log(Level.INFO, pattern, params);
+    }
+
+    /**
+     * Bytes of the store that are only decompressed and decoded when the log writer formats them.
+     * Stored values are never modified, so the bytes can be shared with the writer.
+     */
+    private static final class Utf8 {
+        private final byte[] bytes;
+
+        private Utf8(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            try {
+                return new String(CompressedValues.decode(bytes), StandardCharsets.UTF_8);
+            } catch (CorruptValueException e) {
+                return "<corrupt compressed value>";
+            }
+        }
+    }
+}
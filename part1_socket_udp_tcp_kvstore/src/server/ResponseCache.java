@@ -0,0 +1,142 @@
+package server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+/**
+ * Remembers the responses sent to version 2 UDP requests, so that a retransmitted request is
+ * answered again without running its operation twice.
+ * <p>
+ * Entries are keyed by the client address and the request ID. A request is reserved when its
+ * processing starts, so a retry arriving while the original is still being processed by another
+ * worker is dropped rather than executed. Entries expire a fixed time after they were reserved,
+ * which must be longer than clients keep retransmitting; beyond the entry and byte limits the
+ * oldest entries are dropped first. Thread-safe.
+ * </p>
+ */
+class ResponseCache {
+    // returned by begin() while the request is still being processed
+    static final byte[] IN_PROGRESS = new byte[0];
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlNanos;
+    // insertion order is reservation order, so the oldest entries come first
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>();
+    private long bytes;
+
+    /**
+     * @param maxEntries The most responses kept at once.
+     * @param maxBytes   The most response bytes kept at once.
+     * @param ttlMillis  How long a response is kept after its request was first received.
+     */
+    ResponseCache(int maxEntries, long maxBytes, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+    }
+
+    /**
+     * Looks up a request, reserving it if it has not been seen before.
+     * @return null if the request is new and has to be processed, {@link #IN_PROGRESS} if it is
+     * being processed, otherwise the response sent for it.
+     */
+    synchronized byte[] begin(Object client, int requestId) {
+        long now = System.nanoTime();
+        evictExpired(now);
+
+        Key key = new Key(client, requestId);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            return entry.response != null ? entry.response : IN_PROGRESS;
+        }
+        entries.put(key, new Entry(now + ttlNanos));
+        evictOldest();
+        return null;
+    }
+
+    /**
+     * Stores the response of a request reserved by {@link #begin}.
+     */
+    synchronized void complete(Object client, int requestId, byte[] response) {
+        Entry entry = entries.get(new Key(client, requestId));
+        if (entry == null) {
+            // evicted while it was processed; a later retry will run the request again
+            return;
+        }
+        entry.response = response;
+        bytes += response.length;
+        evictOldest();
+    }
+
+    /**
+     * Drops the entries whose time to live has passed.
+     */
+    private void evictExpired(long now) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.deadline - now > 0) {
+                // later entries were reserved later, so they have not expired either
+                return;
+            }
+            remove(it, entry);
+        }
+    }
+
+    /**
+     * Drops the oldest entries until the limits are met again.
+     */
+    private void evictOldest() {
+        Iterator<Entry> it = entries.values().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            remove(it, it.next());
+        }
+    }
+
+    private void remove(Iterator<Entry> it, Entry entry) {
+        if (entry.response != null) {
+            bytes -= entry.response.length;
+        }
+        it.remove();
+    }
+
+    /**
+     * Identifies a request by the client that sent it and the ID the client chose for it.
+     */
+    private static final class Key {
+        private final Object client;
+        private final int requestId;
+
+        private Key(Object client, int requestId) {
+            this.client = client;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return requestId == other.requestId && Objects.equals(client, other.client);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(client) + requestId;
+        }
+    }
+
+    /**
+     * The response of one request, or null while it is processed.
+     */
+    private static final class Entry {
+        private final long deadline;
+        private byte[] response;
+
+        private Entry(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import common.Protocol;
+
+/**
+ * Non-blocking TCP front end of the key-value store, built on a single {@link Selector}.
+ * <p>
+ * The selector thread accepts connections, reads length-prefixed {@link Protocol} frames and
+ * writes responses back, while the frames themselves are handed to a worker pool.
+ * Connections stay open until the client closes them, so any number of requests can be sent over
+ * one connection. Version 1 frames of the same connection are processed one at a time and in
+ * arrival order, which keeps their responses in the order the requests were sent. Version 2 frames
+ * carry a request ID, so they are processed independently and answered as soon as they complete.
+ * </p>
+ * <p>
+ * A frame counts against its connection from the moment it is read until its response has been
+ * written. Once a connection has more than {@value #MAX_QUEUED_FRAMES} frames or
+ * {@value #MAX_QUEUED_BYTES} bytes of requests and responses outstanding, e.g. because the client
+ * pipelines requests without reading the replies, the selector stops reading from it until enough
+ * responses have been written, so the client is held back by TCP flow control instead of growing the
+ * memory of the server. A client that shuts down its output still receives the responses to all
+ * frames it sent before; the connection is closed once they are written.
+ * </p>
+ * <p>
+ * A frame whose handler throws is answered with a {@link Protocol#STATUS_ERROR} response like any
+ * other, so that the frames queued behind it on the connection are still processed and the client
+ * is not left waiting for a response that never comes.
+ * </p>
+ */
+class SelectorTCPServer {
+    private static final Logger logger = Logger.getLogger(SelectorTCPServer.class.getName());
+    // largest frame body a well-behaved client can send
+    private static final int MAX_FRAME_LENGTH = Protocol.MAX_REQUEST_LENGTH;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    // outstanding frames and bytes of a connection beyond which it is no longer read from
+    private static final int MAX_QUEUED_FRAMES = 256;
+    private static final long MAX_QUEUED_BYTES = 4L * MAX_FRAME_LENGTH;
+
+    private final int port;
+    private final ExecutorService workers;
+    private final BiFunction<byte[], String, byte[]> handler;
+    // connections that have new responses queued and need OP_WRITE registered by the selector thread
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+
+    /**
+     * @param port    The port to listen on.
+     * @param workers The pool the requests are processed on.
+     * @param handler Turns a request frame and the client address into the response bytes.
+     */
+    SelectorTCPServer(int port, ExecutorService workers, BiFunction<byte[], String, byte[]> handler) {
+        this.port = port;
+        this.workers = workers;
+        this.handler = handler;
+    }
+
+    /**
+     * Runs the selector loop on the calling thread until the server socket fails.
+     * @throws IOException if the server socket cannot be opened or bound.
+     */
+    void run() throws IOException {
+        try (Selector sel = Selector.open();
+             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            selector = sel;
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(sel, SelectionKey.OP_ACCEPT);
+            logger.info("TCP Server (selector mode) started on port " + port);
+
+            while (true) {
+                sel.select();
+                registerPendingWrites();
+
+                Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(connection);
+                        }
+                    } catch (IOException e) {
+                        logger.warning("Error on connection " + connection.remote + ": " + e.getMessage());
+                        close(connection);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts a pending connection and registers it for reads.
+     */
+    private void accept(ServerSocketChannel serverChannel) {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            logger.info("Accepted connection from " + connection.remote);
+        } catch (IOException e) {
+            logger.warning("Error accepting client connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads whatever is available on the connection and hands every complete frame to the workers.
+     */
+    private void read(Connection connection) throws IOException {
+        int bytesRead = connection.channel.read(connection.readBuffer);
+        if (bytesRead == -1) {
+            logger.info("Connection closed by " + connection.remote);
+            // the responses to the frames already received are still sent, see write
+            connection.inputClosed = true;
+            if (connection.queuedFrames.get() == 0) {
+                close(connection);
+            } else {
+                updateInterest(connection);
+            }
+            return;
+        }
+
+        ByteBuffer buffer = connection.readBuffer;
+        buffer.flip();
+        boolean received = false;
+        while (buffer.remaining() >= 4) {
+            int frameLength = buffer.getInt(buffer.position());
+            if (frameLength <= 0 || frameLength > MAX_FRAME_LENGTH) {
+                // the stream cannot be re-synchronised after a bad length prefix
+                logger.warning("Invalid frame length " + frameLength + " from " + connection.remote);
+                close(connection);
+                return;
+            }
+            if (buffer.remaining() < 4 + frameLength) {
+                break;
+            }
+            buffer.position(buffer.position() + 4);
+            byte[] frame = new byte[frameLength];
+            buffer.get(frame);
+            connection.queuedFrames.incrementAndGet();
+            connection.queuedBytes.addAndGet(frameLength);
+            if (frame[0] == Protocol.VERSION_2) {
+                // tagged with a request ID, so it does not have to wait for earlier frames
+                workers.execute(() -> process(connection, frame));
+            } else {
+                connection.inbound.add(frame);
+                received = true;
+            }
+        }
+        buffer.compact();
+
+        // grows the buffer when a partially received frame does not fit into it
+        if (buffer.position() >= 4) {
+            int needed = 4 + buffer.getInt(0);
+            if (needed > buffer.capacity() && needed <= 4 + MAX_FRAME_LENGTH) {
+                ByteBuffer larger = ByteBuffer.allocate(needed);
+                buffer.flip();
+                larger.put(buffer);
+                connection.readBuffer = larger;
+            }
+        }
+
+        if (received && connection.scheduled.compareAndSet(false, true)) {
+            workers.execute(() -> drain(connection));
+        }
+        if (isOverLimit(connection)) {
+            updateInterest(connection);
+        }
+    }
+
+    /**
+     * Checks if a connection has too many frames or bytes outstanding to be read from.
+     */
+    private static boolean isOverLimit(Connection connection) {
+        return connection.queuedFrames.get() >= MAX_QUEUED_FRAMES
+            || connection.queuedBytes.get() >= MAX_QUEUED_BYTES;
+    }
+
+    /**
+     * Processes the queued frames of one connection in order. At most one drain runs per connection.
+     */
+    private void drain(Connection connection) {
+        while (true) {
+            byte[] frame = connection.inbound.poll();
+            if (frame == null) {
+                connection.scheduled.set(false);
+                // a frame may have been queued between the poll and the reset above
+                if (connection.inbound.isEmpty() || !connection.scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            if (connection.closed) {
+                return;
+            }
+            process(connection, frame);
+        }
+    }
+
+    /**
+     * Processes one frame and queues its response for writing, or an error response if the handler
+     * fails.
+     */
+    private void process(Connection connection, byte[] frame) {
+        if (connection.closed) {
+            return;
+        }
+
+        byte[] responseData;
+        try {
+            responseData = handler.apply(frame, connection.remote);
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Failed to process a request from " + connection.remote, e);
+            responseData = Protocol.createResponse(Protocol.peekRequestId(frame), Protocol.STATUS_ERROR,
+                ("Internal error - " + e).getBytes(StandardCharsets.UTF_8));
+        }
+
+        // each response is queued as a whole, so concurrent workers never interleave their bytes
+        connection.queuedBytes.addAndGet(responseData.length - frame.length);
+        connection.outbound.add(ByteBuffer.wrap(responseData));
+        pendingWrites.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Turns on OP_WRITE for the connections that got new responses. Runs on the selector thread.
+     */
+    private void registerPendingWrites() {
+        Connection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            if (connection.key.isValid()) {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * Writes queued responses until the socket buffer is full or nothing is left, and resumes
+     * reading once the connection is back under its limits.
+     */
+    private void write(Connection connection) throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = connection.outbound.peek()) != null) {
+            connection.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                updateInterest(connection);
+                return;
+            }
+            connection.outbound.poll();
+            connection.queuedFrames.decrementAndGet();
+            connection.queuedBytes.addAndGet(-buffer.capacity());
+        }
+        if (connection.inputClosed && connection.queuedFrames.get() == 0) {
+            close(connection);
+            return;
+        }
+        updateInterest(connection);
+    }
+
+    /**
+     * Registers OP_READ unless the client shut down its output or the connection is over its
+     * limits, and OP_WRITE while responses are queued. Runs on the selector thread.
+     */
+    private void updateInterest(Connection connection) {
+        int ops = connection.outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+        if (!connection.inputClosed && !isOverLimit(connection)) {
+            ops |= SelectionKey.OP_READ;
+        }
+        connection.key.interestOps(ops);
+    }
+
+    /**
+     * Closes the connection and drops the responses that were not written yet.
+     */
+    private void close(Connection connection) {
+        connection.closed = true;
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            logger.warning("Error closing client socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Per-connection state: partial input, frames waiting for a worker and responses waiting to be
+     * written.
+     */
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final String remote;
+        private final Queue<byte[]> inbound = new ConcurrentLinkedQueue<>();
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        // true while a worker is draining the inbound queue of this connection
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // the frames read whose responses have not been written yet, and the bytes of their
+        // requests or responses
+        private final AtomicInteger queuedFrames = new AtomicInteger();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private SelectionKey key;
+        private volatile boolean closed;
+        // set by the selector thread once the client has shut down its output
+        private boolean inputClosed;
+
+        private Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.remote = String.valueOf(channel.getRemoteAddress());
+        }
+    }
+}
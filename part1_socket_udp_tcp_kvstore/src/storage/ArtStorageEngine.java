@@ -0,0 +1,109 @@
+package storage;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A storage engine backed by an {@link AdaptiveRadixTree}, which keeps the keys in order and stores
+ * the bytes that keys share once.
+ * <p>
+ * Keys with long common prefixes, such as hierarchical names, take much less memory than in a hash
+ * map holding every key in full, and a lookup costs one step per key byte outside the shared
+ * prefixes, independently of the number of keys. Reads share a read-write lock and run in parallel;
+ * writes hold it exclusively, and scans and snapshots hold it shared for their whole duration.
+ * Visited keys are rebuilt into new arrays, so visitors may keep them.
+ * </p>
+ */
+public class ArtStorageEngine implements StorageEngine {
+    private final AdaptiveRadixTree tree = new AdaptiveRadixTree();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @Override
+    public byte[] get(ByteBuffer key) {
+        lock.readLock().lock();
+        try {
+            return tree.get(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        lock.writeLock().lock();
+        try {
+            tree.put(key, value, true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(byte[] key, byte[] value) {
+        lock.writeLock().lock();
+        try {
+            return tree.put(key, value, false) == null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(ByteBuffer key) {
+        lock.writeLock().lock();
+        try {
+            return tree.remove(key) != null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Visits the entries in the order of their keys as unsigned bytes.
+     */
+    @Override
+    public void scan(EntryVisitor visitor) {
+        scan(null, true, visitor);
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return true;
+    }
+
+    @Override
+    public void scanFrom(ByteBuffer start, boolean inclusive, EntryVisitor visitor) {
+        scan(start, inclusive, visitor);
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return tree.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<ByteBuffer, byte[]> snapshot() {
+        Map<ByteBuffer, byte[]> entries = new HashMap<>();
+        scan((key, value) -> {
+            entries.put(key, value);
+            return true;
+        });
+        return entries;
+    }
+
+    private void scan(ByteBuffer start, boolean inclusive, EntryVisitor visitor) {
+        lock.readLock().lock();
+        try {
+            tree.scan(start, inclusive, (key, value) -> visitor.visit(ByteBuffer.wrap(key), value));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A Bloom filter over byte array keys, which tells that a key is certainly not in a set.
+ * <p>
+ * The filter uses {@value #BITS_PER_KEY} bits per key and {@value #HASHES} probes derived from
+ * one 64-bit hash of the key, for a false positive rate of about 1%.
+ * </p>
+ */
+public final class BloomFilter {
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 7;
+
+    private final long[] bits;
+
+    private BloomFilter(long[] bits) {
+        this.bits = bits;
+    }
+
+    /**
+     * Builds a filter from the hashes of the keys in the set.
+     * @param hashes The {@link #hash} of every key.
+     * @param count  The number of hashes to use from the start of the array.
+     */
+    public static BloomFilter build(long[] hashes, int count) {
+        BloomFilter filter = new BloomFilter(new long[Math.max(1, (int) (((long) count * BITS_PER_KEY + 63) / 64))]);
+        for (int i = 0; i < count; i++) {
+            filter.add(hashes[i]);
+        }
+        return filter;
+    }
+
+    /**
+     * Reads a filter written by {@link #writeTo}.
+     * @param buffer The buffer holding the filter; its position is not used.
+     * @param offset The index of the filter in the buffer.
+     * @param words  The number of 64-bit words of the filter.
+     */
+    public static BloomFilter readFrom(ByteBuffer buffer, int offset, int words) {
+        long[] bits = new long[words];
+        for (int i = 0; i < words; i++) {
+            bits[i] = buffer.getLong(offset + i * 8);
+        }
+        return new BloomFilter(bits);
+    }
+
+    /**
+     * Returns the hash of a key, which {@link #build} and {@link #mightContain} derive the probes from.
+     */
+    public static long hash(byte[] key) {
+        // 64-bit FNV-1a, finished with the SplitMix64 mixer to spread the low bits
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+
+    /**
+     * Returns false if the key is certainly not in the set.
+     */
+    public boolean mightContain(byte[] key) {
+        long hash = hash(key);
+        long bitCount = (long) bits.length * 64;
+        long probe = hash;
+        long step = (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Long.remainderUnsigned(probe, bitCount);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+            probe += step;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of 64-bit words {@link #writeTo} writes.
+     */
+    public int words() {
+        return bits.length;
+    }
+
+    /**
+     * Writes the filter at the position of the buffer.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        for (long word : bits) {
+            buffer.putLong(word);
+        }
+    }
+
+    private void add(long hash) {
+        long bitCount = (long) bits.length * 64;
+        long probe = hash;
+        long step = (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Long.remainderUnsigned(probe, bitCount);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+            probe += step;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Bounds another engine to a capacity, in entries or in estimated bytes, by evicting the entries
+ * least likely to be read again, so that a store used as a cache keeps a fixed memory ceiling.
+ * <p>
+ * The entries to keep are chosen by a {@link TinyLfuPolicy}, which favours the keys read often
+ * over the keys read recently, and gets much better hit ratios than plain LRU on skewed traffic.
+ * Every GET counts as a use of its key, found or not, and every write as a use of the key written.
+ * An entry weighs 1, or its key and value bytes plus {@value #ENTRY_OVERHEAD} bytes for the
+ * structures holding it. Entries the wrapped engine already holds are admitted in scan order.
+ * </p>
+ * <p>
+ * Writes, and the evictions they cause, hold one lock, so that the policy and the wrapped engine
+ * agree on the keys present. The wrapped engine must therefore not wait for the disk: a durable
+ * engine wraps this one, not the reverse. Reads go to the wrapped engine without the lock and
+ * record their use only if the lock is free: a read never waits, and under heavy write contention
+ * some uses are not counted, which only makes the policy less precise.
+ * </p>
+ * <p>
+ * The hits, misses and evictions are counted and exposed as a {@link CacheStatsMXBean}, and the
+ * evicted keys are passed to the {@link #setEvictionListener eviction listener}, under the lock.
+ * </p>
+ */
+public class BoundedStorageEngine implements StorageEngine, CacheStatsMXBean {
+    // the estimated bytes taken by the map entry, key buffer, array headers and policy node of an
+    // entry
+    static final int ENTRY_OVERHEAD = 96;
+
+    /**
+     * What the capacity counts.
+     */
+    public enum Bound {
+        ENTRIES,
+        BYTES
+    }
+
+    private final StorageEngine engine;
+    private final Bound bound;
+    private final long capacity;
+    // guarded by lock
+    private final TinyLfuPolicy<ByteBuffer> policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private volatile Consumer<ByteBuffer> evictionListener = key -> { };
+
+    /**
+     * @param engine   The engine to keep the entries in.
+     * @param bound    Whether the capacity counts entries or bytes.
+     * @param capacity The maximum number of entries or bytes.
+     * @throws IllegalArgumentException if the capacity is not positive.
+     */
+    public BoundedStorageEngine(StorageEngine engine, Bound bound, long capacity) {
+        this.engine = engine;
+        this.bound = bound;
+        this.capacity = capacity;
+        this.policy = new TinyLfuPolicy<>(capacity);
+        List<ByteBuffer> evicted = new ArrayList<>();
+        engine.scan((key, value) -> {
+            byte[] copy = new byte[key.remaining()];
+            key.get(copy);
+            policy.put(ByteBuffer.wrap(copy), weigh(copy, value), evicted::add);
+            return true;
+        });
+        for (ByteBuffer key : evicted) {
+            engine.delete(key);
+        }
+    }
+
+    @Override
+    public byte[] get(ByteBuffer key) {
+        byte[] value = engine.get(key);
+        (value != null ? hits : misses).increment();
+        if (lock.tryLock()) {
+            try {
+                policy.recordAccess(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        lock.lock();
+        try {
+            engine.put(key, value);
+            admit(key, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(byte[] key, byte[] value) {
+        lock.lock();
+        try {
+            if (!engine.putIfAbsent(key, value)) {
+                return false;
+            }
+            admit(key, value);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(ByteBuffer key) {
+        lock.lock();
+        try {
+            policy.remove(key);
+            return engine.delete(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void scan(EntryVisitor visitor) {
+        engine.scan(visitor);
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return engine.isOrdered();
+    }
+
+    @Override
+    public void scanFrom(ByteBuffer start, boolean inclusive, EntryVisitor visitor) {
+        engine.scanFrom(start, inclusive, visitor);
+    }
+
+    @Override
+    public int size() {
+        return engine.size();
+    }
+
+    @Override
+    public Map<ByteBuffer, byte[]> snapshot() {
+        return engine.snapshot();
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        engine.checkpoint();
+    }
+
+    @Override
+    public void setEvictionListener(Consumer<ByteBuffer> listener) {
+        evictionListener = listener;
+    }
+
+    @Override
+    public void close() throws IOException {
+        engine.close();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = getHits();
+        long requests = hits + getMisses();
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public int getSize() {
+        lock.lock();
+        try {
+            return policy.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getWeight() {
+        lock.lock();
+        try {
+            return policy.weight();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Adds an entry just written to the policy and removes the entries it evicts. Called while
+     * holding the lock.
+     */
+    private void admit(byte[] key, byte[] value) {
+        policy.put(ByteBuffer.wrap(key), weigh(key, value), victim -> {
+            engine.delete(victim);
+            evictions.increment();
+            evictionListener.accept(victim);
+        });
+    }
+
+    private long weigh(byte[] key, byte[] value) {
+        return bound == Bound.ENTRIES ? 1 : (long) key.length + value.length + ENTRY_OVERHEAD;
+    }
+}
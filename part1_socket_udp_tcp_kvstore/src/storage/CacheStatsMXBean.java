@@ -0,0 +1,44 @@
+package storage;
+
+/**
+ * The counters of a {@link BoundedStorageEngine}, registered with the platform MBean server as
+ * {@value StorageEngines#CACHE_MBEAN_NAME}, so that they can be watched with jconsole or any JMX
+ * client.
+ */
+public interface CacheStatsMXBean {
+
+    /**
+     * Returns the number of GETs that found their key.
+     */
+    long getHits();
+
+    /**
+     * Returns the number of GETs that did not find their key.
+     */
+    long getMisses();
+
+    /**
+     * Returns the share of GETs that found their key, 0 if there were none.
+     */
+    double getHitRatio();
+
+    /**
+     * Returns the number of entries evicted to stay within the capacity.
+     */
+    long getEvictions();
+
+    /**
+     * Returns the number of entries.
+     */
+    int getSize();
+
+    /**
+     * Returns the sum of the weights of the entries: their number, or their estimated bytes.
+     */
+    long getWeight();
+
+    /**
+     * Returns the maximum sum of the weights of the entries.
+     */
+    long getCapacity();
+}
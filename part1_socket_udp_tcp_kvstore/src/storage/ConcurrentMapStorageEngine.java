@@ -0,0 +1,57 @@
+package storage;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A storage engine backed by a {@link ConcurrentHashMap}.
+ * <p>
+ * Keys are stored as ByteBuffers, whose equals and hashCode compare their content, so a lookup
+ * with the key view of a received frame finds the stored key without copying it.
+ * </p>
+ */
+public class ConcurrentMapStorageEngine implements StorageEngine {
+    // key bytes -> value bytes; the key buffers are never modified once inserted
+    private final ConcurrentHashMap<ByteBuffer, byte[]> map = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] get(ByteBuffer key) {
+        return map.get(key);
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        map.put(ByteBuffer.wrap(key), value);
+    }
+
+    @Override
+    public boolean putIfAbsent(byte[] key, byte[] value) {
+        return map.putIfAbsent(ByteBuffer.wrap(key), value) == null;
+    }
+
+    @Override
+    public boolean delete(ByteBuffer key) {
+        return map.remove(key) != null;
+    }
+
+    @Override
+    public void scan(EntryVisitor visitor) {
+        for (Map.Entry<ByteBuffer, byte[]> entry : map.entrySet()) {
+            if (!visitor.visit(entry.getKey().duplicate(), entry.getValue())) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public Map<ByteBuffer, byte[]> snapshot() {
+        return new HashMap<>(map);
+    }
+}
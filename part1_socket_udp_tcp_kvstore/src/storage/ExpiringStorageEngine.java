@@ -0,0 +1,279 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+import common.Versions;
+
+/**
+ * Adds deadlines to the entries of another engine, after which they are gone.
+ * <p>
+ * The deadlines of the entries that have one are kept in a map next to the wrapped engine, and
+ * reads check it before they return an entry, so an expired entry is never returned, whether or
+ * not it has been reclaimed yet. Reclaiming is done in bulk by {@link #expire}: every key with a
+ * deadline is also scheduled in a {@link TimingWheel}, and advancing the wheel to the current time
+ * yields exactly the keys due since the last call. A key that was overwritten or deleted in the
+ * meantime has a different deadline or none, and is skipped.
+ * </p>
+ * <p>
+ * Writes and expiries of a key are serialized by one of {@value #STRIPES} locks chosen by the key,
+ * and update the wrapped engine before the deadline and the version, while reads look at the
+ * deadline and the version before the entry. A read overlapping a write therefore either sees the entry that was there before, or
+ * treats it as expired, and never returns an expired entry. The same locks make {@link #update}
+ * atomic with respect to the other writes of the key.
+ * </p>
+ * <p>
+ * Every write also gives its entry a new {@link Versions version}, kept in a second map and
+ * returned by {@link #getVersion}, which the CAS requests compare. The versions are dropped with
+ * their entries, including the ones the wrapped engine evicts, and are only kept in memory.
+ * </p>
+ * <p>
+ * If the wrapped engine {@link StorageEngine#keepsDeadlines keeps deadlines}, as the durable
+ * engines do, every deadline is also written to it with its entry, and the deadlines it restored
+ * are read back when this engine is created, so they survive a restart. Otherwise they are only
+ * kept in memory. {@link #size} counts the expired entries not reclaimed yet.
+ * </p>
+ */
+public class ExpiringStorageEngine implements StorageEngine {
+    // the precision of the reclamation, and the interval at which the servers call expire
+    public static final long TICK_MILLIS = 100;
+    private static final int STRIPES = 64;
+
+    private final StorageEngine engine;
+    // key -> deadline in milliseconds since the epoch, for the entries that have one; the key
+    // buffers are the ones stored in the wrapped engine
+    private final ConcurrentHashMap<ByteBuffer, Long> deadlines = new ConcurrentHashMap<>();
+    // key -> version, for the entries written since the engine was created
+    private final ConcurrentHashMap<ByteBuffer, Long> versions = new ConcurrentHashMap<>();
+    // the last version handed out
+    private final AtomicLong lastVersion = new AtomicLong();
+    // guarded by itself
+    private final TimingWheel<ByteBuffer> wheel = new TimingWheel<>(TICK_MILLIS, System.currentTimeMillis());
+    private final Object[] stripes = new Object[STRIPES];
+
+    /**
+     * @param engine The engine to keep the entries in.
+     */
+    public ExpiringStorageEngine(StorageEngine engine) {
+        this.engine = engine;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        engine.scanDeadlines((key, deadline) -> {
+            deadlines.put(key, deadline);
+            wheel.schedule(key, deadline);
+        });
+        engine.setEvictionListener(versions::remove);
+    }
+
+    @Override
+    public byte[] get(ByteBuffer key) {
+        Long deadline = deadlines.isEmpty() ? null : deadlines.get(key);
+        byte[] value = engine.get(key);
+        return deadline != null && deadline <= System.currentTimeMillis() ? null : value;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+        synchronized (stripe(keyBuffer)) {
+            engine.put(key, value);
+            deadlines.remove(keyBuffer);
+            bumpVersion(keyBuffer);
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(byte[] key, byte[] value) {
+        ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+        synchronized (stripe(keyBuffer)) {
+            reclaimIfExpired(keyBuffer);
+            if (!engine.putIfAbsent(key, value)) {
+                return false;
+            }
+            // the wrapped engine may have evicted the previous entry of the key with its deadline
+            deadlines.remove(keyBuffer);
+            bumpVersion(keyBuffer);
+            return true;
+        }
+    }
+
+    @Override
+    public boolean isExpiring() {
+        return true;
+    }
+
+    @Override
+    public boolean putIfAbsent(byte[] key, byte[] value, long expiresAt) {
+        ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+        synchronized (stripe(keyBuffer)) {
+            reclaimIfExpired(keyBuffer);
+            boolean stored = engine.keepsDeadlines()
+                ? engine.putIfAbsent(key, value, expiresAt)
+                : engine.putIfAbsent(key, value);
+            if (!stored) {
+                return false;
+            }
+            deadlines.put(keyBuffer, expiresAt);
+            bumpVersion(keyBuffer);
+            synchronized (wheel) {
+                wheel.schedule(keyBuffer, expiresAt);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public byte[] update(byte[] key, UnaryOperator<byte[]> function) {
+        ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+        synchronized (stripe(keyBuffer)) {
+            reclaimIfExpired(keyBuffer);
+            byte[] value = function.apply(engine.get(keyBuffer));
+            if (value != null) {
+                Long deadline = engine.keepsDeadlines() ? deadlines.get(keyBuffer) : null;
+                if (deadline != null) {
+                    engine.put(key, value, deadline);
+                } else {
+                    engine.put(key, value);
+                }
+                bumpVersion(keyBuffer);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * An expired entry not reclaimed yet may still have a version, but {@link #get} does not
+     * return its value.
+     * </p>
+     */
+    @Override
+    public long getVersion(ByteBuffer key) {
+        Long version = versions.get(key);
+        return version != null ? version : 0;
+    }
+
+    @Override
+    public boolean delete(ByteBuffer key) {
+        synchronized (stripe(key)) {
+            if (reclaimIfExpired(key)) {
+                return false;
+            }
+            boolean deleted = engine.delete(key);
+            deadlines.remove(key);
+            versions.remove(key);
+            return deleted;
+        }
+    }
+
+    /**
+     * Removes the entries whose deadlines have passed by the given time.
+     * @param now The current time in milliseconds since the epoch.
+     */
+    public void expire(long now) {
+        List<ByteBuffer> keys = new ArrayList<>();
+        List<Long> keyDeadlines = new ArrayList<>();
+        synchronized (wheel) {
+            wheel.advance(now, (key, deadline) -> {
+                keys.add(key);
+                keyDeadlines.add(deadline);
+            });
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            ByteBuffer key = keys.get(i);
+            synchronized (stripe(key)) {
+                if (keyDeadlines.get(i).equals(deadlines.get(key))) {
+                    engine.delete(key);
+                    deadlines.remove(key);
+                    versions.remove(key);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void scan(EntryVisitor visitor) {
+        long now = System.currentTimeMillis();
+        engine.scan((key, value) -> isExpired(key, now) || visitor.visit(key, value));
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return engine.isOrdered();
+    }
+
+    @Override
+    public void scanFrom(ByteBuffer start, boolean inclusive, EntryVisitor visitor) {
+        long now = System.currentTimeMillis();
+        engine.scanFrom(start, inclusive, (key, value) -> isExpired(key, now) || visitor.visit(key, value));
+    }
+
+    @Override
+    public int size() {
+        return engine.size();
+    }
+
+    @Override
+    public Map<ByteBuffer, byte[]> snapshot() {
+        long now = System.currentTimeMillis();
+        Map<ByteBuffer, byte[]> entries = engine.snapshot();
+        if (!deadlines.isEmpty()) {
+            entries.keySet().removeIf(key -> isExpired(key, now));
+        }
+        return entries;
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        engine.checkpoint();
+    }
+
+    @Override
+    public void close() throws IOException {
+        engine.close();
+    }
+
+    /**
+     * Removes the entry of the key if its deadline has passed. Called while holding the stripe lock
+     * of the key.
+     * @return true if the key had an expired entry.
+     */
+    private boolean reclaimIfExpired(ByteBuffer key) {
+        Long deadline = deadlines.get(key);
+        if (deadline == null || deadline > System.currentTimeMillis()) {
+            return false;
+        }
+        engine.delete(key);
+        deadlines.remove(key);
+        versions.remove(key);
+        return true;
+    }
+
+    /**
+     * Gives the entry of the key a new version. Called while holding the stripe lock of the key,
+     * after the entry was written.
+     */
+    private void bumpVersion(ByteBuffer key) {
+        long now = System.currentTimeMillis();
+        versions.put(key, lastVersion.updateAndGet(previous -> Versions.next(previous, now)));
+    }
+
+    private boolean isExpired(ByteBuffer key, long now) {
+        if (deadlines.isEmpty()) {
+            return false;
+        }
+        Long deadline = deadlines.get(key);
+        return deadline != null && deadline <= now;
+    }
+
+    private Object stripe(ByteBuffer key) {
+        return stripes[Math.floorMod(key.hashCode(), STRIPES)];
+    }
+}
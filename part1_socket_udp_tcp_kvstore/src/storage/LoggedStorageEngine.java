@@ -0,0 +1,295 @@
+package storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Makes the writes to another engine durable through a {@link WriteAheadLog}.
+ * <p>
+ * Opening the engine loads the latest {@link Snapshot} of the log's directory into the wrapped
+ * engine, which must be empty, and replays the log written after it. Every
+ * successful write is applied and appended to the log, and returns once the log's durability
+ * allows it. Writes that change nothing, i.e. a putIfAbsent of an existing key or a delete of a
+ * missing key, are not logged; the wrapped engine tells which they are, so a write reads nothing
+ * from it. Readers may see a write before it is durable.
+ * </p>
+ * <p>
+ * Appending and applying happen under one of {@value #STRIPES} locks chosen by the key, so the
+ * records of a key are in the log in the order they were applied, while writers of different keys
+ * proceed in parallel. Waiting for durability happens outside the lock, which lets the group
+ * commit of {@link WriteAheadLog.Durability#BATCHED} cover many writers.
+ * </p>
+ * <p>
+ * {@link #checkpoint} takes a snapshot without stopping writers for longer than a roll of the log:
+ * it holds every stripe lock while rolling, so each write in the old segments has also been applied,
+ * and then scans the wrapped engine. Writes applied during the scan may or may not be in the
+ * snapshot, but they are all in the new segment, and replaying a key's PUTs and DELETEs over any of
+ * its earlier states ends in the same value.
+ * </p>
+ * <p>
+ * The engine {@link #keepsDeadlines keeps deadlines}: a PUT of an entry that expires is logged with
+ * its deadline, which the engine also keeps in memory to write it into the snapshot entry. Entries
+ * whose deadline has passed when the snapshot and the log are loaded are dropped.
+ * </p>
+ */
+public class LoggedStorageEngine implements StorageEngine {
+    private static final int STRIPES = 64;
+
+    private final StorageEngine engine;
+    private final Path directory;
+    private final WriteAheadLog log;
+    private final Object[] stripes = new Object[STRIPES];
+    // key -> deadline in milliseconds since the epoch, for the entries that have one; the key
+    // buffers are the ones stored in the wrapped engine
+    private final ConcurrentHashMap<ByteBuffer, Long> deadlines = new ConcurrentHashMap<>();
+    // held while a snapshot is written, and while closing
+    private final Object checkpointLock = new Object();
+    // the first segment not covered by the latest snapshot
+    private long snapshotSegment;
+
+    /**
+     * @param engine     The empty engine to keep the entries in.
+     * @param directory  The directory of the log.
+     * @param durability When the log forces writes to disk.
+     * @throws IOException if the snapshot or the log cannot be loaded.
+     */
+    public LoggedStorageEngine(StorageEngine engine, Path directory, WriteAheadLog.Durability durability)
+        throws IOException {
+        this.engine = engine;
+        this.directory = directory;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        long now = System.currentTimeMillis();
+        this.snapshotSegment = Snapshot.load(directory, (key, value, expiresAt) -> restore(key, value, expiresAt, now));
+        this.log = WriteAheadLog.open(directory, durability, snapshotSegment, (type, key, value, expiresAt) -> {
+            if (type == WriteAheadLog.PUT) {
+                restore(key, value, expiresAt, now);
+            } else {
+                engine.delete(ByteBuffer.wrap(key));
+                deadlines.remove(ByteBuffer.wrap(key));
+            }
+        });
+    }
+
+    /**
+     * Applies a PUT of the snapshot or the log, or removes the key if the entry has expired.
+     */
+    private void restore(byte[] key, byte[] value, long expiresAt, long now) {
+        ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+        if (expiresAt != 0 && expiresAt <= now) {
+            engine.delete(keyBuffer);
+            deadlines.remove(keyBuffer);
+            return;
+        }
+        engine.put(key, value);
+        if (expiresAt != 0) {
+            deadlines.put(keyBuffer, expiresAt);
+        } else {
+            deadlines.remove(keyBuffer);
+        }
+    }
+
+    @Override
+    public byte[] get(ByteBuffer key) {
+        return engine.get(key);
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        put(key, value, 0);
+    }
+
+    @Override
+    public boolean keepsDeadlines() {
+        return true;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value, long expiresAt) {
+        ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+        long position;
+        synchronized (stripe(keyBuffer)) {
+            position = append(WriteAheadLog.PUT, key, value, expiresAt);
+            engine.put(key, value);
+            setDeadline(keyBuffer, expiresAt);
+        }
+        sync(position);
+    }
+
+    @Override
+    public boolean putIfAbsent(byte[] key, byte[] value) {
+        return putIfAbsent(key, value, 0);
+    }
+
+    @Override
+    public boolean putIfAbsent(byte[] key, byte[] value, long expiresAt) {
+        ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+        long position;
+        synchronized (stripe(keyBuffer)) {
+            if (!engine.putIfAbsent(key, value)) {
+                return false;
+            }
+            position = append(WriteAheadLog.PUT, key, value, expiresAt);
+            setDeadline(keyBuffer, expiresAt);
+        }
+        sync(position);
+        return true;
+    }
+
+    @Override
+    public boolean delete(ByteBuffer key) {
+        long position;
+        synchronized (stripe(key)) {
+            // the wrapped engine may have evicted the entry, but not its deadline
+            if (!deadlines.isEmpty()) {
+                deadlines.remove(key);
+            }
+            if (!engine.delete(key)) {
+                return false;
+            }
+            byte[] keyBytes = new byte[key.remaining()];
+            key.get(key.position(), keyBytes);
+            position = append(WriteAheadLog.DELETE, keyBytes, null);
+        }
+        sync(position);
+        return true;
+    }
+
+    @Override
+    public void scanDeadlines(ObjLongConsumer<ByteBuffer> visitor) {
+        deadlines.forEach(visitor::accept);
+    }
+
+    @Override
+    public void setEvictionListener(Consumer<ByteBuffer> listener) {
+        engine.setEvictionListener(listener);
+    }
+
+    @Override
+    public void scan(EntryVisitor visitor) {
+        engine.scan(visitor);
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return engine.isOrdered();
+    }
+
+    @Override
+    public void scanFrom(ByteBuffer start, boolean inclusive, EntryVisitor visitor) {
+        engine.scanFrom(start, inclusive, visitor);
+    }
+
+    @Override
+    public int size() {
+        return engine.size();
+    }
+
+    @Override
+    public Map<ByteBuffer, byte[]> snapshot() {
+        return engine.snapshot();
+    }
+
+    /**
+     * Writes a snapshot of the entries and deletes the log segments and snapshots it replaces. Does
+     * nothing if nothing was logged since the latest snapshot.
+     */
+    @Override
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            long segment = rollLog(0);
+            if (segment == snapshotSegment) {
+                return;
+            }
+            try (Snapshot.Writer writer = Snapshot.create(directory, segment)) {
+                IOException[] failure = new IOException[1];
+                engine.scan((key, value) -> {
+                    try {
+                        Long expiresAt = deadlines.isEmpty() ? null : deadlines.get(key);
+                        writer.add(key, ByteBuffer.wrap(value), expiresAt != null ? expiresAt : 0);
+                        return true;
+                    } catch (IOException e) {
+                        failure[0] = e;
+                        return false;
+                    }
+                });
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+                writer.commit();
+            }
+            snapshotSegment = segment;
+            log.deleteBefore(segment);
+            Snapshot.deleteBefore(directory, segment);
+        }
+    }
+
+    /**
+     * Waits for a snapshot being written, forces the log and closes it, and then the wrapped engine.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (checkpointLock) {
+            try {
+                log.close();
+            } finally {
+                engine.close();
+            }
+        }
+    }
+
+    /**
+     * Rolls the log while holding the stripe locks from this one on, so that no write is between its
+     * append and its apply.
+     */
+    private long rollLog(int stripe) throws IOException {
+        if (stripe == STRIPES) {
+            return log.roll();
+        }
+        synchronized (stripes[stripe]) {
+            return rollLog(stripe + 1);
+        }
+    }
+
+    private Object stripe(ByteBuffer key) {
+        return stripes[Math.floorMod(key.hashCode(), STRIPES)];
+    }
+
+    /**
+     * Records the deadline of an entry just written. Called while holding the stripe lock of the key.
+     */
+    private void setDeadline(ByteBuffer key, long expiresAt) {
+        if (expiresAt != 0) {
+            deadlines.put(key, expiresAt);
+        } else if (!deadlines.isEmpty()) {
+            deadlines.remove(key);
+        }
+    }
+
+    private long append(byte type, byte[] key, byte[] value) {
+        return append(type, key, value, 0);
+    }
+
+    private long append(byte type, byte[] key, byte[] value, long expiresAt) {
+        try {
+            return log.append(type, key, value, expiresAt);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to log write", e);
+        }
+    }
+
+    private void sync(long position) {
+        try {
+            log.sync(position);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to make write durable", e);
+        }
+    }
+}
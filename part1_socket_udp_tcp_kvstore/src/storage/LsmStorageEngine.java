@@ -0,0 +1,126 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Keeps the entries in an {@link LsmTree} on disk, for stores that do not fit in the heap.
+ * <p>
+ * The tree logs its writes itself, so this engine is durable without a {@link LoggedStorageEngine},
+ * and a restart finds the entries again. Writes cost a lookup of the key, which keeps PUT's
+ * existing-key check and the entry count exact. The tree also keeps the deadlines of the entries
+ * that expire, so that an {@link ExpiringStorageEngine} over it finds them again after a restart.
+ * </p>
+ */
+public class LsmStorageEngine implements StorageEngine {
+    private final LsmTree tree;
+
+    /**
+     * Opens the tree in the directory, creating it if needed.
+     * @param directory  The directory of the tree.
+     * @param durability When the tree's log forces writes to disk.
+     * @throws IOException if the tree cannot be opened.
+     */
+    public LsmStorageEngine(Path directory, WriteAheadLog.Durability durability) throws IOException {
+        this.tree = new LsmTree(directory, durability);
+    }
+
+    @Override
+    public byte[] get(ByteBuffer key) {
+        return tree.get(toArray(key));
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        tree.put(key, value);
+    }
+
+    @Override
+    public boolean putIfAbsent(byte[] key, byte[] value) {
+        return tree.putIfAbsent(key, value);
+    }
+
+    @Override
+    public boolean putIfAbsent(byte[] key, byte[] value, long expiresAt) {
+        return tree.putIfAbsent(key, value, expiresAt);
+    }
+
+    @Override
+    public boolean keepsDeadlines() {
+        return true;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value, long expiresAt) {
+        tree.put(key, value, expiresAt);
+    }
+
+    @Override
+    public void scanDeadlines(ObjLongConsumer<ByteBuffer> visitor) {
+        tree.scanDeadlines(visitor);
+    }
+
+    @Override
+    public boolean delete(ByteBuffer key) {
+        return tree.delete(toArray(key));
+    }
+
+    /**
+     * Visits the entries in the order of their keys as unsigned bytes.
+     */
+    @Override
+    public void scan(EntryVisitor visitor) {
+        tree.scan((key, value) -> visitor.visit(ByteBuffer.wrap(key), value));
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return true;
+    }
+
+    @Override
+    public void scanFrom(ByteBuffer start, boolean inclusive, EntryVisitor visitor) {
+        tree.scan(toArray(start), inclusive, (key, value) -> visitor.visit(ByteBuffer.wrap(key), value));
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(tree.size(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Copies every entry onto the heap, which the stores this engine is meant for may not fit.
+     */
+    @Override
+    public Map<ByteBuffer, byte[]> snapshot() {
+        Map<ByteBuffer, byte[]> copy = new HashMap<>();
+        scan((key, value) -> {
+            copy.put(key, value);
+            return true;
+        });
+        return copy;
+    }
+
+    /**
+     * Flushes the memtable into a table, so that a restart replays no log.
+     */
+    @Override
+    public void checkpoint() throws IOException {
+        tree.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        tree.close();
+    }
+
+    private static byte[] toArray(ByteBuffer key) {
+        byte[] bytes = new byte[key.remaining()];
+        key.get(key.position(), bytes);
+        return bytes;
+    }
+}
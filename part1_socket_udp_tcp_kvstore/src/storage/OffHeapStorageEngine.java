@@ -0,0 +1,368 @@
+package storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import common.Protocol;
+
+/**
+ * A storage engine that keeps keys, values and its index outside the Java heap.
+ * <p>
+ * Every entry is one record in a chunk of a direct ByteBuffer slab: the key length, the value
+ * length, the key bytes and the value bytes. Chunks come in size classes growing by a factor of
+ * 1.25, and a record takes the smallest chunk it fits in. Each class carves its chunks from slabs
+ * of {@value #SLAB_SIZE} bytes (or one chunk, for the classes larger than that) and keeps freed
+ * chunks on a free list threaded through the chunks themselves, so a freed chunk is reused by the
+ * next record of its class. Slabs are never returned, and a slab belongs to its class forever.
+ * </p>
+ * <p>
+ * The index is an open-addressing hash table with linear probing, also in a direct buffer. Each
+ * slot holds the address of a record and the hash of its key; deletions shift the following
+ * slots back instead of leaving tombstones. The table doubles when it is three quarters full,
+ * which only moves slots, never records.
+ * </p>
+ * <p>
+ * The heap therefore holds one ByteBuffer object per slab and nothing per entry, and the garbage
+ * collector never sees the data. Direct memory is limited by {@code -XX:MaxDirectMemorySize},
+ * which defaults to the maximum heap size and must be raised for large datasets. GETs copy the
+ * value out of its slab, so returned arrays are independent of later writes. Reads share a
+ * read-write lock and run in parallel; writes, scans and snapshots hold it exclusively or shared
+ * for their whole duration.
+ * </p>
+ */
+public class OffHeapStorageEngine implements StorageEngine {
+    // size of the slabs chunks are carved from
+    public static final int SLAB_SIZE = 1024 * 1024;
+    // key length and value length in front of the key and value bytes
+    private static final int RECORD_HEADER = 8;
+    private static final int MIN_CHUNK_SIZE = 32;
+    private static final int MAX_RECORD_SIZE = RECORD_HEADER + Protocol.MAX_KEY_LENGTH + Protocol.MAX_VALUE_LENGTH;
+    // an index slot: the record address (0 if the slot is empty), the key hash and padding
+    private static final int SLOT_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    // the largest table that fits into one direct buffer
+    private static final int MAX_CAPACITY = 1 << 26;
+    // chunk sizes of the size classes, ascending
+    private static final int[] CHUNK_SIZES = chunkSizes();
+
+    // slab i has the address prefix i + 1, so that no record has the address 0
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    // per size class: the address of the first free chunk (0 if none), and the slab and offset
+    // chunks are currently carved from
+    private final long[] freeLists = new long[CHUNK_SIZES.length];
+    private final int[] currentSlabs = new int[CHUNK_SIZES.length];
+    private final int[] currentOffsets = new int[CHUNK_SIZES.length];
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private ByteBuffer table;
+    private int capacity;
+    private volatile int size;
+    private volatile long slabBytes;
+
+    public OffHeapStorageEngine() {
+        capacity = INITIAL_CAPACITY;
+        table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        Arrays.fill(currentSlabs, -1);
+    }
+
+    @Override
+    public byte[] get(ByteBuffer key) {
+        int hash = hash(key);
+        lock.readLock().lock();
+        try {
+            int slot = find(key, hash);
+            return slot >= 0 ? copyValue(table.getLong(slot * SLOT_SIZE)) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        write(key, value, true);
+    }
+
+    @Override
+    public boolean putIfAbsent(byte[] key, byte[] value) {
+        return write(key, value, false);
+    }
+
+    @Override
+    public boolean delete(ByteBuffer key) {
+        int hash = hash(key);
+        lock.writeLock().lock();
+        try {
+            int slot = find(key, hash);
+            if (slot < 0) {
+                return false;
+            }
+            free(table.getLong(slot * SLOT_SIZE));
+            removeSlot(slot);
+            size--;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void scan(EntryVisitor visitor) {
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < capacity; slot++) {
+                long address = table.getLong(slot * SLOT_SIZE);
+                if (address != 0 && !visitor.visit(ByteBuffer.wrap(copyKey(address)), copyValue(address))) {
+                    return;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Copies every entry onto the heap. Writers wait until the copy is complete.
+     */
+    @Override
+    public Map<ByteBuffer, byte[]> snapshot() {
+        Map<ByteBuffer, byte[]> copy = new HashMap<>();
+        scan((key, value) -> {
+            copy.put(key, value);
+            return true;
+        });
+        return copy;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory taken by slabs.
+     */
+    public long getSlabBytes() {
+        return slabBytes;
+    }
+
+    /**
+     * Inserts the entry, or replaces the value of an existing key if replace is set.
+     * @return false if the key existed and was left alone.
+     */
+    private boolean write(byte[] key, byte[] value, boolean replace) {
+        int recordSize = RECORD_HEADER + key.length + value.length;
+        if (recordSize > MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Entry too large: " + recordSize + " bytes");
+        }
+        ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+        int hash = hash(keyBuffer);
+        lock.writeLock().lock();
+        try {
+            int slot = find(keyBuffer, hash);
+            if (slot >= 0 && !replace) {
+                return false;
+            }
+            long address = allocate(recordSize);
+            ByteBuffer slab = slab(address);
+            int offset = offset(address);
+            slab.putInt(offset, key.length);
+            slab.putInt(offset + 4, value.length);
+            slab.put(offset + RECORD_HEADER, key);
+            slab.put(offset + RECORD_HEADER + key.length, value);
+
+            if (slot >= 0) {
+                free(table.getLong(slot * SLOT_SIZE));
+                table.putLong(slot * SLOT_SIZE, address);
+                return true;
+            }
+            if (size + 1 > capacity / 4 * 3) {
+                resize();
+            }
+            insertSlot(address, hash);
+            size++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the slot holding the key, or -1 if the key does not exist.
+     */
+    private int find(ByteBuffer key, int hash) {
+        int mask = capacity - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long address = table.getLong(slot * SLOT_SIZE);
+            if (address == 0) {
+                return -1;
+            }
+            if (table.getInt(slot * SLOT_SIZE + 8) == hash && keyEquals(address, key)) {
+                return slot;
+            }
+        }
+    }
+
+    private void insertSlot(long address, int hash) {
+        int mask = capacity - 1;
+        int slot = hash & mask;
+        while (table.getLong(slot * SLOT_SIZE) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table.putLong(slot * SLOT_SIZE, address);
+        table.putInt(slot * SLOT_SIZE + 8, hash);
+    }
+
+    /**
+     * Empties a slot, moving back the following slots of the probe run whose home slot lies at or
+     * before the freed one, so that every key stays reachable from its home slot.
+     */
+    private void removeSlot(int slot) {
+        int mask = capacity - 1;
+        int free = slot;
+        for (int next = (free + 1) & mask; ; next = (next + 1) & mask) {
+            long address = table.getLong(next * SLOT_SIZE);
+            if (address == 0) {
+                break;
+            }
+            int hash = table.getInt(next * SLOT_SIZE + 8);
+            int home = hash & mask;
+            // distance from the home slot to next, compared with the distance to the free slot
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                table.putLong(free * SLOT_SIZE, address);
+                table.putInt(free * SLOT_SIZE + 8, hash);
+                free = next;
+            }
+        }
+        table.putLong(free * SLOT_SIZE, 0);
+        table.putInt(free * SLOT_SIZE + 8, 0);
+    }
+
+    private void resize() {
+        if (capacity == MAX_CAPACITY) {
+            throw new IllegalStateException("Index is full: " + size + " entries");
+        }
+        ByteBuffer old = table;
+        int oldCapacity = capacity;
+        capacity = oldCapacity * 2;
+        table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            long address = old.getLong(slot * SLOT_SIZE);
+            if (address != 0) {
+                insertSlot(address, old.getInt(slot * SLOT_SIZE + 8));
+            }
+        }
+    }
+
+    /**
+     * Takes a chunk of the smallest class the record fits in.
+     * @return the address of the chunk.
+     */
+    private long allocate(int recordSize) {
+        int sizeClass = sizeClass(recordSize);
+        long address = freeLists[sizeClass];
+        if (address != 0) {
+            // a free chunk stores the address of the next free chunk of its class
+            freeLists[sizeClass] = slab(address).getLong(offset(address));
+            return address;
+        }
+
+        int chunkSize = CHUNK_SIZES[sizeClass];
+        int slabIndex = currentSlabs[sizeClass];
+        if (slabIndex < 0 || currentOffsets[sizeClass] + chunkSize > slabs.get(slabIndex).capacity()) {
+            int slabSize = Math.max(SLAB_SIZE, chunkSize);
+            slabs.add(ByteBuffer.allocateDirect(slabSize));
+            slabBytes += slabSize;
+            slabIndex = slabs.size() - 1;
+            currentSlabs[sizeClass] = slabIndex;
+            currentOffsets[sizeClass] = 0;
+        }
+        int offset = currentOffsets[sizeClass];
+        currentOffsets[sizeClass] = offset + chunkSize;
+        return ((long) (slabIndex + 1) << 32) | offset;
+    }
+
+    /**
+     * Puts the chunk of a record on the free list of its class.
+     */
+    private void free(long address) {
+        ByteBuffer slab = slab(address);
+        int offset = offset(address);
+        int sizeClass = sizeClass(RECORD_HEADER + slab.getInt(offset) + slab.getInt(offset + 4));
+        slab.putLong(offset, freeLists[sizeClass]);
+        freeLists[sizeClass] = address;
+    }
+
+    private boolean keyEquals(long address, ByteBuffer key) {
+        ByteBuffer slab = slab(address);
+        int offset = offset(address);
+        int length = slab.getInt(offset);
+        return length == key.remaining() && slab.slice(offset + RECORD_HEADER, length).equals(key);
+    }
+
+    private byte[] copyKey(long address) {
+        ByteBuffer slab = slab(address);
+        int offset = offset(address);
+        byte[] key = new byte[slab.getInt(offset)];
+        slab.get(offset + RECORD_HEADER, key);
+        return key;
+    }
+
+    private byte[] copyValue(long address) {
+        ByteBuffer slab = slab(address);
+        int offset = offset(address);
+        int keyLength = slab.getInt(offset);
+        byte[] value = new byte[slab.getInt(offset + 4)];
+        slab.get(offset + RECORD_HEADER + keyLength, value);
+        return value;
+    }
+
+    private ByteBuffer slab(long address) {
+        return slabs.get((int) (address >>> 32) - 1);
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    private static int sizeClass(int recordSize) {
+        int low = 0;
+        int high = CHUNK_SIZES.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (CHUNK_SIZES[mid] < recordSize) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int[] chunkSizes() {
+        List<Integer> sizes = new ArrayList<>();
+        int size = MIN_CHUNK_SIZE;
+        while (size < MAX_RECORD_SIZE) {
+            sizes.add(size);
+            // 8-byte aligned, so that the free list links are aligned
+            size = Math.max(size + 8, (int) (size * 1.25) + 7 & ~7);
+        }
+        sizes.add(MAX_RECORD_SIZE + 7 & ~7);
+        return sizes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Hashes the key bytes from the position to the limit, spreading the bits so that the low
+     * bits used for the home slot depend on the whole key.
+     */
+    private static int hash(ByteBuffer key) {
+        int h = 1;
+        for (int i = key.position(); i < key.limit(); i++) {
+            h = 31 * h + key.get(i);
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
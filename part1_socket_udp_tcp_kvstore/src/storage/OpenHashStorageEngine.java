@@ -0,0 +1,316 @@
+package storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A storage engine backed by an open-addressing hash table over parallel arrays.
+ * <p>
+ * Slot i of a table holds the cached hash, the key bytes and the value bytes of one entry in
+ * three arrays, so there is no node object per entry, and a lookup reads the hash array and only
+ * touches the key of a slot whose hash matches. Collisions are resolved by linear probing, and
+ * deletions shift the following slots back instead of leaving tombstones.
+ * </p>
+ * <p>
+ * When the table is three quarters full, a table twice as large becomes the current one, and
+ * every later write moves the next {@value #MIGRATION_STEP} slots of the old table over, until
+ * the old table is empty and dropped. A resize therefore costs one array allocation, not a pause
+ * for rehashing every entry. While a migration runs, lookups search the current table and then
+ * the old one; keys deleted from the old table and slots already moved are marked with a
+ * tombstone there, so the probe runs of the entries not yet moved stay intact.
+ * </p>
+ * <p>
+ * Writes are serialized by a {@link StampedLock}. Reads are optimistic: they take no lock and
+ * only retry under the read lock if a write ran at the same time.
+ * </p>
+ */
+public class OpenHashStorageEngine implements StorageEngine {
+    private static final int INITIAL_CAPACITY = 1024;
+    // the number of old slots moved by every write while a migration runs
+    private static final int MIGRATION_STEP = 16;
+    // marks a deleted or moved slot of a table being migrated
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    private final StampedLock lock = new StampedLock();
+    private Table current = new Table(INITIAL_CAPACITY);
+    // the table being migrated into the current one, or null
+    private Table old;
+    // the next slot of the old table to move
+    private int migrationIndex;
+    private volatile int size;
+
+    @Override
+    public byte[] get(ByteBuffer key) {
+        int hash = hash(key);
+        long stamp = lock.tryOptimisticRead();
+        byte[] value = read(key, hash);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                value = read(key, hash);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        write(key, value, true);
+    }
+
+    @Override
+    public boolean putIfAbsent(byte[] key, byte[] value) {
+        return write(key, value, false);
+    }
+
+    @Override
+    public boolean delete(ByteBuffer key) {
+        int hash = hash(key);
+        long stamp = lock.writeLock();
+        try {
+            int slot = current.find(key, hash);
+            if (slot >= 0) {
+                current.remove(slot);
+            } else if (old != null && (slot = old.find(key, hash)) >= 0) {
+                old.keys[slot] = TOMBSTONE;
+                old.values[slot] = null;
+            } else {
+                return false;
+            }
+            size--;
+            migrate();
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void scan(EntryVisitor visitor) {
+        long stamp = lock.readLock();
+        try {
+            if (current.scan(visitor) && old != null) {
+                old.scan(visitor);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Copies the entries into a HashMap. Writers wait until the copy is complete.
+     */
+    @Override
+    public Map<ByteBuffer, byte[]> snapshot() {
+        Map<ByteBuffer, byte[]> copy = new HashMap<>();
+        scan((key, value) -> {
+            copy.put(key, value);
+            return true;
+        });
+        return copy;
+    }
+
+    /**
+     * Looks the key up in the current table and then in the table being migrated. May see an
+     * inconsistent state when called without a lock, which the caller detects by validating.
+     */
+    private byte[] read(ByteBuffer key, int hash) {
+        Table table = current;
+        Table migrated = old;
+        int slot = table.find(key, hash);
+        if (slot >= 0) {
+            return table.values[slot];
+        }
+        if (migrated != null && (slot = migrated.find(key, hash)) >= 0) {
+            return migrated.values[slot];
+        }
+        return null;
+    }
+
+    /**
+     * Inserts the entry, or replaces the value of an existing key if replace is set.
+     * @return false if the key existed and was left alone.
+     */
+    private boolean write(byte[] key, byte[] value, boolean replace) {
+        ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+        int hash = hash(keyBuffer);
+        long stamp = lock.writeLock();
+        try {
+            Table table = current;
+            int slot = table.find(keyBuffer, hash);
+            if (slot < 0 && old != null && (slot = old.find(keyBuffer, hash)) >= 0) {
+                // an entry not moved yet is updated where it is
+                table = old;
+            }
+            if (slot >= 0) {
+                if (!replace) {
+                    return false;
+                }
+                table.values[slot] = value;
+                return true;
+            }
+
+            if (size + 1 > current.keys.length / 4 * 3) {
+                grow();
+            }
+            current.insert(key, value, hash);
+            size++;
+            migrate();
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Makes a table of twice the size the current one, and starts migrating the old one.
+     */
+    private void grow() {
+        while (old != null) {
+            // only happens if the previous migration fell behind; finish it first
+            migrate();
+        }
+        old = current;
+        current = new Table(old.keys.length * 2);
+        migrationIndex = 0;
+    }
+
+    /**
+     * Moves the next slots of the old table into the current one.
+     */
+    private void migrate() {
+        if (old == null) {
+            return;
+        }
+        int end = Math.min(migrationIndex + MIGRATION_STEP, old.keys.length);
+        for (; migrationIndex < end; migrationIndex++) {
+            byte[] key = old.keys[migrationIndex];
+            if (key == null) {
+                continue;
+            }
+            if (key != TOMBSTONE) {
+                current.insert(key, old.values[migrationIndex], old.hashes[migrationIndex]);
+            }
+            old.keys[migrationIndex] = TOMBSTONE;
+            old.values[migrationIndex] = null;
+        }
+        if (migrationIndex == old.keys.length) {
+            old = null;
+        }
+    }
+
+    /**
+     * Hashes the key bytes from the position to the limit, spreading the bits so that the low
+     * bits used for the home slot depend on the whole key.
+     */
+    private static int hash(ByteBuffer key) {
+        int h = 1;
+        for (int i = key.position(); i < key.limit(); i++) {
+            h = 31 * h + key.get(i);
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean keyEquals(byte[] stored, ByteBuffer key) {
+        int length = key.remaining();
+        if (stored.length != length) {
+            return false;
+        }
+        if (key.hasArray()) {
+            int from = key.arrayOffset() + key.position();
+            return Arrays.equals(stored, 0, length, key.array(), from, from + length);
+        }
+        return key.equals(ByteBuffer.wrap(stored));
+    }
+
+    /**
+     * One hash table: the cached hashes, keys and values by slot. A null key marks an empty slot.
+     */
+    private static final class Table {
+        private final int[] hashes;
+        private final byte[][] keys;
+        private final byte[][] values;
+        private final int mask;
+
+        private Table(int capacity) {
+            hashes = new int[capacity];
+            keys = new byte[capacity][];
+            values = new byte[capacity][];
+            mask = capacity - 1;
+        }
+
+        /**
+         * Returns the slot holding the key, or -1. The probe count is bounded so that a lookup
+         * racing with a writer always terminates.
+         */
+        private int find(ByteBuffer key, int hash) {
+            int slot = hash & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                byte[] stored = keys[slot];
+                if (stored == null) {
+                    return -1;
+                }
+                if (hashes[slot] == hash && stored != TOMBSTONE && keyEquals(stored, key)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void insert(byte[] key, byte[] value, int hash) {
+            int slot = hash & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = hash;
+            keys[slot] = key;
+            values[slot] = value;
+        }
+
+        /**
+         * Empties a slot, moving back the following slots of the probe run whose home slot lies at
+         * or before the freed one, so that every key stays reachable from its home slot.
+         */
+        private void remove(int slot) {
+            int free = slot;
+            for (int next = (free + 1) & mask; keys[next] != null; next = (next + 1) & mask) {
+                int home = hashes[next] & mask;
+                if (((next - home) & mask) >= ((next - free) & mask)) {
+                    hashes[free] = hashes[next];
+                    keys[free] = keys[next];
+                    values[free] = values[next];
+                    free = next;
+                }
+            }
+            hashes[free] = 0;
+            keys[free] = null;
+            values[free] = null;
+        }
+
+        /**
+         * Passes the entries to the visitor.
+         * @return false if the visitor stopped the scan.
+         */
+        private boolean scan(EntryVisitor visitor) {
+            for (int slot = 0; slot < keys.length; slot++) {
+                byte[] key = keys[slot];
+                if (key != null && key != TOMBSTONE && !visitor.visit(ByteBuffer.wrap(key), values[slot])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
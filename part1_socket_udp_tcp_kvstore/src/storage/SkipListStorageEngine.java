@@ -0,0 +1,77 @@
+package storage;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A storage engine backed by a {@link ConcurrentSkipListMap}, which keeps the keys in order so that
+ * ranges of keys can be scanned.
+ * <p>
+ * Keys are stored as ByteBuffers ordered as unsigned bytes, so a lookup with the key view of a
+ * received frame finds the stored key without copying it. Reads take no lock, and putIfAbsent and
+ * delete are atomic per key; a lookup costs O(log n) comparisons instead of one hash probe.
+ * </p>
+ */
+public class SkipListStorageEngine implements StorageEngine {
+    // key bytes -> value bytes; the key buffers are never modified once inserted
+    private final ConcurrentSkipListMap<ByteBuffer, byte[]> map =
+        new ConcurrentSkipListMap<>(StorageEngine::compareKeys);
+
+    @Override
+    public byte[] get(ByteBuffer key) {
+        return map.get(key);
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        map.put(ByteBuffer.wrap(key), value);
+    }
+
+    @Override
+    public boolean putIfAbsent(byte[] key, byte[] value) {
+        return map.putIfAbsent(ByteBuffer.wrap(key), value) == null;
+    }
+
+    @Override
+    public boolean delete(ByteBuffer key) {
+        return map.remove(key) != null;
+    }
+
+    /**
+     * Visits the entries in the order of their keys as unsigned bytes.
+     */
+    @Override
+    public void scan(EntryVisitor visitor) {
+        visit(map, visitor);
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return true;
+    }
+
+    @Override
+    public void scanFrom(ByteBuffer start, boolean inclusive, EntryVisitor visitor) {
+        visit(map.tailMap(start, inclusive), visitor);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public Map<ByteBuffer, byte[]> snapshot() {
+        return new HashMap<>(map);
+    }
+
+    private static void visit(Map<ByteBuffer, byte[]> entries, EntryVisitor visitor) {
+        for (Map.Entry<ByteBuffer, byte[]> entry : entries.entrySet()) {
+            if (!visitor.visit(entry.getKey().duplicate(), entry.getValue())) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * A point-in-time copy of the entries of a store, kept next to its {@link WriteAheadLog} so that a
+ * restart loads the copy and replays only the log written after it.
+ * <p>
+ * A snapshot file starts with a header: a magic number, the format version, the index of the first
+ * log segment the snapshot does not cover, the number of entries, the end of the entries in the
+ * file and the CRC32C of the entries. Every entry is the key length, the value length, the key
+ * bytes and the value bytes. The key length of an entry that expires has its top bit set, and the
+ * deadline follows the value length as 8 bytes; version 1 snapshots have no deadlines. The file
+ * is named {@code snapshot-<segment>.snap}.
+ * </p>
+ * <p>
+ * Snapshots are written and loaded through memory-mapped windows of the file, so writing one
+ * costs little more than copying the entries into the page cache, and loading one reads the file
+ * without copying it through a stream. A snapshot is written to a temporary file that is forced
+ * and then renamed, so a crash never leaves a partial snapshot under a snapshot name.
+ * </p>
+ */
+public final class Snapshot {
+    private static final int MAGIC = 0x4b56534e;
+    private static final int VERSION = 2;
+    // the bit of the key length telling that a deadline follows the value length
+    private static final int EXPIRING = 0x80000000;
+    // magic, version, segment, entry count, end of the entries and CRC
+    private static final int HEADER = 36;
+    // key length and value length in front of the key and value
+    private static final int ENTRY_HEADER = 8;
+    // bytes mapped at a time, unless a single entry needs more
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private Snapshot() {
+    }
+
+    /**
+     * Receives the entries of a snapshot while it is loaded.
+     */
+    @FunctionalInterface
+    public interface EntryVisitor {
+        /**
+         * @param key       The key bytes, owned by the visitor.
+         * @param value     The value bytes, owned by the visitor.
+         * @param expiresAt The deadline of the entry, or 0 if it does not expire.
+         */
+        void visit(byte[] key, byte[] value, long expiresAt);
+    }
+
+    /**
+     * Starts a snapshot in the directory.
+     * @param directory The directory of the write-ahead log.
+     * @param segment   The first log segment the snapshot does not cover, as returned by
+     *                  {@link WriteAheadLog#roll}.
+     * @throws IOException if the file cannot be created.
+     */
+    public static Writer create(Path directory, long segment) throws IOException {
+        return new Writer(directory, segment);
+    }
+
+    /**
+     * Loads the latest snapshot of the directory.
+     * @param directory The directory of the write-ahead log.
+     * @param visitor   Receives the entries of the snapshot.
+     * @return the first log segment the snapshot does not cover, or 0 if there is no snapshot.
+     * @throws IOException if the snapshot cannot be read or is damaged.
+     */
+    public static long load(Path directory, EntryVisitor visitor) throws IOException {
+        List<Long> snapshots = listSnapshots(directory);
+        if (snapshots.isEmpty()) {
+            return 0;
+        }
+        long segment = snapshots.get(snapshots.size() - 1);
+        load(directory, segment, visitor);
+        return segment;
+    }
+
+    /**
+     * Loads the snapshot of a segment, if the directory has one.
+     * @param directory The directory of the write-ahead log.
+     * @param segment   The first log segment the snapshot does not cover.
+     * @param visitor   Receives the entries of the snapshot.
+     * @return true if the snapshot exists.
+     * @throws IOException if the snapshot cannot be read or is damaged.
+     */
+    public static boolean load(Path directory, long segment, EntryVisitor visitor) throws IOException {
+        Path file = snapshotPath(directory, segment);
+        if (!Files.exists(file)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+            int version;
+            if (header.getInt() != MAGIC || ((version = header.getInt()) != 1 && version != VERSION)
+                || header.getLong() != segment) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            long count = header.getLong();
+            long end = header.getLong();
+            int checksum = header.getInt();
+            if (end < HEADER || end > channel.size()) {
+                throw new IOException("Damaged snapshot: " + file);
+            }
+
+            CRC32C crc = new CRC32C();
+            MappedByteBuffer window = null;
+            long windowStart = HEADER;
+            long offset = HEADER;
+            for (long i = 0; i < count; i++) {
+                if (window == null || window.remaining() < ENTRY_HEADER) {
+                    windowStart = offset;
+                    window = map(channel, FileChannel.MapMode.READ_ONLY, offset,
+                        Math.min(WINDOW_SIZE, end - offset), file);
+                }
+                if (window.remaining() < ENTRY_HEADER) {
+                    throw new IOException("Damaged snapshot: " + file);
+                }
+                int keyLength = window.getInt(window.position());
+                int valueLength = window.getInt(window.position() + 4);
+                boolean expiring = version > 1 && (keyLength & EXPIRING) != 0;
+                if (expiring) {
+                    keyLength &= ~EXPIRING;
+                }
+                long entryLength = (long) ENTRY_HEADER + (expiring ? 8 : 0) + keyLength + valueLength;
+                if (keyLength < 0 || valueLength < 0 || offset + entryLength > end
+                    || entryLength > Integer.MAX_VALUE) {
+                    throw new IOException("Damaged snapshot: " + file);
+                }
+                if (window.remaining() < entryLength) {
+                    windowStart = offset;
+                    window = map(channel, FileChannel.MapMode.READ_ONLY, offset,
+                        Math.max(Math.min(WINDOW_SIZE, end - offset), entryLength), file);
+                }
+
+                crc.update(window.slice(window.position(), (int) entryLength));
+                window.position(window.position() + ENTRY_HEADER);
+                long expiresAt = expiring ? window.getLong() : 0;
+                byte[] key = new byte[keyLength];
+                byte[] value = new byte[valueLength];
+                window.get(key).get(value);
+                visitor.visit(key, value, expiresAt);
+                offset = windowStart + window.position();
+            }
+            if (offset != end || (int) crc.getValue() != checksum) {
+                throw new IOException("Damaged snapshot: " + file);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the snapshots older than a snapshot, and temporary files of unfinished snapshots.
+     * @param directory The directory of the write-ahead log.
+     * @param segment   The segment of the snapshot to keep.
+     * @throws IOException if a file cannot be deleted.
+     */
+    public static void deleteBefore(Path directory, long segment) throws IOException {
+        for (long older : listSnapshots(directory)) {
+            if (older < segment) {
+                Files.delete(snapshotPath(directory, older));
+            }
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX + TEMPORARY_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the entries of a snapshot. Entries are added in any order; nothing replaces a snapshot
+     * under its final name before {@link #commit}, and closing an uncommitted writer deletes it.
+     */
+    public static final class Writer implements Closeable {
+        private final Path directory;
+        private final long segment;
+        private final Path temporary;
+        private final FileChannel channel;
+        // the windows mapped so far, all forced on commit
+        private final List<MappedByteBuffer> windows = new ArrayList<>();
+        private final CRC32C crc = new CRC32C();
+        private MappedByteBuffer window;
+        private long windowStart;
+        private long count;
+        private boolean committed;
+
+        private Writer(Path directory, long segment) throws IOException {
+            this.directory = directory;
+            this.segment = segment;
+            this.temporary = directory.resolve(snapshotPath(directory, segment).getFileName() + TEMPORARY_SUFFIX);
+            this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            nextWindow(0, WINDOW_SIZE);
+            window.position(HEADER);
+        }
+
+        /**
+         * Appends an entry that does not expire.
+         * @param key   The key bytes, from the position to the limit; not modified.
+         * @param value The value bytes, from the position to the limit; not modified.
+         * @throws IOException if the file cannot be extended.
+         */
+        public void add(ByteBuffer key, ByteBuffer value) throws IOException {
+            add(key, value, 0);
+        }
+
+        /**
+         * Appends an entry.
+         * @param key       The key bytes, from the position to the limit; not modified.
+         * @param value     The value bytes, from the position to the limit; not modified.
+         * @param expiresAt The deadline of the entry, or 0 if it does not expire.
+         * @throws IOException if the file cannot be extended.
+         */
+        public void add(ByteBuffer key, ByteBuffer value, long expiresAt) throws IOException {
+            boolean expiring = expiresAt != 0;
+            long entryLength = (long) ENTRY_HEADER + (expiring ? 8 : 0) + key.remaining() + value.remaining();
+            if (entryLength > Integer.MAX_VALUE) {
+                throw new IOException("Entry too large: " + entryLength + " bytes");
+            }
+            if (window.remaining() < entryLength) {
+                nextWindow(windowStart + window.position(), Math.max(WINDOW_SIZE, entryLength));
+            }
+            int start = window.position();
+            window.putInt(expiring ? key.remaining() | EXPIRING : key.remaining()).putInt(value.remaining());
+            if (expiring) {
+                window.putLong(expiresAt);
+            }
+            window.put(key.duplicate()).put(value.duplicate());
+            crc.update(window.slice(start, (int) entryLength));
+            count++;
+        }
+
+        /**
+         * Writes the header, forces the file to disk and gives it its snapshot name.
+         * @throws IOException if the file cannot be written or renamed.
+         */
+        public void commit() throws IOException {
+            long end = windowStart + window.position();
+            windows.get(0).putInt(0, MAGIC).putInt(4, VERSION).putLong(8, segment)
+                .putLong(16, count).putLong(24, end).putInt(32, (int) crc.getValue());
+            for (MappedByteBuffer mapped : windows) {
+                mapped.force();
+            }
+            channel.truncate(end);
+            channel.force(true);
+            channel.close();
+            Files.move(temporary, snapshotPath(directory, segment), StandardCopyOption.ATOMIC_MOVE);
+            // make the rename durable before the log it replaces is deleted
+            try (FileChannel parent = FileChannel.open(directory, StandardOpenOption.READ)) {
+                parent.force(true);
+            } catch (IOException e) {
+                // not supported for directories on this platform
+            }
+            committed = true;
+        }
+
+        /**
+         * Deletes the file unless the snapshot was committed.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                channel.close();
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        private void nextWindow(long start, long size) throws IOException {
+            windowStart = start;
+            window = map(channel, FileChannel.MapMode.READ_WRITE, start, size, temporary);
+            windows.add(window);
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long start, long size,
+                                        Path file) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Damaged snapshot: " + file);
+        }
+        return channel.map(mode, start, size);
+    }
+
+    private static List<Long> listSnapshots(Path directory) throws IOException {
+        List<Long> snapshots = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return snapshots;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    try {
+                        snapshots.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not a snapshot
+                    }
+                }
+            }
+        }
+        snapshots.sort(null);
+        return snapshots;
+    }
+
+    private static Path snapshotPath(Path directory, long segment) {
+        return directory.resolve(String.format("%s%016d%s", PREFIX, segment, SUFFIX));
+    }
+}
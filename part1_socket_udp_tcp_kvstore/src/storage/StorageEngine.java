@@ -0,0 +1,211 @@
+package storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * The data structure that holds the entries of a key-value store server.
+ * <p>
+ * Keys and values are raw bytes, so the binary protocol path never has to build Strings. Keys are
+ * passed for lookups as ByteBuffer views, from their position to their limit, which an engine
+ * must neither modify nor keep; key and value arrays passed for insertion are handed over to the
+ * engine and must not be modified by the caller afterwards. Values returned by an engine must not
+ * be modified either.
+ * </p>
+ * <p>
+ * Engines are thread-safe, and each single operation is atomic. Implementations are chosen by
+ * name through {@link StorageEngines}.
+ * </p>
+ */
+public interface StorageEngine extends Closeable {
+
+    /**
+     * Returns the value of the key, or null if the key does not exist.
+     */
+    byte[] get(ByteBuffer key);
+
+    /**
+     * Stores the value, replacing the current value of the key if there is one.
+     */
+    void put(byte[] key, byte[] value);
+
+    /**
+     * Stores the value unless the key already exists.
+     * @return true if the value was stored, false if the key already existed.
+     */
+    boolean putIfAbsent(byte[] key, byte[] value);
+
+    /**
+     * Removes the key.
+     * @return true if the key existed.
+     */
+    boolean delete(ByteBuffer key);
+
+    /**
+     * Returns true if the engine supports deadlines through {@link #putIfAbsent(byte[], byte[], long)}.
+     */
+    default boolean isExpiring() {
+        return false;
+    }
+
+    /**
+     * Stores the value unless the key already exists, until the deadline has passed. After that
+     * the entry is not returned any more and is removed eventually. An engine that only
+     * {@link #keepsDeadlines keeps deadlines} stores the deadline with the entry instead.
+     * @param expiresAt The deadline in milliseconds since the epoch.
+     * @return true if the value was stored, false if the key already existed.
+     * @throws UnsupportedOperationException if the engine neither is {@link #isExpiring expiring}
+     *                                       nor keeps deadlines.
+     */
+    default boolean putIfAbsent(byte[] key, byte[] value, long expiresAt) {
+        throw new UnsupportedOperationException("The storage engine does not expire entries");
+    }
+
+    /**
+     * Returns true if the engine keeps the deadlines of its entries across a restart without
+     * enforcing them: it writes the deadlines passed to {@link #put(byte[], byte[], long)} and
+     * {@link #putIfAbsent(byte[], byte[], long)} to disk with their entries, drops the entries
+     * that expired while it was closed, and passes the deadlines of the others to
+     * {@link #scanDeadlines}. An {@link ExpiringStorageEngine} hands its deadlines to such an
+     * engine.
+     */
+    default boolean keepsDeadlines() {
+        return false;
+    }
+
+    /**
+     * Stores the value with the deadline of its entry, replacing the current value of the key if
+     * there is one.
+     * @param expiresAt The deadline in milliseconds since the epoch, or 0 if the entry does not
+     *                  expire.
+     * @throws UnsupportedOperationException if the engine does not {@link #keepsDeadlines keep
+     *                                       deadlines}.
+     */
+    default void put(byte[] key, byte[] value, long expiresAt) {
+        throw new UnsupportedOperationException("The storage engine does not keep deadlines");
+    }
+
+    /**
+     * Passes the key and deadline of every entry that has one to the visitor. Engines that do not
+     * {@link #keepsDeadlines keep deadlines} pass nothing.
+     * @param visitor Receives the key bytes, which must not be modified, and the deadline.
+     */
+    default void scanDeadlines(ObjLongConsumer<ByteBuffer> visitor) {
+    }
+
+    /**
+     * Replaces the value of the key with a function of its current value, atomically with respect
+     * to the other writes of the key. A deadline of the entry is kept.
+     * @param function Receives the current value, or null if the key does not exist, and returns
+     *                 the new value, or null to leave the key as it is. Exceptions it throws are
+     *                 passed on, and nothing is written then.
+     * @return The new value, or null if the function returned null.
+     * @throws UnsupportedOperationException if the engine cannot serialize the writes of a key.
+     */
+    default byte[] update(byte[] key, UnaryOperator<byte[]> function) {
+        throw new UnsupportedOperationException("The storage engine does not support atomic updates");
+    }
+
+    /**
+     * Returns the version of the entry of the key, which every write of the key changes to a value
+     * it never had before (see {@link common.Versions}), or 0 if the key does not exist or was not
+     * written since it was restored. A write changes the value before the version, so a version
+     * read before the value is never newer than the value.
+     * @throws UnsupportedOperationException if the engine does not keep versions.
+     */
+    default long getVersion(ByteBuffer key) {
+        throw new UnsupportedOperationException("The storage engine does not keep versions");
+    }
+
+    /**
+     * Registers the listener that receives the keys the engine removes on its own, to stay within
+     * a capacity. Engines that never do ignore it.
+     * @param listener Receives the key of every evicted entry, which must not be modified or kept.
+     */
+    default void setEvictionListener(Consumer<ByteBuffer> listener) {
+    }
+
+    /**
+     * Passes the entries to the visitor until it returns false, in an order defined by the
+     * engine. Entries written during the scan may or may not be visited.
+     */
+    void scan(EntryVisitor visitor);
+
+    /**
+     * Returns true if the engine keeps its keys in order and supports {@link #scanFrom}.
+     */
+    default boolean isOrdered() {
+        return false;
+    }
+
+    /**
+     * Passes the entries from a key on to the visitor, in the order of their keys as unsigned
+     * bytes, until it returns false. Entries written during the scan may or may not be visited.
+     * @param start     The key to start at, from the position to the limit; may be empty.
+     * @param inclusive Whether the entry of the start key itself is visited.
+     * @throws UnsupportedOperationException if the engine is not {@link #isOrdered ordered}.
+     */
+    default void scanFrom(ByteBuffer start, boolean inclusive, EntryVisitor visitor) {
+        throw new UnsupportedOperationException("The storage engine does not keep its keys in order");
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    int size();
+
+    /**
+     * Returns a copy of the entries that no later write affects, for persisting or shipping the
+     * store. Writers are not stopped while it is taken, so every entry reflects a state at or
+     * after the start of the call.
+     */
+    Map<ByteBuffer, byte[]> snapshot();
+
+    /**
+     * Persists the entries, so that a restart does not have to replay the writes made so far.
+     * Engines that keep nothing on disk do nothing.
+     * @throws IOException if the entries cannot be written.
+     */
+    default void checkpoint() throws IOException {
+    }
+
+    /**
+     * Releases the files or memory held by the engine. The engine must not be used afterwards.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * Compares two keys as unsigned bytes, from their positions to their limits; the order of the
+     * keys of an {@link #isOrdered ordered} engine.
+     */
+    static int compareKeys(ByteBuffer a, ByteBuffer b) {
+        int mismatch = a.mismatch(b);
+        if (mismatch < 0) {
+            return 0;
+        }
+        if (mismatch == a.remaining() || mismatch == b.remaining()) {
+            return a.remaining() - b.remaining();
+        }
+        return Byte.compareUnsigned(a.get(a.position() + mismatch), b.get(b.position() + mismatch));
+    }
+
+    /**
+     * Receives the entries of a {@link #scan}.
+     */
+    @FunctionalInterface
+    interface EntryVisitor {
+        /**
+         * @param key   The key bytes, from the position to the limit; must not be modified.
+         * @param value The value bytes; must not be modified.
+         * @return false to stop the scan.
+         */
+        boolean visit(ByteBuffer key, byte[] value);
+    }
+}
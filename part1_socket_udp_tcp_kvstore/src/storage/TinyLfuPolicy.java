@@ -0,0 +1,311 @@
+package storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Decides which keys a bounded cache keeps: W-TinyLFU, a segmented LRU behind an admission filter
+ * that estimates how often every key was used recently.
+ * <p>
+ * New keys enter a small LRU window, {@value #WINDOW_PERCENT}% of the capacity, which lets bursts
+ * of fresh keys build up a history. Keys falling out of the window become candidates for the main
+ * space, a segmented LRU whose probation segment holds keys used once there, and whose protected
+ * segment, {@value #PROTECTED_PERCENT}% of the main space, those used again. When the cache is full,
+ * a candidate is only admitted if its estimated frequency beats that of the main space's least
+ * recently used key, which is evicted instead; otherwise the candidate is. A scan over many keys
+ * used once therefore passes through the window without flushing the keys used often.
+ * </p>
+ * <p>
+ * Frequencies, of present and absent keys alike, are counted by a {@link FrequencySketch}, which
+ * halves all counts periodically so that the history follows changes in popularity. Keys are
+ * compared by their equals and hashCode. Not thread-safe.
+ * </p>
+ */
+public final class TinyLfuPolicy<K> {
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+    private static final byte WINDOW = 0;
+    private static final byte PROBATION = 1;
+    private static final byte PROTECTED = 2;
+
+    private final long maximum;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private final Map<K, Node<K>> nodes = new HashMap<>();
+    // the sentinels of the circular lists of the segments, from the least recently used key on
+    private final Node<K> window = new Node<>(null, 0);
+    private final Node<K> probation = new Node<>(null, 0);
+    private final Node<K> protectedSegment = new Node<>(null, 0);
+    private final FrequencySketch sketch = new FrequencySketch();
+    private long windowWeight;
+    private long protectedWeight;
+    private long weight;
+
+    /**
+     * @param maximum The capacity, as the sum of the weights of the keys.
+     */
+    public TinyLfuPolicy(long maximum) {
+        if (maximum <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + maximum);
+        }
+        this.maximum = maximum;
+        this.windowMaximum = Math.max(1, maximum * WINDOW_PERCENT / 100);
+        this.protectedMaximum = (maximum - windowMaximum) * PROTECTED_PERCENT / 100;
+    }
+
+    /**
+     * Records a use of a key, present or not.
+     */
+    public void recordAccess(K key) {
+        sketch.increment(key.hashCode());
+        Node<K> node = nodes.get(key);
+        if (node != null) {
+            touch(node);
+        }
+    }
+
+    /**
+     * Adds a key or changes its weight, which counts as a use, then evicts keys until the weights
+     * fit the capacity.
+     * @param evicted Receives the evicted keys, which may include the key itself.
+     */
+    public void put(K key, long weight, Consumer<K> evicted) {
+        sketch.increment(key.hashCode());
+        Node<K> node = nodes.get(key);
+        if (node == null) {
+            node = new Node<>(key, weight);
+            node.segment = WINDOW;
+            nodes.put(key, node);
+            append(window, node);
+            windowWeight += weight;
+            this.weight += weight;
+            sketch.ensureCapacity(nodes.size());
+        } else {
+            long change = weight - node.weight;
+            if (node.segment == WINDOW) {
+                windowWeight += change;
+            } else if (node.segment == PROTECTED) {
+                protectedWeight += change;
+            }
+            this.weight += change;
+            node.weight = weight;
+            touch(node);
+        }
+        evict(evicted);
+    }
+
+    /**
+     * Removes a key.
+     */
+    public void remove(K key) {
+        Node<K> node = nodes.remove(key);
+        if (node != null) {
+            unlink(node);
+        }
+    }
+
+    /**
+     * Returns the number of keys.
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Returns the sum of the weights of the keys.
+     */
+    public long weight() {
+        return weight;
+    }
+
+    /**
+     * Moves a key used again to the most recently used end of its segment, or from probation into
+     * the protected segment, whose least recently used keys move back to probation if it overflows.
+     */
+    private void touch(Node<K> node) {
+        if (node.segment == PROBATION) {
+            detach(node);
+            node.segment = PROTECTED;
+            protectedWeight += node.weight;
+            append(protectedSegment, node);
+            while (protectedWeight > protectedMaximum && protectedSegment.next != node) {
+                Node<K> demoted = protectedSegment.next;
+                detach(demoted);
+                protectedWeight -= demoted.weight;
+                demoted.segment = PROBATION;
+                append(probation, demoted);
+            }
+        } else {
+            detach(node);
+            append(node.segment == WINDOW ? window : protectedSegment, node);
+        }
+    }
+
+    /**
+     * Moves the overflow of the window into probation, then evicts the losers of the duels between
+     * these candidates and the least recently used keys of the main space until the weights fit.
+     */
+    private void evict(Consumer<K> evicted) {
+        Node<K> candidate = null;
+        while (windowWeight > windowMaximum) {
+            Node<K> node = window.next;
+            detach(node);
+            windowWeight -= node.weight;
+            node.segment = PROBATION;
+            append(probation, node);
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+        while (weight > maximum) {
+            Node<K> victim = victim(candidate);
+            Node<K> loser;
+            if (candidate == null) {
+                loser = victim;
+            } else if (victim == null || candidate.weight > maximum
+                || sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+                loser = candidate;
+                candidate = candidate.next != probation ? candidate.next : null;
+            } else {
+                loser = victim;
+            }
+            nodes.remove(loser.key);
+            unlink(loser);
+            evicted.accept(loser.key);
+        }
+    }
+
+    /**
+     * Returns the least recently used key of the main space that is not a candidate, or of the
+     * window if the main space holds none; null if there is none either.
+     */
+    private Node<K> victim(Node<K> candidate) {
+        if (probation.next != probation && probation.next != candidate) {
+            return probation.next;
+        }
+        if (protectedSegment.next != protectedSegment) {
+            return protectedSegment.next;
+        }
+        if (window.next != window) {
+            return window.next;
+        }
+        return candidate == null ? probation.next : null;
+    }
+
+    /**
+     * Takes a node out of its segment and out of the weights.
+     */
+    private void unlink(Node<K> node) {
+        detach(node);
+        if (node.segment == WINDOW) {
+            windowWeight -= node.weight;
+        } else if (node.segment == PROTECTED) {
+            protectedWeight -= node.weight;
+        }
+        weight -= node.weight;
+    }
+
+    private static <K> void detach(Node<K> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+    }
+
+    private static <K> void append(Node<K> sentinel, Node<K> node) {
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+
+    private static final class Node<K> {
+        final K key;
+        long weight;
+        byte segment;
+        Node<K> prev = this;
+        Node<K> next = this;
+
+        Node(K key, long weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A count-min sketch of 4-bit counters: every key hash increments one counter in each of four
+     * rows, and its frequency is the smallest of them, which overestimates only when all four
+     * collide. Once the counters have been incremented ten times per tracked key, every counter is
+     * halved, so the counts saturating at 15 do not matter and old uses fade.
+     */
+    static final class FrequencySketch {
+        private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final int MIN_LENGTH = 16;
+        private static final int MAX_LENGTH = 1 << 26;
+
+        // 16 counters per long
+        private long[] table = new long[MIN_LENGTH];
+        private int sampleSize = 10 * MIN_LENGTH;
+        private int additions;
+
+        /**
+         * Grows the table to one long per tracked key, forgetting the counts, if it is smaller.
+         */
+        void ensureCapacity(int keys) {
+            if (keys <= table.length || table.length == MAX_LENGTH) {
+                return;
+            }
+            int length = Math.min(Integer.highestOneBit(keys - 1) << 1, MAX_LENGTH);
+            table = new long[length];
+            sampleSize = 10 * length;
+            additions = 0;
+        }
+
+        int frequency(int hashCode) {
+            int hash = spread(hashCode);
+            int frequency = 15;
+            for (int row = 0; row < SEEDS.length; row++) {
+                int shift = offset(hash, row);
+                frequency = Math.min(frequency, (int) (table[index(hash, row)] >>> shift) & 15);
+            }
+            return frequency;
+        }
+
+        void increment(int hashCode) {
+            int hash = spread(hashCode);
+            boolean added = false;
+            for (int row = 0; row < SEEDS.length; row++) {
+                int index = index(hash, row);
+                int shift = offset(hash, row);
+                if (((table[index] >>> shift) & 15) != 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        private int index(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h += h >>> 32;
+            return (int) h & (table.length - 1);
+        }
+
+        // the bit offset of the counter in the long, chosen by another byte of the hash per row
+        private static int offset(int hash, int row) {
+            return ((hash >>> (row << 3)) & 15) << 2;
+        }
+
+        private static int spread(int hashCode) {
+            int h = hashCode * 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
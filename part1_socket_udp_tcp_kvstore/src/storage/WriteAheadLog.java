@@ -0,0 +1,446 @@
+package storage;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only log of the writes to a store, kept in segment files of a directory.
+ * <p>
+ * Every record is framed by its payload length and the CRC32C of its payload. The payload is the
+ * record type, the key length, the value length, the key bytes and the value bytes, followed by
+ * the deadline of the entry as 8 bytes for a PUT of an entry that expires. A segment is
+ * closed once it holds {@value #SEGMENT_SIZE} bytes and the next record starts a new one, named
+ * {@code wal-<index>.log}.
+ * </p>
+ * <p>
+ * {@link #append} writes a record to the file, and {@link #sync} waits until it survives a crash,
+ * as chosen by the {@link Durability}. With {@link Durability#BATCHED}, a group commit thread
+ * forces the file whenever writers wait, and one force covers every record appended before it, so
+ * concurrent writers share the cost of a force.
+ * </p>
+ * <p>
+ * Opening a log replays its records in order. A record cut short by a crash, or one whose CRC does
+ * not match, ends the log: the segment is truncated in front of it and later segments are deleted.
+ * </p>
+ * <p>
+ * A {@link Snapshot} makes the start of the log redundant: {@link #roll} starts a new segment at
+ * the point the snapshot is taken, and once the snapshot is written, {@link #deleteBefore} removes
+ * the segments it covers. Opening the log with the snapshot's first segment skips the rest.
+ * </p>
+ */
+public class WriteAheadLog implements Closeable {
+    public static final byte PUT = 1;
+    public static final byte DELETE = 2;
+    // the type written for a PUT with a deadline
+    private static final byte EXPIRING_PUT = 3;
+    // size after which a segment is closed
+    public static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    // payload length and CRC in front of every payload
+    private static final int RECORD_HEADER = 8;
+    // type, key length and value length in front of the key and value
+    private static final int PAYLOAD_HEADER = 9;
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * When appended records are forced to disk.
+     */
+    public enum Durability {
+        /** Never; records survive a process crash, but not necessarily an OS crash. */
+        NONE,
+        /** Writers wait for a force shared with the other writers waiting at the same time. */
+        BATCHED,
+        /** Every writer forces the file for its own record. */
+        PER_OP
+    }
+
+    /**
+     * Receives the records of a log while it is opened.
+     */
+    @FunctionalInterface
+    public interface RecordVisitor {
+        /**
+         * @param type      {@link #PUT} or {@link #DELETE}.
+         * @param key       The key bytes.
+         * @param value     The value bytes, or null for a DELETE.
+         * @param expiresAt The deadline of the entry a PUT writes, or 0 if it does not expire.
+         */
+        void visit(byte type, byte[] key, byte[] value, long expiresAt);
+    }
+
+    private final Path directory;
+    private final Durability durability;
+    private final CRC32C crc = new CRC32C();
+    private FileChannel channel;
+    private long segmentIndex;
+    private long segmentSize;
+    // bytes appended since the log was opened, and how many of them are forced or waited for
+    private long written;
+    private long durable;
+    private long requested;
+    private IOException failure;
+    private boolean closed;
+
+    private WriteAheadLog(Path directory, Durability durability) {
+        this.directory = directory;
+        this.durability = durability;
+    }
+
+    /**
+     * Opens the log in the directory, creating it if needed, and replays all of its records.
+     * @param directory  The directory holding the segments.
+     * @param durability When appended records are forced to disk.
+     * @param replay     Receives the records already in the log, in the order they were appended.
+     * @throws IOException if the directory or a segment cannot be read or written.
+     */
+    public static WriteAheadLog open(Path directory, Durability durability, RecordVisitor replay) throws IOException {
+        return open(directory, durability, 0, replay);
+    }
+
+    /**
+     * Opens the log in the directory, creating it if needed, and replays the records from a
+     * segment on. Earlier segments are deleted.
+     * @param directory    The directory holding the segments.
+     * @param durability   When appended records are forced to disk.
+     * @param firstSegment The index of the first segment to keep, as returned by {@link #roll}.
+     * @param replay       Receives the records of the kept segments, in the order they were appended.
+     * @throws IOException if the directory or a segment cannot be read or written.
+     */
+    public static WriteAheadLog open(Path directory, Durability durability, long firstSegment, RecordVisitor replay)
+        throws IOException {
+        Files.createDirectories(directory);
+        WriteAheadLog log = new WriteAheadLog(directory, durability);
+        log.replay(firstSegment, replay);
+        if (durability == Durability.BATCHED) {
+            Thread syncer = new Thread(log::syncRecords, "wal-group-commit");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+        return log;
+    }
+
+    /**
+     * Writes a record to the end of the log, as {@link #append(byte, byte[], byte[], long)} does
+     * for an entry that does not expire.
+     */
+    public long append(byte type, byte[] key, byte[] value) throws IOException {
+        return append(type, key, value, 0);
+    }
+
+    /**
+     * Writes a record to the end of the log. The record is not durable before {@link #sync}.
+     * @param type      {@link #PUT} or {@link #DELETE}.
+     * @param key       The key bytes.
+     * @param value     The value bytes, or null for a DELETE.
+     * @param expiresAt The deadline of the entry a PUT writes, or 0 if it does not expire.
+     * @return the position to pass to {@link #sync}.
+     * @throws IOException if the record cannot be written.
+     */
+    public synchronized long append(byte type, byte[] key, byte[] value, long expiresAt) throws IOException {
+        checkOpen();
+        boolean expiring = type == PUT && expiresAt != 0;
+        int valueLength = value != null ? value.length : 0;
+        long payloadLength = (long) PAYLOAD_HEADER + key.length + valueLength + (expiring ? 8 : 0);
+        if (payloadLength > SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Record too large: " + payloadLength + " bytes");
+        }
+        int recordLength = RECORD_HEADER + (int) payloadLength;
+        if (segmentSize > 0 && segmentSize + recordLength > SEGMENT_SIZE) {
+            nextSegment();
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.position(RECORD_HEADER);
+        record.put(expiring ? EXPIRING_PUT : type).putInt(key.length).putInt(valueLength).put(key);
+        if (value != null) {
+            record.put(value);
+        }
+        if (expiring) {
+            record.putLong(expiresAt);
+        }
+        crc.reset();
+        crc.update(record.array(), RECORD_HEADER, (int) payloadLength);
+        record.putInt(0, (int) payloadLength).putInt(4, (int) crc.getValue());
+        record.position(0);
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        segmentSize += recordLength;
+        written += recordLength;
+        return written;
+    }
+
+    /**
+     * Waits until the records up to the position are as durable as the log's {@link Durability}
+     * promises.
+     * @param position A position returned by {@link #append}.
+     * @throws IOException if forcing the file failed.
+     */
+    public void sync(long position) throws IOException {
+        switch (durability) {
+            case NONE:
+                return;
+            case PER_OP:
+                synchronized (this) {
+                    checkOpen();
+                    if (durable < position) {
+                        channel.force(false);
+                        durable = written;
+                    }
+                }
+                return;
+            default:
+                awaitGroupCommit(position);
+        }
+    }
+
+    /**
+     * Closes the current segment unless it is empty, so that the records appended so far are all
+     * in earlier segments.
+     * @return the index of the segment the next record goes to.
+     * @throws IOException if the segment cannot be forced or the next one cannot be created.
+     */
+    public synchronized long roll() throws IOException {
+        checkOpen();
+        if (segmentSize > 0) {
+            nextSegment();
+        }
+        return segmentIndex;
+    }
+
+    /**
+     * Deletes the segments before a segment, once their records are kept elsewhere.
+     * @param segment The index of the first segment to keep, as returned by {@link #roll}.
+     * @throws IOException if a segment cannot be deleted.
+     */
+    public synchronized void deleteBefore(long segment) throws IOException {
+        for (long index : listSegments()) {
+            if (index < Math.min(segment, segmentIndex)) {
+                Files.delete(segmentPath(index));
+            }
+        }
+    }
+
+    /**
+     * Forces the appended records to disk and closes the segment. Later calls fail.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        channel.force(false);
+        durable = written;
+        notifyAll();
+        channel.close();
+    }
+
+    private synchronized void awaitGroupCommit(long position) throws IOException {
+        boolean interrupted = false;
+        while (durable < position) {
+            checkOpen();
+            if (requested < position) {
+                requested = position;
+                notifyAll();
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The loop of the group commit thread: waits until a writer waits for a record, then forces
+     * everything appended by then and wakes the writers it covers.
+     */
+    private void syncRecords() {
+        while (true) {
+            FileChannel target;
+            long position;
+            synchronized (this) {
+                while (requested <= durable && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                target = channel;
+                position = written;
+            }
+
+            IOException error = null;
+            try {
+                target.force(false);
+            } catch (ClosedChannelException e) {
+                // the segment was closed by nextSegment(), which forced it first
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (this) {
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durable = Math.max(durable, position);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Forces and closes the current segment and starts the next one.
+     */
+    private void nextSegment() throws IOException {
+        channel.force(false);
+        durable = written;
+        channel.close();
+        segmentIndex++;
+        segmentSize = 0;
+        channel = FileChannel.open(segmentPath(segmentIndex),
+            StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw new IOException("Write-ahead log failed", failure);
+        }
+        if (closed) {
+            throw new IOException("Write-ahead log is closed");
+        }
+    }
+
+    /**
+     * Deletes the segments before the first one, replays the others in order, cuts the log at the
+     * first damaged record, and opens the last segment for appending.
+     */
+    private void replay(long firstSegment, RecordVisitor visitor) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        for (long index : listSegments()) {
+            if (index < firstSegment) {
+                Files.delete(segmentPath(index));
+            } else {
+                segments.add(index);
+            }
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            long index = segments.get(i);
+            long validLength = replaySegment(segmentPath(index), visitor);
+            if (validLength < Files.size(segmentPath(index))) {
+                try (FileChannel damaged = FileChannel.open(segmentPath(index), StandardOpenOption.WRITE)) {
+                    damaged.truncate(validLength);
+                }
+                for (long later : segments.subList(i + 1, segments.size())) {
+                    Files.delete(segmentPath(later));
+                }
+                segments = segments.subList(0, i + 1);
+                break;
+            }
+        }
+
+        segmentIndex = segments.isEmpty() ? firstSegment : segments.get(segments.size() - 1);
+        channel = FileChannel.open(segmentPath(segmentIndex),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentSize = channel.size();
+    }
+
+    /**
+     * Replays the records of one segment.
+     * @return the length of the segment up to the end of its last intact record.
+     */
+    private long replaySegment(Path segment, RecordVisitor visitor) throws IOException {
+        long position = 0;
+        try (InputStream file = Files.newInputStream(segment);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file, 64 * 1024))) {
+            while (true) {
+                int payloadLength;
+                try {
+                    payloadLength = in.readInt();
+                } catch (EOFException e) {
+                    return position;
+                }
+                int checksum = in.readInt();
+                if (payloadLength < PAYLOAD_HEADER || payloadLength > SEGMENT_SIZE) {
+                    return position;
+                }
+                byte[] payload = new byte[payloadLength];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    return position;
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(payload);
+                byte type = buffer.get();
+                int keyLength = buffer.getInt();
+                int valueLength = buffer.getInt();
+                int deadlineLength = type == EXPIRING_PUT ? 8 : 0;
+                if ((type != PUT && type != DELETE && type != EXPIRING_PUT) || keyLength < 0 || valueLength < 0
+                    || (long) PAYLOAD_HEADER + keyLength + valueLength + deadlineLength != payloadLength) {
+                    return position;
+                }
+                byte[] key = new byte[keyLength];
+                buffer.get(key);
+                byte[] value = null;
+                if (type != DELETE) {
+                    value = new byte[valueLength];
+                    buffer.get(value);
+                }
+                long expiresAt = type == EXPIRING_PUT ? buffer.getLong() : 0;
+                visitor.visit(type == EXPIRING_PUT ? PUT : type, key, value, expiresAt);
+                position += RECORD_HEADER + payloadLength;
+            }
+        } catch (EOFException e) {
+            // the last record was cut short
+            return position;
+        }
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.add(Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private Path segmentPath(long index) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+}
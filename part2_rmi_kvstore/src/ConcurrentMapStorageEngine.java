@@ -0,0 +1,59 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+
+/**
+ * A thread-safe storage engine backed by a {@link ConcurrentHashMap}.
+ * <p>
+ * Reads take no lock, and putIfAbsent and delete are atomic per key, so calls on different keys
+ * and all reads run in parallel.
+ * </p>
+ */
+public class ConcurrentMapStorageEngine implements StorageEngine {
+    private final ConcurrentHashMap<String, String> map = new ConcurrentHashMap<>();
+
+    @Override
+    public String get(String key) {
+        return map.get(key);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        map.put(key, value);
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) {
+        return map.putIfAbsent(key, value) == null;
+    }
+
+    @Override
+    public boolean delete(String key) {
+        return map.remove(key) != null;
+    }
+
+    @Override
+    public void scan(BiPredicate<String, String> visitor) {
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            if (!visitor.test(entry.getKey(), entry.getValue())) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public Map<String, String> snapshot() {
+        return new HashMap<>(map);
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Adds deadlines to the entries of another engine, after which they are gone.
+ * <p>
+ * The deadlines of the entries that have one are kept in a map next to the wrapped engine, and
+ * reads check it before they return an entry, so an expired entry is never returned, whether or
+ * not it has been reclaimed yet. Reclaiming is done in bulk by <method>expire</method>: every key
+ * with a deadline is also scheduled in a <class>TimingWheel</class>, and advancing the wheel to the
+ * current time yields exactly the keys due since the last call. A key that was overwritten or
+ * deleted in the meantime has a different deadline or none, and is skipped.
+ * </p>
+ * <p>
+ * The engine is thread-safe if the wrapped engine is. Writes and expiries of a key are then
+ * serialized by one of {@value #STRIPES} locks chosen by the key, and update the wrapped engine
+ * before the deadline and the version, while reads look at the deadline and the version before the
+ * entry, so a read overlapping a write never returns an expired entry. The same locks make <method>update</method> atomic with
+ * respect to the other writes of the key.
+ * </p>
+ * <p>
+ * Every write also gives its entry a new version, see <class>Versions</class>, kept in a second map
+ * and returned by <method>getVersion</method>, which <method>KeyValueStoreRemote.compareAndSet</method>
+ * compares. The versions are dropped with their entries, including the ones the wrapped engine
+ * evicts, and are only kept in memory.
+ * </p>
+ * <p>
+ * If the wrapped engine keeps deadlines, as the durable engines do, every deadline is also written
+ * to it with its entry, and the deadlines it restored are read back when this engine is created,
+ * so they survive a restart. Otherwise they are only kept in memory. <method>size</method> counts
+ * the expired entries not reclaimed yet.
+ * </p>
+ */
+public class ExpiringStorageEngine implements StorageEngine {
+    // the precision of the reclamation, and the interval at which expire should be called
+    public static final long TICK_MILLIS = 100;
+    private static final int STRIPES = 64;
+
+    private final StorageEngine engine;
+    // key -> deadline in milliseconds since the epoch, for the entries that have one
+    private final Map<String, Long> deadlines = new ConcurrentHashMap<>();
+    // key -> version, for the entries written since the engine was created
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();
+    // the last version handed out
+    private final AtomicLong lastVersion = new AtomicLong();
+    // guarded by itself
+    private final TimingWheel<String> wheel = new TimingWheel<>(TICK_MILLIS, System.currentTimeMillis());
+    private final Object[] stripes = new Object[STRIPES];
+
+    /**
+     * @param engine the engine to keep the entries in.
+     */
+    public ExpiringStorageEngine(StorageEngine engine) {
+        this.engine = engine;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        engine.scanDeadlines((key, deadline) -> {
+            deadlines.put(key, deadline);
+            wheel.schedule(key, deadline);
+        });
+        engine.setEvictionListener(versions::remove);
+    }
+
+    @Override
+    public String get(String key) {
+        Long deadline = deadlines.isEmpty() ? null : deadlines.get(key);
+        String value = engine.get(key);
+        return deadline != null && deadline <= System.currentTimeMillis() ? null : value;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        synchronized (stripe(key)) {
+            engine.put(key, value);
+            deadlines.remove(key);
+            bumpVersion(key);
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) {
+        synchronized (stripe(key)) {
+            reclaimIfExpired(key);
+            if (!engine.putIfAbsent(key, value)) {
+                return false;
+            }
+            // the wrapped engine may have evicted the previous entry of the key with its deadline
+            deadlines.remove(key);
+            bumpVersion(key);
+            return true;
+        }
+    }
+
+    /**
+     * Stores the value unless the key already exists, until the deadline has passed.
+     * @param expiresAt the deadline in milliseconds since the epoch.
+     * @return true if the value was stored, false if the key already existed.
+     */
+    @Override
+    public boolean putIfAbsent(String key, String value, long expiresAt) {
+        synchronized (stripe(key)) {
+            reclaimIfExpired(key);
+            boolean stored = engine.keepsDeadlines()
+                ? engine.putIfAbsent(key, value, expiresAt)
+                : engine.putIfAbsent(key, value);
+            if (!stored) {
+                return false;
+            }
+            schedule(key, expiresAt);
+            bumpVersion(key);
+            return true;
+        }
+    }
+
+    /**
+     * Replaces the value of the key with a function of its current value, atomically with respect
+     * to the other writes of the key. A deadline of the entry is kept.
+     * @param function receives the current value, or null if the key does not exist, and returns
+     *                 the new value, or null to leave the key as it is. Exceptions it throws are
+     *                 passed on, and nothing is written then.
+     * @return the new value, or null if the function returned null.
+     */
+    public String update(String key, UnaryOperator<String> function) {
+        synchronized (stripe(key)) {
+            reclaimIfExpired(key);
+            String value = function.apply(engine.get(key));
+            if (value != null) {
+                Long deadline = engine.keepsDeadlines() ? deadlines.get(key) : null;
+                if (deadline != null) {
+                    engine.put(key, value, deadline);
+                } else {
+                    engine.put(key, value);
+                }
+                bumpVersion(key);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Returns the version of the entry of the key, which every write of the key changes to a value
+     * it never had before, or 0 if the key does not exist or was not written since it was restored.
+     * A write changes the value before the version, so a version read before the value is never
+     * newer than the value; <method>update</method> holds the lock of the key, so its function
+     * reads the version of the value it receives.
+     */
+    public long getVersion(String key) {
+        Long version = versions.get(key);
+        return version != null ? version : 0;
+    }
+
+    @Override
+    public boolean delete(String key) {
+        synchronized (stripe(key)) {
+            if (reclaimIfExpired(key)) {
+                return false;
+            }
+            boolean deleted = engine.delete(key);
+            deadlines.remove(key);
+            versions.remove(key);
+            return deleted;
+        }
+    }
+
+    /**
+     * Removes the entries whose deadlines have passed by the given time.
+     * @param now the current time in milliseconds since the epoch.
+     * @return the keys of the removed entries.
+     */
+    public List<String> expire(long now) {
+        List<String> keys = new ArrayList<>();
+        List<Long> keyDeadlines = new ArrayList<>();
+        synchronized (wheel) {
+            wheel.advance(now, (key, deadline) -> {
+                keys.add(key);
+                keyDeadlines.add(deadline);
+            });
+        }
+        List<String> removed = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            synchronized (stripe(key)) {
+                if (keyDeadlines.get(i).equals(deadlines.get(key))) {
+                    engine.delete(key);
+                    deadlines.remove(key);
+                    versions.remove(key);
+                    removed.add(key);
+                }
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public void scan(BiPredicate<String, String> visitor) {
+        long now = System.currentTimeMillis();
+        engine.scan((key, value) -> isExpired(key, now) || visitor.test(key, value));
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return engine.isOrdered();
+    }
+
+    @Override
+    public void scanFrom(String start, boolean inclusive, BiPredicate<String, String> visitor) {
+        long now = System.currentTimeMillis();
+        engine.scanFrom(start, inclusive, (key, value) -> isExpired(key, now) || visitor.test(key, value));
+    }
+
+    @Override
+    public int size() {
+        return engine.size();
+    }
+
+    @Override
+    public Map<String, String> snapshot() {
+        long now = System.currentTimeMillis();
+        Map<String, String> entries = engine.snapshot();
+        if (!deadlines.isEmpty()) {
+            entries.keySet().removeIf(key -> isExpired(key, now));
+        }
+        return entries;
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        engine.checkpoint();
+    }
+
+    @Override
+    public void close() throws IOException {
+        engine.close();
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return engine.isThreadSafe();
+    }
+
+    /**
+     * Records the deadline of a key just stored. Called while holding the stripe lock of the key.
+     */
+    private void schedule(String key, long expiresAt) {
+        deadlines.put(key, expiresAt);
+        synchronized (wheel) {
+            wheel.schedule(key, expiresAt);
+        }
+    }
+
+    /**
+     * Removes the entry of the key if its deadline has passed. Called while holding the stripe lock
+     * of the key.
+     * @return true if the key had an expired entry.
+     */
+    private boolean reclaimIfExpired(String key) {
+        Long deadline = deadlines.get(key);
+        if (deadline == null || deadline > System.currentTimeMillis()) {
+            return false;
+        }
+        engine.delete(key);
+        deadlines.remove(key);
+        versions.remove(key);
+        return true;
+    }
+
+    /**
+     * Gives the entry of the key a new version. Called while holding the stripe lock of the key,
+     * after the entry was written.
+     */
+    private void bumpVersion(String key) {
+        long now = System.currentTimeMillis();
+        versions.put(key, lastVersion.updateAndGet(previous -> Versions.next(previous, now)));
+    }
+
+    private boolean isExpired(String key, long now) {
+        if (deadlines.isEmpty()) {
+            return false;
+        }
+        Long deadline = deadlines.get(key);
+        return deadline != null && deadline <= now;
+    }
+
+    private Object stripe(String key) {
+        return stripes[Math.floorMod(key.hashCode(), STRIPES)];
+    }
+}
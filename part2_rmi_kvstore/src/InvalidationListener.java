@@ -0,0 +1,35 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * The remote interface of the callback objects that clients keeping a near cache register with
+ * <method>KeyValueStoreRemote.subscribe</method>, through which the server tells them which keys
+ * changed. The client exports the object, so the server must be able to connect back to it.
+ * <p>
+ * The calls of one subscription are made one at a time, and carry consecutive sequence numbers
+ * starting at 1, so a listener that sees a number other than the next one missed a call. A
+ * subscribed listener is called at least every {@value #HEARTBEAT_MILLIS} milliseconds, with no
+ * keys if none changed, so a listener that is not called for longer was dropped by the server.
+ * </p>
+ */
+public interface InvalidationListener extends Remote {
+    // the longest time between two calls to a subscribed listener, while the server reaches it
+    long HEARTBEAT_MILLIS = 1000;
+
+    /**
+     * Called after the keys were written, deleted or expired on the server.
+     * @param sequence the number of the call within the subscription
+     * @param keys     the keys whose cached values are stale, empty if none changed
+     * @throws RemoteException RMI exceptions
+     */
+    void invalidate(long sequence, List<String> keys) throws RemoteException;
+
+    /**
+     * Called when the server dropped invalidations it could not deliver in time, so that any cached
+     * value may be stale.
+     * @param sequence the number of the call within the subscription
+     * @throws RemoteException RMI exceptions
+     */
+    void invalidateAll(long sequence) throws RemoteException;
+}
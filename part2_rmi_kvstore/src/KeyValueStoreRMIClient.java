@@ -1,11 +1,18 @@
+import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.Scanner;
 
 /**
  * Represents the RMI clients. It is able to get the remote object reference from RMI Registry.
+ * SCAN and PREFIX print the matching entries a page of {@value #SCAN_PAGE_SIZE} at a time. CAS
+ * asks for the value last read and sends its version. With {@code -Dkvstore.nearcache.entries=N}
+ * the values read are kept in a near cache, see <class>NearCachingKeyValueStore</class>.
  */
 public class KeyValueStoreRMIClient {
+    // entries fetched per call while printing a scan
+    private static final int SCAN_PAGE_SIZE = 256;
+
     public static void main(String[] args) {
         if (args.length < 2) {
             System.out.println("Usage: java KeyValueStoreClient <server-host> [<port>]");
@@ -27,6 +34,8 @@ public class KeyValueStoreRMIClient {
             // Looks up the remote object by the name "KeyValueRMIStore".
             KeyValueStoreRemote store = (KeyValueStoreRemote) registry.lookup("KeyValueRMIStore");
             System.out.println("Connected to RMI Key-Value Store on " + host + ":" + port);
+            // Keeps the values read in a near cache, if one is configured.
+            store = NearCachingKeyValueStore.fromSystemProperties(store);
 
             // Pre-populates some key-value pairs
             for (int i = 0; i < 5; i++) {
@@ -43,16 +52,31 @@ public class KeyValueStoreRMIClient {
             // Processes the command input by the user.
             Scanner scanner = new Scanner(System.in);
             while (true) {
-                System.out.print("Enter command (PUT/GET/DELETE) or 'exit': ");
+                System.out.print("Enter command (PUT/GET/VERSION/DELETE/UPSERT/CAS/INCR/APPEND/SCAN/PREFIX) or 'exit': ");
                 String command = scanner.nextLine().trim().toUpperCase();
 
                 if (command.equals("EXIT")) {
                     System.out.println("Exiting client...");
+                    if (store instanceof NearCachingKeyValueStore) {
+                        NearCache cache = ((NearCachingKeyValueStore) store).getCache();
+                        System.out.printf("Near cache: %d hits, %d misses, %d invalidations%n",
+                            cache.getHits(), cache.getMisses(), cache.getInvalidations());
+                        ((NearCachingKeyValueStore) store).close();
+                    }
                     break;
                 }
 
-                if (!command.equals("PUT") && !command.equals("GET") && !command.equals("DELETE")) {
-                    System.out.println("Invalid command. Use PUT, GET, or DELETE.");
+                if (command.equals("SCAN") || command.equals("PREFIX")) {
+                    try {
+                        printScan(store, scanner, command.equals("PREFIX"));
+                    } catch (MalformedRequestException e) {
+                        System.out.println("Operation failed: " + e.getMessage());
+                    }
+                    continue;
+                }
+
+                if (!command.matches("PUT|GET|VERSION|DELETE|UPSERT|CAS|INCR|APPEND")) {
+                    System.out.println("Invalid command. Use PUT, GET, VERSION, DELETE, UPSERT, CAS, INCR, APPEND, SCAN, or PREFIX.");
                     continue;
                 }
 
@@ -73,7 +97,18 @@ public class KeyValueStoreRMIClient {
                                 System.out.println("Error: Value cannot be empty for PUT operation.");
                                 continue;
                             }
-                            store.put(key, value);
+                            System.out.print("Enter TTL in ms (empty for none): ");
+                            String ttl = scanner.nextLine().trim();
+                            if (ttl.isEmpty()) {
+                                store.put(key, value);
+                            } else {
+                                try {
+                                    store.put(key, value, Long.parseLong(ttl));
+                                } catch (NumberFormatException e) {
+                                    System.out.println("Error: TTL must be a number of milliseconds.");
+                                    continue;
+                                }
+                            }
                             System.out.println("PUT succeeded.");
                             break;
 
@@ -86,10 +121,53 @@ public class KeyValueStoreRMIClient {
                             }
                             break;
 
+                        case "VERSION":
+                            System.out.println("VERSION result: " + store.getVersion(key));
+                            break;
+
                         case "DELETE":
                             store.delete(key);
                             System.out.println("DELETE succeeded.");
                             break;
+
+                        case "UPSERT":
+                            System.out.print("Enter value: ");
+                            store.upsert(key, scanner.nextLine().trim());
+                            System.out.println("UPSERT succeeded.");
+                            break;
+
+                        case "CAS":
+                            System.out.print("Enter the version last read: ");
+                            long version;
+                            try {
+                                version = Long.parseLong(scanner.nextLine().trim());
+                            } catch (NumberFormatException e) {
+                                System.out.println("Error: Version must be a number.");
+                                break;
+                            }
+                            System.out.print("Enter new value: ");
+                            if (store.compareAndSet(key, version, scanner.nextLine().trim())) {
+                                System.out.println("CAS succeeded.");
+                            } else {
+                                System.out.println("CAS failed: the key was written since.");
+                            }
+                            break;
+
+                        case "INCR":
+                            System.out.print("Enter delta: ");
+                            try {
+                                long delta = Long.parseLong(scanner.nextLine().trim());
+                                System.out.println("INCR result: " + store.increment(key, delta));
+                            } catch (NumberFormatException e) {
+                                System.out.println("Error: Delta must be a number.");
+                            }
+                            break;
+
+                        case "APPEND":
+                            System.out.print("Enter suffix: ");
+                            store.append(key, scanner.nextLine().trim());
+                            System.out.println("APPEND succeeded.");
+                            break;
                     }
                 } catch (MalformedRequestException e) {
                     System.out.println("Operation failed: " + e.getMessage());
@@ -99,4 +177,37 @@ public class KeyValueStoreRMIClient {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Asks for a key range or a prefix and prints the matching entries, fetching one page at a time.
+     * @param prefix true for PREFIX, false for SCAN.
+     */
+    private static void printScan(KeyValueStoreRemote store, Scanner scanner, boolean prefix)
+        throws RemoteException, MalformedRequestException {
+        String start;
+        String end = null;
+        if (prefix) {
+            System.out.print("Enter prefix: ");
+            start = scanner.nextLine().trim();
+        } else {
+            System.out.print("Enter start key (empty for the first key): ");
+            start = scanner.nextLine().trim();
+            System.out.print("Enter end key (empty for no end): ");
+            end = scanner.nextLine().trim();
+            end = end.isEmpty() ? null : end;
+        }
+
+        int count = 0;
+        String token = null;
+        do {
+            ScanPage page = prefix ? store.scanPrefix(start, token, SCAN_PAGE_SIZE)
+                : store.scan(start, end, token, SCAN_PAGE_SIZE);
+            for (int i = 0; i < page.getKeys().size(); i++) {
+                System.out.println(page.getKeys().get(i) + ": " + page.getValues().get(i));
+            }
+            count += page.getKeys().size();
+            token = page.getContinuationToken();
+        } while (token != null);
+        System.out.println((prefix ? "PREFIX" : "SCAN") + " returned " + count + " entries.");
+    }
 }
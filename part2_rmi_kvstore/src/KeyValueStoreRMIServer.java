@@ -1,3 +1,4 @@
+import java.io.UncheckedIOException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 
@@ -16,11 +17,19 @@ public class KeyValueStoreRMIServer {
             }
         }
 
+        StorageEngine engine;
+        try {
+            engine = StorageEngines.fromSystemProperty();
+        } catch (IllegalArgumentException | UncheckedIOException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
         try {
             Registry registry = LocateRegistry.createRegistry(port);
 
             // instantiates the remote object
-            KeyValueStoreRemoteImpl remoteObj = new KeyValueStoreRemoteImpl();
+            KeyValueStoreRemoteImpl remoteObj = new KeyValueStoreRemoteImpl(engine);
 
             // registers the identifier of the remote object by its name
             registry.rebind("KeyValueRMIStore", remoteObj);
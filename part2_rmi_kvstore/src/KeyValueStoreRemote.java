@@ -3,12 +3,18 @@ import java.rmi.RemoteException;
 
 /**
  * The remote interface in which all available remote methods of the key value store are defined.
- * For this project, the methods can be invoked remotely include PUT, GET, DELETE.
+ * For this project, the methods can be invoked remotely include PUT, GET, DELETE, the updates
+ * UPSERT, compare-and-set, INCREMENT and APPEND, which overwrite existing keys in one call, and
+ * SCAN and PREFIX, which list the entries of a key range a page at a time. Clients keeping a near
+ * cache subscribe an <class>InvalidationListener</class> to learn which keys changed.
  * All methods in this interface can throw RemoteException to comply with the Java RMI
  * specification. In addition, all methods can also throw MalformedRequestException, which includes
  * the application-specific exceptions that are used to handle the invalid requests from clients.
  */
 public interface KeyValueStoreRemote extends Remote {
+    // maximum number of entries in a scan page
+    int MAX_SCAN_PAGE_SIZE = 1024;
+
     /**
      * Put a new key-value pair into the store.
      * @param key   non-empty string
@@ -18,6 +24,17 @@ public interface KeyValueStoreRemote extends Remote {
      */
     void put(String key, String value) throws RemoteException, MalformedRequestException;
 
+    /**
+     * Put a new key-value pair into the store that expires after a time to live. Until then it
+     * behaves like any other entry; afterwards the key no longer exists.
+     * @param key       non-empty string
+     * @param value     non-empty string
+     * @param ttlMillis the time to live in milliseconds, positive
+     * @throws RemoteException              RMI exceptions
+     * @throws MalformedRequestException    invalid key, value or time to live exceptions
+     */
+    void put(String key, String value, long ttlMillis) throws RemoteException, MalformedRequestException;
+
     /**
      * Get the value associated with a key.
      * @param key non-empty string
@@ -34,4 +51,98 @@ public interface KeyValueStoreRemote extends Remote {
      * @throws MalformedRequestException    invalid key exceptions
      */
     void delete(String key) throws RemoteException, MalformedRequestException;
+
+    /**
+     * Put a key-value pair into the store whether or not the key already exists. An existing
+     * entry loses its time to live.
+     * @param key   non-empty string
+     * @param value non-empty string
+     * @throws RemoteException              RMI exceptions
+     * @throws MalformedRequestException    invalid key or value exceptions
+     */
+    void upsert(String key, String value) throws RemoteException, MalformedRequestException;
+
+    /**
+     * Get the version of the entry of a key, which <method>compareAndSet</method> expects, see
+     * <class>Versions</class>.
+     * @param key non-empty string
+     * @return the version, which changes with every write of the key
+     * @throws RemoteException              RMI exceptions
+     * @throws MalformedRequestException    invalid key, or a key that does not exist
+     */
+    long getVersion(String key) throws RemoteException, MalformedRequestException;
+
+    /**
+     * Replace the value of a key if its entry still has the expected version.
+     * @param key             non-empty string
+     * @param expectedVersion the version the caller read with <method>getVersion</method>
+     * @param value           non-empty string
+     * @return true if the value was replaced, false if the key has another version
+     * @throws RemoteException              RMI exceptions
+     * @throws MalformedRequestException    invalid key or value, or a key that does not exist
+     */
+    boolean compareAndSet(String key, long expectedVersion, String value)
+        throws RemoteException, MalformedRequestException;
+
+    /**
+     * Add a delta to the decimal number stored under a key, 0 if the key does not exist.
+     * @param key   non-empty string
+     * @param delta the number to add, may be negative
+     * @return the new number
+     * @throws RemoteException              RMI exceptions
+     * @throws MalformedRequestException    invalid key, a value that is not a number, or an overflow
+     */
+    long increment(String key, long delta) throws RemoteException, MalformedRequestException;
+
+    /**
+     * Append a suffix to the value of a key, or store it if the key does not exist.
+     * @param key    non-empty string
+     * @param suffix non-empty string
+     * @throws RemoteException              RMI exceptions
+     * @throws MalformedRequestException    invalid key or suffix exceptions
+     */
+    void append(String key, String suffix) throws RemoteException, MalformedRequestException;
+
+    /**
+     * List one page of the entries from start (inclusive) to end (exclusive), in key order.
+     * @param start    the first key, or null for the first key of the store
+     * @param end      the key to stop before, or null for no end
+     * @param token    the continuation token of the previous page, or null for the first page
+     * @param pageSize the maximum number of entries, between 1 and MAX_SCAN_PAGE_SIZE
+     * @return the page, whose continuation token is null if no entries follow
+     * @throws RemoteException              RMI exceptions
+     * @throws MalformedRequestException    invalid page size, or a store that does not keep its keys
+     *                                      in order
+     */
+    ScanPage scan(String start, String end, String token, int pageSize)
+        throws RemoteException, MalformedRequestException;
+
+    /**
+     * List one page of the entries whose keys start with the prefix, in key order.
+     * @param prefix   the prefix; empty for every key
+     * @param token    the continuation token of the previous page, or null for the first page
+     * @param pageSize the maximum number of entries, between 1 and MAX_SCAN_PAGE_SIZE
+     * @return the page, whose continuation token is null if no entries follow
+     * @throws RemoteException              RMI exceptions
+     * @throws MalformedRequestException    invalid prefix or page size, or a store that does not
+     *                                      keep its keys in order
+     */
+    ScanPage scanPrefix(String prefix, String token, int pageSize) throws RemoteException, MalformedRequestException;
+
+    /**
+     * Register a listener to be told of the keys written, deleted or expired from now on, see
+     * <class>NearCachingKeyValueStore</class>. The keys are sent asynchronously, after the writes
+     * return, and the listener is dropped if a call to it keeps failing. Subscribing a listener
+     * again restarts its sequence numbers.
+     * @param listener the exported listener
+     * @throws RemoteException RMI exceptions
+     */
+    void subscribe(InvalidationListener listener) throws RemoteException;
+
+    /**
+     * Stop telling a listener of the keys written.
+     * @param listener the listener passed to subscribe
+     * @throws RemoteException RMI exceptions
+     */
+    void unsubscribe(InvalidationListener listener) throws RemoteException;
 }
@@ -1,12 +1,47 @@
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The implementation class of the remote interface <interface> KeyValueStoreRemote </interface>.
  * This class inherited from UnicastRemoteObject class to support the Java RMI server.
+ * <p>
+ * RMI runs every call on its own thread. With an engine that is not thread-safe, every call
+ * holds one lock while it uses the store. With a thread-safe engine (e.g.
+ * {@code -Dkvstore.engine=concurrent}) no lock is taken: every call is a single atomic engine
+ * operation, so GETs never wait and writes only contend on the same key.
+ * </p>
+ * <p>
+ * UPSERT, compare-and-set, INCREMENT and APPEND read and write their key in one
+ * <method>ExpiringStorageEngine.update</method>, which holds the lock of the key in between, so
+ * they are atomic even without the store lock, and replace the GET, DELETE and PUT a client would
+ * need otherwise.
+ * </p>
+ * <p>
+ * SCAN and PREFIX need an engine that keeps its keys in order ({@code -Dkvstore.engine=skiplist}
+ * or {@code lsm}). A page starts after its continuation token, the last key of the previous page,
+ * so the server keeps no state between pages and holds at most one page per call.
+ * </p>
+ * <p>
+ * A PUT may give its entry a time to live, after which GET, DELETE and scans no longer see it.
+ * The store is wrapped in an <class>ExpiringStorageEngine</class>, and a background thread
+ * reclaims the expired entries every {@value ExpiringStorageEngine#TICK_MILLIS} ms.
+ * </p>
+ * <p>
+ * With {@code -Dkvstore.cache.entries} or {@code -Dkvstore.cache.bytes} the store is a cache of
+ * that capacity, see <class>StorageEngines</class>: PUTs may evict other entries, and GETs of
+ * evicted keys return null.
+ * </p>
+ * <p>
+ * Every key written, deleted or reclaimed is published to the <class>InvalidationListener</class>s
+ * subscribed by clients with a near cache. The keys are delivered by the threads of the
+ * <class>InvalidationPublisher</class>, so writes never wait for the clients.
+ * </p>
  */
 public class KeyValueStoreRemoteImpl extends UnicastRemoteObject implements KeyValueStoreRemote {
     // The version number is a 8-byte number, which will be serialized together with class name as
@@ -14,15 +49,29 @@ public class KeyValueStoreRemoteImpl extends UnicastRemoteObject implements KeyV
     // correct version of the class.
     private static final long serialVersionUID = 1L;
 
-    private final Map<String, String> store = new HashMap<>();
-    // The lock used to guarantee the exclusion of updating the store.
-    private final ReentrantLock lock = new ReentrantLock();
+    private final ExpiringStorageEngine store;
+    // The lock used to guarantee the exclusion of updating the store; null if the engine is
+    // thread-safe and needs no lock.
+    private final ReentrantLock lock;
+    private final InvalidationPublisher invalidations = new InvalidationPublisher();
 
     /**
-     * The constructor of this class.
+     * The constructor of this class. Uses the storage engine named by the
+     * {@value StorageEngines#ENGINE_PROPERTY} system property.
      */
     public KeyValueStoreRemoteImpl() throws RemoteException {
+        this(StorageEngines.fromSystemProperty());
+    }
+
+    /**
+     * The constructor of this class.
+     * @param store the engine holding the entries.
+     */
+    public KeyValueStoreRemoteImpl(StorageEngine store) throws RemoteException {
         super();
+        this.store = new ExpiringStorageEngine(store);
+        this.lock = store.isThreadSafe() ? null : new ReentrantLock();
+        scheduleExpiry();
     }
 
     /**
@@ -38,15 +87,46 @@ public class KeyValueStoreRemoteImpl extends UnicastRemoteObject implements KeyV
         if (value == null || value.trim().isEmpty()) {
             throw new MalformedRequestException("Value cannot be null or empty for PUT.");
         }
-        lock.lock();
+        lock();
         try {
-            if (store.containsKey(key)) {
+            if (!store.putIfAbsent(key, value)) {
                 throw new MalformedRequestException("The key \"" + key + "\" already exists.");
             }
-            store.put(key, value);
-            System.out.printf("[Server] PUT: %s => %s%n", key, value);
+            invalidations.publish(key);
+            LoggerUtil.logSampled("[Server] PUT: %s => %s", key, value);
         } finally {
-            lock.unlock();
+            unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param key       non-empty string {@inheritDoc}
+     * @param value     non-empty string {@inheritDoc}
+     * @param ttlMillis positive number {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     * @throws MalformedRequestException {@inheritDoc}
+     */
+    @Override
+    public void put(String key, String value, long ttlMillis) throws RemoteException, MalformedRequestException {
+        validateKey(key);
+        if (value == null || value.trim().isEmpty()) {
+            throw new MalformedRequestException("Value cannot be null or empty for PUT.");
+        }
+        if (ttlMillis <= 0) {
+            throw new MalformedRequestException("TTL must be positive: " + ttlMillis);
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = now + ttlMillis < now ? Long.MAX_VALUE : now + ttlMillis;
+        lock();
+        try {
+            if (!store.putIfAbsent(key, value, expiresAt)) {
+                throw new MalformedRequestException("The key \"" + key + "\" already exists.");
+            }
+            invalidations.publish(key);
+            LoggerUtil.logSampled("[Server] PUT: %s => %s for %d ms", key, value, ttlMillis);
+        } finally {
+            unlock();
         }
     }
 
@@ -60,13 +140,13 @@ public class KeyValueStoreRemoteImpl extends UnicastRemoteObject implements KeyV
     @Override
     public String get(String key) throws RemoteException, MalformedRequestException {
         validateKey(key);
-        lock.lock();
+        lock();
         try {
             String value = store.get(key);
-            System.out.printf("[Server] GET: %s => %s%n", key, (value == null ? "NOT_FOUND" : value));
+            LoggerUtil.logSampled("[Server] GET: %s => %s", key, (value == null ? "NOT_FOUND" : value));
             return value;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -79,15 +159,263 @@ public class KeyValueStoreRemoteImpl extends UnicastRemoteObject implements KeyV
     @Override
     public void delete(String key) throws RemoteException, MalformedRequestException {
         validateKey(key);
-        lock.lock();
+        lock();
         try {
-            if (store.containsKey(key)) {
-                store.remove(key);
-                System.out.printf("[Server] DELETE: %s => OK%n", key);
+            if (store.delete(key)) {
+                invalidations.publish(key);
+                LoggerUtil.logSampled("[Server] DELETE: %s => OK", key);
             } else {
                 throw new MalformedRequestException("Key not found: " + key);
             }
         } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param key   non-empty string {@inheritDoc}
+     * @param value non-empty string {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     * @throws MalformedRequestException {@inheritDoc}
+     */
+    @Override
+    public void upsert(String key, String value) throws RemoteException, MalformedRequestException {
+        validateKey(key);
+        validateValue(value, "UPSERT");
+        lock();
+        try {
+            store.put(key, value);
+            invalidations.publish(key);
+            LoggerUtil.logSampled("[Server] UPSERT: %s => %s", key, value);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     * @throws MalformedRequestException {@inheritDoc}
+     */
+    @Override
+    public long getVersion(String key) throws RemoteException, MalformedRequestException {
+        validateKey(key);
+        long version;
+        boolean found;
+        lock();
+        try {
+            // the version first, so that it is never newer than the value found
+            version = store.getVersion(key);
+            found = store.get(key) != null;
+        } finally {
+            unlock();
+        }
+        if (!found) {
+            throw new MalformedRequestException("Key not found: " + key);
+        }
+        LoggerUtil.logSampled("[Server] VERSION: %s => %d", key, version);
+        return version;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     * @throws MalformedRequestException {@inheritDoc}
+     */
+    @Override
+    public boolean compareAndSet(String key, long expectedVersion, String value)
+        throws RemoteException, MalformedRequestException {
+        validateKey(key);
+        validateValue(value, "CAS");
+        boolean[] found = new boolean[1];
+        String updated;
+        lock();
+        try {
+            updated = store.update(key, current -> {
+                found[0] = current != null;
+                return current != null && store.getVersion(key) == expectedVersion ? value : null;
+            });
+        } finally {
+            unlock();
+        }
+        if (!found[0]) {
+            throw new MalformedRequestException("Key not found: " + key);
+        }
+        if (updated != null) {
+            invalidations.publish(key);
+        }
+        LoggerUtil.logSampled("[Server] CAS: %s => %s", key, updated != null ? value : "CONFLICT");
+        return updated != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     * @throws MalformedRequestException {@inheritDoc}
+     */
+    @Override
+    public long increment(String key, long delta) throws RemoteException, MalformedRequestException {
+        validateKey(key);
+        String updated;
+        lock();
+        try {
+            updated = store.update(key, current ->
+                Long.toString(Math.addExact(current == null ? 0 : Long.parseLong(current), delta)));
+        } catch (NumberFormatException e) {
+            throw new MalformedRequestException("The value of \"" + key + "\" is not a number.");
+        } catch (ArithmeticException e) {
+            throw new MalformedRequestException("Incrementing \"" + key + "\" overflows.");
+        } finally {
+            unlock();
+        }
+        invalidations.publish(key);
+        LoggerUtil.logSampled("[Server] INCREMENT: %s => %s", key, updated);
+        return Long.parseLong(updated);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     * @throws MalformedRequestException {@inheritDoc}
+     */
+    @Override
+    public void append(String key, String suffix) throws RemoteException, MalformedRequestException {
+        validateKey(key);
+        if (suffix == null || suffix.isEmpty()) {
+            throw new MalformedRequestException("Suffix cannot be null or empty for APPEND.");
+        }
+        lock();
+        try {
+            store.update(key, current -> current == null ? suffix : current + suffix);
+            invalidations.publish(key);
+            LoggerUtil.logSampled("[Server] APPEND: %s += %s", key, suffix);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     * @throws MalformedRequestException {@inheritDoc}
+     */
+    @Override
+    public ScanPage scan(String start, String end, String token, int pageSize)
+        throws RemoteException, MalformedRequestException {
+        return scanPage(start != null ? start : "", end, null, token, pageSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     * @throws MalformedRequestException {@inheritDoc}
+     */
+    @Override
+    public ScanPage scanPrefix(String prefix, String token, int pageSize)
+        throws RemoteException, MalformedRequestException {
+        if (prefix == null) {
+            throw new MalformedRequestException("Prefix cannot be null.");
+        }
+        return scanPage(prefix, null, prefix, token, pageSize);
+    }
+
+    /**
+     * Collects the page of entries from the start key, or after the token, that are before the end
+     * key and start with the prefix.
+     * @param end    the key to stop before, or null.
+     * @param prefix the prefix every key must start with, or null.
+     */
+    private ScanPage scanPage(String start, String end, String prefix, String token, int pageSize)
+        throws MalformedRequestException {
+        if (pageSize <= 0 || pageSize > MAX_SCAN_PAGE_SIZE) {
+            throw new MalformedRequestException("Page size must be between 1 and " + MAX_SCAN_PAGE_SIZE + ".");
+        }
+        if (!store.isOrdered()) {
+            throw new MalformedRequestException("The storage engine does not keep its keys in order; "
+                + "start the server with -Dkvstore.engine=skiplist or lsm.");
+        }
+        boolean resume = token != null && StorageEngine.compareKeys(token, start) >= 0;
+        List<String> keys = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        boolean[] more = new boolean[1];
+        lock();
+        try {
+            store.scanFrom(resume ? token : start, !resume, (key, value) -> {
+                if ((end != null && StorageEngine.compareKeys(key, end) >= 0)
+                    || (prefix != null && !key.startsWith(prefix))) {
+                    return false;
+                }
+                if (keys.size() == pageSize) {
+                    more[0] = true;
+                    return false;
+                }
+                keys.add(key);
+                values.add(value);
+                return true;
+            });
+        } finally {
+            unlock();
+        }
+        LoggerUtil.logSampled("[Server] %s: %s => %d entries", prefix != null ? "PREFIX" : "SCAN", start, keys.size());
+        return new ScanPage(keys, values, more[0] ? keys.get(keys.size() - 1) : null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     */
+    @Override
+    public void subscribe(InvalidationListener listener) throws RemoteException {
+        invalidations.subscribe(listener);
+        LoggerUtil.log("[Server] Subscribed invalidation listener %s", listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     */
+    @Override
+    public void unsubscribe(InvalidationListener listener) throws RemoteException {
+        invalidations.unsubscribe(listener);
+        LoggerUtil.log("[Server] Unsubscribed invalidation listener %s", listener);
+    }
+
+    /**
+     * Reclaims the expired entries on a daemon thread every tick of the store.
+     */
+    private void scheduleExpiry() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "ttl-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            lock();
+            try {
+                invalidations.publish(store.expire(System.currentTimeMillis()));
+            } catch (RuntimeException e) {
+                LoggerUtil.logError("Failed to reclaim expired entries: %s", e.getMessage());
+            } finally {
+                unlock();
+            }
+        }, ExpiringStorageEngine.TICK_MILLIS, ExpiringStorageEngine.TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Acquires the lock, unless the engine needs none.
+     */
+    private void lock() {
+        if (lock != null) {
+            lock.lock();
+        }
+    }
+
+    /**
+     * Releases the lock taken by <method>lock()</method>.
+     */
+    private void unlock() {
+        if (lock != null) {
             lock.unlock();
         }
     }
@@ -102,4 +430,15 @@ public class KeyValueStoreRemoteImpl extends UnicastRemoteObject implements KeyV
             throw new MalformedRequestException("Key cannot be null or empty.");
         }
     }
+
+    /**
+     * Validates the input of value from clients.
+     * @param value     the value to be validated.
+     * @param operation the name of the operation, for the error message.
+     */
+    private void validateValue(String value, String operation) throws MalformedRequestException {
+        if (value == null || value.trim().isEmpty()) {
+            throw new MalformedRequestException("Value cannot be null or empty for " + operation + ".");
+        }
+    }
 }
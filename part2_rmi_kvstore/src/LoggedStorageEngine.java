@@ -0,0 +1,332 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Makes the writes to another engine durable through a {@link WriteAheadLog}.
+ * <p>
+ * Opening the engine loads the latest {@link Snapshot} of the log's directory into the wrapped
+ * engine, which must be empty, and replays the log written after it. Every
+ * successful write is applied and appended to the log as UTF-8 bytes, and returns once the log's
+ * durability allows it. Writes that change nothing are not logged; the wrapped engine tells which
+ * they are, so a write reads nothing from it. Readers may see a write before it is durable.
+ * </p>
+ * <p>
+ * Appending and applying happen under one of {@value #STRIPES} locks chosen by the key, so the
+ * records of a key are in the log in the order they were applied, while writers of different keys
+ * proceed in parallel. Waiting for durability happens outside the lock, which lets the group
+ * commit of {@link WriteAheadLog.Durability#BATCHED} cover many writers.
+ * </p>
+ * <p>
+ * {@link #checkpoint} holds every stripe lock while rolling the log, so each write in the old
+ * segments has also been applied. A thread-safe engine is then scanned while writers proceed:
+ * writes applied during the scan may or may not be in the snapshot, but they are all in the new
+ * segment, and replaying a key's PUTs and DELETEs over any of its earlier states ends in the same
+ * value. Any other engine is scanned before the stripe locks are released, which stops writers for
+ * the time it takes to copy the entries into the mapped snapshot file.
+ * </p>
+ * <p>
+ * The engine keeps deadlines: a PUT of an entry that expires is logged with its deadline, which the
+ * engine also keeps in memory to write it into the snapshot entry. Entries whose deadline has
+ * passed when the snapshot and the log are loaded are dropped.
+ * </p>
+ */
+public class LoggedStorageEngine implements StorageEngine {
+    private static final int STRIPES = 64;
+
+    private final StorageEngine engine;
+    private final Path directory;
+    private final WriteAheadLog log;
+    private final Object[] stripes = new Object[STRIPES];
+    // key -> deadline in milliseconds since the epoch, for the entries that have one
+    private final Map<String, Long> deadlines = new ConcurrentHashMap<>();
+    // held while a snapshot is written, and while closing
+    private final Object checkpointLock = new Object();
+    // the first segment not covered by the latest snapshot
+    private long snapshotSegment;
+
+    /**
+     * @param engine     The empty engine to keep the entries in.
+     * @param directory  The directory of the log.
+     * @param durability When the log forces writes to disk.
+     * @throws IOException if the snapshot or the log cannot be loaded.
+     */
+    public LoggedStorageEngine(StorageEngine engine, Path directory, WriteAheadLog.Durability durability)
+        throws IOException {
+        this.engine = engine;
+        this.directory = directory;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        long now = System.currentTimeMillis();
+        this.snapshotSegment = Snapshot.load(directory,
+            (key, value, expiresAt) -> restore(decode(key), decode(value), expiresAt, now));
+        this.log = WriteAheadLog.open(directory, durability, snapshotSegment, (type, key, value, expiresAt) -> {
+            if (type == WriteAheadLog.PUT) {
+                restore(decode(key), decode(value), expiresAt, now);
+            } else {
+                engine.delete(decode(key));
+                deadlines.remove(decode(key));
+            }
+        });
+    }
+
+    /**
+     * Applies a PUT of the snapshot or the log, or removes the key if the entry has expired.
+     */
+    private void restore(String key, String value, long expiresAt, long now) {
+        if (expiresAt != 0 && expiresAt <= now) {
+            engine.delete(key);
+            deadlines.remove(key);
+            return;
+        }
+        engine.put(key, value);
+        if (expiresAt != 0) {
+            deadlines.put(key, expiresAt);
+        } else {
+            deadlines.remove(key);
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        return engine.get(key);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        put(key, value, 0);
+    }
+
+    @Override
+    public boolean keepsDeadlines() {
+        return true;
+    }
+
+    @Override
+    public void put(String key, String value, long expiresAt) {
+        long position;
+        synchronized (stripe(key)) {
+            position = append(WriteAheadLog.PUT, key, value, expiresAt);
+            engine.put(key, value);
+            setDeadline(key, expiresAt);
+        }
+        sync(position);
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) {
+        return putIfAbsent(key, value, 0);
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value, long expiresAt) {
+        long position;
+        synchronized (stripe(key)) {
+            if (!engine.putIfAbsent(key, value)) {
+                return false;
+            }
+            position = append(WriteAheadLog.PUT, key, value, expiresAt);
+            setDeadline(key, expiresAt);
+        }
+        sync(position);
+        return true;
+    }
+
+    @Override
+    public boolean delete(String key) {
+        long position;
+        synchronized (stripe(key)) {
+            // the wrapped engine may have evicted the entry, but not its deadline
+            if (!deadlines.isEmpty()) {
+                deadlines.remove(key);
+            }
+            if (!engine.delete(key)) {
+                return false;
+            }
+            position = append(WriteAheadLog.DELETE, key, null);
+        }
+        sync(position);
+        return true;
+    }
+
+    @Override
+    public void scanDeadlines(ObjLongConsumer<String> visitor) {
+        deadlines.forEach(visitor::accept);
+    }
+
+    @Override
+    public void setEvictionListener(Consumer<String> listener) {
+        engine.setEvictionListener(listener);
+    }
+
+    @Override
+    public void scan(BiPredicate<String, String> visitor) {
+        engine.scan(visitor);
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return engine.isOrdered();
+    }
+
+    @Override
+    public void scanFrom(String start, boolean inclusive, BiPredicate<String, String> visitor) {
+        engine.scanFrom(start, inclusive, visitor);
+    }
+
+    @Override
+    public int size() {
+        return engine.size();
+    }
+
+    @Override
+    public Map<String, String> snapshot() {
+        return engine.snapshot();
+    }
+
+    /**
+     * Thread-safe if the wrapped engine is, since the stripe locks only order the writes.
+     */
+    @Override
+    public boolean isThreadSafe() {
+        return engine.isThreadSafe();
+    }
+
+    /**
+     * Writes a snapshot of the entries and deletes the log segments and snapshots it replaces. Does
+     * nothing if nothing was logged since the latest snapshot.
+     */
+    @Override
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            boolean scanWhileLocked = !engine.isThreadSafe();
+            Snapshot.Writer[] locked = new Snapshot.Writer[1];
+            long segment = underAllStripes(0, () -> {
+                long next = log.roll();
+                if (scanWhileLocked && next != snapshotSegment) {
+                    locked[0] = writeEntries(next);
+                }
+                return next;
+            });
+            if (segment == snapshotSegment) {
+                return;
+            }
+            try (Snapshot.Writer writer = locked[0] != null ? locked[0] : writeEntries(segment)) {
+                writer.commit();
+            }
+            snapshotSegment = segment;
+            log.deleteBefore(segment);
+            Snapshot.deleteBefore(directory, segment);
+        }
+    }
+
+    /**
+     * Waits for a snapshot being written, forces the log and closes it, and then the wrapped engine.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (checkpointLock) {
+            try {
+                log.close();
+            } finally {
+                engine.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the entries of the wrapped engine into a snapshot that still has to be committed.
+     */
+    private Snapshot.Writer writeEntries(long segment) throws IOException {
+        Snapshot.Writer writer = Snapshot.create(directory, segment);
+        IOException[] failure = new IOException[1];
+        engine.scan((key, value) -> {
+            try {
+                Long expiresAt = deadlines.isEmpty() ? null : deadlines.get(key);
+                writer.add(encode(key), encode(value), expiresAt != null ? expiresAt : 0);
+                return true;
+            } catch (IOException e) {
+                failure[0] = e;
+                return false;
+            }
+        });
+        if (failure[0] != null) {
+            writer.close();
+            throw failure[0];
+        }
+        return writer;
+    }
+
+    /**
+     * Runs the action while holding the stripe locks from this one on, so that no write is between
+     * its append and its apply.
+     */
+    private long underAllStripes(int stripe, LockedAction action) throws IOException {
+        if (stripe == STRIPES) {
+            return action.run();
+        }
+        synchronized (stripes[stripe]) {
+            return underAllStripes(stripe + 1, action);
+        }
+    }
+
+    private Object stripe(String key) {
+        return stripes[Math.floorMod(key.hashCode(), STRIPES)];
+    }
+
+    /**
+     * Records the deadline of an entry just written. Called while holding the stripe lock of the key.
+     */
+    private void setDeadline(String key, long expiresAt) {
+        if (expiresAt != 0) {
+            deadlines.put(key, expiresAt);
+        } else if (!deadlines.isEmpty()) {
+            deadlines.remove(key);
+        }
+    }
+
+    private long append(byte type, String key, String value) {
+        return append(type, key, value, 0);
+    }
+
+    private long append(byte type, String key, String value, long expiresAt) {
+        try {
+            return log.append(type, key.getBytes(StandardCharsets.UTF_8),
+                value != null ? value.getBytes(StandardCharsets.UTF_8) : null, expiresAt);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to log write", e);
+        }
+    }
+
+    private void sync(long position) {
+        try {
+            log.sync(position);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to make write durable", e);
+        }
+    }
+
+    private static String decode(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer encode(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * An action run while every write is stopped.
+     */
+    @FunctionalInterface
+    private interface LockedAction {
+        long run() throws IOException;
+    }
+}
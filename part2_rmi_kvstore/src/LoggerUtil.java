@@ -0,0 +1,219 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Utility class for logging messages with timestamps.
+ * <p>
+ * Provides static methods to log informational and error messages,
+ * automatically prefixing them with the current date and time.
+ * </p>
+ * <p>
+ * Messages are not written by the thread that logs them: they are put into a bounded ring
+ * buffer, and a background thread formats and writes them in batches. Logging never blocks,
+ * also not while holding a lock; when the buffer is full the message is dropped and counted,
+ * and the number of dropped messages is reported with the next batch. The format variants
+ * only capture their arguments, which are formatted with {@link String#format} by the writer.
+ * </p>
+ * <p>
+ * Messages logged for every operation use {@link #logSampled} and {@link #logErrorSampled},
+ * which keep one of every N messages, with N read from the system properties
+ * {@code kvstore.log.sample.info} and {@code kvstore.log.sample.error} (default 1).
+ * </p>
+ */
+public class LoggerUtil {
+    private static final DateTimeFormatter FORMATTER =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    // capacity of the ring buffer between the logging threads and the writer
+    private static final int CAPACITY = 8192;
+    private static final int INFO_SAMPLE_RATE = sampleRate("kvstore.log.sample.info");
+    private static final int ERROR_SAMPLE_RATE = sampleRate("kvstore.log.sample.error");
+
+    private static final BlockingQueue<Entry> buffer = new ArrayBlockingQueue<>(CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong infoCounter = new AtomicLong();
+    private static final AtomicLong errorCounter = new AtomicLong();
+    // held by the writer while it writes a batch, so that flush() writes after it
+    private static final Object writeLock = new Object();
+    private static long reportedDrops;
+    private static volatile boolean async = true;
+
+    static {
+        Thread writer = new Thread(LoggerUtil::writeEntries, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(LoggerUtil::flush, "log-writer-shutdown"));
+    }
+
+    /**
+     * Logs an informational message to standard output with a timestamp.
+     *
+     * @param message The message to log.
+     */
+    public static void log(String message) {
+        publish(false, message, null);
+    }
+
+    /**
+     * Logs an informational message to standard output with a timestamp.
+     *
+     * @param format The {@link String#format} pattern of the message.
+     * @param args   The arguments of the pattern; they must not change after the call.
+     */
+    public static void log(String format, Object... args) {
+        publish(false, format, args);
+    }
+
+    /**
+     * Logs an error message to standard error with a timestamp.
+     *
+     * @param message The error message to log.
+     */
+    public static void logError(String message) {
+        publish(true, message, null);
+    }
+
+    /**
+     * Logs an error message to standard error with a timestamp.
+     *
+     * @param format The {@link String#format} pattern of the message.
+     * @param args   The arguments of the pattern; they must not change after the call.
+     */
+    public static void logError(String format, Object... args) {
+        publish(true, format, args);
+    }
+
+    /**
+     * Logs one of every {@code kvstore.log.sample.info} informational messages passed to it.
+     */
+    public static void logSampled(String format, Object... args) {
+        if (INFO_SAMPLE_RATE == 1 || infoCounter.getAndIncrement() % INFO_SAMPLE_RATE == 0) {
+            publish(false, format, args);
+        }
+    }
+
+    /**
+     * Logs one of every {@code kvstore.log.sample.error} error messages passed to it.
+     */
+    public static void logErrorSampled(String format, Object... args) {
+        if (ERROR_SAMPLE_RATE == 1 || errorCounter.getAndIncrement() % ERROR_SAMPLE_RATE == 0) {
+            publish(true, format, args);
+        }
+    }
+
+    /**
+     * Chooses whether messages are written by the background writer (the default) or by the
+     * logging thread itself, which keeps them in order with other console output, e.g. prompts.
+     */
+    public static void setAsync(boolean enabled) {
+        if (!enabled) {
+            flush();
+        }
+        async = enabled;
+    }
+
+    /**
+     * Writes every buffered message before returning.
+     */
+    public static void flush() {
+        synchronized (writeLock) {
+            drain();
+        }
+    }
+
+    /**
+     * Returns the number of messages dropped because the buffer was full.
+     */
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private static void publish(boolean error, String format, Object[] args) {
+        Entry entry = new Entry(System.currentTimeMillis(), error, format, args);
+        if (!async) {
+            synchronized (writeLock) {
+                drain();
+                write(entry);
+                flushStreams();
+            }
+        } else if (!buffer.offer(entry)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * The loop of the writer thread: waits for a message, then writes everything buffered by
+     * then and flushes the streams once per batch.
+     */
+    private static void writeEntries() {
+        try {
+            while (true) {
+                Entry entry = buffer.take();
+                synchronized (writeLock) {
+                    write(entry);
+                    drain();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void drain() {
+        Entry entry;
+        while ((entry = buffer.poll()) != null) {
+            write(entry);
+        }
+        long drops = dropped.get();
+        if (drops > reportedDrops) {
+            write(new Entry(System.currentTimeMillis(), true,
+                (drops - reportedDrops) + " log messages dropped, buffer full", null));
+            reportedDrops = drops;
+        }
+        flushStreams();
+    }
+
+    private static void write(Entry entry) {
+        String ts = LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.millis), ZoneId.systemDefault())
+            .format(FORMATTER);
+        String message;
+        try {
+            message = entry.args != null ? String.format(entry.format, entry.args) : entry.format;
+        } catch (RuntimeException e) {
+            message = entry.format + " (formatting failed: " + e.getMessage() + ")";
+        }
+        PrintStream out = entry.error ? System.err : System.out;
+        out.print("[" + ts + "] " + (entry.error ? "ERROR: " : "INFO: ") + message + System.lineSeparator());
+    }
+
+    private static void flushStreams() {
+        System.out.flush();
+        System.err.flush();
+    }
+
+    private static int sampleRate(String property) {
+        return Math.max(1, Integer.getInteger(property, 1));
+    }
+
+    /**
+     * A message waiting to be written.
+     */
+    private static final class Entry {
+        private final long millis;
+        private final boolean error;
+        private final String format;
+        private final Object[] args;
+
+        private Entry(long millis, boolean error, String format, Object[] args) {
+            this.millis = millis;
+            this.error = error;
+            this.format = format;
+            this.args = args;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Keeps the entries in an {@link LsmTree} on disk, for stores that do not fit in the heap.
+ * <p>
+ * Keys and values are kept as UTF-8 bytes. The tree logs its writes itself, so this engine is
+ * durable without a {@link LoggedStorageEngine}, and a restart finds the entries again. The tree is
+ * thread-safe and locks writers per key, so <class>KeyValueStoreRemoteImpl</class> calls it
+ * without its own lock; writes cost a lookup of the key, which keeps PUT's existing-key check and
+ * the entry count exact. The tree also keeps the deadlines of the entries that expire, so that an
+ * <class>ExpiringStorageEngine</class> over it finds them again after a restart.
+ * </p>
+ */
+public class LsmStorageEngine implements StorageEngine {
+    private final LsmTree tree;
+
+    /**
+     * Opens the tree in the directory, creating it if needed.
+     * @param directory  The directory of the tree.
+     * @param durability When the tree's log forces writes to disk.
+     * @throws IOException if the tree cannot be opened.
+     */
+    public LsmStorageEngine(Path directory, WriteAheadLog.Durability durability) throws IOException {
+        this.tree = new LsmTree(directory, durability);
+    }
+
+    @Override
+    public String get(String key) {
+        byte[] value = tree.get(key.getBytes(StandardCharsets.UTF_8));
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        tree.put(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) {
+        return tree.putIfAbsent(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean keepsDeadlines() {
+        return true;
+    }
+
+    @Override
+    public void put(String key, String value, long expiresAt) {
+        tree.put(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8), expiresAt);
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value, long expiresAt) {
+        return tree.putIfAbsent(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8),
+            expiresAt);
+    }
+
+    @Override
+    public void scanDeadlines(ObjLongConsumer<String> visitor) {
+        tree.scanDeadlines((key, deadline) ->
+            visitor.accept(new String(key.array(), StandardCharsets.UTF_8), deadline));
+    }
+
+    @Override
+    public boolean delete(String key) {
+        return tree.delete(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Visits the entries in the order of their UTF-8 keys as unsigned bytes.
+     */
+    @Override
+    public void scan(BiPredicate<String, String> visitor) {
+        tree.scan((key, value) -> visitor.test(new String(key, StandardCharsets.UTF_8),
+            new String(value, StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return true;
+    }
+
+    @Override
+    public void scanFrom(String start, boolean inclusive, BiPredicate<String, String> visitor) {
+        tree.scan(start.getBytes(StandardCharsets.UTF_8), inclusive, (key, value) ->
+            visitor.test(new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(tree.size(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Copies every entry onto the heap, which the stores this engine is meant for may not fit.
+     */
+    @Override
+    public Map<String, String> snapshot() {
+        Map<String, String> copy = new HashMap<>();
+        scan((key, value) -> {
+            copy.put(key, value);
+            return true;
+        });
+        return copy;
+    }
+
+    /**
+     * Flushes the memtable into a table, so that a restart replays no log.
+     */
+    @Override
+    public void checkpoint() throws IOException {
+        tree.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        tree.close();
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+}
@@ -0,0 +1,1032 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * A log-structured merge tree of byte array keys and values, kept in a directory, for stores larger
+ * than the heap.
+ * <p>
+ * Writes go to a {@link WriteAheadLog} and to an in-memory memtable sorted by key. Once the memtable
+ * holds {@value #MEMTABLE_SIZE} bytes it is frozen, and a flush thread writes it into an
+ * {@link SSTable} of level 0, so writes only ever reach the disk sequentially. A compaction thread
+ * keeps the levels in shape: once level 0 holds {@value #LEVEL0_TABLES} tables they are merged into
+ * level 1, and once a level from 1 on grows beyond its budget, which is ten times that of the level
+ * above, one of its tables is merged into the next level. Tables of level 1 and deeper do not overlap.
+ * </p>
+ * <p>
+ * A lookup checks the memtables, then the tables of level 0 from the newest, then the single table
+ * of every deeper level whose key range holds the key, and stops at the first entry found. Tables
+ * skip keys their Bloom filter rules out, so a lookup usually reads one block of one table.
+ * Deletions are tombstone entries, which are dropped once they are merged into the deepest level.
+ * </p>
+ * <p>
+ * Writers of a key hold one of {@value #STRIPES} locks chosen by the key, so that reading the key,
+ * logging the write and applying it are atomic. Readers take no lock: they work on an immutable
+ * state of memtables and tables that flushes and compactions replace. The MANIFEST file
+ * lists the tables of every level, the first log segment not yet flushed and the number of
+ * entries at that point; opening the tree loads the tables it lists and replays the log from there.
+ * </p>
+ * <p>
+ * The deadlines of the entries that expire are kept in memory, without being enforced, and logged
+ * with their PUTs. A flush writes the deadlines of the moment the memtable was frozen into a
+ * {@link Snapshot} of empty values for its log segment, which opening the tree loads before it
+ * replays the log; the entries whose deadline has passed by then are deleted.
+ * </p>
+ */
+public final class LsmTree implements Closeable {
+    /** The value of a deleted key in memtables, tables and cursors, compared by identity. */
+    public static final byte[] TOMBSTONE = new byte[0];
+    // memtable size after which it is frozen and flushed
+    public static final long MEMTABLE_SIZE = 16L * 1024 * 1024;
+    // size after which a compaction starts a new table
+    public static final long TABLE_SIZE = 32L * 1024 * 1024;
+    // level 0 tables that trigger a compaction into level 1
+    public static final int LEVEL0_TABLES = 4;
+    // level 0 tables, or frozen memtables, at which writers wait for the background threads
+    private static final int LEVEL0_STOP = 12;
+    private static final int MAX_FROZEN = 2;
+    // size budget of level 1, multiplied by LEVEL_MULTIPLIER for every deeper level
+    private static final long LEVEL1_SIZE = 128L * 1024 * 1024;
+    private static final int LEVEL_MULTIPLIER = 10;
+    private static final int LEVELS = 7;
+    // rough per-entry overhead of a memtable entry
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int STRIPES = 64;
+    private static final String MANIFEST = "MANIFEST";
+    // sorts before every key
+    private static final byte[] FIRST_KEY = new byte[0];
+
+    /**
+     * A position in a sorted sequence of entries.
+     */
+    public interface Cursor {
+        /** Returns false once the cursor is past the last entry. */
+        boolean valid();
+
+        byte[] key();
+
+        /** Returns the value, or {@link #TOMBSTONE} for a deletion. */
+        byte[] value();
+
+        /** Moves to the entry with the next larger key. */
+        void next();
+    }
+
+    /**
+     * Receives the entries of a {@link #scan}.
+     */
+    @FunctionalInterface
+    public interface EntryVisitor {
+        /**
+         * @param key   The key bytes; must not be modified.
+         * @param value The value bytes; must not be modified.
+         * @return false to stop the scan.
+         */
+        boolean visit(byte[] key, byte[] value);
+    }
+
+    private final Path directory;
+    private final WriteAheadLog log;
+    private final Object[] stripes = new Object[STRIPES];
+    private final AtomicLong count = new AtomicLong();
+    // key -> deadline in milliseconds since the epoch, for the entries that have one
+    private final ConcurrentHashMap<ByteBuffer, Long> deadlines = new ConcurrentHashMap<>();
+    private final AtomicLong nextFileNumber = new AtomicLong(1);
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(task -> daemon(task, "lsm-flush"));
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(task -> daemon(task, "lsm-compaction"));
+    // per level, the largest key of the table compacted last
+    private final byte[][] compactionPointers = new byte[LEVELS][];
+    private volatile State state;
+    // the state of the MANIFEST, guarded by this
+    private long flushedSegment;
+    private long flushedCount;
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+    /**
+     * Opens the tree in the directory, creating it if needed, and replays the log written since the
+     * last flush.
+     * @param directory  The directory of the tables, the MANIFEST and the log.
+     * @param durability When the log forces writes to disk.
+     * @throws IOException if the MANIFEST, a table or the log cannot be read.
+     */
+    public LsmTree(Path directory, WriteAheadLog.Durability durability) throws IOException {
+        this.directory = directory;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        Files.createDirectories(directory);
+        List<List<SSTable>> levels = readManifest();
+        state = new State(new Memtable(), Collections.emptyList(), levels);
+        count.set(flushedCount);
+        Snapshot.load(directory, flushedSegment,
+            (key, value, expiresAt) -> deadlines.put(ByteBuffer.wrap(key), expiresAt));
+        this.log = WriteAheadLog.open(directory, durability, flushedSegment, (type, key, value, expiresAt) -> {
+            byte[] old = get(key);
+            state.active.put(key, type == WriteAheadLog.PUT ? value : TOMBSTONE);
+            if (type == WriteAheadLog.PUT && old == null) {
+                count.incrementAndGet();
+            } else if (type == WriteAheadLog.DELETE && old != null) {
+                count.decrementAndGet();
+            }
+            setDeadline(key, expiresAt);
+        });
+        scheduleCompaction();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<ByteBuffer, Long> entry : deadlines.entrySet()) {
+            if (entry.getValue() <= now) {
+                delete(entry.getKey().array());
+            }
+        }
+        maybeFreeze();
+    }
+
+    /**
+     * Returns the value of the key, or null if the key does not exist.
+     */
+    public byte[] get(byte[] key) {
+        State current = state;
+        byte[] value = current.active.entries.get(key);
+        for (int i = 0; value == null && i < current.frozen.size(); i++) {
+            value = current.frozen.get(i).entries.get(key);
+        }
+        for (int level = 0; value == null && level < current.levels.size(); level++) {
+            List<SSTable> tables = current.levels.get(level);
+            if (level == 0) {
+                for (int i = 0; value == null && i < tables.size(); i++) {
+                    value = tables.get(i).get(key);
+                }
+            } else {
+                SSTable table = findTable(tables, key);
+                if (table != null) {
+                    value = table.get(key);
+                }
+            }
+        }
+        return value == TOMBSTONE ? null : value;
+    }
+
+    /**
+     * Stores the value, replacing the current value of the key if there is one.
+     * @throws UncheckedIOException if the write cannot be logged.
+     */
+    public void put(byte[] key, byte[] value) {
+        put(key, value, 0);
+    }
+
+    /**
+     * Stores the value with the deadline of its entry, replacing the current value of the key if
+     * there is one. The deadline is kept, not enforced.
+     * @param expiresAt The deadline in milliseconds since the epoch, or 0 if the entry does not expire.
+     * @throws UncheckedIOException if the write cannot be logged.
+     */
+    public void put(byte[] key, byte[] value, long expiresAt) {
+        long position;
+        synchronized (stripe(key)) {
+            checkOpen();
+            boolean existed = get(key) != null;
+            position = append(WriteAheadLog.PUT, key, value, expiresAt);
+            state.active.put(key, value);
+            setDeadline(key, expiresAt);
+            if (!existed) {
+                count.incrementAndGet();
+            }
+        }
+        sync(position);
+        maybeFreeze();
+    }
+
+    /**
+     * Stores the value unless the key already exists.
+     * @return true if the value was stored, false if the key already existed.
+     * @throws UncheckedIOException if the write cannot be logged.
+     */
+    public boolean putIfAbsent(byte[] key, byte[] value) {
+        return putIfAbsent(key, value, 0);
+    }
+
+    /**
+     * Stores the value with the deadline of its entry unless the key already exists. The deadline
+     * is kept, not enforced.
+     * @param expiresAt The deadline in milliseconds since the epoch, or 0 if the entry does not expire.
+     * @return true if the value was stored, false if the key already existed.
+     * @throws UncheckedIOException if the write cannot be logged.
+     */
+    public boolean putIfAbsent(byte[] key, byte[] value, long expiresAt) {
+        long position;
+        synchronized (stripe(key)) {
+            checkOpen();
+            if (get(key) != null) {
+                return false;
+            }
+            position = append(WriteAheadLog.PUT, key, value, expiresAt);
+            state.active.put(key, value);
+            setDeadline(key, expiresAt);
+            count.incrementAndGet();
+        }
+        sync(position);
+        maybeFreeze();
+        return true;
+    }
+
+    /**
+     * Removes the key.
+     * @return true if the key existed.
+     * @throws UncheckedIOException if the write cannot be logged.
+     */
+    public boolean delete(byte[] key) {
+        long position;
+        synchronized (stripe(key)) {
+            checkOpen();
+            if (get(key) == null) {
+                return false;
+            }
+            position = append(WriteAheadLog.DELETE, key, null);
+            state.active.put(key, TOMBSTONE);
+            setDeadline(key, 0);
+            count.decrementAndGet();
+        }
+        sync(position);
+        maybeFreeze();
+        return true;
+    }
+
+    /**
+     * Passes the entries to the visitor in key order until it returns false. The scan reads the
+     * memtables and tables of the moment it starts; writes during the scan may or may not be seen.
+     */
+    public void scan(EntryVisitor visitor) {
+        scan(FIRST_KEY, true, visitor);
+    }
+
+    /**
+     * Passes the entries from a key on to the visitor in key order until it returns false, like
+     * {@link #scan(EntryVisitor)}. Every memtable and table is positioned at the key first, so the
+     * scan reads no entry before it.
+     * @param start     The key to start at.
+     * @param inclusive Whether the entry of the start key itself is visited.
+     */
+    public void scan(byte[] start, boolean inclusive, EntryVisitor visitor) {
+        Cursor cursor = new LiveCursor(merge(state, start));
+        if (!inclusive && cursor.valid() && Arrays.equals(cursor.key(), start)) {
+            cursor.next();
+        }
+        while (cursor.valid() && visitor.visit(cursor.key(), cursor.value())) {
+            cursor.next();
+        }
+    }
+
+    /**
+     * Returns the number of keys.
+     */
+    public long size() {
+        return count.get();
+    }
+
+    /**
+     * Flushes the memtable and waits until every frozen memtable is in a table, so that a restart
+     * replays no log.
+     * @throws IOException if a flush failed.
+     */
+    public void flush() throws IOException {
+        freeze();
+        synchronized (this) {
+            boolean interrupted = false;
+            while (!state.frozen.isEmpty() && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw new IOException("LSM tree failed", failure);
+            }
+        }
+    }
+
+    /**
+     * Waits for the running flushes, stops compacting and closes the log. The memtable is not
+     * flushed; the next open replays it from the log.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        flusher.shutdown();
+        compactor.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+    }
+
+    /**
+     * Passes the key and deadline of every entry that has one to the visitor.
+     */
+    public void scanDeadlines(ObjLongConsumer<ByteBuffer> visitor) {
+        deadlines.forEach(visitor::accept);
+    }
+
+    /**
+     * Returns the number of tables per level, for monitoring.
+     */
+    public int[] tableCounts() {
+        State current = state;
+        int[] counts = new int[current.levels.size()];
+        for (int level = 0; level < counts.length; level++) {
+            counts[level] = current.levels.get(level).size();
+        }
+        return counts;
+    }
+
+    /**
+     * Freezes the memtable once it is full, waiting first if the background threads are behind.
+     */
+    private void maybeFreeze() {
+        if (state.active.bytes.get() < MEMTABLE_SIZE) {
+            return;
+        }
+        synchronized (this) {
+            boolean interrupted = false;
+            while ((state.frozen.size() >= MAX_FROZEN || state.levels.get(0).size() >= LEVEL0_STOP)
+                && failure == null && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null || closed) {
+                return;
+            }
+        }
+        if (state.active.bytes.get() >= MEMTABLE_SIZE) {
+            freeze();
+        }
+    }
+
+    /**
+     * Turns the memtable into a frozen one and hands it to the flush thread. The log is rolled
+     * while every stripe lock is held, so the frozen memtable holds exactly the writes of the
+     * segments before the new one.
+     */
+    private void freeze() {
+        underAllStripes(0, () -> {
+            synchronized (this) {
+                checkOpen();
+                Memtable frozen = state.active;
+                if (frozen.entries.isEmpty()) {
+                    return;
+                }
+                try {
+                    frozen.nextSegment = log.roll();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to roll the write-ahead log", e);
+                }
+                frozen.count = count.get();
+                frozen.deadlines = new HashMap<>(deadlines);
+                List<Memtable> memtables = new ArrayList<>(state.frozen);
+                memtables.add(0, frozen);
+                state = new State(new Memtable(), memtables, state.levels);
+                flusher.execute(() -> flush(frozen));
+            }
+        });
+    }
+
+    /**
+     * Writes a frozen memtable into a level 0 table, then drops the log segments it covers.
+     */
+    private void flush(Memtable frozen) {
+        try {
+            SSTable table = SSTable.write(directory, nextFileNumber.getAndIncrement(),
+                new MemtableCursor(frozen, FIRST_KEY), Long.MAX_VALUE);
+            if (!frozen.deadlines.isEmpty()) {
+                try (Snapshot.Writer writer = Snapshot.create(directory, frozen.nextSegment)) {
+                    ByteBuffer empty = ByteBuffer.allocate(0);
+                    for (Map.Entry<ByteBuffer, Long> entry : frozen.deadlines.entrySet()) {
+                        writer.add(entry.getKey(), empty, entry.getValue());
+                    }
+                    writer.commit();
+                }
+            }
+            synchronized (this) {
+                List<Memtable> memtables = new ArrayList<>(state.frozen);
+                memtables.remove(frozen);
+                List<List<SSTable>> levels = new ArrayList<>(state.levels);
+                List<SSTable> level0 = new ArrayList<>(levels.get(0));
+                level0.add(0, table);
+                levels.set(0, level0);
+                flushedSegment = frozen.nextSegment;
+                flushedCount = frozen.count;
+                writeManifest(levels);
+                state = new State(state.active, memtables, levels);
+                notifyAll();
+            }
+            log.deleteBefore(frozen.nextSegment);
+            Snapshot.deleteBefore(directory, frozen.nextSegment);
+            scheduleCompaction();
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Hands a round of compactions to the compaction thread, unless the tree is closed.
+     */
+    private synchronized void scheduleCompaction() {
+        if (!closed) {
+            compactor.execute(this::compact);
+        }
+    }
+
+    /**
+     * Runs compactions until no level needs one.
+     */
+    private void compact() {
+        try {
+            while (true) {
+                Compaction compaction;
+                synchronized (this) {
+                    if (closed || failure != null) {
+                        return;
+                    }
+                    compaction = pickCompaction(state.levels);
+                }
+                if (compaction == null) {
+                    return;
+                }
+                runCompaction(compaction);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Chooses the tables to merge: all of level 0 once it has too many tables, otherwise the next
+     * table of the shallowest level over its budget, with the tables of the next level it overlaps.
+     */
+    private Compaction pickCompaction(List<List<SSTable>> levels) {
+        List<SSTable> level0 = levels.get(0);
+        if (level0.size() >= LEVEL0_TABLES) {
+            byte[] min = null;
+            byte[] max = null;
+            for (SSTable table : level0) {
+                min = min == null || Arrays.compareUnsigned(table.minKey(), min) < 0 ? table.minKey() : min;
+                max = max == null || Arrays.compareUnsigned(table.maxKey(), max) > 0 ? table.maxKey() : max;
+            }
+            return new Compaction(0, new ArrayList<>(level0), overlapping(levels.get(1), min, max));
+        }
+
+        long budget = LEVEL1_SIZE;
+        for (int level = 1; level < LEVELS - 1; level++, budget *= LEVEL_MULTIPLIER) {
+            List<SSTable> tables = levels.get(level);
+            long size = 0;
+            for (SSTable table : tables) {
+                size += table.size();
+            }
+            if (size <= budget) {
+                continue;
+            }
+            SSTable chosen = tables.get(0);
+            byte[] pointer = compactionPointers[level];
+            for (SSTable table : tables) {
+                if (pointer == null || Arrays.compareUnsigned(table.minKey(), pointer) > 0) {
+                    chosen = table;
+                    break;
+                }
+            }
+            return new Compaction(level, Collections.singletonList(chosen),
+                overlapping(levels.get(level + 1), chosen.minKey(), chosen.maxKey()));
+        }
+        return null;
+    }
+
+    /**
+     * Merges the tables of a compaction into new tables of the next level, or moves a single table
+     * down if nothing in the next level overlaps it.
+     */
+    private void runCompaction(Compaction compaction) throws IOException {
+        int target = compaction.level + 1;
+        List<SSTable> outputs = new ArrayList<>();
+        if (compaction.level > 0 && compaction.lower.isEmpty()) {
+            outputs.addAll(compaction.upper);
+        } else {
+            // sources from the newest: level 0 is newest first, and a deeper level overlaps no other
+            List<Cursor> sources = new ArrayList<>();
+            for (SSTable table : compaction.upper) {
+                sources.add(table.cursor());
+            }
+            sources.add(new LevelCursor(compaction.lower, FIRST_KEY));
+            Cursor merged = new MergeCursor(sources);
+            if (isBottom(state.levels, target)) {
+                merged = new LiveCursor(merged);
+            }
+            while (merged.valid()) {
+                SSTable table = SSTable.write(directory, nextFileNumber.getAndIncrement(), merged, TABLE_SIZE);
+                if (table != null) {
+                    outputs.add(table);
+                }
+            }
+        }
+
+        Set<SSTable> replaced = new HashSet<>(compaction.upper);
+        replaced.addAll(compaction.lower);
+        synchronized (this) {
+            List<List<SSTable>> levels = new ArrayList<>(state.levels);
+            List<SSTable> upper = new ArrayList<>(levels.get(compaction.level));
+            upper.removeAll(replaced);
+            levels.set(compaction.level, upper);
+            List<SSTable> lower = new ArrayList<>(levels.get(target));
+            lower.removeAll(replaced);
+            lower.addAll(outputs);
+            lower.sort(Comparator.comparing(SSTable::minKey, Arrays::compareUnsigned));
+            levels.set(target, lower);
+            compactionPointers[compaction.level] = compaction.upper.get(compaction.upper.size() - 1).maxKey();
+            writeManifest(levels);
+            state = new State(state.active, state.frozen, levels);
+            notifyAll();
+        }
+        for (SSTable table : replaced) {
+            if (!outputs.contains(table)) {
+                SSTable.delete(directory, table.number());
+            }
+        }
+    }
+
+    /**
+     * Returns true if no level below the target holds a table, so tombstones can be dropped.
+     */
+    private static boolean isBottom(List<List<SSTable>> levels, int target) {
+        for (int level = target + 1; level < levels.size(); level++) {
+            if (!levels.get(level).isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the tables of a level whose key ranges intersect the range.
+     */
+    private static List<SSTable> overlapping(List<SSTable> tables, byte[] min, byte[] max) {
+        List<SSTable> result = new ArrayList<>();
+        for (SSTable table : tables) {
+            if (Arrays.compareUnsigned(table.maxKey(), min) >= 0 && Arrays.compareUnsigned(table.minKey(), max) <= 0) {
+                result.add(table);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the table of a level from 1 on whose key range holds the key, if any.
+     */
+    private static SSTable findTable(List<SSTable> tables, byte[] key) {
+        int low = 0;
+        int high = tables.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            SSTable table = tables.get(middle);
+            if (Arrays.compareUnsigned(table.maxKey(), key) < 0) {
+                low = middle + 1;
+            } else if (Arrays.compareUnsigned(table.minKey(), key) > 0) {
+                high = middle - 1;
+            } else {
+                return table;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a cursor over every memtable and table of the state from a key on, tombstones
+     * included.
+     */
+    private static Cursor merge(State current, byte[] start) {
+        List<Cursor> sources = new ArrayList<>();
+        sources.add(new MemtableCursor(current.active, start));
+        for (Memtable memtable : current.frozen) {
+            sources.add(new MemtableCursor(memtable, start));
+        }
+        for (SSTable table : current.levels.get(0)) {
+            sources.add(table.cursor(start));
+        }
+        for (int level = 1; level < current.levels.size(); level++) {
+            sources.add(new LevelCursor(current.levels.get(level), start));
+        }
+        return new MergeCursor(sources);
+    }
+
+    /**
+     * Loads the tables listed in the MANIFEST, and deletes the tables it does not list.
+     */
+    private List<List<SSTable>> readManifest() throws IOException {
+        List<List<SSTable>> levels = new ArrayList<>();
+        for (int level = 0; level < LEVELS; level++) {
+            levels.add(new ArrayList<>());
+        }
+        Set<Long> listed = new HashSet<>();
+        Path manifest = directory.resolve(MANIFEST);
+        if (Files.exists(manifest)) {
+            try (BufferedReader in = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.trim().split(" ");
+                    try {
+                        switch (fields[0]) {
+                            case "log":
+                                flushedSegment = Long.parseLong(fields[1]);
+                                break;
+                            case "count":
+                                flushedCount = Long.parseLong(fields[1]);
+                                break;
+                            case "table":
+                                int level = Integer.parseInt(fields[1]);
+                                long number = Long.parseLong(fields[2]);
+                                levels.get(level).add(SSTable.open(directory, number));
+                                listed.add(number);
+                                break;
+                            default:
+                                throw new IOException("Damaged MANIFEST line: " + line);
+                        }
+                    } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                        throw new IOException("Damaged MANIFEST line: " + line);
+                    }
+                }
+            }
+        }
+
+        long maxNumber = 0;
+        for (long number : SSTable.list(directory)) {
+            maxNumber = Math.max(maxNumber, number);
+            if (!listed.contains(number)) {
+                SSTable.delete(directory, number);
+            }
+        }
+        nextFileNumber.set(maxNumber + 1);
+        levels.get(0).sort(Comparator.comparingLong(SSTable::number).reversed());
+        for (int level = 1; level < LEVELS; level++) {
+            levels.get(level).sort(Comparator.comparing(SSTable::minKey, Arrays::compareUnsigned));
+        }
+        return levels;
+    }
+
+    /**
+     * Replaces the MANIFEST by one listing the levels. Called while holding this.
+     */
+    private void writeManifest(List<List<SSTable>> levels) throws IOException {
+        Path temporary = directory.resolve(MANIFEST + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            out.write("log " + flushedSegment + "\n");
+            out.write("count " + flushedCount + "\n");
+            for (int level = 0; level < levels.size(); level++) {
+                for (SSTable table : levels.get(level)) {
+                    out.write("table " + level + " " + table.number() + "\n");
+                }
+            }
+        }
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private synchronized void fail(Exception e) {
+        if (failure == null) {
+            failure = e instanceof IOException ? (IOException) e : new IOException(e);
+            LoggerUtil.logError("LSM tree failed: %s", e.getMessage());
+        }
+        notifyAll();
+    }
+
+    private void checkOpen() {
+        if (failure != null) {
+            throw new UncheckedIOException("LSM tree failed", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("LSM tree is closed");
+        }
+    }
+
+    private Object stripe(byte[] key) {
+        return stripes[Math.floorMod(Arrays.hashCode(key), STRIPES)];
+    }
+
+    /**
+     * Runs the action while holding the stripe locks from this one on, so that no write is between
+     * its append and its apply.
+     */
+    private void underAllStripes(int stripe, Runnable action) {
+        if (stripe == STRIPES) {
+            action.run();
+            return;
+        }
+        synchronized (stripes[stripe]) {
+            underAllStripes(stripe + 1, action);
+        }
+    }
+
+    /**
+     * Records the deadline of an entry just written. Called while holding the stripe lock of the key.
+     */
+    private void setDeadline(byte[] key, long expiresAt) {
+        if (expiresAt != 0) {
+            deadlines.put(ByteBuffer.wrap(key), expiresAt);
+        } else if (!deadlines.isEmpty()) {
+            deadlines.remove(ByteBuffer.wrap(key));
+        }
+    }
+
+    private long append(byte type, byte[] key, byte[] value) {
+        return append(type, key, value, 0);
+    }
+
+    private long append(byte type, byte[] key, byte[] value, long expiresAt) {
+        try {
+            return log.append(type, key, value, expiresAt);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to log write", e);
+        }
+    }
+
+    private void sync(long position) {
+        try {
+            log.sync(position);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to make write durable", e);
+        }
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * The memtables and tables readers work on; replaced, never modified.
+     */
+    private static final class State {
+        final Memtable active;
+        // newest first
+        final List<Memtable> frozen;
+        // level 0 newest first, deeper levels by their smallest key
+        final List<List<SSTable>> levels;
+
+        State(Memtable active, List<Memtable> frozen, List<List<SSTable>> levels) {
+            this.active = active;
+            this.frozen = frozen;
+            this.levels = levels;
+        }
+    }
+
+    /**
+     * Sorted entries in memory, tombstones included.
+     */
+    private static final class Memtable {
+        final ConcurrentSkipListMap<byte[], byte[]> entries = new ConcurrentSkipListMap<>(Arrays::compareUnsigned);
+        final AtomicLong bytes = new AtomicLong();
+        // set when frozen: the first log segment after its writes, and the key count and deadlines
+        // at that point
+        long nextSegment;
+        long count;
+        Map<ByteBuffer, Long> deadlines;
+
+        void put(byte[] key, byte[] value) {
+            entries.put(key, value);
+            bytes.addAndGet(key.length + value.length + ENTRY_OVERHEAD);
+        }
+    }
+
+    /**
+     * The tables of one compaction: tables of a level, and the tables of the next level they overlap.
+     */
+    private static final class Compaction {
+        final int level;
+        final List<SSTable> upper;
+        final List<SSTable> lower;
+
+        Compaction(int level, List<SSTable> upper, List<SSTable> lower) {
+            this.level = level;
+            this.upper = upper;
+            this.lower = lower;
+        }
+    }
+
+    private static final class MemtableCursor implements Cursor {
+        private final Iterator<Map.Entry<byte[], byte[]>> iterator;
+        private Map.Entry<byte[], byte[]> entry;
+
+        MemtableCursor(Memtable memtable, byte[] start) {
+            iterator = memtable.entries.tailMap(start, true).entrySet().iterator();
+            next();
+        }
+
+        @Override
+        public boolean valid() {
+            return entry != null;
+        }
+
+        @Override
+        public byte[] key() {
+            return entry.getKey();
+        }
+
+        @Override
+        public byte[] value() {
+            return entry.getValue();
+        }
+
+        @Override
+        public void next() {
+            entry = iterator.hasNext() ? iterator.next() : null;
+        }
+    }
+
+    /**
+     * Reads the non-overlapping tables of a level one after the other, from a key on.
+     */
+    private static final class LevelCursor implements Cursor {
+        private final List<SSTable> tables;
+        private int index;
+        private Cursor current;
+
+        LevelCursor(List<SSTable> tables, byte[] start) {
+            this.tables = tables;
+            while (index < tables.size() && Arrays.compareUnsigned(tables.get(index).maxKey(), start) < 0) {
+                index++;
+            }
+            if (index < tables.size()) {
+                current = tables.get(index++).cursor(start);
+            }
+            advance();
+        }
+
+        @Override
+        public boolean valid() {
+            return current != null && current.valid();
+        }
+
+        @Override
+        public byte[] key() {
+            return current.key();
+        }
+
+        @Override
+        public byte[] value() {
+            return current.value();
+        }
+
+        @Override
+        public void next() {
+            current.next();
+            advance();
+        }
+
+        private void advance() {
+            while ((current == null || !current.valid()) && index < tables.size()) {
+                current = tables.get(index++).cursor();
+            }
+        }
+    }
+
+    /**
+     * Merges cursors ordered from the newest, returning for every key the entry of the newest.
+     */
+    private static final class MergeCursor implements Cursor {
+        private final PriorityQueue<Source> heads = new PriorityQueue<>();
+
+        MergeCursor(List<Cursor> sources) {
+            for (int i = 0; i < sources.size(); i++) {
+                if (sources.get(i).valid()) {
+                    heads.add(new Source(sources.get(i), i));
+                }
+            }
+        }
+
+        @Override
+        public boolean valid() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public byte[] key() {
+            return heads.peek().cursor.key();
+        }
+
+        @Override
+        public byte[] value() {
+            return heads.peek().cursor.value();
+        }
+
+        @Override
+        public void next() {
+            byte[] key = key();
+            do {
+                Source source = heads.poll();
+                source.cursor.next();
+                if (source.cursor.valid()) {
+                    heads.add(source);
+                }
+            } while (!heads.isEmpty() && Arrays.equals(heads.peek().cursor.key(), key));
+        }
+
+        private static final class Source implements Comparable<Source> {
+            final Cursor cursor;
+            final int rank;
+
+            Source(Cursor cursor, int rank) {
+                this.cursor = cursor;
+                this.rank = rank;
+            }
+
+            @Override
+            public int compareTo(Source other) {
+                int comparison = Arrays.compareUnsigned(cursor.key(), other.cursor.key());
+                return comparison != 0 ? comparison : Integer.compare(rank, other.rank);
+            }
+        }
+    }
+
+    /**
+     * Skips the tombstones of another cursor.
+     */
+    private static final class LiveCursor implements Cursor {
+        private final Cursor cursor;
+
+        LiveCursor(Cursor cursor) {
+            this.cursor = cursor;
+            skipTombstones();
+        }
+
+        @Override
+        public boolean valid() {
+            return cursor.valid();
+        }
+
+        @Override
+        public byte[] key() {
+            return cursor.key();
+        }
+
+        @Override
+        public byte[] value() {
+            return cursor.value();
+        }
+
+        @Override
+        public void next() {
+            cursor.next();
+            skipTombstones();
+        }
+
+        private void skipTombstones() {
+            while (cursor.valid() && cursor.value() == TOMBSTONE) {
+                cursor.next();
+            }
+        }
+    }
+}
@@ -0,0 +1,333 @@
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client-side view of a <interface>KeyValueStoreRemote</interface> that answers the GETs of
+ * recently read keys from a <class>NearCache</class>, without a call to the server.
+ * <p>
+ * The cache stays coherent through an <class>InvalidationListener</class> that this view exports
+ * and subscribes with the server, which then pushes every key written, deleted or expired. The
+ * writes of this client invalidate its own cache as soon as they return, while the writes of other
+ * clients reach it asynchronously, normally within milliseconds. Keys that do not exist are not
+ * cached.
+ * </p>
+ * <p>
+ * Invalidations can be lost, e.g. when the server dropped the listener or restarted. The listener
+ * clears the cache when the sequence number of a call is not the next one, and GETs bypass the
+ * cache once no call came for {@value #LEASE_MILLIS} milliseconds, while the server sends one at
+ * least every {@value InvalidationListener#HEARTBEAT_MILLIS} milliseconds. The next such GET clears
+ * the cache and subscribes the listener again, at most once per lease. The time to live of the
+ * cache bounds how stale a value can get in the meantime.
+ * </p>
+ * <p>
+ * The near cache is opt-in: <method>fromSystemProperties</method> only wraps the store if the
+ * {@value #ENTRIES_PROPERTY} system property sets a capacity. Call <method>close</method> to
+ * unsubscribe, so that the server stops sending invalidations.
+ * </p>
+ */
+public class NearCachingKeyValueStore implements KeyValueStoreRemote, AutoCloseable {
+    // the system property holding the capacity of the near cache in entries, 0 to disable it
+    public static final String ENTRIES_PROPERTY = "kvstore.nearcache.entries";
+    // the system property holding the time to live of the cached values in milliseconds
+    public static final String TTL_PROPERTY = "kvstore.nearcache.ttl";
+    public static final long DEFAULT_TTL_MILLIS = 30_000;
+
+    // the time without a call from the server after which the listener is taken as dropped
+    public static final long LEASE_MILLIS = 5 * InvalidationListener.HEARTBEAT_MILLIS;
+    private static final long LEASE_NANOS = TimeUnit.MILLISECONDS.toNanos(LEASE_MILLIS);
+
+    /**
+     * The callback the server invalidates keys through.
+     */
+    private static final class Listener implements InvalidationListener {
+        private final NearCache cache;
+        // the sequence number of the last call, guarded by this
+        private long sequence;
+        // System.nanoTime() at the last call, or when the listener was subscribed
+        private volatile long heardAt;
+        // cleared while the listener is being subscribed again
+        private volatile boolean subscribed;
+
+        Listener(NearCache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public synchronized void invalidate(long sequence, List<String> keys) {
+            if (follows(sequence)) {
+                for (String key : keys) {
+                    cache.invalidate(key);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void invalidateAll(long sequence) {
+            follows(sequence);
+            cache.invalidateAll();
+        }
+
+        /**
+         * Records a call, and clears the cache if calls were missed. Called while holding the
+         * monitor.
+         * @return false if the cache was cleared
+         */
+        private boolean follows(long number) {
+            heardAt = System.nanoTime();
+            boolean next = number == sequence + 1;
+            sequence = number;
+            if (!next) {
+                cache.invalidateAll();
+            }
+            return next;
+        }
+
+        /**
+         * Returns whether the listener is subscribed and has heard from the server within the lease.
+         */
+        boolean isLive(long now) {
+            return subscribed && now - heardAt < LEASE_NANOS;
+        }
+
+        void unsubscribed() {
+            subscribed = false;
+        }
+
+        /**
+         * Expects the calls of a new subscription.
+         */
+        synchronized void subscribed() {
+            sequence = 0;
+            heardAt = System.nanoTime();
+            subscribed = true;
+        }
+    }
+
+    private final KeyValueStoreRemote store;
+    private final NearCache cache;
+    private final Listener listener;
+    // the exported stub of the listener, as registered with the server
+    private final InvalidationListener stub;
+    // set by close, after which the cache no longer learns of writes
+    private volatile boolean closed;
+    // System.nanoTime() before which the listener is not subscribed again, guarded by this
+    private long resubscribeAt;
+
+    /**
+     * Exports a listener and subscribes it with the server.
+     * @param store     the remote store
+     * @param capacity  the maximum number of cached values, positive
+     * @param ttlMillis the time after which a cached value is read again from the server, positive
+     * @throws RemoteException if the listener cannot be exported or subscribed
+     */
+    public NearCachingKeyValueStore(KeyValueStoreRemote store, int capacity, long ttlMillis)
+        throws RemoteException {
+        this.store = store;
+        this.cache = new NearCache(capacity, ttlMillis);
+        this.listener = new Listener(cache);
+        this.stub = (InvalidationListener) UnicastRemoteObject.exportObject(listener, 0);
+        this.resubscribeAt = System.nanoTime();
+        try {
+            store.subscribe(stub);
+        } catch (RemoteException | RuntimeException e) {
+            UnicastRemoteObject.unexportObject(listener, true);
+            throw e;
+        }
+        listener.subscribed();
+    }
+
+    /**
+     * Wraps the store in a near cache configured by the {@value #ENTRIES_PROPERTY} and
+     * {@value #TTL_PROPERTY} system properties, or returns it as it is if no capacity is set.
+     * @param store the remote store
+     * @return the store to use
+     * @throws IllegalArgumentException if a property is not a valid number
+     * @throws RemoteException if the listener cannot be exported or subscribed
+     */
+    public static KeyValueStoreRemote fromSystemProperties(KeyValueStoreRemote store) throws RemoteException {
+        int capacity;
+        long ttlMillis;
+        try {
+            capacity = Integer.parseInt(System.getProperty(ENTRIES_PROPERTY, "0"));
+            ttlMillis = Long.parseLong(System.getProperty(TTL_PROPERTY, Long.toString(DEFAULT_TTL_MILLIS)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid near cache setting: " + e.getMessage());
+        }
+        return capacity > 0 ? new NearCachingKeyValueStore(store, capacity, ttlMillis) : store;
+    }
+
+    /**
+     * Returns the cache, e.g. to read its counters.
+     */
+    public NearCache getCache() {
+        return cache;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Answered from the near cache if the key was read recently and has not changed since.
+     */
+    @Override
+    public String get(String key) throws RemoteException, MalformedRequestException {
+        if (closed || key == null || key.trim().isEmpty() || !isLive()) {
+            return store.get(key);
+        }
+        String value = cache.get(key);
+        if (value != null) {
+            return value;
+        }
+        Object token = cache.beginLoad(key);
+        try {
+            value = store.get(key);
+        } finally {
+            cache.completeLoad(key, token, value);
+        }
+        return value;
+    }
+
+    @Override
+    public void put(String key, String value) throws RemoteException, MalformedRequestException {
+        try {
+            store.put(key, value);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void put(String key, String value, long ttlMillis) throws RemoteException, MalformedRequestException {
+        try {
+            store.put(key, value, ttlMillis);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void delete(String key) throws RemoteException, MalformedRequestException {
+        try {
+            store.delete(key);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void upsert(String key, String value) throws RemoteException, MalformedRequestException {
+        try {
+            store.upsert(key, value);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public long getVersion(String key) throws RemoteException, MalformedRequestException {
+        return store.getVersion(key);
+    }
+
+    @Override
+    public boolean compareAndSet(String key, long expectedVersion, String value)
+        throws RemoteException, MalformedRequestException {
+        try {
+            return store.compareAndSet(key, expectedVersion, value);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public long increment(String key, long delta) throws RemoteException, MalformedRequestException {
+        try {
+            return store.increment(key, delta);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void append(String key, String suffix) throws RemoteException, MalformedRequestException {
+        try {
+            store.append(key, suffix);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public ScanPage scan(String start, String end, String token, int pageSize)
+        throws RemoteException, MalformedRequestException {
+        return store.scan(start, end, token, pageSize);
+    }
+
+    @Override
+    public ScanPage scanPrefix(String prefix, String token, int pageSize)
+        throws RemoteException, MalformedRequestException {
+        return store.scanPrefix(prefix, token, pageSize);
+    }
+
+    @Override
+    public void subscribe(InvalidationListener listener) throws RemoteException {
+        store.subscribe(listener);
+    }
+
+    @Override
+    public void unsubscribe(InvalidationListener listener) throws RemoteException {
+        store.unsubscribe(listener);
+    }
+
+    /**
+     * Unsubscribes from the server and unexports the listener. The cache is cleared, and GETs go
+     * to the server from then on.
+     */
+    @Override
+    public void close() throws RemoteException {
+        closed = true;
+        try {
+            store.unsubscribe(stub);
+        } finally {
+            try {
+                UnicastRemoteObject.unexportObject(listener, true);
+            } catch (NoSuchObjectException e) {
+                // already unexported
+            }
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Returns whether the cache can be used, subscribing the listener again if the server seems to
+     * have dropped it.
+     */
+    private boolean isLive() {
+        long now = System.nanoTime();
+        if (listener.isLive(now)) {
+            return true;
+        }
+        synchronized (this) {
+            if (closed || listener.isLive(now) || now - resubscribeAt < 0) {
+                return listener.isLive(now);
+            }
+            resubscribeAt = now + LEASE_NANOS;
+            listener.unsubscribed();
+            cache.invalidateAll();
+            try {
+                store.subscribe(stub);
+            } catch (RemoteException | RuntimeException e) {
+                // GETs go to the server until the next attempt
+                return false;
+            }
+            listener.subscribed();
+            return true;
+        }
+    }
+
+    private void invalidate(String key) {
+        if (key != null) {
+            cache.invalidate(key);
+        }
+    }
+}
@@ -0,0 +1,385 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * An immutable file of sorted entries, the on-disk unit of an {@link LsmTree}.
+ * <p>
+ * The file holds data blocks of about {@value #BLOCK_SIZE} bytes, then the block index, the largest
+ * key, a {@link BloomFilter} of the keys and a footer. Every entry is the key length, the value
+ * length (-1 for a tombstone), the key bytes and the value bytes, and entries are sorted by their
+ * keys as unsigned bytes. The index holds the first key and the offset of every block.
+ * </p>
+ * <p>
+ * An open table keeps its index and filter on the heap and maps the file, so a lookup costs the
+ * filter probes, a binary search of the index and at most one block read, which is a page cache
+ * hit for hot data. A table is written to a temporary file that is forced and then renamed.
+ * </p>
+ */
+public final class SSTable {
+    // size after which the next entry starts a new block
+    public static final int BLOCK_SIZE = 4096;
+    private static final int MAGIC = 0x4c534d54;
+    // index offset, block count, filter offset, filter words, entry count and magic
+    private static final int FOOTER = 36;
+    // key length and value length in front of the key and value
+    private static final int ENTRY_HEADER = 8;
+    private static final String SUFFIX = ".sst";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final long number;
+    private final Path path;
+    private final MappedByteBuffer data;
+    private final byte[][] blockKeys;
+    private final int[] blockOffsets;
+    private final int dataEnd;
+    private final byte[] maxKey;
+    private final BloomFilter filter;
+    private final long entries;
+
+    private SSTable(long number, Path path, MappedByteBuffer data, byte[][] blockKeys, int[] blockOffsets,
+                    int dataEnd, byte[] maxKey, BloomFilter filter, long entries) {
+        this.number = number;
+        this.path = path;
+        this.data = data;
+        this.blockKeys = blockKeys;
+        this.blockOffsets = blockOffsets;
+        this.dataEnd = dataEnd;
+        this.maxKey = maxKey;
+        this.filter = filter;
+        this.entries = entries;
+    }
+
+    /**
+     * Writes the entries of a cursor into a new table, until the cursor is exhausted or the table
+     * holds at least the given number of bytes.
+     * @param directory The directory of the tree.
+     * @param number    The file number of the table.
+     * @param cursor    The entries, in key order; advanced past the entries written.
+     * @param maxBytes  The size after which no further entry is written.
+     * @return the open table, or null if the cursor had no entries.
+     * @throws IOException if the file cannot be written.
+     */
+    public static SSTable write(Path directory, long number, LsmTree.Cursor cursor, long maxBytes) throws IOException {
+        if (!cursor.valid()) {
+            return null;
+        }
+        Path temporary = directory.resolve(fileName(number) + TEMPORARY_SUFFIX);
+        List<byte[]> blockKeys = new ArrayList<>();
+        List<Integer> blockOffsets = new ArrayList<>();
+        long[] hashes = new long[1024];
+        int count = 0;
+        byte[] lastKey = null;
+        long position = 0;
+        long blockStart = 0;
+
+        try (OutputStream file = Files.newOutputStream(temporary);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+            while (cursor.valid() && position < maxBytes) {
+                byte[] key = cursor.key();
+                byte[] value = cursor.value();
+                if (blockKeys.isEmpty() || position - blockStart >= BLOCK_SIZE) {
+                    blockKeys.add(key);
+                    blockOffsets.add((int) position);
+                    blockStart = position;
+                }
+                boolean tombstone = value == LsmTree.TOMBSTONE;
+                out.writeInt(key.length);
+                out.writeInt(tombstone ? -1 : value.length);
+                out.write(key);
+                if (!tombstone) {
+                    out.write(value);
+                }
+                position += ENTRY_HEADER + key.length + (tombstone ? 0 : value.length);
+                if (position > Integer.MAX_VALUE / 2) {
+                    throw new IOException("Table too large: " + position + " bytes");
+                }
+                if (count == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, count * 2);
+                }
+                hashes[count++] = BloomFilter.hash(key);
+                lastKey = key;
+                cursor.next();
+            }
+
+            int indexOffset = (int) position;
+            for (int i = 0; i < blockKeys.size(); i++) {
+                out.writeInt(blockKeys.get(i).length);
+                out.write(blockKeys.get(i));
+                out.writeInt(blockOffsets.get(i));
+            }
+            out.writeInt(lastKey.length);
+            out.write(lastKey);
+            BloomFilter filter = BloomFilter.build(hashes, count);
+            long filterOffset = out.size();
+            ByteBuffer words = ByteBuffer.allocate(filter.words() * 8);
+            filter.writeTo(words);
+            out.write(words.array());
+            out.writeLong(indexOffset);
+            out.writeInt(blockKeys.size());
+            out.writeLong(filterOffset);
+            out.writeInt(filter.words());
+            out.writeLong(count);
+            out.writeInt(MAGIC);
+        }
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(fileName(number)), StandardCopyOption.ATOMIC_MOVE);
+        return open(directory, number);
+    }
+
+    /**
+     * Opens a table, mapping its file and reading its index and filter onto the heap.
+     * @throws IOException if the file cannot be read or is not a table.
+     */
+    public static SSTable open(Path directory, long number) throws IOException {
+        Path path = directory.resolve(fileName(number));
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < FOOTER || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a table: " + path);
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        int footer = data.capacity() - FOOTER;
+        long indexOffset = data.getLong(footer);
+        int blockCount = data.getInt(footer + 8);
+        long filterOffset = data.getLong(footer + 12);
+        int filterWords = data.getInt(footer + 20);
+        long entries = data.getLong(footer + 24);
+        if (data.getInt(footer + 32) != MAGIC || indexOffset < 0 || blockCount <= 0 || filterOffset > footer
+            || filterOffset + (long) filterWords * 8 != footer) {
+            throw new IOException("Not a table: " + path);
+        }
+
+        byte[][] blockKeys = new byte[blockCount][];
+        int[] blockOffsets = new int[blockCount];
+        int position = (int) indexOffset;
+        for (int i = 0; i < blockCount; i++) {
+            blockKeys[i] = new byte[data.getInt(position)];
+            data.get(position + 4, blockKeys[i]);
+            position += 4 + blockKeys[i].length;
+            blockOffsets[i] = data.getInt(position);
+            position += 4;
+        }
+        byte[] maxKey = new byte[data.getInt(position)];
+        data.get(position + 4, maxKey);
+        BloomFilter filter = BloomFilter.readFrom(data, (int) filterOffset, filterWords);
+        return new SSTable(number, path, data, blockKeys, blockOffsets, (int) indexOffset, maxKey, filter, entries);
+    }
+
+    /**
+     * Returns the file numbers of the tables in the directory, and deletes the temporary files of
+     * tables that were not finished.
+     * @throws IOException if the directory cannot be listed.
+     */
+    public static List<Long> list(Path directory) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SUFFIX + TEMPORARY_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(SUFFIX)) {
+                    try {
+                        numbers.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not a table
+                    }
+                }
+            }
+        }
+        return numbers;
+    }
+
+    /**
+     * Deletes the file of a table. Lookups still running on the table keep working, since its
+     * mapping stays valid until it is garbage collected.
+     */
+    public static void delete(Path directory, long number) throws IOException {
+        Files.deleteIfExists(directory.resolve(fileName(number)));
+    }
+
+    /**
+     * Returns the value of the key, {@link LsmTree#TOMBSTONE} if the table records its deletion, or
+     * null if the table has no entry for it.
+     */
+    public byte[] get(byte[] key) {
+        if (Arrays.compareUnsigned(key, blockKeys[0]) < 0 || Arrays.compareUnsigned(key, maxKey) > 0
+            || !filter.mightContain(key)) {
+            return null;
+        }
+        int block = findBlock(key);
+        int position = blockOffsets[block];
+        int end = block + 1 < blockOffsets.length ? blockOffsets[block + 1] : dataEnd;
+        ByteBuffer wanted = ByteBuffer.wrap(key);
+        while (position < end) {
+            int keyLength = data.getInt(position);
+            int valueLength = data.getInt(position + 4);
+            int comparison = compare(wanted, data.slice(position + ENTRY_HEADER, keyLength));
+            if (comparison == 0) {
+                if (valueLength < 0) {
+                    return LsmTree.TOMBSTONE;
+                }
+                byte[] value = new byte[valueLength];
+                data.get(position + ENTRY_HEADER + keyLength, value);
+                return value;
+            }
+            if (comparison < 0) {
+                return null;
+            }
+            position += ENTRY_HEADER + keyLength + Math.max(valueLength, 0);
+        }
+        return null;
+    }
+
+    /**
+     * Returns a cursor over the entries, tombstones included.
+     */
+    public LsmTree.Cursor cursor() {
+        return new TableCursor(0);
+    }
+
+    /**
+     * Returns a cursor over the entries from a key on, tombstones included. The cursor starts in
+     * the block the key would be in, found through the index.
+     */
+    public LsmTree.Cursor cursor(byte[] start) {
+        TableCursor cursor = new TableCursor(blockOffsets[findBlock(start)]);
+        while (cursor.valid() && Arrays.compareUnsigned(cursor.key(), start) < 0) {
+            cursor.next();
+        }
+        return cursor;
+    }
+
+    public long number() {
+        return number;
+    }
+
+    public byte[] minKey() {
+        return blockKeys[0];
+    }
+
+    public byte[] maxKey() {
+        return maxKey;
+    }
+
+    /**
+     * Returns the size of the file in bytes.
+     */
+    public long size() {
+        return data.capacity();
+    }
+
+    public long entries() {
+        return entries;
+    }
+
+    @Override
+    public String toString() {
+        return path.getFileName().toString();
+    }
+
+    /**
+     * Returns the last block whose first key is not larger than the key, or the first block if
+     * every block starts after it.
+     */
+    private int findBlock(byte[] key) {
+        int low = 0;
+        int high = blockKeys.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (Arrays.compareUnsigned(blockKeys[middle], key) <= 0) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private static String fileName(long number) {
+        return String.format("%016d%s", number, SUFFIX);
+    }
+
+    /**
+     * Compares two keys as unsigned bytes, from their positions to their limits.
+     */
+    private static int compare(ByteBuffer a, ByteBuffer b) {
+        int mismatch = a.mismatch(b);
+        if (mismatch < 0) {
+            return 0;
+        }
+        if (mismatch == a.remaining() || mismatch == b.remaining()) {
+            return a.remaining() - b.remaining();
+        }
+        return Byte.compareUnsigned(a.get(a.position() + mismatch), b.get(b.position() + mismatch));
+    }
+
+    /**
+     * Decodes the entries one after the other.
+     */
+    private final class TableCursor implements LsmTree.Cursor {
+        private int position;
+        private byte[] key;
+        private byte[] value;
+
+        private TableCursor(int position) {
+            this.position = position;
+            read();
+        }
+
+        @Override
+        public boolean valid() {
+            return key != null;
+        }
+
+        @Override
+        public byte[] key() {
+            return key;
+        }
+
+        @Override
+        public byte[] value() {
+            return value;
+        }
+
+        @Override
+        public void next() {
+            position += ENTRY_HEADER + key.length + (value == LsmTree.TOMBSTONE ? 0 : value.length);
+            read();
+        }
+
+        private void read() {
+            if (position >= dataEnd) {
+                key = null;
+                value = null;
+                return;
+            }
+            int keyLength = data.getInt(position);
+            int valueLength = data.getInt(position + 4);
+            key = new byte[keyLength];
+            data.get(position + ENTRY_HEADER, key);
+            if (valueLength < 0) {
+                value = LsmTree.TOMBSTONE;
+            } else {
+                value = new byte[valueLength];
+                data.get(position + ENTRY_HEADER + keyLength, value);
+            }
+        }
+    }
+}
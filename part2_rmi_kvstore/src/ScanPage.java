@@ -0,0 +1,48 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One page of the entries returned by <method>KeyValueStoreRemote.scan</method> or
+ * <method>KeyValueStoreRemote.scanPrefix</method>, in key order.
+ * <p>
+ * The continuation token asks the server for the page after this one; it is null on the last page.
+ * The server keeps no state between pages, since the token is the last key of the page.
+ * </p>
+ */
+public class ScanPage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // copied into ArrayLists, so that the page is serializable whatever lists it was built from
+    private final ArrayList<String> keys;
+    private final ArrayList<String> values;
+    private final String continuationToken;
+
+    public ScanPage(List<String> keys, List<String> values, String continuationToken) {
+        this.keys = new ArrayList<>(keys);
+        this.values = new ArrayList<>(values);
+        this.continuationToken = continuationToken;
+    }
+
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    /**
+     * Returns the value of every key, in the order of <method>getKeys()</method>.
+     */
+    public List<String> getValues() {
+        return values;
+    }
+
+    /**
+     * Returns the token to pass to get the next page, or null if this page is the last.
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public boolean hasMore() {
+        return continuationToken != null;
+    }
+}
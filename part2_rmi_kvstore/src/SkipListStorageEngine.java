@@ -0,0 +1,78 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiPredicate;
+
+/**
+ * A thread-safe storage engine backed by a {@link ConcurrentSkipListMap}, which keeps the keys in
+ * order so that ranges of keys can be scanned.
+ * <p>
+ * Keys are ordered by <method>StorageEngine.compareKeys</method>. Reads take no lock, and
+ * putIfAbsent and delete are atomic per key; a lookup costs O(log n) comparisons instead of one
+ * hash probe.
+ * </p>
+ */
+public class SkipListStorageEngine implements StorageEngine {
+    private final ConcurrentSkipListMap<String, String> map = new ConcurrentSkipListMap<>(StorageEngine::compareKeys);
+
+    @Override
+    public String get(String key) {
+        return map.get(key);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        map.put(key, value);
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) {
+        return map.putIfAbsent(key, value) == null;
+    }
+
+    @Override
+    public boolean delete(String key) {
+        return map.remove(key) != null;
+    }
+
+    /**
+     * Visits the entries in key order.
+     */
+    @Override
+    public void scan(BiPredicate<String, String> visitor) {
+        visit(map, visitor);
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return true;
+    }
+
+    @Override
+    public void scanFrom(String start, boolean inclusive, BiPredicate<String, String> visitor) {
+        visit(map.tailMap(start, inclusive), visitor);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public Map<String, String> snapshot() {
+        return new HashMap<>(map);
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    private static void visit(Map<String, String> entries, BiPredicate<String, String> visitor) {
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (!visitor.test(entry.getKey(), entry.getValue())) {
+                return;
+            }
+        }
+    }
+}
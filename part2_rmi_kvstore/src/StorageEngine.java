@@ -0,0 +1,167 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * The data structure that holds the entries of the key-value store.
+ * <p>
+ * Engines are not required to be thread-safe: <class>KeyValueStoreRemoteImpl</class> calls an
+ * engine only while holding its lock, unless the engine is thread-safe and each of its single
+ * operations is atomic. Implementations are chosen by name through <class>StorageEngines</class>.
+ * </p>
+ */
+public interface StorageEngine extends Closeable {
+
+    /**
+     * Returns the value of the key, or null if the key does not exist.
+     */
+    String get(String key);
+
+    /**
+     * Stores the value, replacing the current value of the key if there is one.
+     */
+    void put(String key, String value);
+
+    /**
+     * Stores the value unless the key already exists.
+     * @return true if the value was stored, false if the key already existed.
+     */
+    boolean putIfAbsent(String key, String value);
+
+    /**
+     * Returns true if the engine keeps the deadlines of its entries across a restart without
+     * enforcing them: it writes the deadlines passed to the writes that take one to disk with their
+     * entries, drops the entries that expired while it was closed, and passes the deadlines of the
+     * others to <method>scanDeadlines</method>. An <class>ExpiringStorageEngine</class> hands its
+     * deadlines to such an engine.
+     */
+    default boolean keepsDeadlines() {
+        return false;
+    }
+
+    /**
+     * Stores the value with the deadline of its entry, replacing the current value of the key if
+     * there is one.
+     * @param expiresAt the deadline in milliseconds since the epoch, or 0 if the entry does not
+     *                  expire.
+     * @throws UnsupportedOperationException if the engine does not keep deadlines.
+     */
+    default void put(String key, String value, long expiresAt) {
+        throw new UnsupportedOperationException("The storage engine does not keep deadlines");
+    }
+
+    /**
+     * Stores the value with the deadline of its entry unless the key already exists.
+     * @param expiresAt the deadline in milliseconds since the epoch, or 0 if the entry does not
+     *                  expire.
+     * @return true if the value was stored, false if the key already existed.
+     * @throws UnsupportedOperationException if the engine neither keeps nor enforces deadlines.
+     */
+    default boolean putIfAbsent(String key, String value, long expiresAt) {
+        throw new UnsupportedOperationException("The storage engine does not keep deadlines");
+    }
+
+    /**
+     * Passes the key and deadline of every entry that has one to the visitor. Engines that do not
+     * keep deadlines pass nothing.
+     */
+    default void scanDeadlines(ObjLongConsumer<String> visitor) {
+    }
+
+    /**
+     * Removes the key.
+     * @return true if the key existed.
+     */
+    boolean delete(String key);
+
+    /**
+     * Passes the entries to the visitor until it returns false, in an order defined by the engine.
+     */
+    void scan(BiPredicate<String, String> visitor);
+
+    /**
+     * Returns true if the engine keeps its keys in order and supports <method>scanFrom</method>.
+     */
+    default boolean isOrdered() {
+        return false;
+    }
+
+    /**
+     * Passes the entries from a key on to the visitor, in the order of <method>compareKeys</method>,
+     * until it returns false. Entries written during the scan may or may not be visited.
+     * @param start     the key to start at; may be empty.
+     * @param inclusive whether the entry of the start key itself is visited.
+     * @throws UnsupportedOperationException if the engine is not ordered.
+     */
+    default void scanFrom(String start, boolean inclusive, BiPredicate<String, String> visitor) {
+        throw new UnsupportedOperationException("The storage engine does not keep its keys in order");
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    int size();
+
+    /**
+     * Returns a copy of the entries that no later write affects, for persisting or shipping the
+     * store.
+     */
+    Map<String, String> snapshot();
+
+    /**
+     * Persists the entries, so that a restart does not have to replay the writes made so far.
+     * Engines that keep nothing on disk do nothing. Called from a background thread without the
+     * lock of <class>KeyValueStoreRemoteImpl</class>, so an engine that persists must keep its
+     * writers out by itself.
+     * @throws IOException if the entries cannot be written.
+     */
+    default void checkpoint() throws IOException {
+    }
+
+    /**
+     * Releases the files held by the engine. The engine must not be used afterwards.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * Compares two keys by their code points, which orders them like their UTF-8 bytes; the order of
+     * the keys of an ordered engine. {@link String#compareTo} differs from it for
+     * characters beyond U+FFFF.
+     */
+    static int compareKeys(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            int x = a.charAt(i);
+            int y = b.charAt(i);
+            if (x != y) {
+                // moves the surrogates above the other characters from U+E000 on
+                if (x >= 0xD800 && y >= 0xD800) {
+                    x += x >= 0xE000 ? -0x800 : 0x2000;
+                    y += y >= 0xE000 ? -0x800 : 0x2000;
+                }
+                return x - y;
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    /**
+     * Registers the listener that receives the keys the engine removes on its own, to stay within
+     * a capacity. Engines that never do ignore it.
+     * @param listener receives the key of every evicted entry.
+     */
+    default void setEvictionListener(Consumer<String> listener) {
+    }
+
+    /**
+     * Returns true if the engine may be called from several threads at once without a lock.
+     */
+    default boolean isThreadSafe() {
+        return false;
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Creates storage engines by name, so that a server can be started with any engine.
+ * <p>
+ * The server uses the engine named by the system property {@value #ENGINE_PROPERTY}
+ * (e.g. {@code -Dkvstore.engine=concurrent}), and {@value #DEFAULT_ENGINE} if it is not set.
+ * </p>
+ * <p>
+ * Setting {@value #WAL_DIR_PROPERTY} to a directory makes the writes durable: the engine is
+ * wrapped in a <class>LoggedStorageEngine</class> logging to that directory, restored from it on
+ * startup and closed when the JVM exits. {@value #WAL_DURABILITY_PROPERTY} chooses when the log is
+ * forced to disk: none, batched (the default) or per_op. Every {@value #SNAPSHOT_INTERVAL_PROPERTY}
+ * seconds ({@value #DEFAULT_SNAPSHOT_INTERVAL} by default, 0 to disable), a background thread
+ * writes a snapshot of the store, after which a restart replays only the log written since.
+ * </p>
+ * <p>
+ * The {@value #LSM_ENGINE} engine keeps its entries on disk in the {@value #WAL_DIR_PROPERTY}
+ * directory, which it requires. It logs its writes itself, so it is not wrapped, and a checkpoint
+ * flushes its memtable instead of writing a snapshot.
+ * </p>
+ * <p>
+ * Setting {@value #CACHE_ENTRIES_PROPERTY} to a number of entries, or {@value #CACHE_BYTES_PROPERTY}
+ * to a number of bytes, runs the store as a cache of that capacity: the engine is wrapped in a
+ * <class>BoundedStorageEngine</class>, which evicts the entries least likely to be read again, and
+ * whose hit, miss and eviction counters are registered with the platform MBean server as
+ * {@value #CACHE_MBEAN_NAME}. With a write-ahead log, the bounded engine is the one the log
+ * wraps, so that its lock is never held while a write waits for the disk; evictions are not
+ * logged, and a restart restores entries up to the capacity. The {@value #LSM_ENGINE} engine
+ * keeps its entries on disk and cannot be bounded.
+ * </p>
+ */
+public final class StorageEngines {
+    public static final String ENGINE_PROPERTY = "kvstore.engine";
+    public static final String WAL_DIR_PROPERTY = "kvstore.wal.dir";
+    public static final String WAL_DURABILITY_PROPERTY = "kvstore.wal.durability";
+    public static final String SNAPSHOT_INTERVAL_PROPERTY = "kvstore.snapshot.interval";
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 300;
+    public static final String DEFAULT_ENGINE = "hashmap";
+    public static final String LSM_ENGINE = "lsm";
+    public static final String CACHE_ENTRIES_PROPERTY = "kvstore.cache.entries";
+    public static final String CACHE_BYTES_PROPERTY = "kvstore.cache.bytes";
+    public static final String CACHE_MBEAN_NAME = "kvstore:type=Cache";
+
+    private StorageEngines() {
+    }
+
+    /**
+     * Creates an empty in-memory engine.
+     * @param name The name of the engine: hashmap, concurrent or skiplist.
+     * @throws IllegalArgumentException if there is no in-memory engine with this name.
+     */
+    public static StorageEngine create(String name) {
+        switch (name.toLowerCase()) {
+            case "hashmap":
+                return new HashMapStorageEngine();
+            case "concurrent":
+                return new ConcurrentMapStorageEngine();
+            case "skiplist":
+                return new SkipListStorageEngine();
+            case LSM_ENGINE:
+                throw new IllegalArgumentException("The " + LSM_ENGINE + " engine needs -D" + WAL_DIR_PROPERTY);
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + name);
+        }
+    }
+
+    /**
+     * Creates the engine configured by the system properties, restoring its entries from the
+     * write-ahead log or the LSM tree if one is configured.
+     * @throws IllegalArgumentException if the engine name, the durability, the snapshot interval or
+     *                                  the cache capacity is invalid, or a cache capacity is set
+     *                                  for the LSM engine.
+     * @throws UncheckedIOException if the snapshot, the write-ahead log or the tree cannot be loaded.
+     */
+    public static StorageEngine fromSystemProperty() {
+        String name = System.getProperty(ENGINE_PROPERTY, DEFAULT_ENGINE);
+        String directory = System.getProperty(WAL_DIR_PROPERTY);
+        boolean cache = System.getProperty(CACHE_ENTRIES_PROPERTY) != null
+            || System.getProperty(CACHE_BYTES_PROPERTY) != null;
+        if (cache && name.equalsIgnoreCase(LSM_ENGINE)) {
+            throw new IllegalArgumentException("The " + LSM_ENGINE + " engine cannot be bounded by a cache capacity");
+        }
+        if (directory == null) {
+            return bounded(create(name));
+        }
+
+        String durabilityName = System.getProperty(WAL_DURABILITY_PROPERTY, "batched");
+        WriteAheadLog.Durability durability;
+        try {
+            durability = WriteAheadLog.Durability.valueOf(durabilityName.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown durability: " + durabilityName);
+        }
+        long interval = snapshotInterval();
+        try {
+            StorageEngine durable = name.equalsIgnoreCase(LSM_ENGINE)
+                ? new LsmStorageEngine(Paths.get(directory), durability)
+                : new LoggedStorageEngine(bounded(create(name)), Paths.get(directory), durability);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    durable.close();
+                } catch (IOException e) {
+                    LoggerUtil.logError("Failed to close the write-ahead log: %s", e.getMessage());
+                    // the hooks run concurrently, so the one of the log writer may be done already
+                    LoggerUtil.flush();
+                }
+            }, "storage-shutdown"));
+            if (interval > 0) {
+                scheduleCheckpoints(durable, interval);
+            }
+            return durable;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open the write-ahead log in " + directory, e);
+        }
+    }
+
+    /**
+     * Returns the configured seconds between snapshots, 0 if snapshots are disabled.
+     * @throws IllegalArgumentException if the interval is not a non-negative number.
+     */
+    private static long snapshotInterval() {
+        String value = System.getProperty(SNAPSHOT_INTERVAL_PROPERTY, Long.toString(DEFAULT_SNAPSHOT_INTERVAL));
+        try {
+            long interval = Long.parseLong(value);
+            if (interval >= 0) {
+                return interval;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid snapshot interval: " + value);
+    }
+
+    /**
+     * Wraps the engine in a <class>BoundedStorageEngine</class> if a cache capacity is configured,
+     * and registers its counters.
+     * @throws IllegalArgumentException if both capacities are set, or one is not a positive number.
+     */
+    private static StorageEngine bounded(StorageEngine engine) {
+        String entries = System.getProperty(CACHE_ENTRIES_PROPERTY);
+        String bytes = System.getProperty(CACHE_BYTES_PROPERTY);
+        if (entries == null && bytes == null) {
+            return engine;
+        }
+        if (entries != null && bytes != null) {
+            throw new IllegalArgumentException("Set either " + CACHE_ENTRIES_PROPERTY + " or " + CACHE_BYTES_PROPERTY);
+        }
+        String value = entries != null ? entries : bytes;
+        long capacity;
+        try {
+            capacity = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            capacity = 0;
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid cache capacity: " + value);
+        }
+        BoundedStorageEngine bounded = new BoundedStorageEngine(engine,
+            entries != null ? BoundedStorageEngine.Bound.ENTRIES : BoundedStorageEngine.Bound.BYTES, capacity);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bounded, new ObjectName(CACHE_MBEAN_NAME));
+        } catch (JMException e) {
+            LoggerUtil.logError("Failed to register the cache counters: %s", e.getMessage());
+        }
+        return bounded;
+    }
+
+    /**
+     * Checkpoints the engine on a daemon thread every interval.
+     */
+    private static void scheduleCheckpoints(StorageEngine engine, long interval) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "snapshot-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                engine.checkpoint();
+            } catch (IOException | RuntimeException e) {
+                LoggerUtil.logError("Failed to write a snapshot: %s", e.getMessage());
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+}
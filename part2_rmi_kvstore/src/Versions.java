@@ -0,0 +1,32 @@
+/**
+ * The versions compared by <method>KeyValueStoreRemote.compareAndSet</method>.
+ * <p>
+ * Every write of a key gives its entry a new version, which the server keeps next to the entry and
+ * returns from <method>KeyValueStoreRemote.getVersion</method>. Versions come from one counter per
+ * server, which <method>next</method> keeps ahead of the clock: the time of the write in
+ * milliseconds, shifted left by {@value #SEQUENCE_BITS} bits, or one more than the previous version
+ * if that is larger. A version is therefore never handed out twice, even to a key deleted and
+ * written again, or across a restart, and a compare-and-set fails whenever the key was written
+ * since the client read its version, even if the value was changed back in the meantime.
+ * </p>
+ * <p>
+ * An entry restored from disk after a restart has version 0 until it is written again.
+ * </p>
+ */
+public final class Versions {
+    // the bits below the time, which number the writes within one millisecond
+    private static final int SEQUENCE_BITS = 20;
+
+    private Versions() {
+    }
+
+    /**
+     * Returns the version following the previous one.
+     * @param previous the last version handed out, or 0
+     * @param now the current time in milliseconds since the epoch
+     * @return the next version
+     */
+    public static long next(long previous, long now) {
+        return Math.max(previous + 1, now << SEQUENCE_BITS);
+    }
+}
@@ -0,0 +1,49 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiPredicate;
+
+/**
+ * A storage engine backed by a {@link HashMap}. Not thread-safe.
+ */
+public class HashMapStorageEngine implements StorageEngine {
+    private final Map<String, String> map = new HashMap<>();
+
+    @Override
+    public String get(String key) {
+        return map.get(key);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        map.put(key, value);
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) {
+        return map.putIfAbsent(key, value) == null;
+    }
+
+    @Override
+    public boolean delete(String key) {
+        return map.remove(key) != null;
+    }
+
+    @Override
+    public void scan(BiPredicate<String, String> visitor) {
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            if (!visitor.test(entry.getKey(), entry.getValue())) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public Map<String, String> snapshot() {
+        return new HashMap<>(map);
+    }
+}
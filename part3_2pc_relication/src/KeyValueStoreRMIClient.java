@@ -4,6 +4,9 @@ import java.util.Scanner;
 
 /**
  * Represents the RMI clients. It is able to get the remote object reference from RMI Registry.
+ * CAS asks for the value last read and sends its version. With
+ * {@code -Dkvstore.nearcache.entries=N} the values read are kept in a near cache, see
+ * <class>NearCachingKeyValueStore</class>.
  */
 public class KeyValueStoreRMIClient {
     public static void main(String[] args) {
@@ -26,6 +29,8 @@ public class KeyValueStoreRMIClient {
             // Looks up the remote object by the name "KeyValueRMIStore".
             KeyValueStoreRemote store = (KeyValueStoreRemote) registry.lookup("KeyValueRMIStore");
             System.out.println("Connected to RMI Key-Value Store on " + host + ":" + port);
+            // Keeps the values read in a near cache, if one is configured.
+            store = NearCachingKeyValueStore.fromSystemProperties(store);
 
             // Pre-populates some key-value pairs
             for (int i = 0; i < 5; i++) {
@@ -41,16 +46,22 @@ public class KeyValueStoreRMIClient {
 
             Scanner scanner = new Scanner(System.in);
             while (true) {
-                System.out.print("Enter command (PUT/GET/DELETE) or 'exit': ");
+                System.out.print("Enter command (PUT/GET/VERSION/DELETE/UPSERT/CAS/INCR/APPEND) or 'exit': ");
                 String command = scanner.nextLine().trim().toUpperCase();
 
                 if (command.equals("EXIT")) {
                     System.out.println("Exiting client...");
+                    if (store instanceof NearCachingKeyValueStore) {
+                        NearCache cache = ((NearCachingKeyValueStore) store).getCache();
+                        System.out.printf("Near cache: %d hits, %d misses, %d invalidations%n",
+                            cache.getHits(), cache.getMisses(), cache.getInvalidations());
+                        ((NearCachingKeyValueStore) store).close();
+                    }
                     break;
                 }
 
-                if (!command.equals("PUT") && !command.equals("GET") && !command.equals("DELETE")) {
-                    System.out.println("Invalid command. Use PUT, GET, or DELETE.");
+                if (!command.matches("PUT|GET|VERSION|DELETE|UPSERT|CAS|INCR|APPEND")) {
+                    System.out.println("Invalid command. Use PUT, GET, VERSION, DELETE, UPSERT, CAS, INCR, or APPEND.");
                     continue;
                 }
 
@@ -70,7 +81,18 @@ public class KeyValueStoreRMIClient {
                                 System.out.println("Error: Value cannot be empty for PUT operation.");
                                 continue;
                             }
-                            store.put(key, value);
+                            System.out.print("Enter TTL in ms (empty for none): ");
+                            String ttl = scanner.nextLine().trim();
+                            if (ttl.isEmpty()) {
+                                store.put(key, value);
+                            } else {
+                                try {
+                                    store.put(key, value, Long.parseLong(ttl));
+                                } catch (NumberFormatException e) {
+                                    System.out.println("Error: TTL must be a number of milliseconds.");
+                                    continue;
+                                }
+                            }
                             System.out.println("PUT succeeded.");
                             break;
 
@@ -83,10 +105,53 @@ public class KeyValueStoreRMIClient {
                             }
                             break;
 
+                        case "VERSION":
+                            System.out.println("VERSION result: " + store.getVersion(key));
+                            break;
+
                         case "DELETE":
                             store.delete(key);
                             System.out.println("DELETE succeeded.");
                             break;
+
+                        case "UPSERT":
+                            System.out.print("Enter value: ");
+                            store.upsert(key, scanner.nextLine().trim());
+                            System.out.println("UPSERT succeeded.");
+                            break;
+
+                        case "CAS":
+                            System.out.print("Enter the version last read: ");
+                            long version;
+                            try {
+                                version = Long.parseLong(scanner.nextLine().trim());
+                            } catch (NumberFormatException e) {
+                                System.out.println("Error: Version must be a number.");
+                                break;
+                            }
+                            System.out.print("Enter new value: ");
+                            if (store.compareAndSet(key, version, scanner.nextLine().trim())) {
+                                System.out.println("CAS succeeded.");
+                            } else {
+                                System.out.println("CAS failed: the key was written since.");
+                            }
+                            break;
+
+                        case "INCR":
+                            System.out.print("Enter delta: ");
+                            try {
+                                long delta = Long.parseLong(scanner.nextLine().trim());
+                                System.out.println("INCR result: " + store.increment(key, delta));
+                            } catch (NumberFormatException e) {
+                                System.out.println("Error: Delta must be a number.");
+                            }
+                            break;
+
+                        case "APPEND":
+                            System.out.print("Enter suffix: ");
+                            store.append(key, scanner.nextLine().trim());
+                            System.out.println("APPEND succeeded.");
+                            break;
                     }
                 } catch (MalformedRequestException e) {
                     System.out.println("Operation failed: " + e.getMessage());
@@ -1,3 +1,4 @@
+import java.io.UncheckedIOException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.RemoteException;
@@ -59,6 +60,14 @@ public class KeyValueStoreRMIServer {
         int myPort = 1099;
         List<String> otherReplicas = new ArrayList<>();
 
+        StorageEngine engine;
+        try {
+            engine = StorageEngines.fromSystemProperty();
+        } catch (IllegalArgumentException | UncheckedIOException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
         // initializes the scheduler
         scheduler = Executors.newScheduledThreadPool(1);
         // calls retryFailedReplicas regularly，once every RETRY_INTERVAL milliseconds
@@ -81,7 +90,7 @@ public class KeyValueStoreRMIServer {
             Registry registry = LocateRegistry.createRegistry(myPort);
 
             // instantiates the local KeyValueStoreRemoteImpl
-            localObj = new KeyValueStoreRemoteImpl();
+            localObj = new KeyValueStoreRemoteImpl(engine);
             // adds the coordinator, i.e. the current replica to the replicas
             // then in the voting phase, the current replica can also be asked if ready
             replicaStubs.add(localObj);
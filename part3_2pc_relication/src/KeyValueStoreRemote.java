@@ -3,11 +3,13 @@ import java.rmi.RemoteException;
 
 /**
  * The remote interface in which all available remote methods of the key value store are defined.
- * For this project, the methods can be invoked remotely include PUT, GET, DELETE. Additionally,
- * The 2PL-related methods includes prepare, commit, and abort, which are used for internal calls
- * among replicas.
+ * For this project, the methods can be invoked remotely include PUT, GET, DELETE, and the updates
+ * UPSERT, compare-and-set, INCREMENT and APPEND, which overwrite existing keys in one call.
+ * Additionally, The 2PL-related methods includes prepare, commit, and abort, which are used for
+ * internal calls among replicas. Clients keeping a near cache subscribe an
+ * <class>InvalidationListener</class> to learn which keys changed.
  * All methods in this interface can throw RemoteException to comply with the Java RMI
- * specification. In addition, PUT, GET, and DELETE can also throw MalformedRequestException, which
+ * specification. In addition, all client methods can also throw MalformedRequestException, which
  * includes the application-specific exceptions that are used to handle the invalid requests from
  * clients.
  */
@@ -21,6 +23,17 @@ public interface KeyValueStoreRemote extends Remote {
      */
     void put(String key, String value) throws RemoteException, MalformedRequestException;
 
+    /**
+     * Put a new key-value pair into the store that expires after a time to live. Until then it
+     * behaves like any other entry; afterwards the key no longer exists.
+     * @param key       non-empty string
+     * @param value     non-empty string
+     * @param ttlMillis the time to live in milliseconds, positive
+     * @throws RemoteException              RMI exceptions
+     * @throws MalformedRequestException    invalid key, value or time to live exceptions
+     */
+    void put(String key, String value, long ttlMillis) throws RemoteException, MalformedRequestException;
+
     /**
      * Get the value associated with a key.
      * @param key non-empty string
@@ -38,13 +51,67 @@ public interface KeyValueStoreRemote extends Remote {
      */
     void delete(String key) throws RemoteException, MalformedRequestException;
 
+    /**
+     * Put a key-value pair into the store whether or not the key already exists. An existing
+     * entry loses its time to live.
+     * @param key   non-empty string
+     * @param value non-empty string
+     * @throws RemoteException              RMI exceptions
+     * @throws MalformedRequestException    invalid key or value exceptions
+     */
+    void upsert(String key, String value) throws RemoteException, MalformedRequestException;
+
+    /**
+     * Get the version of the entry of a key, which <method>compareAndSet</method> expects, see
+     * <class>Versions</class>.
+     * @param key non-empty string
+     * @return the version, which changes with every write of the key
+     * @throws RemoteException              RMI exceptions
+     * @throws MalformedRequestException    invalid key, or a key that does not exist
+     */
+    long getVersion(String key) throws RemoteException, MalformedRequestException;
+
+    /**
+     * Replace the value of a key if its entry still has the expected version.
+     * @param key             non-empty string
+     * @param expectedVersion the version the caller read with <method>getVersion</method>
+     * @param value           non-empty string
+     * @return true if the value was replaced, false if the key has another version
+     * @throws RemoteException              RMI exceptions
+     * @throws MalformedRequestException    invalid key or value, or a key that does not exist
+     */
+    boolean compareAndSet(String key, long expectedVersion, String value)
+        throws RemoteException, MalformedRequestException;
+
+    /**
+     * Add a delta to the decimal number stored under a key, 0 if the key does not exist.
+     * @param key   non-empty string
+     * @param delta the number to add, may be negative
+     * @return the new number
+     * @throws RemoteException              RMI exceptions
+     * @throws MalformedRequestException    invalid key, a value that is not a number, or an overflow
+     */
+    long increment(String key, long delta) throws RemoteException, MalformedRequestException;
+
+    /**
+     * Append a suffix to the value of a key, or store it if the key does not exist.
+     * @param key    non-empty string
+     * @param suffix non-empty string
+     * @throws RemoteException              RMI exceptions
+     * @throws MalformedRequestException    invalid key or suffix exceptions
+     */
+    void append(String key, String suffix) throws RemoteException, MalformedRequestException;
+
     /**
      * Used for the 1st phase, i.e. voting phase, to check if the specified operation can be
      * executed. Returns 'ACK' to notify the client that the operation can be executed, returns
-     * 'NACK' otherwise
+     * 'NACK' otherwise. A key stays reserved by a prepared operation until it commits or aborts,
+     * and operations on it are refused meanwhile, so an update sees the same value at its prepare
+     * and at its commit.
      * @param txId transaction ID
      * @param operation the specified operation
-     * @return "ACK" represents ok；"NACK" represents exceptions
+     * @return "ACK" represents ok；"NACK" represents exceptions, possibly followed by the reason;
+     * "CONFLICT" represents a compare-and-set whose key has another version
      */
     String prepare(String txId, Operation operation) throws RemoteException;
 
@@ -61,4 +128,21 @@ public interface KeyValueStoreRemote extends Remote {
      * @return "ABORTED" or throws an exception
      */
     String abort(String txId) throws RemoteException;
+
+    /**
+     * Register a listener to be told of the keys this replica commits or reclaims from now on, see
+     * <class>NearCachingKeyValueStore</class>. The keys are sent asynchronously, after the commits,
+     * and the listener is dropped if a call to it keeps failing. Subscribing a listener again
+     * restarts its sequence numbers.
+     * @param listener the exported listener
+     * @throws RemoteException RMI exceptions
+     */
+    void subscribe(InvalidationListener listener) throws RemoteException;
+
+    /**
+     * Stop telling a listener of the keys committed.
+     * @param listener the listener passed to subscribe
+     * @throws RemoteException RMI exceptions
+     */
+    void unsubscribe(InvalidationListener listener) throws RemoteException;
 }
@@ -4,31 +4,73 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.List;
 import java.util.ArrayList;
 
 /**
  * The implementation class of KeyValueStoreRemote with replication (2PC).
+ * <p>
+ * Entries written with a time to live are reclaimed by every replica as it commits later
+ * operations: the store is wrapped in an <class>ExpiringStorageEngine</class>, which removes the
+ * entries due by the coordinator's timestamp of each committed operation before applying it. Keys
+ * reserved by other prepared operations are left until those commit, since replicas commit in
+ * different orders. Reads hide expired entries by the replica's own clock in the meantime.
+ * </p>
+ * <p>
+ * UPSERT, compare-and-set, INCREMENT and APPEND are replicated as one transaction each, which every
+ * replica applies to its current value of the key, as of the coordinator's timestamp, instead of
+ * the GET, DELETE and PUT a client would need otherwise. A prepared operation reserves its key
+ * until it commits or aborts, so the value an update was checked against at the voting phase is
+ * still the one it is applied to, and the coordinator computes the result from its own copy in
+ * between.
+ * </p>
+ * <p>
+ * Every key a replica commits or reclaims is published to the <class>InvalidationListener</class>s
+ * that clients with a near cache subscribed with that replica. Since every replica commits every
+ * transaction, a client only needs to subscribe with the replica it talks to. The keys are
+ * delivered by the threads of the <class>InvalidationPublisher</class>, so commits never wait
+ * for the clients.
+ * </p>
  */
 public class KeyValueStoreRemoteImpl extends UnicastRemoteObject implements KeyValueStoreRemote {
     // The version number is a 8-byte number, which will be serialized together with class name as
     // the additional information, to support the later deserialization for checking if it has the
     // correct version of the class.
     private static final long serialVersionUID = 1L;
+    // the vote of a replica on which the key of the operation is reserved by another one
+    private static final String BUSY = "NACK: key is being updated";
+    // the number of times an operation is prepared again while its key is reserved, and the longest
+    // random pause in milliseconds before each attempt
+    private static final int MAX_ATTEMPTS = 20;
+    private static final int MAX_BACKOFF_MILLIS = 20;
     // local store
-    private final Map<String, String> store = new HashMap<>();
+    private final ExpiringStorageEngine store;
     // The lock used to guarantee the exclusion of updating the store.
     private final ReentrantLock lock = new ReentrantLock();
     // the list used to record the references of other replicas.
     private List<KeyValueStoreRemote> replicas = new ArrayList<>();
     // temporary storage used to record the 2PC operations(txId -> Operation)
     private Map<String, Operation> pendingOperations = new HashMap<>();
+    // the keys of the pending operations (key -> txId), which are reserved until they commit or abort
+    private final Map<String, String> reservedKeys = new HashMap<>();
+    private final InvalidationPublisher invalidations = new InvalidationPublisher();
 
     /**
-     * The constructor of this class.
+     * The constructor of this class. Uses the storage engine named by the
+     * {@value StorageEngines#ENGINE_PROPERTY} system property.
      */
     public KeyValueStoreRemoteImpl() throws RemoteException {
+        this(StorageEngines.fromSystemProperty());
+    }
+
+    /**
+     * The constructor of this class.
+     * @param store the engine holding the entries, only used while holding the lock.
+     */
+    public KeyValueStoreRemoteImpl(StorageEngine store) throws RemoteException {
         super();
+        this.store = new ExpiringStorageEngine(store);
     }
 
     /**
@@ -48,41 +90,40 @@ public class KeyValueStoreRemoteImpl extends UnicastRemoteObject implements KeyV
      */
     @Override
     public void put(String key, String value) throws RemoteException, MalformedRequestException {
-        validateKey(key);
-        if (value == null || value.trim().isEmpty()) {
-            throw new MalformedRequestException("Value cannot be null or empty for PUT.");
-        }
-
-        // I set the current replica as the coordinator of 2PC
-        String txId = UUID.randomUUID().toString();
-        // Boxes the operation as an instance of Operation
-        Operation op = new Operation(Operation.Type.PUT, key, value);
+        put(key, value, System.currentTimeMillis(), 0);
+    }
 
-        // voting phase
-        // in this phase, the coordinator asks all participants if they are ready to commit the transaction
-        // and if any participant says "no", in this project "NACK", then abort.
-        for (KeyValueStoreRemote replica : replicas) {
-            try {
-                String ack = replica.prepare(txId, op);
-                if (!"ACK".equals(ack)) {
-                    throw new MalformedRequestException("Replica returned NACK or invalid ack: " + ack);
-                }
-            } catch (Exception e) {
-                rollback2PC(txId);
-                throw new MalformedRequestException("Prepare failed on some replica: " + e.getMessage());
-            }
+    /**
+     * {@inheritDoc}
+     * @param key       non-empty string {@inheritDoc}
+     * @param value     non-empty string {@inheritDoc}
+     * @param ttlMillis positive number {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     * @throws MalformedRequestException {@inheritDoc}
+     */
+    @Override
+    public void put(String key, String value, long ttlMillis) throws RemoteException, MalformedRequestException {
+        if (ttlMillis <= 0) {
+            throw new MalformedRequestException("TTL must be positive: " + ttlMillis);
         }
+        long now = System.currentTimeMillis();
+        put(key, value, now, now + ttlMillis < now ? Long.MAX_VALUE : now + ttlMillis);
+    }
 
-        // commit/abort phase
-        // in this project, it can not abort since the assumption that no servers will fail
-        for (KeyValueStoreRemote replica : replicas) {
-            try {
-                replica.commit(txId);
-            } catch (Exception e) {
-                throw new MalformedRequestException("Commit failed on some replica: " + e.getMessage());
-            }
-        }
-        System.out.println("[Coordinator] 2PC success for PUT " + key + "=" + value);
+    /**
+     * Replicates a PUT through 2PC.
+     * @param now       the timestamp of the operation
+     * @param expiresAt the deadline of the entry, 0 for none
+     */
+    private void put(String key, String value, long now, long expiresAt) throws MalformedRequestException {
+        validateKey(key);
+        validateValue(value, "PUT");
+
+        // Boxes the operation as an instance of Operation
+        Operation op = new Operation(Operation.Type.PUT, key, value, now, expiresAt);
+        // I set the current replica as the coordinator of 2PC
+        replicate(op);
+        LoggerUtil.logSampled("[Coordinator] 2PC success for PUT %s=%s", key, value);
     }
 
     /**
@@ -98,7 +139,7 @@ public class KeyValueStoreRemoteImpl extends UnicastRemoteObject implements KeyV
         lock.lock();
         try {
             String value = store.get(key);
-            System.out.printf("[Server] GET: %s => %s%n", key, (value == null ? "NOT_FOUND" : value));
+            LoggerUtil.logSampled("[Server] GET: %s => %s", key, (value == null ? "NOT_FOUND" : value));
             return value;
         } finally {
             lock.unlock();
@@ -114,28 +155,173 @@ public class KeyValueStoreRemoteImpl extends UnicastRemoteObject implements KeyV
     @Override
     public void delete(String key) throws RemoteException, MalformedRequestException {
         validateKey(key);
-        String txId = UUID.randomUUID().toString();
-        Operation op = new Operation(Operation.Type.DELETE, key, null);
+        replicate(new Operation(Operation.Type.DELETE, key, null));
+        LoggerUtil.logSampled("[Coordinator] 2PC success for DELETE %s", key);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param key   non-empty string {@inheritDoc}
+     * @param value non-empty string {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     * @throws MalformedRequestException {@inheritDoc}
+     */
+    @Override
+    public void upsert(String key, String value) throws RemoteException, MalformedRequestException {
+        validateKey(key);
+        validateValue(value, "UPSERT");
+        replicate(new Operation(Operation.Type.UPSERT, key, value));
+        LoggerUtil.logSampled("[Coordinator] 2PC success for UPSERT %s=%s", key, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param key non-empty string {@inheritDoc}
+     * @return {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     * @throws MalformedRequestException {@inheritDoc}
+     */
+    @Override
+    public long getVersion(String key) throws RemoteException, MalformedRequestException {
+        validateKey(key);
+        lock.lock();
+        try {
+            if (store.get(key) == null) {
+                throw new MalformedRequestException("Key not found: " + key);
+            }
+            long version = store.getVersion(key);
+            LoggerUtil.logSampled("[Server] VERSION: %s => %d", key, version);
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     * @throws MalformedRequestException {@inheritDoc}
+     */
+    @Override
+    public boolean compareAndSet(String key, long expectedVersion, String value)
+        throws RemoteException, MalformedRequestException {
+        validateKey(key);
+        validateValue(value, "CAS");
+        Operation op = new Operation(Operation.Type.CAS, key, value, System.currentTimeMillis(), 0,
+            expectedVersion);
+        boolean set = replicate(op) != null;
+        LoggerUtil.logSampled("[Coordinator] 2PC %s for CAS %s=%s", set ? "success" : "conflict", key, value);
+        return set;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     * @throws MalformedRequestException {@inheritDoc}
+     */
+    @Override
+    public long increment(String key, long delta) throws RemoteException, MalformedRequestException {
+        validateKey(key);
+        Operation op = new Operation(Operation.Type.INCR, key, null, System.currentTimeMillis(), 0, delta);
+        String value = replicate(op);
+        LoggerUtil.logSampled("[Coordinator] 2PC success for INCREMENT %s=%s", key, value);
+        return Long.parseLong(value);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     * @throws MalformedRequestException {@inheritDoc}
+     */
+    @Override
+    public void append(String key, String suffix) throws RemoteException, MalformedRequestException {
+        validateKey(key);
+        if (suffix == null || suffix.isEmpty()) {
+            throw new MalformedRequestException("Suffix cannot be null or empty for APPEND.");
+        }
+        replicate(new Operation(Operation.Type.APPEND, key, suffix));
+        LoggerUtil.logSampled("[Coordinator] 2PC success for APPEND %s+=%s", key, suffix);
+    }
+
+    /**
+     * Replicates an operation through 2PC, and computes its result from the copy of this replica
+     * between the two phases, while every replica holds its key reserved. While another operation
+     * holds the key on some replica, the operation is aborted and prepared again after a random
+     * pause, up to {@value #MAX_ATTEMPTS} times, so that PUTs and DELETEs racing an update of the
+     * same key wait for it like the updates do.
+     * @param op the operation
+     * @return the value an update leaves under its key, or null for a PUT or DELETE, or if a
+     * replica reported a CONFLICT
+     */
+    private String replicate(Operation op) throws MalformedRequestException {
+        for (int attempt = 1; ; attempt++) {
+            String txId = UUID.randomUUID().toString();
+            String ack = vote(txId, op);
+            if ("ACK".equals(ack)) {
+                return commitUpdate(txId, op);
+            }
+            rollback2PC(txId);
+            if ("CONFLICT".equals(ack)) {
+                return null;
+            }
+            if (!BUSY.equals(ack) || attempt == MAX_ATTEMPTS) {
+                throw new MalformedRequestException("Replica returned NACK or invalid ack: " + ack);
+            }
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextInt(1, MAX_BACKOFF_MILLIS + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MalformedRequestException("Interrupted while waiting for " + op.getKey());
+            }
+        }
+    }
 
-        // voting phase
+    /**
+     * The voting phase of an operation: asks all replicas to prepare it, and stops at the first vote
+     * that is not "ACK".
+     * @return "ACK", or the first other vote
+     */
+    private String vote(String txId, Operation op) throws MalformedRequestException {
         for (KeyValueStoreRemote replica : replicas) {
+            String ack;
             try {
-                String ack = replica.prepare(txId, op);
-                if (!"ACK".equals(ack)) {
-                    rollback2PC(txId);
-                    throw new MalformedRequestException("Replica returned NACK or invalid ack: " + ack);
-                }
+                ack = replica.prepare(txId, op);
             } catch (Exception e) {
                 rollback2PC(txId);
-                throw new MalformedRequestException("Prepare failed in delete: " + e.getMessage());
+                throw new MalformedRequestException("Prepare failed on some replica: " + e.getMessage());
+            }
+            if (!"ACK".equals(ack)) {
+                return ack;
+            }
+        }
+        return "ACK";
+    }
+
+    /**
+     * The commit phase of a prepared operation.
+     * @return the value an update leaves under its key, null for a PUT or DELETE
+     */
+    private String commitUpdate(String txId, Operation op) throws MalformedRequestException {
+        String result = null;
+        // a PUT or DELETE does not depend on the current value, and its result is not used
+        if (op.getType() != Operation.Type.PUT && op.getType() != Operation.Type.DELETE) {
+            lock.lock();
+            try {
+                result = op.apply(store.get(op.getKey(), op.getTimestamp()), store.getVersion(op.getKey()));
+            } finally {
+                lock.unlock();
             }
         }
 
         // commit/abort phase
         for (KeyValueStoreRemote replica : replicas) {
-            replica.commit(txId);
+            try {
+                replica.commit(txId);
+            } catch (Exception e) {
+                throw new MalformedRequestException("Commit failed on some replica: " + e.getMessage());
+            }
         }
-        System.out.println("[Coordinator] 2PC success for DELETE " + key);
+        return result;
     }
 
     /**
@@ -149,22 +335,48 @@ public class KeyValueStoreRemoteImpl extends UnicastRemoteObject implements KeyV
     public String prepare(String txId, Operation operation) throws RemoteException {
         lock.lock();
         try {
+            if (isReserved(operation.getKey())) {
+                return BUSY;
+            }
             switch (operation.getType()) {
                 case PUT:
                     // checks if the key already exists in the store
-                    if (store.containsKey(operation.getKey())) {
+                    if (store.get(operation.getKey()) != null) {
                         return "NACK";
                     }
                     // record it in the map
-                    pendingOperations.put(txId, operation);
+                    reserve(txId, operation);
                     break;
                 case DELETE:
                     // checks if the key exists in the store
-                    if (!store.containsKey(operation.getKey())) {
+                    if (store.get(operation.getKey()) == null) {
                         return "NACK";
                     }
-                    pendingOperations.put(txId, operation);
+                    reserve(txId, operation);
                     break;
+                case UPSERT:
+                case APPEND:
+                    reserve(txId, operation);
+                    break;
+                case CAS:
+                case INCR: {
+                    // checks the update against the value it will be applied to at the commit
+                    String current = store.get(operation.getKey(), operation.getTimestamp());
+                    if (operation.getType() == Operation.Type.CAS && current == null) {
+                        return "NACK: key not found";
+                    }
+                    try {
+                        if (operation.apply(current, store.getVersion(operation.getKey())) == null) {
+                            return "CONFLICT";
+                        }
+                    } catch (NumberFormatException e) {
+                        return "NACK: value is not a number";
+                    } catch (ArithmeticException e) {
+                        return "NACK: increment overflows";
+                    }
+                    reserve(txId, operation);
+                    break;
+                }
             }
             return "ACK";
         } finally {
@@ -186,16 +398,41 @@ public class KeyValueStoreRemoteImpl extends UnicastRemoteObject implements KeyV
             if (op == null) {
                 return "NONE IS NOT COMMITTED";
             }
+            reservedKeys.remove(op.getKey(), txId);
+            // the keys of the other prepared operations were checked at their votes, and are
+            // reclaimed once those commit, so every replica applies them to the same value
+            invalidations.publish(store.expire(op.getTimestamp(), this::isReserved));
             switch (op.getType()) {
-                case PUT:
-                    store.put(op.getKey(), op.getValue());
-                    System.out.printf("[Replica] COMMIT PUT: %s => %s%n", op.getKey(), op.getValue());
+                case PUT: {
+                    String value = op.getValue();
+                    if (op.getExpiresAt() != 0) {
+                        store.put(op.getKey(), value, op.getExpiresAt());
+                    } else {
+                        store.put(op.getKey(), value);
+                    }
+                    LoggerUtil.logSampled("[Replica] COMMIT PUT: %s => %s", op.getKey(), value);
                     break;
+                }
                 case DELETE:
-                    store.remove(op.getKey());
-                    System.out.printf("[Replica] COMMIT DELETE: %s%n", op.getKey());
+                    store.delete(op.getKey());
+                    LoggerUtil.logSampled("[Replica] COMMIT DELETE: %s", op.getKey());
+                    break;
+                case UPSERT: {
+                    String value = op.getValue();
+                    store.put(op.getKey(), value);
+                    LoggerUtil.logSampled("[Replica] COMMIT UPSERT: %s => %s", op.getKey(), value);
+                    break;
+                }
+                case CAS:
+                case INCR:
+                case APPEND: {
+                    String value = store.update(op.getKey(), op.getTimestamp(),
+                        current -> op.apply(current, store.getVersion(op.getKey())));
+                    LoggerUtil.logSampled("[Replica] COMMIT %s: %s => %s", op.getType(), op.getKey(), value);
                     break;
+                }
             }
+            invalidations.publish(op.getKey());
             return "COMMITTED";
         } finally {
             lock.unlock();
@@ -212,14 +449,37 @@ public class KeyValueStoreRemoteImpl extends UnicastRemoteObject implements KeyV
     public String abort(String txId) throws RemoteException {
         lock.lock();
         try {
-            pendingOperations.remove(txId);
-            System.out.println("[Replica] ABORT: " + txId);
+            Operation op = pendingOperations.remove(txId);
+            if (op != null) {
+                reservedKeys.remove(op.getKey(), txId);
+            }
+            LoggerUtil.logSampled("[Replica] ABORT: %s", txId);
             return "ABORTED";
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     */
+    @Override
+    public void subscribe(InvalidationListener listener) throws RemoteException {
+        invalidations.subscribe(listener);
+        LoggerUtil.log("[Replica] Subscribed invalidation listener %s", listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws RemoteException {@inheritDoc}
+     */
+    @Override
+    public void unsubscribe(InvalidationListener listener) throws RemoteException {
+        invalidations.unsubscribe(listener);
+        LoggerUtil.log("[Replica] Unsubscribed invalidation listener %s", listener);
+    }
+
     /**
      * Validates the input of key from clients.
      * Serves as a helper function.
@@ -232,6 +492,25 @@ public class KeyValueStoreRemoteImpl extends UnicastRemoteObject implements KeyV
     }
 
 
+    /**
+     * Records a prepared operation and reserves its key. Called while holding the lock.
+     * @param txId the transaction ID
+     * @param operation the prepared operation
+     */
+    private void reserve(String txId, Operation operation) {
+        pendingOperations.put(txId, operation);
+        reservedKeys.put(operation.getKey(), txId);
+    }
+
+    /**
+     * Checks if a prepared operation holds the key. Called while holding the lock.
+     * @param key the key
+     * @return true if the key is reserved until an operation commits or aborts
+     */
+    private boolean isReserved(String key) {
+        return reservedKeys.containsKey(key);
+    }
+
     /**
      * Helper method used to make all replicas abort when any replica fails at the voting phase.
      * @param txId
@@ -241,8 +520,19 @@ public class KeyValueStoreRemoteImpl extends UnicastRemoteObject implements KeyV
             try {
                 r.abort(txId);
             } catch (Exception e) {
-                System.err.println("[Coordinator] rollback2PC failed on " + r + " : " + e.getMessage());
+                LoggerUtil.logError("[Coordinator] rollback2PC failed on %s : %s", r, e.getMessage());
             }
         }
     }
+
+    /**
+     * Validates the input of value from clients.
+     * @param value     the value to be validated.
+     * @param operation the name of the operation, for the error message.
+     */
+    private void validateValue(String value, String operation) throws MalformedRequestException {
+        if (value == null || value.trim().isEmpty()) {
+            throw new MalformedRequestException("Value cannot be null or empty for " + operation + ".");
+        }
+    }
 }
@@ -1,7 +1,16 @@
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.Serializable;
 
 /**
  * An exception indicating that the request (or the parameters of the request) is malformed.
+ * <p>
+ * It is serialized as a <class>SerializedForm</class> holding only its message and cause. The
+ * default form also carried the stack trace, the bulk of its bytes, which describes where the
+ * server rejected the request and is of no use to the client.
+ * </p>
  */
 public class MalformedRequestException extends Exception implements Serializable {
 
@@ -30,4 +39,54 @@ public class MalformedRequestException extends Exception implements Serializable
     public MalformedRequestException(String message, Throwable cause) {
         super(message, cause);
     }
+
+    /**
+     * Replaces this exception by its compact form when it is serialized.
+     * @return the serialized form
+     */
+    private Object writeReplace() {
+        return new SerializedForm(getMessage(), getCause());
+    }
+
+    /**
+     * The serialized form of a MalformedRequestException: its message as a varint-prefixed UTF-8
+     * string, and its cause, if any, serialized as usual.
+     */
+    private static final class SerializedForm implements Externalizable {
+        private static final long serialVersionUID = 1L;
+
+        private String message;
+        private Throwable cause;
+
+        /**
+         * For deserialization only.
+         */
+        public SerializedForm() {
+        }
+
+        SerializedForm(String message, Throwable cause) {
+            this.message = message;
+            this.cause = cause;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            Varints.writeString(out, message);
+            out.writeObject(cause);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+            message = Varints.readString(in);
+            cause = (Throwable) in.readObject();
+        }
+
+        /**
+         * Replaces this form by the exception it was written for.
+         * @return the exception
+         */
+        private Object readResolve() {
+            return new MalformedRequestException(message, cause);
+        }
+    }
 }
@@ -1,30 +1,120 @@
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Boxes the PUT and DELETE operations. It represents either a PUT operation with its corresponding
  * parameters of key and value, or a DELETE operation with its corresponding parameters of key and
  * value
+ * <p>
+ * The coordinator stamps every operation with the time it was made, which the replicas use as the
+ * current time when they commit it, and a PUT may carry the deadline of its entry.
+ * </p>
+ * <p>
+ * The updates UPSERT, CAS, INCR and APPEND compute the new value of the key from its current value,
+ * and a CAS from its current version, on every replica, through {@link #apply}. Their argument is the expected {@link Versions version}
+ * of a CAS or the delta of an INCR.
+ * </p>
+ * <p>
+ * A value at least as long as the {@value #COMPRESSION_THRESHOLD_PROPERTY} system property (1024
+ * characters by default, 0 to disable) is kept as an {@link Lz4} block if that is smaller, so that
+ * the prepare messages and the pending operations of the replicas shrink. It is only decompressed
+ * by {@link #getValue()}, when the operation commits.
+ * </p>
+ * <p>
+ * Operations travel in every prepare call, so they write their own binary form instead of the
+ * default serialization, which describes every field by name and type and the Type enum by its
+ * class: the type ordinal, a flags byte, the key and value as {@link Varints} strings (or the
+ * length and block of a compressed value), then the timestamp, deadline and argument as varints.
+ * Types are written by ordinal, so new ones must be appended.
+ * </p>
  */
-public class Operation implements Serializable {
-    private static final long serialVersionUID = 1L;
+public class Operation implements Externalizable {
+    private static final long serialVersionUID = 2L;
+    // the flags of the binary form
+    private static final int HAS_VALUE = 1;
+    private static final int COMPRESSED = 2;
+    // the system property holding the value length from which values are compressed, 0 to disable
+    public static final String COMPRESSION_THRESHOLD_PROPERTY = "kvstore.compression.threshold";
+    private static final int COMPRESSION_THRESHOLD = Integer.getInteger(COMPRESSION_THRESHOLD_PROPERTY, 1024);
     public enum Type {
         PUT,
-        DELETE
+        DELETE,
+        UPSERT,
+        CAS,
+        INCR,
+        APPEND
     }
     private Type type;
     private String key;
+    // null if the value is compressed
     private String value;
+    // the Lz4 block of a compressed value, and the length of its UTF-8 bytes
+    private byte[] compressedValue;
+    private int valueLength;
+    private long timestamp;
+    // 0 if the entry does not expire
+    private long expiresAt;
+    // the expected version of a CAS or the delta of an INCR, 0 otherwise
+    private long argument;
 
     /**
-     * Constructs an instance of this class.
+     * Constructs an empty instance of this class, for deserialization only.
+     */
+    public Operation() {
+    }
+
+    /**
+     * Constructs an instance of this class, stamped with the current time, whose entry does not
+     * expire.
      * @param type PUT or DELETE
      * @param key the specified key of this operation
      * @param value the specified value of this operation
      */
     public Operation(Type type, String key, String value) {
+        this(type, key, value, System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * Constructs an instance of this class, compressing the value if it is long enough.
+     * @param type PUT or DELETE
+     * @param key the specified key of this operation
+     * @param value the specified value of this operation
+     * @param timestamp the time the operation was made, in milliseconds since the epoch
+     * @param expiresAt the deadline of the entry in milliseconds since the epoch, 0 for none
+     */
+    public Operation(Type type, String key, String value, long timestamp, long expiresAt) {
+        this(type, key, value, timestamp, expiresAt, 0);
+    }
+
+    /**
+     * Constructs an instance of this class, compressing the value if it is long enough.
+     * @param type the type of this operation
+     * @param key the specified key of this operation
+     * @param value the specified value of this operation
+     * @param timestamp the time the operation was made, in milliseconds since the epoch
+     * @param expiresAt the deadline of the entry in milliseconds since the epoch, 0 for none
+     * @param argument the expected version of a CAS or the delta of an INCR
+     */
+    public Operation(Type type, String key, String value, long timestamp, long expiresAt, long argument) {
         this.type = type;
+        this.argument = argument;
         this.key = key;
         this.value = value;
+        this.timestamp = timestamp;
+        this.expiresAt = expiresAt;
+        if (value != null && COMPRESSION_THRESHOLD > 0 && value.length() >= COMPRESSION_THRESHOLD) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            byte[] block = Lz4.compress(bytes, 0, bytes.length);
+            if (block.length < bytes.length) {
+                this.value = null;
+                this.compressedValue = block;
+                this.valueLength = bytes.length;
+            }
+        }
     }
 
     /**
@@ -44,10 +134,114 @@ public class Operation implements Serializable {
     }
 
     /**
-     * Gets the value of this operation.
+     * Gets the value of this operation, decompressing it on every call if it is compressed.
      * @return the specified value of this operaiton
      */
     public String getValue() {
+        if (compressedValue != null) {
+            byte[] bytes = Lz4.decompress(compressedValue, 0, compressedValue.length, valueLength);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
         return value;
     }
+
+    /**
+     * Checks whether the value of this operation is kept compressed.
+     * @return true if the value is an Lz4 block
+     */
+    public boolean isCompressed() {
+        return compressedValue != null;
+    }
+
+    /**
+     * Gets the time this operation was made.
+     * @return the time in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the deadline of the entry written by this operation.
+     * @return the deadline in milliseconds since the epoch, or 0 if the entry does not expire
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Gets the argument of this operation.
+     * @return the expected version of a CAS, the delta of an INCR, or 0
+     */
+    public long getArgument() {
+        return argument;
+    }
+
+    /**
+     * Computes the value this update leaves under its key.
+     * @param current the current value of the key, or null if it does not exist
+     * @param version the current version of the key, see <class>Versions</class>
+     * @return the new value, or null if the key is left as it is: a CAS whose key does not exist or
+     * has another version
+     * @throws NumberFormatException if an INCR finds a value that is not a number
+     * @throws ArithmeticException if an INCR overflows
+     */
+    public String apply(String current, long version) {
+        switch (type) {
+            case CAS:
+                return current != null && version == argument ? getValue() : null;
+            case INCR:
+                return Long.toString(Math.addExact(current == null ? 0 : Long.parseLong(current), argument));
+            case APPEND:
+                return current == null ? getValue() : current + getValue();
+            case DELETE:
+                return null;
+            default:
+                return getValue();
+        }
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(type.ordinal());
+        out.writeByte((value != null || compressedValue != null ? HAS_VALUE : 0)
+            | (compressedValue != null ? COMPRESSED : 0));
+        Varints.writeString(out, key);
+        if (compressedValue != null) {
+            Varints.writeLong(out, valueLength);
+            Varints.writeBytes(out, compressedValue);
+        } else if (value != null) {
+            Varints.writeString(out, value);
+        }
+        Varints.writeLong(out, timestamp);
+        Varints.writeLong(out, expiresAt);
+        Varints.writeSignedLong(out, argument);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        Type[] types = Type.values();
+        if (ordinal >= types.length) {
+            throw new InvalidObjectException("Unknown operation type: " + ordinal);
+        }
+        type = types[ordinal];
+        int flags = in.readUnsignedByte();
+        key = Varints.readString(in);
+        if ((flags & COMPRESSED) != 0) {
+            long length = Varints.readLong(in);
+            compressedValue = Varints.readBytes(in);
+            // the writer only keeps blocks shorter than the value
+            if (compressedValue == null || length <= compressedValue.length
+                || length > Math.min(Lz4.maxDecompressedLength(compressedValue.length), Integer.MAX_VALUE - 8)) {
+                throw new InvalidObjectException("Invalid compressed value length: " + length);
+            }
+            valueLength = (int) length;
+        } else if ((flags & HAS_VALUE) != 0) {
+            value = Varints.readString(in);
+        }
+        timestamp = Varints.readLong(in);
+        expiresAt = Varints.readLong(in);
+        argument = Varints.readSignedLong(in);
+    }
 }
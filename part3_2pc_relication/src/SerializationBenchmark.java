@@ -0,0 +1,81 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+/**
+ * Measures the size and the encoding and decoding times of the objects the replicas send each
+ * other over RMI in the two phases of a commit, in their Java serialization form.
+ * <p>
+ * Each object is written to and read back from a byte array a number of times to warm up, then as
+ * many times again while timed, and the average times per call are printed with the size of the
+ * encoded object. Run it with <code>java SerializationBenchmark [iterations]</code>, once
+ * before and once after a change to a binary form, on an otherwise idle machine.
+ * </p>
+ */
+public class SerializationBenchmark {
+    private static final int DEFAULT_ITERATIONS = 200_000;
+
+    // written to by the measured loops, so the JIT cannot drop them
+    private static long sink;
+
+    /**
+     * @param args args[0]=iterations per object, optional
+     * @throws Exception if an object fails to encode or decode
+     */
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+        char[] repeated = new char[4096];
+        Arrays.fill(repeated, 'a');
+
+        bench("Operation PUT", new Operation(Operation.Type.PUT, "user:12345", "some-value-of-moderate-size-42"),
+            iterations);
+        bench("Operation PUT 4K", new Operation(Operation.Type.PUT, "user:12345", new String(repeated)), iterations);
+        bench("Operation DELETE", new Operation(Operation.Type.DELETE, "user:12345", null), iterations);
+        bench("Operation CAS", new Operation(Operation.Type.CAS, "user:12345", "v2", 0, 0, 42), iterations);
+        bench("MalformedRequestException", new MalformedRequestException("Key cannot be null or empty."), iterations);
+    }
+
+    /**
+     * Prints the encoded size of an object, and its average encoding and decoding times.
+     * @param name       the label of the object
+     * @param object     the object to serialize
+     * @param iterations the calls to time, after as many to warm up
+     * @throws Exception if the object fails to encode or decode
+     */
+    private static void bench(String name, Object object, int iterations) throws Exception {
+        byte[] encoded = encode(object);
+        for (int i = 0; i < iterations; i++) {
+            sink += encode(object).length;
+            sink += decode(encoded).hashCode();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += encode(object).length;
+        }
+        long encodeNanos = (System.nanoTime() - start) / iterations;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += decode(encoded).hashCode();
+        }
+        long decodeNanos = (System.nanoTime() - start) / iterations;
+        System.out.printf("%-26s %6d bytes  encode %7d ns  decode %7d ns%n",
+            name, encoded.length, encodeNanos, decodeNanos);
+    }
+
+    private static byte[] encode(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object decode(byte[] encoded) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(encoded))) {
+            return in.readObject();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+import java.util.function.ObjLongConsumer;
+
+/**
+ * A hierarchical timing wheel that collects keys until their deadlines have passed.
+ * <p>
+ * Time advances in ticks of a fixed length. The wheel has {@value #LEVELS} levels of
+ * {@value #SLOTS} slots: a slot of level 0 holds the keys due in one tick, and a slot of level n
+ * the keys due in a span of 64^n ticks. A key is put in the lowest level whose span reaches its
+ * deadline, and whenever the current tick enters a slot of a higher level, the keys of that slot
+ * are redistributed to the lower levels. Scheduling a key and expiring it therefore cost O(1),
+ * independently of the number of keys, and advancing the wheel visits only the keys that are due
+ * or move down a level. Keys due beyond the span of the top level wait in its slots and are
+ * rescheduled when they come around.
+ * </p>
+ * <p>
+ * The wheel does not remove rescheduled keys: the caller tells stale entries apart by their
+ * deadline when they expire. Not thread-safe.
+ * </p>
+ */
+public final class TimingWheel<K> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    @SuppressWarnings("unchecked")
+    private final Entry<K>[][] slots = (Entry<K>[][]) new Entry<?>[LEVELS][SLOTS];
+    // the number of entries per level
+    private final int[] counts = new int[LEVELS];
+    // the last tick the wheel has advanced to
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMillis The length of a tick, the precision of the expiry.
+     * @param now        The current time in milliseconds.
+     */
+    public TimingWheel(long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * Adds a key that expires once the time has reached the deadline.
+     */
+    public void schedule(K key, long deadline) {
+        insert(new Entry<>(key, deadline), currentTick + 1);
+        size++;
+    }
+
+    /**
+     * Advances the wheel to a time and passes the keys whose deadlines have passed to the consumer,
+     * with their deadlines. Does nothing if the time is not after the current tick.
+     */
+    public void advance(long now, ObjLongConsumer<K> expired) {
+        long target = now / tickMillis;
+        while (currentTick < target) {
+            // the ticks before a higher level enters its next slot have nothing to do if the levels
+            // below it are empty
+            int lowest = 0;
+            while (lowest < LEVELS && counts[lowest] == 0) {
+                lowest++;
+            }
+            if (lowest == LEVELS) {
+                currentTick = target;
+                return;
+            }
+            if (lowest > 0) {
+                long idle = (((currentTick >>> (lowest * SLOT_BITS)) + 1) << (lowest * SLOT_BITS)) - 1;
+                currentTick = Math.min(Math.max(currentTick, idle), target);
+                if (currentTick == target) {
+                    return;
+                }
+            }
+            currentTick++;
+            // a tick entering a new slot of a level first redistributes that slot
+            for (int level = 1; level < LEVELS && (currentTick & ((1L << (level * SLOT_BITS)) - 1)) == 0; level++) {
+                int index = (int) (currentTick >>> (level * SLOT_BITS)) & (SLOTS - 1);
+                Entry<K> entry = slots[level][index];
+                slots[level][index] = null;
+                while (entry != null) {
+                    Entry<K> next = entry.next;
+                    counts[level]--;
+                    insert(entry, currentTick);
+                    entry = next;
+                }
+            }
+            int index = (int) currentTick & (SLOTS - 1);
+            Entry<K> entry = slots[0][index];
+            slots[0][index] = null;
+            while (entry != null) {
+                counts[0]--;
+                size--;
+                expired.accept(entry.key, entry.deadline);
+                entry = entry.next;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of scheduled keys, including keys that were rescheduled since.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Puts an entry into the slot of the first tick at which its deadline has passed, but not before
+     * the given tick.
+     */
+    private void insert(Entry<K> entry, long earliestTick) {
+        long due = Math.max(entry.deadline / tickMillis + 1, earliestTick);
+        int level = 0;
+        while (level < LEVELS - 1 && (due >>> (level * SLOT_BITS)) - (currentTick >>> (level * SLOT_BITS)) >= SLOTS) {
+            level++;
+        }
+        long slot = due >>> (level * SLOT_BITS);
+        long currentSlot = currentTick >>> (level * SLOT_BITS);
+        if (slot - currentSlot >= SLOTS) {
+            // beyond the top level: wait in its last slot, and be rescheduled from there
+            slot = currentSlot + SLOTS - 1;
+        }
+        int index = (int) slot & (SLOTS - 1);
+        entry.next = slots[level][index];
+        slots[level][index] = entry;
+        counts[level]++;
+    }
+
+    private static final class Entry<K> {
+        final K key;
+        final long deadline;
+        Entry<K> next;
+
+        Entry(K key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+}
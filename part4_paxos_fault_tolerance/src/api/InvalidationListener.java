@@ -0,0 +1,39 @@
+package api;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * The remote interface of the callback objects that clients keeping a near cache register with
+ * {@link KeyValueStoreRemote#subscribe}, through which the replica tells them which keys
+ * changed. The client exports the object, so the replica must be able to connect back to it.
+ * <p>
+ * The calls of one subscription are made one at a time, and carry consecutive sequence numbers
+ * starting at 1, so a listener that sees a number other than the next one missed a call. A
+ * subscribed listener is called at least every {@value #HEARTBEAT_MILLIS} milliseconds, with no
+ * keys if none changed, so a listener that is not called for longer was dropped by the replica.
+ * </p>
+ */
+public interface InvalidationListener extends Remote {
+    /** The longest time between two calls to a subscribed listener, while the replica reaches it. */
+    long HEARTBEAT_MILLIS = 1000;
+
+    /**
+     * Called after the keys were written, deleted or expired on the replica.
+     *
+     * @param sequence The number of the call within the subscription.
+     * @param keys     The keys whose cached values are stale, empty if none changed.
+     * @throws RemoteException on RMI error.
+     */
+    void invalidate(long sequence, List<String> keys) throws RemoteException;
+
+    /**
+     * Called when the replica dropped invalidations it could not deliver in time, so that any cached
+     * value may be stale.
+     *
+     * @param sequence The number of the call within the subscription.
+     * @throws RemoteException on RMI error.
+     */
+    void invalidateAll(long sequence) throws RemoteException;
+}
@@ -2,6 +2,7 @@ package api;
 
 import exception.MalformedRequestException;
 import exception.PaxosConsensusException;
+import paxos.Promise;
 import util.Operation;
 
 import java.rmi.Remote;
@@ -10,8 +11,12 @@ import java.rmi.RemoteException;
 /**
  * Remote interface for a replicated Key-Value Store using Paxos consensus.
  * <p>
- * Defines client‐facing operations (PUT, GET, DELETE) as well as
+ * Defines client‐facing operations (PUT, GET, DELETE, and the updates UPSERT,
+ * compare-and-set, INCREMENT and APPEND, which overwrite existing keys in one
+ * consensus round) as well as
  * internal Paxos RPC calls (prepare, accept) used by proposers and acceptors.
+ * Clients keeping a near cache subscribe an {@link InvalidationListener} to
+ * learn which keys changed.
  * </p>
  */
 public interface KeyValueStoreRemote extends Remote {
@@ -28,6 +33,20 @@ public interface KeyValueStoreRemote extends Remote {
     void put(String key, String value)
         throws RemoteException, MalformedRequestException, PaxosConsensusException;
 
+    /**
+     * Store or update a key‐value pair that expires after a time to live.  Must be
+     * invoked on the current leader.
+     *
+     * @param key       Non‐empty key string.
+     * @param value     Non‐empty value string.
+     * @param ttlMillis The time to live in milliseconds, positive.
+     * @throws RemoteException            on RMI error.
+     * @throws MalformedRequestException  if key, value or time to live is invalid.
+     * @throws PaxosConsensusException    if Paxos consensus fails.
+     */
+    void put(String key, String value, long ttlMillis)
+        throws RemoteException, MalformedRequestException, PaxosConsensusException;
+
     /**
      * Retrieve the value associated with a key.
      *
@@ -50,28 +69,115 @@ public interface KeyValueStoreRemote extends Remote {
     void delete(String key)
         throws RemoteException, MalformedRequestException, PaxosConsensusException;
 
+    /**
+     * Store a key‐value pair whether or not the key already exists.  An existing
+     * entry loses its time to live.  Must be invoked on the current leader.
+     *
+     * @param key   Non‐empty key string.
+     * @param value Non‐empty value string.
+     * @throws RemoteException            on RMI error.
+     * @throws MalformedRequestException  if key or value is invalid.
+     * @throws PaxosConsensusException    if Paxos consensus fails.
+     */
+    void upsert(String key, String value)
+        throws RemoteException, MalformedRequestException, PaxosConsensusException;
+
+    /**
+     * Retrieve the version of the entry of a key, which {@link #compareAndSet}
+     * expects, see {@link util.Versions}.
+     *
+     * @param key Non‐empty key string.
+     * @return The version, which changes with every write of the key.
+     * @throws RemoteException           on RMI error.
+     * @throws MalformedRequestException if key is invalid, or the key is not found.
+     */
+    long getVersion(String key)
+        throws RemoteException, MalformedRequestException;
+
+    /**
+     * Replace the value of a key if its entry still has the expected version.
+     * Must be invoked on the current leader.
+     *
+     * @param key             Non‐empty key string.
+     * @param expectedVersion The version the caller read with {@link #getVersion}.
+     * @param value           Non‐empty value string.
+     * @return True if the value was replaced, false if the key has another version.
+     * @throws RemoteException            on RMI error.
+     * @throws MalformedRequestException  if key or value is invalid, or the key is not found.
+     * @throws PaxosConsensusException    if Paxos consensus fails.
+     */
+    boolean compareAndSet(String key, long expectedVersion, String value)
+        throws RemoteException, MalformedRequestException, PaxosConsensusException;
+
+    /**
+     * Add a delta to the decimal number stored under a key, 0 if the key does not
+     * exist.  Must be invoked on the current leader.
+     *
+     * @param key   Non‐empty key string.
+     * @param delta The number to add, may be negative.
+     * @return The new number.
+     * @throws RemoteException            on RMI error.
+     * @throws MalformedRequestException  if key is invalid, the value is not a number, or it overflows.
+     * @throws PaxosConsensusException    if Paxos consensus fails.
+     */
+    long increment(String key, long delta)
+        throws RemoteException, MalformedRequestException, PaxosConsensusException;
+
+    /**
+     * Append a suffix to the value of a key, or store it if the key does not
+     * exist.  Must be invoked on the current leader.
+     *
+     * @param key    Non‐empty key string.
+     * @param suffix Non‐empty suffix string.
+     * @throws RemoteException            on RMI error.
+     * @throws MalformedRequestException  if key or suffix is invalid.
+     * @throws PaxosConsensusException    if Paxos consensus fails.
+     */
+    void append(String key, String suffix)
+        throws RemoteException, MalformedRequestException, PaxosConsensusException;
+
     /**
      * Paxos prepare RPC invoked by proposers on acceptors.
      *
-     * @param instanceId     Unique Paxos instance identifier.
+     * @param slot           Log slot of the Paxos instance.
      * @param proposalNumber Proposal number.
-     * @param op             Operation being proposed.
-     * @return "PROMISE", "NACK", or "FAILURE" on simulated failure.
+     * @return The promise, with the proposal accepted in the slot if any, or the
+     *         refusal; null on simulated failure.
      * @throws RemoteException on RMI error.
      */
-    String paxosPrepare(String instanceId, int proposalNumber, Operation op)
+    Promise paxosPrepare(long slot, int proposalNumber)
         throws RemoteException;
 
     /**
      * Paxos accept RPC invoked by proposers on acceptors.
      *
-     * @param instanceId     Unique Paxos instance identifier.
+     * @param slot           Log slot of the Paxos instance.
      * @param proposalNumber Proposal number.
      * @param op             Operation being accepted.
      * @return "ACCEPTED", "NACK", or "FAILURE" on simulated failure.
      * @throws RemoteException on RMI error.
      */
-    String paxosAccept(String instanceId, int proposalNumber, Operation op)
+    String paxosAccept(long slot, int proposalNumber, Operation op)
+        throws RemoteException;
+
+    /**
+     * Paxos decide RPC invoked by proposers on learners once an operation is chosen.
+     *
+     * @param slot Log slot of the Paxos instance.
+     * @param op   The chosen operation.
+     * @throws RemoteException on RMI error.
+     */
+    void paxosDecide(long slot, Operation op)
+        throws RemoteException;
+
+    /**
+     * Return the operation chosen in a slot, for a learner that missed it.
+     *
+     * @param slot Log slot of the Paxos instance.
+     * @return The chosen operation, or null if this replica does not know it.
+     * @throws RemoteException on RMI error.
+     */
+    Operation paxosChosen(long slot)
         throws RemoteException;
 
     /**
@@ -82,4 +188,22 @@ public interface KeyValueStoreRemote extends Remote {
      */
     void receiveElection(election.ElectionMessage msg) throws RemoteException;
 
+    /**
+     * Register a listener to be told of the keys this replica's learner applies
+     * or reclaims from now on.  The keys are sent asynchronously, after they are
+     * applied, and the listener is dropped if a call to it keeps failing.  Subscribing
+     * a listener again restarts its sequence numbers.
+     *
+     * @param listener The exported listener.
+     * @throws RemoteException on RMI error.
+     */
+    void subscribe(InvalidationListener listener) throws RemoteException;
+
+    /**
+     * Stop telling a listener of the keys applied.
+     *
+     * @param listener The listener passed to subscribe.
+     * @throws RemoteException on RMI error.
+     */
+    void unsubscribe(InvalidationListener listener) throws RemoteException;
 }
@@ -13,7 +13,10 @@ import java.util.Scanner;
  * RMI client for the distributed Key-Value Store using Paxos.
  * <p>
  * Connects to a remote KeyValueStoreRemote via RMI and allows the user
- * to perform PUT, GET, and DELETE operations interactively.
+ * to perform PUT, GET, DELETE, UPSERT, CAS, INCR and APPEND operations
+ * interactively. CAS asks for the value last read and sends its version.
+ * With {@code -Dkvstore.nearcache.entries=N} the values read are kept in a
+ * near cache, see {@link NearCachingKeyValueStore}.
  * </p>
  */
 public class KeyValueStoreRMIClient {
@@ -23,6 +26,8 @@ public class KeyValueStoreRMIClient {
      * @param args args[0] = server host, args[1] = server port
      */
     public static void main(String[] args) {
+        // the log lines alternate with the prompts, so they are written in place
+        LoggerUtil.setAsync(false);
         if (args.length < 2) {
             LoggerUtil.log("Usage: java KeyValueStoreRMIClient <server-host> <port>");
             return;
@@ -41,6 +46,8 @@ public class KeyValueStoreRMIClient {
             KeyValueStoreRemote store =
                 (KeyValueStoreRemote) registry.lookup("KeyValueRMIStore");
             LoggerUtil.log("Connected to Key-Value Store at " + host + ":" + port);
+            // Keep the values read in a near cache, if one is configured
+            store = NearCachingKeyValueStore.fromSystemProperties(store);
 
             // Pre-populate some keys
             for (int i = 0; i < 5; i++) {
@@ -58,14 +65,20 @@ public class KeyValueStoreRMIClient {
 
             Scanner scanner = new Scanner(System.in);
             while (true) {
-                LoggerUtil.log("Enter command (PUT/GET/DELETE) or EXIT:");
+                LoggerUtil.log("Enter command (PUT/GET/VERSION/DELETE/UPSERT/CAS/INCR/APPEND) or EXIT:");
                 String cmd = scanner.nextLine().trim().toUpperCase();
                 if ("EXIT".equals(cmd)) {
                     LoggerUtil.log("Exiting client.");
+                    if (store instanceof NearCachingKeyValueStore) {
+                        NearCache cache = ((NearCachingKeyValueStore) store).getCache();
+                        LoggerUtil.log("Near cache: %d hits, %d misses, %d invalidations",
+                            cache.getHits(), cache.getMisses(), cache.getInvalidations());
+                        ((NearCachingKeyValueStore) store).close();
+                    }
                     break;
                 }
-                if (!cmd.equals("PUT") && !cmd.equals("GET") && !cmd.equals("DELETE")) {
-                    LoggerUtil.log("Invalid command. Use PUT, GET, or DELETE.");
+                if (!cmd.matches("PUT|GET|VERSION|DELETE|UPSERT|CAS|INCR|APPEND")) {
+                    LoggerUtil.log("Invalid command. Use PUT, GET, VERSION, DELETE, UPSERT, CAS, INCR, or APPEND.");
                     continue;
                 }
 
@@ -85,7 +98,18 @@ public class KeyValueStoreRMIClient {
                                 LoggerUtil.log("Value cannot be empty.");
                                 continue;
                             }
-                            store.put(key, value);
+                            System.out.print("TTL in ms (empty for none): ");
+                            String ttl = scanner.nextLine().trim();
+                            if (ttl.isEmpty()) {
+                                store.put(key, value);
+                            } else {
+                                try {
+                                    store.put(key, value, Long.parseLong(ttl));
+                                } catch (NumberFormatException e) {
+                                    LoggerUtil.log("TTL must be a number of milliseconds.");
+                                    continue;
+                                }
+                            }
                             LoggerUtil.log("PUT succeeded.");
                             break;
                         case "GET":
@@ -93,10 +117,48 @@ public class KeyValueStoreRMIClient {
                             LoggerUtil.log("GET result: " +
                                 (result == null ? "NOT_FOUND" : result));
                             break;
+                        case "VERSION":
+                            LoggerUtil.log("VERSION result: " + store.getVersion(key));
+                            break;
                         case "DELETE":
                             store.delete(key);
                             LoggerUtil.log("DELETE succeeded.");
                             break;
+                        case "UPSERT":
+                            System.out.print("Value: ");
+                            store.upsert(key, scanner.nextLine().trim());
+                            LoggerUtil.log("UPSERT succeeded.");
+                            break;
+                        case "CAS":
+                            System.out.print("Version last read: ");
+                            long version;
+                            try {
+                                version = Long.parseLong(scanner.nextLine().trim());
+                            } catch (NumberFormatException e) {
+                                LoggerUtil.log("Version must be a number.");
+                                break;
+                            }
+                            System.out.print("New value: ");
+                            if (store.compareAndSet(key, version, scanner.nextLine().trim())) {
+                                LoggerUtil.log("CAS succeeded.");
+                            } else {
+                                LoggerUtil.log("CAS failed: the key was written since.");
+                            }
+                            break;
+                        case "INCR":
+                            System.out.print("Delta: ");
+                            try {
+                                long delta = Long.parseLong(scanner.nextLine().trim());
+                                LoggerUtil.log("INCR result: " + store.increment(key, delta));
+                            } catch (NumberFormatException e) {
+                                LoggerUtil.log("Delta must be a number.");
+                            }
+                            break;
+                        case "APPEND":
+                            System.out.print("Suffix: ");
+                            store.append(key, scanner.nextLine().trim());
+                            LoggerUtil.log("APPEND succeeded.");
+                            break;
                     }
                 } catch (MalformedRequestException e) {
                     LoggerUtil.logError("Request error: " + e.getMessage());
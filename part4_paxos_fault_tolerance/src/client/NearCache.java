@@ -0,0 +1,171 @@
+package client;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded map of the values a client read recently, kept for a time to live, from which
+ * {@link NearCachingKeyValueStore} answers GETs without a call to the server.
+ * <p>
+ * A hit is one lookup in a ConcurrentHashMap and a clock read, without any lock. When the map
+ * holds more than its capacity, the entries are evicted in CLOCK order: a hand walks over them,
+ * and spares an entry read since it last passed, so the hot keys stay while the others go.
+ * </p>
+ * <p>
+ * An invalidation can reach the client while a GET of the key is on its way. So that the GET does
+ * not then cache the value it read before the write, a loader first installs a marker with
+ * {@link #beginLoad}; an invalidation removes the marker like any entry, and
+ * {@link #completeLoad} only replaces the marker it installed.
+ * </p>
+ */
+public class NearCache {
+    /**
+     * A cached value, or the marker of a GET on its way if the value is null.
+     */
+    private static final class Entry {
+        final String value;
+        // System.nanoTime() after which the value is not returned
+        final long expiresAt;
+        volatile boolean referenced;
+
+        Entry(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int capacity;
+    private final long ttlNanos;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    // the hand of the CLOCK, guarded by this
+    private Iterator<Map.Entry<String, Entry>> hand;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity  The maximum number of entries, positive.
+     * @param ttlMillis The time after which a cached value is read again from the server, positive.
+     * @throws IllegalArgumentException if the capacity or the time to live is not positive.
+     */
+    public NearCache(int capacity, long ttlMillis) {
+        if (capacity <= 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("Invalid near cache capacity or TTL: " + capacity + ", " + ttlMillis);
+        }
+        this.capacity = capacity;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Returns the cached value of the key.
+     *
+     * @return The value, or null if it is not cached or has outlived its time to live.
+     */
+    public String get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.value == null || entry.expiresAt - System.nanoTime() < 0) {
+            misses.increment();
+            return null;
+        }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * Marks a GET of the key about to be sent to the server.
+     *
+     * @return The token to pass to {@link #completeLoad}.
+     */
+    public Object beginLoad(String key) {
+        Entry marker = new Entry(null, 0);
+        entries.put(key, marker);
+        evictIfFull();
+        return marker;
+    }
+
+    /**
+     * Caches the value a GET returned, unless the key was invalidated or loaded again since
+     * {@link #beginLoad}.
+     *
+     * @param token The token beginLoad returned.
+     * @param value The value, or null if the key did not exist, which is not cached.
+     */
+    public void completeLoad(String key, Object token, String value) {
+        if (value == null) {
+            entries.remove(key, token);
+        } else {
+            entries.replace(key, (Entry) token, new Entry(value, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    /**
+     * Removes the cached value of a key, or the marker of a GET of it.
+     */
+    public void invalidate(String key) {
+        if (entries.remove(key) != null) {
+            invalidations.increment();
+        }
+    }
+
+    /**
+     * Removes every cached value and marker.
+     */
+    public void invalidateAll() {
+        invalidations.add(entries.size());
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Moves the hand over the entries until the map is back within its capacity, clearing the
+     * reference bits of the entries it spares.
+     */
+    private void evictIfFull() {
+        if (entries.size() <= capacity) {
+            return;
+        }
+        synchronized (this) {
+            while (entries.size() > capacity) {
+                if (hand == null || !hand.hasNext()) {
+                    hand = entries.entrySet().iterator();
+                    if (!hand.hasNext()) {
+                        return;
+                    }
+                }
+                Map.Entry<String, Entry> candidate = hand.next();
+                Entry entry = candidate.getValue();
+                if (entry.referenced) {
+                    entry.referenced = false;
+                } else if (entries.remove(candidate.getKey(), entry)) {
+                    evictions.increment();
+                }
+            }
+        }
+    }
+}
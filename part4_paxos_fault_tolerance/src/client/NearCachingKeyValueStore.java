@@ -0,0 +1,375 @@
+package client;
+
+import api.InvalidationListener;
+import api.KeyValueStoreRemote;
+import election.ElectionMessage;
+import exception.MalformedRequestException;
+import exception.PaxosConsensusException;
+import paxos.Promise;
+import util.Operation;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client-side view of a {@link KeyValueStoreRemote} that answers the GETs of recently read keys
+ * from a {@link NearCache}, without a call to the replica.
+ * <p>
+ * The cache stays coherent through an {@link InvalidationListener} that this view exports and
+ * subscribes with the replica it reads from, whose learner then pushes every key it applies or
+ * reclaims. GETs read the learner's store of that replica, so the cache follows the same state.
+ * The writes of this client invalidate its own cache as soon as they return, while the writes of
+ * other clients reach it once the replica has learned them, normally within milliseconds. Keys
+ * that do not exist are not cached.
+ * </p>
+ * <p>
+ * Invalidations can be lost, e.g. when the replica dropped the listener or restarted. The listener
+ * clears the cache when the sequence number of a call is not the next one, and GETs bypass the
+ * cache once no call came for {@value #LEASE_MILLIS} milliseconds, while the replica sends one at
+ * least every {@value InvalidationListener#HEARTBEAT_MILLIS} milliseconds. The next such GET
+ * clears the cache and subscribes the listener again, at most once per lease. The time to live of
+ * the cache bounds how stale a value can get in the meantime.
+ * </p>
+ * <p>
+ * The near cache is opt-in: {@link #fromSystemProperties} only wraps the store if the
+ * {@value #ENTRIES_PROPERTY} system property sets a capacity. Call {@link #close} to unsubscribe,
+ * so that the replica stops sending invalidations. The Paxos and election calls are passed
+ * through.
+ * </p>
+ */
+public class NearCachingKeyValueStore implements KeyValueStoreRemote, AutoCloseable {
+    /** The system property holding the capacity of the near cache in entries, 0 to disable it. */
+    public static final String ENTRIES_PROPERTY = "kvstore.nearcache.entries";
+    /** The system property holding the time to live of the cached values in milliseconds. */
+    public static final String TTL_PROPERTY = "kvstore.nearcache.ttl";
+    public static final long DEFAULT_TTL_MILLIS = 30_000;
+
+    /** The time without a call from the replica after which the listener is taken as dropped. */
+    public static final long LEASE_MILLIS = 5 * InvalidationListener.HEARTBEAT_MILLIS;
+    private static final long LEASE_NANOS = TimeUnit.MILLISECONDS.toNanos(LEASE_MILLIS);
+
+    /**
+     * The callback the replica invalidates keys through.
+     */
+    private static final class Listener implements InvalidationListener {
+        private final NearCache cache;
+        // the sequence number of the last call, guarded by this
+        private long sequence;
+        // System.nanoTime() at the last call, or when the listener was subscribed
+        private volatile long heardAt;
+        // cleared while the listener is being subscribed again
+        private volatile boolean subscribed;
+
+        Listener(NearCache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public synchronized void invalidate(long sequence, List<String> keys) {
+            if (follows(sequence)) {
+                for (String key : keys) {
+                    cache.invalidate(key);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void invalidateAll(long sequence) {
+            follows(sequence);
+            cache.invalidateAll();
+        }
+
+        /**
+         * Records a call, and clears the cache if calls were missed. Called while holding the
+         * monitor.
+         *
+         * @param number The sequence number of the call.
+         * @return False if the cache was cleared.
+         */
+        private boolean follows(long number) {
+            heardAt = System.nanoTime();
+            boolean next = number == sequence + 1;
+            sequence = number;
+            if (!next) {
+                cache.invalidateAll();
+            }
+            return next;
+        }
+
+        /**
+         * Returns whether the listener is subscribed and has heard from the replica within the lease.
+         *
+         * @param now The current System.nanoTime().
+         * @return True if the cache can be used.
+         */
+        boolean isLive(long now) {
+            return subscribed && now - heardAt < LEASE_NANOS;
+        }
+
+        void unsubscribed() {
+            subscribed = false;
+        }
+
+        /**
+         * Expects the calls of a new subscription.
+         */
+        synchronized void subscribed() {
+            sequence = 0;
+            heardAt = System.nanoTime();
+            subscribed = true;
+        }
+    }
+
+    private final KeyValueStoreRemote store;
+    private final NearCache cache;
+    private final Listener listener;
+    // the exported stub of the listener, as registered with the replica
+    private final InvalidationListener stub;
+    // set by close, after which the cache no longer learns of writes
+    private volatile boolean closed;
+    // System.nanoTime() before which the listener is not subscribed again, guarded by this
+    private long resubscribeAt;
+
+    /**
+     * Exports a listener and subscribes it with the replica.
+     *
+     * @param store     The remote store.
+     * @param capacity  The maximum number of cached values, positive.
+     * @param ttlMillis The time after which a cached value is read again from the replica, positive.
+     * @throws RemoteException if the listener cannot be exported or subscribed.
+     */
+    public NearCachingKeyValueStore(KeyValueStoreRemote store, int capacity, long ttlMillis)
+        throws RemoteException {
+        this.store = store;
+        this.cache = new NearCache(capacity, ttlMillis);
+        this.listener = new Listener(cache);
+        this.stub = (InvalidationListener) UnicastRemoteObject.exportObject(listener, 0);
+        this.resubscribeAt = System.nanoTime();
+        try {
+            store.subscribe(stub);
+        } catch (RemoteException | RuntimeException e) {
+            UnicastRemoteObject.unexportObject(listener, true);
+            throw e;
+        }
+        listener.subscribed();
+    }
+
+    /**
+     * Wraps the store in a near cache configured by the {@value #ENTRIES_PROPERTY} and
+     * {@value #TTL_PROPERTY} system properties, or returns it as it is if no capacity is set.
+     *
+     * @param store The remote store.
+     * @return The store to use.
+     * @throws IllegalArgumentException if a property is not a valid number.
+     * @throws RemoteException          if the listener cannot be exported or subscribed.
+     */
+    public static KeyValueStoreRemote fromSystemProperties(KeyValueStoreRemote store) throws RemoteException {
+        int capacity;
+        long ttlMillis;
+        try {
+            capacity = Integer.parseInt(System.getProperty(ENTRIES_PROPERTY, "0"));
+            ttlMillis = Long.parseLong(System.getProperty(TTL_PROPERTY, Long.toString(DEFAULT_TTL_MILLIS)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid near cache setting: " + e.getMessage());
+        }
+        return capacity > 0 ? new NearCachingKeyValueStore(store, capacity, ttlMillis) : store;
+    }
+
+    /**
+     * Returns the cache, e.g. to read its counters.
+     *
+     * @return The cache.
+     */
+    public NearCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Retrieve the value associated with a key, from the near cache if the key was read recently
+     * and has not changed since.
+     */
+    @Override
+    public String get(String key) throws RemoteException, MalformedRequestException {
+        if (closed || key == null || key.trim().isEmpty() || !isLive()) {
+            return store.get(key);
+        }
+        String value = cache.get(key);
+        if (value != null) {
+            return value;
+        }
+        Object token = cache.beginLoad(key);
+        try {
+            value = store.get(key);
+        } finally {
+            cache.completeLoad(key, token, value);
+        }
+        return value;
+    }
+
+    @Override
+    public void put(String key, String value)
+        throws RemoteException, MalformedRequestException, PaxosConsensusException {
+        try {
+            store.put(key, value);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void put(String key, String value, long ttlMillis)
+        throws RemoteException, MalformedRequestException, PaxosConsensusException {
+        try {
+            store.put(key, value, ttlMillis);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void delete(String key)
+        throws RemoteException, MalformedRequestException, PaxosConsensusException {
+        try {
+            store.delete(key);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void upsert(String key, String value)
+        throws RemoteException, MalformedRequestException, PaxosConsensusException {
+        try {
+            store.upsert(key, value);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public long getVersion(String key) throws RemoteException, MalformedRequestException {
+        return store.getVersion(key);
+    }
+
+    @Override
+    public boolean compareAndSet(String key, long expectedVersion, String value)
+        throws RemoteException, MalformedRequestException, PaxosConsensusException {
+        try {
+            return store.compareAndSet(key, expectedVersion, value);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public long increment(String key, long delta)
+        throws RemoteException, MalformedRequestException, PaxosConsensusException {
+        try {
+            return store.increment(key, delta);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void append(String key, String suffix)
+        throws RemoteException, MalformedRequestException, PaxosConsensusException {
+        try {
+            store.append(key, suffix);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public Promise paxosPrepare(long slot, int proposalNumber) throws RemoteException {
+        return store.paxosPrepare(slot, proposalNumber);
+    }
+
+    @Override
+    public String paxosAccept(long slot, int proposalNumber, Operation op) throws RemoteException {
+        return store.paxosAccept(slot, proposalNumber, op);
+    }
+
+    @Override
+    public void paxosDecide(long slot, Operation op) throws RemoteException {
+        store.paxosDecide(slot, op);
+    }
+
+    @Override
+    public Operation paxosChosen(long slot) throws RemoteException {
+        return store.paxosChosen(slot);
+    }
+
+    @Override
+    public void receiveElection(ElectionMessage msg) throws RemoteException {
+        store.receiveElection(msg);
+    }
+
+    @Override
+    public void subscribe(InvalidationListener listener) throws RemoteException {
+        store.subscribe(listener);
+    }
+
+    @Override
+    public void unsubscribe(InvalidationListener listener) throws RemoteException {
+        store.unsubscribe(listener);
+    }
+
+    /**
+     * Unsubscribes from the replica and unexports the listener. The cache is cleared, and GETs go
+     * to the replica from then on.
+     */
+    @Override
+    public void close() throws RemoteException {
+        closed = true;
+        try {
+            store.unsubscribe(stub);
+        } finally {
+            try {
+                UnicastRemoteObject.unexportObject(listener, true);
+            } catch (NoSuchObjectException e) {
+                // already unexported
+            }
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Returns whether the cache can be used, subscribing the listener again if the replica seems to
+     * have dropped it.
+     *
+     * @return True if the cache can be used.
+     */
+    private boolean isLive() {
+        long now = System.nanoTime();
+        if (listener.isLive(now)) {
+            return true;
+        }
+        synchronized (this) {
+            if (closed || listener.isLive(now) || now - resubscribeAt < 0) {
+                return listener.isLive(now);
+            }
+            resubscribeAt = now + LEASE_NANOS;
+            listener.unsubscribed();
+            cache.invalidateAll();
+            try {
+                store.subscribe(stub);
+            } catch (RemoteException | RuntimeException e) {
+                // GETs go to the replica until the next attempt
+                return false;
+            }
+            listener.subscribed();
+            return true;
+        }
+    }
+
+    private void invalidate(String key) {
+        if (key != null) {
+            cache.invalidate(key);
+        }
+    }
+}
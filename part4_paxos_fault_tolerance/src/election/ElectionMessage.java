@@ -1,6 +1,11 @@
 package election;
 
-import java.io.Serializable;
+import util.Varints;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
@@ -12,13 +17,24 @@ import java.util.Set;
  * seen so far.  When the token returns to its origin, the minimum address
  * (lexicographically) in the candidate set is chosen as leader.
  * </p>
+ * <p>
+ * The message writes its own binary form, the origin followed by the number
+ * of candidates and the candidates as {@link Varints} strings, instead of
+ * the default serialization of the object and its HashSet.
+ * </p>
  */
-public class ElectionMessage implements Serializable {
-    private static final long serialVersionUID = 1L;
+public class ElectionMessage implements Externalizable {
+    private static final long serialVersionUID = 2L;
 
-    private final String origin;
+    private String origin;
     private final Set<String> candidates = new HashSet<>();
 
+    /**
+     * Constructs an empty ElectionMessage, for deserialization only.
+     */
+    public ElectionMessage() {
+    }
+
     /**
      * Constructs a new ElectionMessage.
      *
@@ -70,4 +86,23 @@ public class ElectionMessage implements Serializable {
     public Set<String> getCandidates() {
         return Collections.unmodifiableSet(candidates);
     }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        Varints.writeString(out, origin);
+        Varints.writeLong(out, candidates.size());
+        for (String candidate : candidates) {
+            Varints.writeString(out, candidate);
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        origin = Varints.readString(in);
+        long count = Varints.readLong(in);
+        candidates.clear();
+        for (long i = 0; i < count; i++) {
+            candidates.add(Varints.readString(in));
+        }
+    }
 }
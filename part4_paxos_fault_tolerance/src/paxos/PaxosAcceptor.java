@@ -2,48 +2,52 @@ package paxos;
 
 import util.Operation;
 import util.LoggerUtil;
-import java.rmi.RemoteException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implements the Acceptor role in Paxos.
  * <p>
- * It responds to {@code prepare} and {@code accept} requests, maintaining per-instance
- * promised and accepted proposal numbers.  A random failure can be simulated on each call.
+ * It responds to {@code prepare} and {@code accept} requests, maintaining per-slot
+ * promised and accepted proposal numbers.  A promise returns the proposal accepted
+ * in the slot, if any, and the highest slot seen.  A random failure can be simulated
+ * on each call.
  * </p>
  */
 public class PaxosAcceptor {
-    private ConcurrentMap<String, PaxosInstance> instances = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, PaxosInstance> instances;
+    private final AtomicLong maxSlot = new AtomicLong();
 
     /**
      * Construct an acceptor with a shared instances map.
+     *
+     * @param instances The Paxos instances by log slot, shared with the learner.
      */
-    public PaxosAcceptor(ConcurrentMap<String, PaxosInstance> instances) {
+    public PaxosAcceptor(ConcurrentMap<Long, PaxosInstance> instances) {
         this.instances = instances;
     }
 
     /**
      * Handle a prepare request.
      *
-     * @param instanceId Unique identifier for the Paxos instance.
+     * @param slot Log slot of the Paxos instance.
      * @param proposalNumber Proposal number of this prepare.
-     * @return "PROMISE", "NACK", or "FAILURE" if a simulated failure occurred.
+     * @return The promise or refusal, or null if a simulated failure occurred.
      */
-    public String prepare(String instanceId, int proposalNumber) {
+    public Promise prepare(long slot, int proposalNumber) {
         if (simulateFailure()) {
-            LoggerUtil.logError("[PaxosAcceptor] Simulated failure in prepare: inst="
-                + instanceId + " pn=" + proposalNumber);
-            return "FAILURE";
+            LoggerUtil.logErrorSampled("[PaxosAcceptor] Simulated failure in prepare: slot=%d pn=%d",
+                slot, proposalNumber);
+            return null;
         }
-        PaxosInstance pi = instances.computeIfAbsent(instanceId, id -> new PaxosInstance());
+        long max = maxSlot.accumulateAndGet(slot, Math::max);
+        PaxosInstance pi = instances.computeIfAbsent(slot, s -> new PaxosInstance());
         synchronized (pi) {
             if (proposalNumber > pi.getPromised()) {
                 pi.setPromised(proposalNumber);
-                return "PROMISE";
+                return new Promise(true, proposalNumber, pi.getAcceptedNumber(), pi.getAcceptedOp(), max);
             } else {
-                return "NACK";
+                return new Promise(false, pi.getPromised(), 0, null, max);
             }
         }
     }
@@ -51,20 +55,22 @@ public class PaxosAcceptor {
     /**
      * Handle an accept request.
      *
-     * @param instanceId Unique identifier for the Paxos instance.
+     * @param slot Log slot of the Paxos instance.
      * @param proposalNumber Proposal number of this accept.
      * @param op Operation to accept if allowed.
      * @return "ACCEPTED", "NACK", or "FAILURE" if a simulated failure occurred.
      */
-    public String accept(String instanceId, int proposalNumber, Operation op) {
+    public String accept(long slot, int proposalNumber, Operation op) {
         if (simulateFailure()) {
-            LoggerUtil.logError("[PaxosAcceptor] Simulated failure in accept: inst="
-                + instanceId + " pn=" + proposalNumber);
+            LoggerUtil.logErrorSampled("[PaxosAcceptor] Simulated failure in accept: slot=%d pn=%d",
+                slot, proposalNumber);
             return "FAILURE";
         }
-        PaxosInstance pi = instances.computeIfAbsent(instanceId, id -> new PaxosInstance());
+        maxSlot.accumulateAndGet(slot, Math::max);
+        PaxosInstance pi = instances.computeIfAbsent(slot, s -> new PaxosInstance());
         synchronized (pi) {
             if (proposalNumber >= pi.getPromised()) {
+                pi.setPromised(proposalNumber);
                 pi.setAcceptedNumber(proposalNumber);
                 pi.setAcceptedOp(op);
                 return "ACCEPTED";
@@ -74,6 +80,15 @@ public class PaxosAcceptor {
         }
     }
 
+    /**
+     * Return the highest slot this acceptor has been asked to prepare or accept.
+     *
+     * @return The slot, or 0 if none.
+     */
+    public long getMaxSlot() {
+        return maxSlot.get();
+    }
+
     /**
      * Simulate a random failure with 20% probability.
      *
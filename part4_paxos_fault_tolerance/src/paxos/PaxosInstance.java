@@ -3,15 +3,19 @@ package paxos;
 import util.Operation;
 
 /**
- * Encapsulates the state of a single Paxos consensus instance.
+ * Encapsulates the state of a single Paxos consensus instance, one slot of the log.
  * <p>
- * Tracks the highest promised proposal number and the accepted proposal.
+ * Tracks the highest promised proposal number and the accepted proposal, the
+ * operation chosen in the slot once a proposer decided it, and the value an
+ * update left under its key once the local learner applied it.
  * </p>
  */
 public class PaxosInstance {
     private int promised = 0;
     private int acceptedNumber = 0;
     private Operation acceptedOp = null;
+    private volatile Operation chosenOp = null;
+    private volatile String result = null;
 
     /** @return highest promised proposal number. */
     public int getPromised() { return promised; }
@@ -27,4 +31,14 @@ public class PaxosInstance {
     public Operation getAcceptedOp() { return acceptedOp; }
     /** @param op operation to accept. */
     public void setAcceptedOp(Operation op) { this.acceptedOp = op; }
+
+    /** @return chosen operation, or null if the slot is not decided yet. */
+    public Operation getChosenOp() { return chosenOp; }
+    /** @param op operation chosen in the slot. */
+    public void setChosenOp(Operation op) { this.chosenOp = op; }
+
+    /** @return value the applied update left under its key, or null if it changed nothing. */
+    public String getResult() { return result; }
+    /** @param value value the applied update left under its key. */
+    public void setResult(String value) { this.result = value; }
 }
@@ -1,67 +1,258 @@
 package paxos;
 
+import storage.ExpiringStorageEngine;
+import storage.StorageEngine;
 import util.Operation;
 import util.LoggerUtil;
-import java.util.Map;
-import java.util.Set;
+import java.io.IOException;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
 
 /**
  * Implements the Learner role in Paxos.
  * <p>
- * Periodically scans all Paxos instances and applies any newly
- * accepted operations to the local state machine.
+ * The proposer that chose an operation tells every learner which slot of
+ * the log it was chosen in, and the learner applies the chosen operations
+ * to the local state machine strictly in slot order, so every replica
+ * applies the same operations in the same order.  An operation chosen after
+ * a slot the learner has not heard of waits until that slot is known: the
+ * learner asks the other replicas for it when it {@link #catchUp catches up},
+ * and the leader fills a slot nobody knows.
+ * </p>
+ * <p>
+ * A checkpoint of the store is the truncation point of the log: the slots
+ * applied before the previous checkpoint are dropped, so that a replica
+ * that fell up to one snapshot interval behind can still fetch them.  The
+ * log is kept in memory, so a replica that restarts, or falls further behind,
+ * does not recover the operations its peers have dropped.
+ * </p>
+ * <p>
+ * Before applying an operation, including a NOOP, the learner reclaims the
+ * entries that expired by the operation's timestamp.
+ * </p>
+ * <p>
+ * The updates UPSERT, CAS, INCR and APPEND are applied to the current value
+ * of their key, and the value they leave is recorded in their instance, so
+ * that the leader can answer the client once it applied the slot.  A CAS
+ * whose key has another version, or an INCR of a value that is not a number,
+ * changes nothing and records null.
+ * </p>
+ * <p>
+ * The key of every operation applied, and of every entry reclaimed, is passed
+ * to a listener, which the server uses to invalidate the near caches of its
+ * clients.
  * </p>
  */
 public class PaxosLearner {
-    private final ConcurrentMap<String, PaxosInstance> instances;
-    private final Map<String,String> store;
-    private final Set<String> applied = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<Long, PaxosInstance> instances;
+    private final ExpiringStorageEngine store;
+    private final Consumer<String> changeListener;
+    private final LongFunction<Operation> fetcher;
+    // the next slot to apply, and the highest slot known to be chosen, guarded by this
+    private long nextSlot = 1;
+    private long highestChosen = 0;
+    // the slots below are dropped at the next checkpoint
+    private long truncateBelow = 1;
 
     /**
      * @param instances Shared Paxos instance map from acceptor.
-     * @param store Local key-value store to apply operations.
+     * @param store Local storage engine to apply operations to.
      */
-    public PaxosLearner(ConcurrentMap<String, PaxosInstance> instances,
-                        Map<String,String> store) {
+    public PaxosLearner(ConcurrentMap<Long, PaxosInstance> instances,
+                        StorageEngine store) {
+        this(instances, store, key -> { }, slot -> null);
+    }
+
+    /**
+     * @param instances Shared Paxos instance map from acceptor.
+     * @param store Local storage engine to apply operations to.
+     * @param changeListener Receives the key of every operation applied and
+     *                       every entry reclaimed, on the learning thread.
+     * @param fetcher Returns the operation another replica knows was chosen in a
+     *                slot, or null if none does.
+     */
+    public PaxosLearner(ConcurrentMap<Long, PaxosInstance> instances,
+                        StorageEngine store, Consumer<String> changeListener,
+                        LongFunction<Operation> fetcher) {
         this.instances = instances;
-        this.store = store;
+        this.store = new ExpiringStorageEngine(store);
+        this.changeListener = changeListener;
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * Record the operation chosen in a slot, then apply the chosen slots that
+     * follow the applied ones.
+     *
+     * @param slot The slot.
+     * @param op   The chosen operation.
+     */
+    public synchronized void decide(long slot, Operation op) {
+        if (slot >= nextSlot) {
+            PaxosInstance pi = instances.computeIfAbsent(slot, s -> new PaxosInstance());
+            if (pi.getChosenOp() == null) {
+                pi.setChosenOp(op);
+            }
+            highestChosen = Math.max(highestChosen, slot);
+            learn();
+        }
+    }
+
+    /**
+     * Return the operation chosen in a slot, if this replica knows it.
+     *
+     * @param slot The slot.
+     * @return The chosen operation, or null if it is unknown or was dropped.
+     */
+    public Operation getChosen(long slot) {
+        PaxosInstance pi = instances.get(slot);
+        return pi != null ? pi.getChosenOp() : null;
+    }
+
+    /**
+     * Apply the chosen operations from the next slot on, up to the first slot
+     * that is not known to be chosen.
+     */
+    public synchronized void learn() {
+        PaxosInstance pi;
+        while ((pi = instances.get(nextSlot)) != null && pi.getChosenOp() != null) {
+            apply(pi, pi.getChosenOp());
+            nextSlot++;
+        }
+        notifyAll();
     }
 
     /**
-     * Scan and apply any operations that have been accepted by a majority
-     * but not yet applied locally.
+     * Apply the chosen operations, fetching the slots missing before the
+     * highest chosen one from the other replicas, until a slot nobody knows.
      */
-    public void learn() {
-        for (Map.Entry<String, PaxosInstance> entry : instances.entrySet()) {
-            String instId = entry.getKey();
-            PaxosInstance pi = entry.getValue();
-            if (pi.getAcceptedNumber() > 0 && applied.add(instId)) {
-                Operation op = pi.getAcceptedOp();
-                if (op != null && op.getType() != Operation.Type.NOOP) {
-                    switch (op.getType()) {
-                        case PUT:
-                            store.put(op.getKey(), op.getValue());
-                            LoggerUtil.log("[Learner] Applied PUT "
-                                + op.getKey() + "=>" + op.getValue());
-                            break;
-                        case DELETE:
-                            store.remove(op.getKey());
-                            LoggerUtil.log("[Learner] Applied DELETE "
-                                + op.getKey());
-                            break;
-                        default:
-                    }
+    public void catchUp() {
+        while (true) {
+            long slot;
+            synchronized (this) {
+                learn();
+                if (nextSlot > highestChosen) {
+                    return;
                 }
+                slot = nextSlot;
             }
+            Operation op = fetcher.apply(slot);
+            if (op == null) {
+                return;
+            }
+            decide(slot, op);
+        }
+    }
+
+    /**
+     * Wait until a slot is applied.
+     *
+     * @param slot          The slot.
+     * @param timeoutMillis The longest time to wait.
+     * @return The instance of the slot, with the result of its update, or null
+     *         if it is not applied yet.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public synchronized PaxosInstance awaitApplied(long slot, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (nextSlot <= slot && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return nextSlot > slot ? instances.get(slot) : null;
+    }
+
+    /**
+     * Return the first slot that is not applied yet.
+     *
+     * @return The slot.
+     */
+    public synchronized long getNextSlot() {
+        return nextSlot;
+    }
+
+    /**
+     * Return whether a slot is known to be chosen.
+     *
+     * @param slot The slot.
+     * @return True if the chosen operation is known.
+     */
+    public boolean isChosen(long slot) {
+        return getChosen(slot) != null;
+    }
+
+    private void apply(PaxosInstance pi, Operation op) {
+        store.expire(op.getTimestamp()).forEach(changeListener);
+        if (op.getType() == Operation.Type.NOOP) {
+            return;
+        }
+        switch (op.getType()) {
+            case PUT: {
+                String value = op.getValue();
+                if (op.getExpiresAt() != 0) {
+                    store.put(op.getKey(), value, op.getExpiresAt());
+                } else {
+                    store.put(op.getKey(), value);
+                }
+                LoggerUtil.logSampled("[Learner] Applied PUT %s=>%s", op.getKey(), value);
+                break;
+            }
+            case DELETE:
+                store.delete(op.getKey());
+                LoggerUtil.logSampled("[Learner] Applied DELETE %s", op.getKey());
+                break;
+            case UPSERT: {
+                String value = op.getValue();
+                store.put(op.getKey(), value);
+                pi.setResult(value);
+                LoggerUtil.logSampled("[Learner] Applied UPSERT %s=>%s", op.getKey(), value);
+                break;
+            }
+            case CAS:
+            case INCR:
+            case APPEND: {
+                String value;
+                try {
+                    value = store.update(op.getKey(), op.getTimestamp(),
+                        current -> op.apply(current, store.getVersion(op.getKey())));
+                } catch (NumberFormatException | ArithmeticException e) {
+                    value = null;
+                }
+                pi.setResult(value);
+                LoggerUtil.logSampled("[Learner] Applied %s %s=>%s", op.getType(), op.getKey(), value);
+                break;
+            }
+            default:
+        }
+        changeListener.accept(op.getKey());
+    }
+
+    /**
+     * Checkpoint the store, then drop the slots applied before the previous
+     * checkpoint.
+     * <p>
+     * Slots applied before the checkpoint started are reflected in it, and
+     * every replica has had at least one snapshot interval to fetch them.
+     * </p>
+     *
+     * @throws IOException if the store cannot be persisted.
+     */
+    public void checkpoint() throws IOException {
+        long covered = getNextSlot();
+        store.checkpoint();
+        synchronized (this) {
+            long below = truncateBelow;
+            instances.keySet().removeIf(slot -> slot < below);
+            truncateBelow = covered;
         }
     }
 
     /**
      * Return the local key-value store for read operations.
      */
-    public Map<String,String> getStore() {
+    public ExpiringStorageEngine getStore() {
         return store;
     }
 }
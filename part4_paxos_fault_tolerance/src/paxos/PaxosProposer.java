@@ -4,65 +4,195 @@ import api.KeyValueStoreRemote;
 import exception.PaxosConsensusException;
 import util.Operation;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implements the Proposer role in Paxos.
  * <p>
- * Only the elected leader should invoke {@code propose}.  It drives
- * the prepare and accept phases, with optional retry logic.
+ * Only the elected leader should invoke {@code propose}.  It gives every
+ * operation the next slot of the log, drives the prepare and accept phases
+ * for that slot, retrying with a higher proposal number if a quorum is not
+ * reached, and then tells every replica the chosen operation.  Slots are
+ * handed out by a counter, so concurrent proposals run in parallel, each in
+ * its own slot, and {@link PaxosLearner} applies them in slot order.
+ * </p>
+ * <p>
+ * Proposal numbers are unique per replica: the number of a round times the
+ * size of the ring, plus the position of this replica.  If an acceptor
+ * already accepted a proposal in the slot, possibly of a previous leader, the
+ * proposer proposes that operation instead of its own, since it may already be
+ * chosen, and then retries its own operation in a later slot.  A new leader
+ * starts after the highest slot the acceptors have seen.
+ * </p>
+ * <p>
+ * A slot whose proposal failed stays empty until the leader fills it, with
+ * {@link #fill}: a NOOP, unless an operation was accepted in it.
  * </p>
  */
 public class PaxosProposer {
+    // the rounds of prepare and accept tried for one slot
+    private static final int MAX_ATTEMPTS = 5;
+    private static final Operation NOOP = new Operation(Operation.Type.NOOP, "", "");
+
     private final List<String> peerAddrs;
+    private final int selfIndex;
     private final PaxosAcceptor localAcceptor;
     private final PaxosRPCClient rpcClient;
-    private int proposalCounter = 0;
+    private final AtomicLong nextSlot = new AtomicLong(1);
+    private final AtomicInteger round = new AtomicInteger();
+    private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
     private final List<KeyValueStoreRemote> peerStubs = new ArrayList<>();
 
     /**
      * @param peerAddrs List of all replica addresses ("host:port").
-     * @param localAcceptor Local acceptor to handle self RPCs.
+     * @param selfIndex Position of this replica in the list.
+     * @param localAcceptor Local acceptor, whose highest slot a new leader starts after.
      * @param rpcClient Client to invoke remote RPCs on other replicas.
      */
     public PaxosProposer(List<String> peerAddrs,
+                         int selfIndex,
                          PaxosAcceptor localAcceptor,
                          PaxosRPCClient rpcClient) {
         this.peerAddrs = peerAddrs;
+        this.selfIndex = selfIndex;
         this.localAcceptor = localAcceptor;
         this.rpcClient = rpcClient;
     }
 
     /**
-     * Drive a Paxos proposal for the given operation.
+     * Drive a Paxos proposal for the given operation in the next free slot.
      *
      * @param op Operation to propose.
-     * @throws PaxosConsensusException if prepare or accept quorum cannot be reached.
+     * @return The slot the operation was chosen in.
+     * @throws PaxosConsensusException if prepare or accept quorum cannot be reached. The
+     *                                 operation may still be chosen, if an acceptor accepted it
+     *                                 and the leader fills its slot.
      */
-    public void propose(Operation op) throws PaxosConsensusException {
-        String instanceId = "inst-" + System.nanoTime();
-        int pn = ++proposalCounter;
-        int total = peerAddrs.size(), quorum = total / 2 + 1;
+    public long propose(Operation op) throws PaxosConsensusException {
+        while (true) {
+            long first = localAcceptor.getMaxSlot() + 1;
+            long slot = nextSlot.updateAndGet(next -> Math.max(next, first) + 1) - 1;
+            inFlight.add(slot);
+            try {
+                if (choose(slot, op) == op) {
+                    return slot;
+                }
+            } finally {
+                inFlight.remove(slot);
+            }
+        }
+    }
 
-        // Prepare phase
-        int promises = 0;
-        for (String addr : peerAddrs) {
-            String resp = rpcClient.prepare(addr, instanceId, pn, op);
-            if ("PROMISE".equals(resp)) promises++;
+    /**
+     * Decide a slot that is not chosen yet, unless a proposal of this replica is
+     * running in it: with the operation accepted in it, if any, or a NOOP.
+     *
+     * @param slot The slot to fill.
+     * @throws PaxosConsensusException if prepare or accept quorum cannot be reached.
+     */
+    public void fill(long slot) throws PaxosConsensusException {
+        if (!inFlight.add(slot)) {
+            return;
         }
-        if (promises < quorum) {
-            throw new PaxosConsensusException("Prepare quorum failed: " + promises + "/" + total);
+        try {
+            choose(slot, NOOP);
+        } finally {
+            inFlight.remove(slot);
         }
+    }
 
-        // Accept phase
-        int accepts = 0;
-        for (String addr : peerAddrs) {
-            String resp = rpcClient.accept(addr, instanceId, pn, op);
-            if ("ACCEPTED".equals(resp)) accepts++;
+    /**
+     * Ask the other replicas which operation was chosen in a slot.
+     *
+     * @param slot The slot.
+     * @return The chosen operation, or null if no replica reached knows it.
+     */
+    public Operation fetchChosen(long slot) {
+        for (int i = 0; i < peerAddrs.size(); i++) {
+            if (i != selfIndex) {
+                Operation op = rpcClient.chosen(peerAddrs.get(i), slot);
+                if (op != null) {
+                    return op;
+                }
+            }
         }
-        if (accepts < quorum) {
-            throw new PaxosConsensusException("Accept quorum failed: " + accepts + "/" + total);
+        return null;
+    }
+
+    /**
+     * Return the slot the next proposal will take, so every slot below it has
+     * been handed out.
+     *
+     * @return The slot.
+     */
+    public long getNextSlot() {
+        return nextSlot.get();
+    }
+
+    /**
+     * Run Paxos in one slot and tell every replica the chosen operation.
+     *
+     * @param slot The slot.
+     * @param op   The operation to propose if no other was accepted in the slot.
+     * @return The chosen operation, {@code op} itself if it was chosen.
+     * @throws PaxosConsensusException if no round reached a quorum.
+     */
+    private Operation choose(long slot, Operation op) throws PaxosConsensusException {
+        int total = peerAddrs.size(), quorum = total / 2 + 1;
+        String failure = null;
+        Set<Integer> tried = new HashSet<>();
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            int pn = round.incrementAndGet() * total + selfIndex + 1;
+            tried.add(pn);
+
+            // Prepare phase
+            int promises = 0, highest = 0;
+            Operation value = op;
+            for (String addr : peerAddrs) {
+                Promise promise = rpcClient.prepare(addr, slot, pn);
+                if (promise == null) {
+                    continue;
+                }
+                nextSlot.accumulateAndGet(promise.getMaxSlot() + 1, Math::max);
+                if (promise.isPromised()) {
+                    promises++;
+                    if (promise.getAcceptedNumber() > highest) {
+                        // an operation accepted in an earlier round of this call is op itself
+                        highest = promise.getAcceptedNumber();
+                        value = tried.contains(highest) ? op : promise.getAcceptedOp();
+                    }
+                } else {
+                    round.accumulateAndGet(promise.getProposalNumber() / total, Math::max);
+                }
+            }
+            if (promises < quorum) {
+                failure = "Prepare quorum failed: " + promises + "/" + total;
+                continue;
+            }
+
+            // Accept phase
+            int accepts = 0;
+            for (String addr : peerAddrs) {
+                String resp = rpcClient.accept(addr, slot, pn, value);
+                if ("ACCEPTED".equals(resp)) accepts++;
+            }
+            if (accepts < quorum) {
+                failure = "Accept quorum failed: " + accepts + "/" + total;
+                continue;
+            }
+
+            // Decide phase
+            for (String addr : peerAddrs) {
+                rpcClient.decide(addr, slot, value);
+            }
+            return value;
         }
+        throw new PaxosConsensusException(failure + " in slot " + slot);
     }
 
     /**
@@ -5,8 +5,8 @@ import util.Operation;
 /**
  * Facade for remote Paxos RPC calls.
  * <p>
- * Encapsulates the networking or RMI logic to invoke prepare/accept
- * on remote acceptors (including local).
+ * Encapsulates the networking or RMI logic to invoke prepare, accept and decide
+ * on remote acceptors and learners (including local).
  * </p>
  */
 public interface PaxosRPCClient {
@@ -14,21 +14,39 @@ public interface PaxosRPCClient {
      * Invoke prepare RPC on the given replica.
      *
      * @param addr           "host:port" of replica.
-     * @param instanceId     Paxos instance ID.
+     * @param slot           Log slot of the Paxos instance.
      * @param proposalNumber Proposal number.
-     * @param op             Operation being proposed (may be null or NOOP).
-     * @return response string ("PROMISE","NACK","FAILURE").
+     * @return The acceptor's promise or refusal, or null if the call failed.
      */
-    String prepare(String addr, String instanceId, int proposalNumber, Operation op);
+    Promise prepare(String addr, long slot, int proposalNumber);
 
     /**
      * Invoke the accept RPC on a remote acceptor.
      *
      * @param addr           Address of the acceptor in "host:port" form.
-     * @param instanceId     Unique Paxos instance identifier.
+     * @param slot           Log slot of the Paxos instance.
      * @param proposalNumber Proposal number to accept.
      * @param op             Operation to accept.
      * @return The acceptor's response: "ACCEPTED", "NACK", or "FAILURE".
      */
-    String accept(String addr, String instanceId, int proposalNumber, Operation op);
+    String accept(String addr, long slot, int proposalNumber, Operation op);
+
+    /**
+     * Tell the learner of a replica which operation was chosen in a slot.
+     *
+     * @param addr Address of the replica in "host:port" form.
+     * @param slot Log slot of the Paxos instance.
+     * @param op   The chosen operation.
+     * @return True if the call succeeded.
+     */
+    boolean decide(String addr, long slot, Operation op);
+
+    /**
+     * Ask a replica which operation was chosen in a slot.
+     *
+     * @param addr Address of the replica in "host:port" form.
+     * @param slot Log slot of the Paxos instance.
+     * @return The chosen operation, or null if the replica does not know it or the call failed.
+     */
+    Operation chosen(String addr, long slot);
 }
@@ -5,35 +5,69 @@ import util.Operation;
 
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * RMI‐based implementation of PaxosRPCClient.
  * <p>
- * Performs RMI lookups to invoke paxosPrepare and paxosAccept on remote replicas.
+ * Performs RMI lookups to invoke paxosPrepare, paxosAccept, paxosDecide and
+ * paxosChosen on remote replicas.  The stub of a replica is kept until a call
+ * through it fails, since every proposal calls every replica three times.
  * </p>
  */
 public class PaxosRPCClientImpl implements PaxosRPCClient {
+    private final Map<String, KeyValueStoreRemote> stubs = new ConcurrentHashMap<>();
+
     @Override
-    public String prepare(String addr, String instanceId, int proposalNumber, Operation op) {
+    public Promise prepare(String addr, long slot, int proposalNumber) {
         try {
-            String[] parts = addr.split(":");
-            Registry reg = LocateRegistry.getRegistry(parts[0], Integer.parseInt(parts[1]));
-            KeyValueStoreRemote stub = (KeyValueStoreRemote) reg.lookup("KeyValueRMIStore");
-            return stub.paxosPrepare(instanceId, proposalNumber, op);
+            return stub(addr).paxosPrepare(slot, proposalNumber);
         } catch (Exception e) {
+            stubs.remove(addr);
+            return null;
+        }
+    }
+
+    @Override
+    public String accept(String addr, long slot, int proposalNumber, Operation op) {
+        try {
+            return stub(addr).paxosAccept(slot, proposalNumber, op);
+        } catch (Exception e) {
+            stubs.remove(addr);
             return "FAILURE";
         }
     }
 
     @Override
-    public String accept(String addr, String instanceId, int proposalNumber, Operation op) {
+    public boolean decide(String addr, long slot, Operation op) {
         try {
+            stub(addr).paxosDecide(slot, op);
+            return true;
+        } catch (Exception e) {
+            stubs.remove(addr);
+            return false;
+        }
+    }
+
+    @Override
+    public Operation chosen(String addr, long slot) {
+        try {
+            return stub(addr).paxosChosen(slot);
+        } catch (Exception e) {
+            stubs.remove(addr);
+            return null;
+        }
+    }
+
+    private KeyValueStoreRemote stub(String addr) throws Exception {
+        KeyValueStoreRemote stub = stubs.get(addr);
+        if (stub == null) {
             String[] parts = addr.split(":");
             Registry reg = LocateRegistry.getRegistry(parts[0], Integer.parseInt(parts[1]));
-            KeyValueStoreRemote stub = (KeyValueStoreRemote) reg.lookup("KeyValueRMIStore");
-            return stub.paxosAccept(instanceId, proposalNumber, op);
-        } catch (Exception e) {
-            return "FAILURE";
+            stub = (KeyValueStoreRemote) reg.lookup("KeyValueRMIStore");
+            stubs.put(addr, stub);
         }
+        return stub;
     }
-}
\ No newline at end of file
+}
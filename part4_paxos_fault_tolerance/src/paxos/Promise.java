@@ -0,0 +1,93 @@
+package paxos;
+
+import util.Operation;
+import util.Varints;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * The answer of an acceptor to a prepare request for one log slot.
+ * <p>
+ * A promise carries the proposal the acceptor accepted last in the slot, if any,
+ * which the proposer must propose instead of its own operation, so that a value
+ * that may already be chosen is never replaced. A refusal carries the proposal
+ * number the acceptor promised, so that the proposer can retry above it. Both
+ * carry the highest slot the acceptor has seen, from which a new leader starts
+ * numbering its slots.
+ * </p>
+ * <p>
+ * Like {@link Operation}, a promise writes its own binary form, as varints.
+ * </p>
+ */
+public class Promise implements Externalizable {
+    private static final long serialVersionUID = 1L;
+
+    private boolean promised;
+    private int proposalNumber;
+    private int acceptedNumber;
+    private Operation acceptedOp;
+    private long maxSlot;
+
+    /**
+     * Constructor used by deserialization.
+     */
+    public Promise() {
+    }
+
+    /**
+     * @param promised       Whether the acceptor promised the proposal.
+     * @param proposalNumber The highest proposal number the acceptor promised in the slot.
+     * @param acceptedNumber The number of the proposal accepted in the slot, or 0 if none.
+     * @param acceptedOp     The operation accepted in the slot, or null if none.
+     * @param maxSlot        The highest slot the acceptor has seen.
+     */
+    public Promise(boolean promised, int proposalNumber, int acceptedNumber, Operation acceptedOp, long maxSlot) {
+        this.promised = promised;
+        this.proposalNumber = proposalNumber;
+        this.acceptedNumber = acceptedNumber;
+        this.acceptedOp = acceptedOp;
+        this.maxSlot = maxSlot;
+    }
+
+    /** @return true if the acceptor promised the proposal. */
+    public boolean isPromised() { return promised; }
+
+    /** @return the highest proposal number the acceptor promised in the slot. */
+    public int getProposalNumber() { return proposalNumber; }
+
+    /** @return the number of the proposal accepted in the slot, or 0 if none. */
+    public int getAcceptedNumber() { return acceptedNumber; }
+
+    /** @return the operation accepted in the slot, or null if none. */
+    public Operation getAcceptedOp() { return acceptedOp; }
+
+    /** @return the highest slot the acceptor has seen. */
+    public long getMaxSlot() { return maxSlot; }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeBoolean(promised);
+        Varints.writeLong(out, proposalNumber);
+        Varints.writeLong(out, acceptedNumber);
+        Varints.writeLong(out, maxSlot);
+        out.writeBoolean(acceptedOp != null);
+        if (acceptedOp != null) {
+            acceptedOp.writeExternal(out);
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        promised = in.readBoolean();
+        proposalNumber = (int) Varints.readLong(in);
+        acceptedNumber = (int) Varints.readLong(in);
+        maxSlot = Varints.readLong(in);
+        if (in.readBoolean()) {
+            acceptedOp = new Operation();
+            acceptedOp.readExternal(in);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package server;
+
+import api.InvalidationListener;
+import util.LoggerUtil;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes the keys applied by the learner of a replica to the {@link InvalidationListener}s of
+ * the clients that keep a near cache.
+ * <p>
+ * An applied operation only adds its key to the set of pending keys of every subscription, so it
+ * never waits for a client, and costs a single check while no client is subscribed. Each
+ * subscription has its own daemon thread, which sends its pending keys in batches of up to
+ * {@value #MAX_BATCH}, so a listener learns of a change shortly after it was applied, repeated
+ * changes of a key pending meanwhile are sent once, and a slow client does not hold up the others.
+ * If more than {@value #MAX_PENDING} keys are pending for a listener, they are dropped and the
+ * listener is told to clear its cache instead. A listener that has been sent nothing for
+ * {@value InvalidationListener#HEARTBEAT_MILLIS} milliseconds is sent an empty batch.
+ * </p>
+ * <p>
+ * The calls to a listener carry consecutive sequence numbers, starting at 1 when it subscribes, so
+ * that the client can tell when a call was lost and clear its cache. A failed call is tried again
+ * up to {@value #MAX_ATTEMPTS} times in all, after a growing pause, and the listener is dropped if
+ * they all fail, so a client that went away costs nothing more. A client that is still there
+ * notices that the calls stopped, clears its cache and subscribes again.
+ * </p>
+ */
+public class InvalidationPublisher {
+    // the keys sent per call
+    private static final int MAX_BATCH = 1024;
+    // the pending keys from which they are replaced by one invalidateAll
+    private static final int MAX_PENDING = 65536;
+    // the tries of a call before the listener is dropped, and the pause after the first failure
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_MILLIS = 100;
+    private static final long HEARTBEAT_NANOS = TimeUnit.MILLISECONDS.toNanos(InvalidationListener.HEARTBEAT_MILLIS);
+
+    private final ConcurrentMap<InvalidationListener, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final AtomicInteger threads = new AtomicInteger();
+
+    /**
+     * The keys pending for one listener, and the thread that sends them.
+     */
+    private final class Subscription implements Runnable {
+        private final InvalidationListener listener;
+        // guarded by this
+        private final Set<String> pending = new LinkedHashSet<>();
+        private boolean overflowed;
+        private boolean cancelled;
+        private long sequence;
+
+        Subscription(InvalidationListener listener) {
+            this.listener = listener;
+        }
+
+        synchronized void add(String key) {
+            if (!overflowed) {
+                addPending(key);
+                notify();
+            }
+        }
+
+        synchronized void addAll(Collection<String> keys) {
+            for (String key : keys) {
+                if (overflowed) {
+                    // the invalidateAll about to be sent covers the keys
+                    break;
+                }
+                addPending(key);
+            }
+            notify();
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            notify();
+        }
+
+        /**
+         * Adds a key to the pending keys, or drops them all if there are too many. Called while
+         * holding the monitor.
+         */
+        private void addPending(String key) {
+            if (pending.size() >= MAX_PENDING) {
+                pending.clear();
+                overflowed = true;
+            } else {
+                pending.add(key);
+            }
+        }
+
+        /**
+         * Sends the pending keys to the listener, until it is cancelled or dropped.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                List<String> batch = new ArrayList<>();
+                boolean all;
+                long number;
+                synchronized (this) {
+                    long deadline = System.nanoTime() + HEARTBEAT_NANOS;
+                    long remaining;
+                    while (!cancelled && pending.isEmpty() && !overflowed
+                        && (remaining = deadline - System.nanoTime()) > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (cancelled) {
+                        return;
+                    }
+                    all = overflowed;
+                    overflowed = false;
+                    Iterator<String> keys = pending.iterator();
+                    while (keys.hasNext() && batch.size() < MAX_BATCH) {
+                        batch.add(keys.next());
+                        keys.remove();
+                    }
+                    number = ++sequence;
+                }
+                if (!send(number, all, batch)) {
+                    subscriptions.remove(listener, this);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Makes one call to the listener, trying it again if it fails.
+         *
+         * @return False if every try failed, or the thread was interrupted.
+         */
+        private boolean send(long number, boolean all, List<String> batch) {
+            long pause = RETRY_MILLIS;
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    if (all) {
+                        listener.invalidateAll(number);
+                    } else {
+                        listener.invalidate(number, batch);
+                    }
+                    return true;
+                } catch (RemoteException | RuntimeException e) {
+                    if (attempt == MAX_ATTEMPTS) {
+                        LoggerUtil.logError("[Replica] Dropped invalidation listener %s after %d attempts: %s",
+                            listener, attempt, e.getMessage());
+                        return false;
+                    }
+                }
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                pause *= 2;
+            }
+        }
+    }
+
+    /**
+     * Sends the keys published from now on to the listener. A listener already subscribed starts
+     * over, from sequence number 1.
+     */
+    public void subscribe(InvalidationListener listener) {
+        Subscription subscription = new Subscription(Objects.requireNonNull(listener));
+        Subscription previous = subscriptions.put(listener, subscription);
+        if (previous != null) {
+            previous.cancel();
+        }
+        Thread thread = new Thread(subscription, "invalidation-publisher-" + threads.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops sending keys to the listener.
+     */
+    public void unsubscribe(InvalidationListener listener) {
+        Subscription subscription = subscriptions.remove(listener);
+        if (subscription != null) {
+            subscription.cancel();
+        }
+    }
+
+    /**
+     * Publishes a key that was just applied or expired.
+     */
+    public void publish(String key) {
+        for (Subscription subscription : subscriptions.values()) {
+            subscription.add(key);
+        }
+    }
+
+    /**
+     * Publishes keys that were just applied or expired.
+     */
+    public void publish(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        for (Subscription subscription : subscriptions.values()) {
+            subscription.addAll(keys);
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package server;
 
 import api.KeyValueStoreRemote;
+import storage.StorageEngine;
+import storage.StorageEngines;
 import util.LoggerUtil;
 
+import java.io.UncheckedIOException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
@@ -36,6 +39,15 @@ public class KeyValueStoreRMIServer {
             return;
         }
         int port = parsePort(args[0], 1099);
+        StorageEngine engine;
+        long snapshotInterval;
+        try {
+            engine = StorageEngines.fromSystemProperty();
+            snapshotInterval = StorageEngines.snapshotInterval();
+        } catch (IllegalArgumentException | UncheckedIOException e) {
+            LoggerUtil.logError(e.getMessage());
+            return;
+        }
         buildRing(port, args);
 
         retryTask = scheduler.scheduleAtFixedRate(
@@ -44,7 +56,7 @@ public class KeyValueStoreRMIServer {
 
         try {
             Registry registry = LocateRegistry.createRegistry(port);
-            kvStore = new RingElectionKVStore(ring, ring.indexOf(ring.get(0)));
+            kvStore = new RingElectionKVStore(ring, ring.indexOf(ring.get(0)), engine, snapshotInterval);
             registry.rebind("KeyValueRMIStore", kvStore);
             LoggerUtil.log("RMI server bound on port " + port);
 
@@ -1,13 +1,18 @@
 package server;
 
+import api.InvalidationListener;
 import api.KeyValueStoreRemote;
 import election.LeaderElector;
+import exception.MalformedRequestException;
 import exception.PaxosConsensusException;
 import paxos.*;
+import storage.StorageEngine;
+import storage.StorageEngines;
 import supervisor.*;
 import util.LoggerUtil;
 import util.Operation;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.rmi.registry.LocateRegistry;
@@ -21,6 +26,20 @@ import java.util.concurrent.*;
  * <p>
  * Integrates ring‐based leader election, Paxos roles, and supervised threads.
  * </p>
+ * <p>
+ * UPSERT, compare-and-set, INCREMENT and APPEND are proposed as one operation
+ * each, which every learner applies to its current value of the key.  The
+ * leader then waits until its own learner applied the slot of the operation
+ * and answers with the value it left, so a client needs one round instead of
+ * a GET, DELETE and PUT.  While it waits, the leader fills the slots before
+ * that nobody decided, so that its learner can reach the slot.
+ * </p>
+ * <p>
+ * Every key the learner applies or reclaims is published to the
+ * {@link InvalidationListener}s that clients with a near cache subscribed with
+ * this replica, by the threads of an {@link InvalidationPublisher}, so the learner
+ * never waits for the clients.
+ * </p>
  */
 public class RingElectionKVStore extends UnicastRemoteObject implements KeyValueStoreRemote {
     private final List<String> ring;
@@ -31,21 +50,53 @@ public class RingElectionKVStore extends UnicastRemoteObject implements KeyValue
     private final LeaderElector elector;
     private final RoleSupervisor acceptorSup, proposerSup, learnerSup;
     private volatile String leaderAddr;
+    private final InvalidationPublisher invalidations = new InvalidationPublisher();
+    // how long update waits for its slot to be applied before filling the slots before it, and in all
+    private static final long FILL_INTERVAL_MS = 500;
+    private static final long APPLY_TIMEOUT_MS = 10_000;
 
+    /**
+     * Creates the store with the storage engine configured by the
+     * {@value StorageEngines#ENGINE_PROPERTY} system property.
+     */
     public RingElectionKVStore(List<String> ring, int selfIndex) throws RemoteException {
+        this(ring, selfIndex, StorageEngines.fromSystemProperty());
+    }
+
+    /**
+     * Creates the store with the snapshot interval configured by the
+     * {@value StorageEngines#SNAPSHOT_INTERVAL_PROPERTY} system property.
+     *
+     * @param ring      The addresses of all servers, host:port.
+     * @param selfIndex The position of this server in the ring.
+     * @param engine    The engine the learner applies the chosen operations to.
+     */
+    public RingElectionKVStore(List<String> ring, int selfIndex, StorageEngine engine) throws RemoteException {
+        this(ring, selfIndex, engine, StorageEngines.snapshotInterval());
+    }
+
+    /**
+     * @param ring             The addresses of all servers, host:port.
+     * @param selfIndex        The position of this server in the ring.
+     * @param engine           The engine the learner applies the chosen operations to.
+     * @param snapshotInterval Seconds between checkpoints of the engine, which also
+     *                         truncate the Paxos instances; 0 to disable.
+     */
+    public RingElectionKVStore(List<String> ring, int selfIndex, StorageEngine engine, long snapshotInterval)
+        throws RemoteException {
         super();
         this.ring = ring;
         this.selfIndex = selfIndex;
         this.leaderAddr = ring.get(selfIndex);
 
         // Paxos components
-        ConcurrentMap<String,PaxosInstance> instances = new ConcurrentHashMap<>();
+        ConcurrentMap<Long,PaxosInstance> instances = new ConcurrentHashMap<>();
         acceptor = new PaxosAcceptor(instances);
-        learner = new PaxosLearner(instances, new ConcurrentHashMap<>());
 
         // RPC client
         PaxosRPCClient rpcClient = new PaxosRPCClientImpl();
-        proposer = new PaxosProposer(ring, acceptor, rpcClient);
+        proposer = new PaxosProposer(ring, selfIndex, acceptor, rpcClient);
+        learner = new PaxosLearner(instances, engine, invalidations::publish, proposer::fetchChosen);
 
         // Register self and peers
         proposer.addPeer(this);
@@ -65,6 +116,16 @@ public class RingElectionKVStore extends UnicastRemoteObject implements KeyValue
         elector = new LeaderElector(ring.toArray(new String[0]), selfIndex, sched);
         elector.start(5);
 
+        // Checkpoints
+        if (snapshotInterval > 0) {
+            ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "snapshot-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshots.scheduleWithFixedDelay(this::checkpoint, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        }
+
         // Supervisors
         acceptorSup = new RoleSupervisor("Acceptor", () -> new AcceptorWorker(this));
         proposerSup = new RoleSupervisor("Proposer", () -> new ProposerWorker(this));
@@ -90,11 +151,34 @@ public class RingElectionKVStore extends UnicastRemoteObject implements KeyValue
         proposer.propose(new Operation(Operation.Type.PUT, key, value));
     }
 
+    @Override
+    public void put(String key, String value, long ttlMillis)
+        throws RemoteException, MalformedRequestException, PaxosConsensusException {
+        if (ttlMillis <= 0) {
+            throw new MalformedRequestException("TTL must be positive: " + ttlMillis);
+        }
+        ensureLeader();
+        long now = System.currentTimeMillis();
+        long expiresAt = now + ttlMillis < now ? Long.MAX_VALUE : now + ttlMillis;
+        proposer.propose(new Operation(Operation.Type.PUT, key, value, now, expiresAt));
+    }
+
     @Override
     public String get(String key) {
         return learner.getStore().get(key);
     }
 
+    @Override
+    public long getVersion(String key) throws MalformedRequestException {
+        validate(key, "Key");
+        // the version first, so that it is never newer than the value found
+        long version = learner.getStore().getVersion(key);
+        if (learner.getStore().get(key) == null) {
+            throw new MalformedRequestException("Key not found: " + key);
+        }
+        return version;
+    }
+
     @Override
     public void delete(String key)
         throws RemoteException, PaxosConsensusException {
@@ -103,13 +187,126 @@ public class RingElectionKVStore extends UnicastRemoteObject implements KeyValue
     }
 
     @Override
-    public String paxosPrepare(String inst, int pn, Operation op) {
-        return acceptor.prepare(inst, pn);
+    public void upsert(String key, String value)
+        throws RemoteException, MalformedRequestException, PaxosConsensusException {
+        validate(key, "Key");
+        validate(value, "Value");
+        update(new Operation(Operation.Type.UPSERT, key, value));
+    }
+
+    @Override
+    public boolean compareAndSet(String key, long expectedVersion, String value)
+        throws RemoteException, MalformedRequestException, PaxosConsensusException {
+        validate(key, "Key");
+        validate(value, "Value");
+        if (learner.getStore().get(key) == null) {
+            throw new MalformedRequestException("Key not found: " + key);
+        }
+        return update(new Operation(Operation.Type.CAS, key, value, System.currentTimeMillis(), 0,
+            expectedVersion)) != null;
+    }
+
+    @Override
+    public long increment(String key, long delta)
+        throws RemoteException, MalformedRequestException, PaxosConsensusException {
+        validate(key, "Key");
+        String value = update(new Operation(Operation.Type.INCR, key, null, System.currentTimeMillis(), 0, delta));
+        if (value == null) {
+            throw new MalformedRequestException("The value of \"" + key
+                + "\" is not a number, or incrementing it overflows.");
+        }
+        return Long.parseLong(value);
+    }
+
+    @Override
+    public void append(String key, String suffix)
+        throws RemoteException, MalformedRequestException, PaxosConsensusException {
+        validate(key, "Key");
+        validate(suffix, "Suffix");
+        update(new Operation(Operation.Type.APPEND, key, suffix));
+    }
+
+    /**
+     * Propose an update, then wait until the local learner applied it and return its result.
+     *
+     * @return The value the update left under its key, or null if it changed nothing.
+     * @throws PaxosConsensusException if this replica is not the leader, consensus fails,
+     *                                 or the slots before the update cannot be decided in time.
+     */
+    private String update(Operation op) throws PaxosConsensusException {
+        ensureLeader();
+        long slot = proposer.propose(op);
+        long deadline = System.currentTimeMillis() + APPLY_TIMEOUT_MS;
+        try {
+            while (true) {
+                PaxosInstance pi = learner.awaitApplied(slot, FILL_INTERVAL_MS);
+                if (pi != null) {
+                    return pi.getResult();
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    throw new PaxosConsensusException("Chosen in slot " + slot
+                        + " but the slots before it were not decided in time, result unknown");
+                }
+                fillGaps(slot);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PaxosConsensusException("Interrupted while applying slot " + slot, e);
+        }
+    }
+
+    /**
+     * Decide the slots from the first one the local learner has not applied, up
+     * to a given slot, that are not known to be chosen, then apply them.
+     *
+     * @param end The slot to stop before.
+     * @throws PaxosConsensusException if a slot cannot be decided.
+     */
+    private void fillGaps(long end) throws PaxosConsensusException {
+        learner.catchUp();
+        for (long slot = learner.getNextSlot(); slot < end; slot++) {
+            if (!learner.isChosen(slot)) {
+                proposer.fill(slot);
+            }
+        }
+    }
+
+    private static void validate(String s, String name) throws MalformedRequestException {
+        if (s == null || s.trim().isEmpty()) {
+            throw new MalformedRequestException(name + " cannot be null or empty.");
+        }
+    }
+
+    @Override
+    public void subscribe(InvalidationListener listener) {
+        invalidations.subscribe(listener);
+        LoggerUtil.log("[Server] Subscribed invalidation listener %s", listener);
     }
 
     @Override
-    public String paxosAccept(String inst, int pn, Operation op) {
-        return acceptor.accept(inst, pn, op);
+    public void unsubscribe(InvalidationListener listener) {
+        invalidations.unsubscribe(listener);
+        LoggerUtil.log("[Server] Unsubscribed invalidation listener %s", listener);
+    }
+
+    @Override
+    public Promise paxosPrepare(long slot, int pn) {
+        return acceptor.prepare(slot, pn);
+    }
+
+    @Override
+    public String paxosAccept(long slot, int pn, Operation op) {
+        return acceptor.accept(slot, pn, op);
+    }
+
+    @Override
+    public void paxosDecide(long slot, Operation op) {
+        learner.decide(slot, op);
+    }
+
+    @Override
+    public Operation paxosChosen(long slot) {
+        return learner.getChosen(slot);
     }
 
     private void ensureLeader() throws PaxosConsensusException {
@@ -122,8 +319,13 @@ public class RingElectionKVStore extends UnicastRemoteObject implements KeyValue
         return ring.get(selfIndex).equals(leaderAddr);
     }
 
+    /**
+     * Fill the slots no proposal decided, then propose a NOOP, which tells the
+     * other learners of the end of the log.
+     */
     public void noOpProposal() {
         try {
+            fillGaps(proposer.getNextSlot());
             proposer.propose(new Operation(Operation.Type.NOOP, "", ""));
             LoggerUtil.log("[Proposer] No-op proposal succeeded");
         } catch (PaxosConsensusException e) {
@@ -131,8 +333,23 @@ public class RingElectionKVStore extends UnicastRemoteObject implements KeyValue
         }
     }
 
+    /**
+     * Apply the chosen slots, fetching the missing ones from the other replicas.
+     */
     public void learnCommitted() {
-        learner.learn();
+        learner.catchUp();
+    }
+
+    /**
+     * Persist the store and truncate the Paxos instances it covers.
+     */
+    public void checkpoint() {
+        try {
+            learner.checkpoint();
+            LoggerUtil.log("[Learner] Checkpoint written");
+        } catch (IOException | RuntimeException e) {
+            LoggerUtil.logError("[Learner] Checkpoint failed: " + e.getMessage());
+        }
     }
 
     @Override
@@ -0,0 +1,641 @@
+package storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An adaptive radix tree mapping byte array keys to values, in the order of the keys as unsigned
+ * bytes.
+ * <p>
+ * Every inner node branches on one key byte and grows through four sizes as children are added:
+ * up to 4 and 16 children in sorted key and child arrays, up to 48 behind a 256-entry byte index,
+ * and up to 256 in a directly indexed array; it shrinks back as children are removed. Path
+ * compression stores the bytes all keys below a node share as the prefix of that node, and a key
+ * ending at a node keeps its value in the node. A leaf holds only the bytes of its key below the
+ * branch it hangs from, so the bytes keys share are kept once, and a key is only rebuilt when an
+ * entry is visited.
+ * </p>
+ * <p>
+ * Not thread-safe; {@link ArtStorageEngine} guards a tree with a lock.
+ * </p>
+ */
+public final class AdaptiveRadixTree {
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Receives the entries of a {@link #scan}.
+     */
+    @FunctionalInterface
+    public interface EntryVisitor {
+        /**
+         * @param key   The key bytes, owned by the visitor.
+         * @param value The value bytes; must not be modified.
+         * @return false to stop the scan.
+         */
+        boolean visit(byte[] key, byte[] value);
+    }
+
+    private Node root;
+    private int size;
+    // the value an insertion or removal found for its key, null if there was none
+    private byte[] previous;
+
+    /**
+     * Returns the value of the key, or null if the key does not exist.
+     * @param key The key bytes, from the position to the limit; left unchanged.
+     */
+    public byte[] get(ByteBuffer key) {
+        int position = key.position();
+        int end = key.limit();
+        Node node = root;
+        while (node != null) {
+            if (node instanceof Leaf) {
+                Leaf leaf = (Leaf) node;
+                return leaf.suffix.length == end - position && commonLength(leaf.suffix, key, position) == end - position
+                    ? leaf.value : null;
+            }
+            Inner inner = (Inner) node;
+            if (commonLength(inner.prefix, key, position) < inner.prefix.length) {
+                return null;
+            }
+            position += inner.prefix.length;
+            if (position == end) {
+                return inner.value;
+            }
+            node = inner.child(key.get(position++) & 0xff);
+        }
+        return null;
+    }
+
+    /**
+     * Stores the value under the key.
+     * @param key       The key bytes, handed over to the tree.
+     * @param value     The value bytes, handed over to the tree.
+     * @param overwrite Whether the value replaces the current value of an existing key.
+     * @return the value the key had, or null if it did not exist.
+     */
+    public byte[] put(byte[] key, byte[] value, boolean overwrite) {
+        previous = null;
+        root = insert(root, ByteBuffer.wrap(key), 0, value, overwrite);
+        return previous;
+    }
+
+    /**
+     * Removes the key.
+     * @param key The key bytes, from the position to the limit; left unchanged.
+     * @return the value the key had, or null if it did not exist.
+     */
+    public byte[] remove(ByteBuffer key) {
+        previous = null;
+        if (root != null) {
+            root = remove(root, key, key.position());
+        }
+        return previous;
+    }
+
+    /**
+     * Passes the entries from a key on to the visitor in key order, until it returns false.
+     * @param start     The key to start at, from the position to the limit, or null for the first key.
+     * @param inclusive Whether the entry of the start key itself is visited.
+     */
+    public void scan(ByteBuffer start, boolean inclusive, EntryVisitor visitor) {
+        if (root != null) {
+            visit(root, new Path(), start, inclusive, visitor);
+        }
+    }
+
+    /**
+     * Returns the number of keys.
+     */
+    public int size() {
+        return size;
+    }
+
+    private Node insert(Node node, ByteBuffer key, int position, byte[] value, boolean overwrite) {
+        int end = key.limit();
+        if (node == null) {
+            size++;
+            return new Leaf(copy(key, position, end), value);
+        }
+
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            int common = commonLength(leaf.suffix, key, position);
+            if (common == leaf.suffix.length && common == end - position) {
+                previous = leaf.value;
+                if (overwrite) {
+                    leaf.value = value;
+                }
+                return leaf;
+            }
+            // the leaf and the key part after their common bytes
+            Inner split = new SortedNode(Arrays.copyOf(leaf.suffix, common), 4);
+            if (common == leaf.suffix.length) {
+                split.value = leaf.value;
+            } else {
+                split.add(leaf.suffix[common] & 0xff,
+                    new Leaf(Arrays.copyOfRange(leaf.suffix, common + 1, leaf.suffix.length), leaf.value));
+            }
+            size++;
+            return attach(split, key, position + common, value);
+        }
+
+        Inner inner = (Inner) node;
+        int common = commonLength(inner.prefix, key, position);
+        if (common < inner.prefix.length) {
+            // the key leaves the prefix: a new node holds the common bytes, the old node the rest
+            Inner split = new SortedNode(Arrays.copyOf(inner.prefix, common), 4);
+            int branch = inner.prefix[common] & 0xff;
+            inner.prefix = Arrays.copyOfRange(inner.prefix, common + 1, inner.prefix.length);
+            split.add(branch, inner);
+            size++;
+            return attach(split, key, position + common, value);
+        }
+        position += inner.prefix.length;
+        if (position == end) {
+            previous = inner.value;
+            if (inner.value == null) {
+                size++;
+                inner.value = value;
+            } else if (overwrite) {
+                inner.value = value;
+            }
+            return inner;
+        }
+
+        int branch = key.get(position) & 0xff;
+        Node child = inner.child(branch);
+        if (child == null) {
+            size++;
+            return inner.add(branch, new Leaf(copy(key, position + 1, end), value));
+        }
+        Node updated = insert(child, key, position + 1, value, overwrite);
+        if (updated != child) {
+            inner.replace(branch, updated);
+        }
+        return inner;
+    }
+
+    /**
+     * Adds the rest of a key from a position on below a node that has room for one more child.
+     */
+    private static Inner attach(Inner node, ByteBuffer key, int position, byte[] value) {
+        if (position == key.limit()) {
+            node.value = value;
+            return node;
+        }
+        return node.add(key.get(position) & 0xff, new Leaf(copy(key, position + 1, key.limit()), value));
+    }
+
+    private Node remove(Node node, ByteBuffer key, int position) {
+        int end = key.limit();
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            if (leaf.suffix.length != end - position || commonLength(leaf.suffix, key, position) != end - position) {
+                return leaf;
+            }
+            previous = leaf.value;
+            size--;
+            return null;
+        }
+
+        Inner inner = (Inner) node;
+        if (commonLength(inner.prefix, key, position) < inner.prefix.length) {
+            return inner;
+        }
+        position += inner.prefix.length;
+        if (position == end) {
+            if (inner.value == null) {
+                return inner;
+            }
+            previous = inner.value;
+            inner.value = null;
+            size--;
+            return compact(inner);
+        }
+
+        int branch = key.get(position) & 0xff;
+        Node child = inner.child(branch);
+        if (child == null) {
+            return inner;
+        }
+        Node updated = remove(child, key, position + 1);
+        if (updated == child) {
+            return inner;
+        }
+        if (updated == null) {
+            return compact(inner.remove(branch));
+        }
+        inner.replace(branch, updated);
+        return inner;
+    }
+
+    /**
+     * Replaces a node that lost a child or its value by a leaf if it has no child left, or merges
+     * it into its only child if it has no value either.
+     */
+    private static Node compact(Inner node) {
+        if (node.count == 0) {
+            return node.value == null ? null : new Leaf(node.prefix, node.value);
+        }
+        if (node.count > 1 || node.value != null) {
+            return node;
+        }
+        int branch = node.next(0);
+        Node child = node.child(branch);
+        if (child instanceof Leaf) {
+            Leaf leaf = (Leaf) child;
+            leaf.suffix = concat(node.prefix, branch, leaf.suffix);
+            return leaf;
+        }
+        Inner inner = (Inner) child;
+        inner.prefix = concat(node.prefix, branch, inner.prefix);
+        return inner;
+    }
+
+    /**
+     * Visits the entries below a node in key order.
+     * @param path  The key bytes above the node.
+     * @param start The key to start at, if the path equals its first bytes; otherwise null, and every
+     *              entry below the node is visited.
+     * @return false if the visitor stopped the scan.
+     */
+    private static boolean visit(Node node, Path path, ByteBuffer start, boolean inclusive, EntryVisitor visitor) {
+        int mark = path.length;
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            path.append(leaf.suffix);
+            int comparison = start == null ? 1 : path.compareTo(start, mark);
+            boolean proceed = comparison < 0 || (comparison == 0 && !inclusive)
+                || visitor.visit(path.toKey(), leaf.value);
+            path.length = mark;
+            return proceed;
+        }
+
+        Inner inner = (Inner) node;
+        path.append(inner.prefix);
+        boolean visitValue = inner.value != null;
+        if (start != null) {
+            int overlap = Math.min(path.length, start.remaining());
+            int comparison = path.compareTo(start, mark, overlap);
+            if (comparison < 0) {
+                path.length = mark;
+                return true;
+            }
+            if (comparison > 0 || start.remaining() <= path.length) {
+                // every key below is after the start, except this node's own key if it is the start
+                visitValue &= comparison > 0 || start.remaining() < path.length || inclusive;
+                start = null;
+            } else {
+                // the start goes on below this node, so this node's own key is before it
+                visitValue = false;
+            }
+        }
+        if (visitValue && !visitor.visit(path.toKey(), inner.value)) {
+            return false;
+        }
+
+        int from = start == null ? 0 : start.get(start.position() + path.length) & 0xff;
+        for (int branch = inner.next(from); branch >= 0; branch = inner.next(branch + 1)) {
+            path.append(branch);
+            boolean proceed = visit(inner.child(branch), path, branch == from ? start : null, inclusive, visitor);
+            path.length--;
+            if (!proceed) {
+                return false;
+            }
+        }
+        path.length = mark;
+        return true;
+    }
+
+    /**
+     * Returns the number of leading bytes of the array that equal the key bytes from a position on.
+     */
+    private static int commonLength(byte[] bytes, ByteBuffer key, int position) {
+        int length = Math.min(bytes.length, key.limit() - position);
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != key.get(position + i)) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private static byte[] copy(ByteBuffer key, int from, int to) {
+        if (from == to) {
+            return EMPTY;
+        }
+        byte[] bytes = new byte[to - from];
+        key.get(from, bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] prefix, int branch, byte[] suffix) {
+        byte[] bytes = Arrays.copyOf(prefix, prefix.length + 1 + suffix.length);
+        bytes[prefix.length] = (byte) branch;
+        System.arraycopy(suffix, 0, bytes, prefix.length + 1, suffix.length);
+        return bytes;
+    }
+
+    private abstract static class Node {
+    }
+
+    /**
+     * The value of a key and the bytes of the key below the branch the leaf hangs from.
+     */
+    private static final class Leaf extends Node {
+        byte[] suffix;
+        byte[] value;
+
+        Leaf(byte[] suffix, byte[] value) {
+            this.suffix = suffix;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A node branching on the key byte after its prefix. Branches are passed as unsigned ints.
+     */
+    private abstract static class Inner extends Node {
+        byte[] prefix;
+        // the value of the key ending after the prefix, or null
+        byte[] value;
+        int count;
+
+        Inner(byte[] prefix) {
+            this.prefix = prefix;
+        }
+
+        /**
+         * Returns the child of the branch, or null.
+         */
+        abstract Node child(int branch);
+
+        /**
+         * Returns the smallest branch from the given one on that has a child, or -1.
+         */
+        abstract int next(int from);
+
+        /**
+         * Replaces the child of an existing branch.
+         */
+        abstract void replace(int branch, Node child);
+
+        /**
+         * Adds the child of a new branch.
+         * @return this node, or a larger node holding its children if this one is full.
+         */
+        abstract Inner add(int branch, Node child);
+
+        /**
+         * Removes the child of an existing branch.
+         * @return this node, or a smaller node holding its children if this one has become sparse.
+         */
+        abstract Inner remove(int branch);
+
+        /**
+         * Moves the prefix, the value and the children of this node into another one.
+         */
+        <T extends Inner> T moveTo(T node) {
+            node.value = value;
+            for (int branch = next(0); branch >= 0; branch = next(branch + 1)) {
+                node.add(branch, child(branch));
+            }
+            return node;
+        }
+    }
+
+    /**
+     * Up to 4 or 16 children, with their branches in a sorted array.
+     */
+    private static final class SortedNode extends Inner {
+        final byte[] branches;
+        final Node[] children;
+
+        SortedNode(byte[] prefix, int capacity) {
+            super(prefix);
+            branches = new byte[capacity];
+            children = new Node[capacity];
+        }
+
+        @Override
+        Node child(int branch) {
+            for (int i = 0; i < count; i++) {
+                if ((branches[i] & 0xff) == branch) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        int next(int from) {
+            for (int i = 0; i < count; i++) {
+                if ((branches[i] & 0xff) >= from) {
+                    return branches[i] & 0xff;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        void replace(int branch, Node child) {
+            for (int i = 0; i < count; i++) {
+                if ((branches[i] & 0xff) == branch) {
+                    children[i] = child;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        Inner add(int branch, Node child) {
+            if (count == branches.length) {
+                Inner larger = count == 4 ? new SortedNode(prefix, 16) : new Node48(prefix);
+                return moveTo(larger).add(branch, child);
+            }
+            int index = count;
+            while (index > 0 && (branches[index - 1] & 0xff) > branch) {
+                branches[index] = branches[index - 1];
+                children[index] = children[index - 1];
+                index--;
+            }
+            branches[index] = (byte) branch;
+            children[index] = child;
+            count++;
+            return this;
+        }
+
+        @Override
+        Inner remove(int branch) {
+            int index = 0;
+            while ((branches[index] & 0xff) != branch) {
+                index++;
+            }
+            System.arraycopy(branches, index + 1, branches, index, count - index - 1);
+            System.arraycopy(children, index + 1, children, index, count - index - 1);
+            children[--count] = null;
+            return branches.length == 16 && count <= 3 ? moveTo(new SortedNode(prefix, 4)) : this;
+        }
+    }
+
+    /**
+     * Up to 48 children, found through an index of 256 slot numbers.
+     */
+    private static final class Node48 extends Inner {
+        // per branch, the slot of its child plus one, or 0
+        final byte[] index = new byte[256];
+        final Node[] children = new Node[48];
+
+        Node48(byte[] prefix) {
+            super(prefix);
+        }
+
+        @Override
+        Node child(int branch) {
+            int slot = index[branch] & 0xff;
+            return slot == 0 ? null : children[slot - 1];
+        }
+
+        @Override
+        int next(int from) {
+            for (int branch = from; branch < 256; branch++) {
+                if (index[branch] != 0) {
+                    return branch;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        void replace(int branch, Node child) {
+            children[(index[branch] & 0xff) - 1] = child;
+        }
+
+        @Override
+        Inner add(int branch, Node child) {
+            if (count == children.length) {
+                return moveTo(new Node256(prefix)).add(branch, child);
+            }
+            children[count++] = child;
+            index[branch] = (byte) count;
+            return this;
+        }
+
+        @Override
+        Inner remove(int branch) {
+            // the last slot moves into the freed one, so the slots stay packed
+            int slot = (index[branch] & 0xff) - 1;
+            index[branch] = 0;
+            count--;
+            if (slot != count) {
+                for (int other = 0; other < 256; other++) {
+                    if ((index[other] & 0xff) == count + 1) {
+                        index[other] = (byte) (slot + 1);
+                        break;
+                    }
+                }
+                children[slot] = children[count];
+            }
+            children[count] = null;
+            return count <= 12 ? moveTo(new SortedNode(prefix, 16)) : this;
+        }
+    }
+
+    /**
+     * Up to 256 children, indexed by their branch.
+     */
+    private static final class Node256 extends Inner {
+        final Node[] children = new Node[256];
+
+        Node256(byte[] prefix) {
+            super(prefix);
+        }
+
+        @Override
+        Node child(int branch) {
+            return children[branch];
+        }
+
+        @Override
+        int next(int from) {
+            for (int branch = from; branch < 256; branch++) {
+                if (children[branch] != null) {
+                    return branch;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        void replace(int branch, Node child) {
+            children[branch] = child;
+        }
+
+        @Override
+        Inner add(int branch, Node child) {
+            children[branch] = child;
+            count++;
+            return this;
+        }
+
+        @Override
+        Inner remove(int branch) {
+            children[branch] = null;
+            count--;
+            return count <= 36 ? moveTo(new Node48(prefix)) : this;
+        }
+    }
+
+    /**
+     * The key bytes from the root down to the node being visited.
+     */
+    private static final class Path {
+        byte[] bytes = new byte[64];
+        int length;
+
+        void append(byte[] part) {
+            ensure(part.length);
+            System.arraycopy(part, 0, bytes, length, part.length);
+            length += part.length;
+        }
+
+        void append(int branch) {
+            ensure(1);
+            bytes[length++] = (byte) branch;
+        }
+
+        byte[] toKey() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        /**
+         * Compares the path with a key, both from their first bytes, given that the bytes before
+         * the index are equal.
+         */
+        int compareTo(ByteBuffer key, int from) {
+            int comparison = compareTo(key, from, Math.min(length, key.remaining()));
+            return comparison != 0 ? comparison : length - key.remaining();
+        }
+
+        /**
+         * Compares the bytes of the path and of a key from an index up to another one, as unsigned
+         * bytes.
+         */
+        int compareTo(ByteBuffer key, int from, int to) {
+            for (int i = from; i < to; i++) {
+                int comparison = Byte.compareUnsigned(bytes[i], key.get(key.position() + i));
+                if (comparison != 0) {
+                    return comparison;
+                }
+            }
+            return 0;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+    }
+}
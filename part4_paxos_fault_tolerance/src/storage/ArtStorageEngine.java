@@ -0,0 +1,117 @@
+package storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiPredicate;
+
+/**
+ * A storage engine backed by an {@link AdaptiveRadixTree}, which keeps the keys in order and stores
+ * the bytes that keys share once.
+ * <p>
+ * Keys with long common prefixes, such as hierarchical names, take much less memory than in a hash
+ * map holding every key in full, and a lookup costs one step per key byte outside the shared
+ * prefixes, independently of the number of keys. Keys and values are kept as UTF-8 bytes, which
+ * are encoded and decoded at the String interface of the engine; scans visit the keys in the order
+ * of their UTF-8 bytes, which is the order of their code points.
+ * </p>
+ * <p>
+ * Reads share a read-write lock and run in parallel; writes hold it exclusively, and scans and
+ * snapshots hold it shared for their whole duration.
+ * </p>
+ */
+public class ArtStorageEngine implements StorageEngine {
+    private final AdaptiveRadixTree tree = new AdaptiveRadixTree();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @Override
+    public String get(String key) {
+        ByteBuffer keyBytes = ByteBuffer.wrap(encode(key));
+        byte[] value;
+        lock.readLock().lock();
+        try {
+            value = tree.get(keyBytes);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return value != null ? decode(value) : null;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        byte[] keyBytes = encode(key);
+        byte[] valueBytes = encode(value);
+        lock.writeLock().lock();
+        try {
+            tree.put(keyBytes, valueBytes, true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) {
+        byte[] keyBytes = encode(key);
+        byte[] valueBytes = encode(value);
+        lock.writeLock().lock();
+        try {
+            return tree.put(keyBytes, valueBytes, false) == null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(String key) {
+        ByteBuffer keyBytes = ByteBuffer.wrap(encode(key));
+        lock.writeLock().lock();
+        try {
+            return tree.remove(keyBytes) != null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Visits the entries in key order.
+     */
+    @Override
+    public void scan(BiPredicate<String, String> visitor) {
+        lock.readLock().lock();
+        try {
+            tree.scan(null, true, (key, value) -> visitor.test(decode(key), decode(value)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return tree.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> snapshot() {
+        Map<String, String> entries = new HashMap<>();
+        scan((key, value) -> {
+            entries.put(key, value);
+            return true;
+        });
+        return entries;
+    }
+
+    private static byte[] encode(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String decode(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,52 @@
+package storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+
+/**
+ * A storage engine backed by a {@link ConcurrentHashMap}.
+ */
+public class ConcurrentMapStorageEngine implements StorageEngine {
+    private final ConcurrentHashMap<String, String> map = new ConcurrentHashMap<>();
+
+    @Override
+    public String get(String key) {
+        return map.get(key);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        map.put(key, value);
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) {
+        return map.putIfAbsent(key, value) == null;
+    }
+
+    @Override
+    public boolean delete(String key) {
+        return map.remove(key) != null;
+    }
+
+    @Override
+    public void scan(BiPredicate<String, String> visitor) {
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            if (!visitor.test(entry.getKey(), entry.getValue())) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public Map<String, String> snapshot() {
+        return new HashMap<>(map);
+    }
+}
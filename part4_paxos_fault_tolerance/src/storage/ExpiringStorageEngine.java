@@ -0,0 +1,270 @@
+package storage;
+
+import util.Versions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Adds deadlines to the entries of another engine, after which they are gone.
+ * <p>
+ * The deadlines of the entries that have one are kept in a map next to the wrapped engine, and
+ * reads check it against the current time, so an expired entry is never returned, whether or not
+ * it has been reclaimed yet. Reclaiming is done in bulk by {@link #expire}: every key with a
+ * deadline is also scheduled in a {@link TimingWheel}, and advancing the wheel to a time yields
+ * exactly the keys due since the last call. A key that was overwritten or deleted in the meantime
+ * has a different deadline or none, and is skipped.
+ * </p>
+ * <p>
+ * The learner advances the wheel to the timestamp of every operation it applies, which the leader
+ * chose, rather than to its own clock, so the replicas reclaim entries without a consensus round
+ * per key; the leader's periodic no-op proposals keep reclamation going while no client writes.
+ * </p>
+ * <p>
+ * Writes and expiries must come from one thread at a time, as the learner's do, while reads may
+ * run in parallel with them: writes update the wrapped engine before the deadline and the version,
+ * and reads look at the deadline and the version before the entry, so a read never returns an
+ * expired entry.
+ * </p>
+ * <p>
+ * Every write also gives its entry a new {@link Versions version}, kept in a second map and
+ * returned by {@link #getVersion}, which compare-and-set operations compare. Writes are stamped
+ * with the time of the last call to {@link #expire} or {@link #update}, which is the timestamp of
+ * the operation being applied, so every learner gives a key the same versions. The version of a
+ * deleted or reclaimed key is kept for {@value #TOMBSTONE_MILLIS} ms after it was handed out, so
+ * that a key written again within that time does not get it again. Versions are only kept in
+ * memory.
+ * </p>
+ * <p>
+ * If the wrapped engine keeps deadlines, as the durable engine does, every deadline is also written
+ * to it with its entry, and the deadlines it restored are read back when this engine is created,
+ * so they survive a restart. Otherwise they are only kept in memory.
+ * </p>
+ */
+public class ExpiringStorageEngine implements StorageEngine {
+    // the precision of the reclamation
+    private static final long TICK_MILLIS = 100;
+    // how long the version of a deleted key is kept
+    private static final long TOMBSTONE_MILLIS = 60_000;
+
+    private final StorageEngine engine;
+    // key -> deadline in milliseconds since the epoch, for the entries that have one
+    private final Map<String, Long> deadlines = new ConcurrentHashMap<>();
+    // only used by writers
+    private final TimingWheel<String> wheel = new TimingWheel<>(TICK_MILLIS, System.currentTimeMillis());
+    // key -> version, for the entries written since the engine was created
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();
+    // key -> last version, for the keys deleted recently, in the order they were deleted; only
+    // used by writers
+    private final LinkedHashMap<String, Long> tombstones = new LinkedHashMap<>();
+    // the time writes are stamped with, only used by writers
+    private long clock = System.currentTimeMillis();
+
+    /**
+     * @param engine The engine to keep the entries in.
+     */
+    public ExpiringStorageEngine(StorageEngine engine) {
+        this.engine = engine;
+        engine.scanDeadlines((key, deadline) -> {
+            deadlines.put(key, deadline);
+            wheel.schedule(key, deadline);
+        });
+    }
+
+    @Override
+    public String get(String key) {
+        Long deadline = deadlines.isEmpty() ? null : deadlines.get(key);
+        String value = engine.get(key);
+        return deadline != null && deadline <= System.currentTimeMillis() ? null : value;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        engine.put(key, value);
+        deadlines.remove(key);
+        bumpVersion(key);
+    }
+
+    /**
+     * Stores the value until the deadline has passed, replacing the current value of the key if
+     * there is one.
+     *
+     * @param expiresAt The deadline in milliseconds since the epoch.
+     */
+    @Override
+    public void put(String key, String value, long expiresAt) {
+        if (engine.keepsDeadlines()) {
+            engine.put(key, value, expiresAt);
+        } else {
+            engine.put(key, value);
+        }
+        deadlines.put(key, expiresAt);
+        bumpVersion(key);
+        wheel.schedule(key, expiresAt);
+    }
+
+    /**
+     * Replaces the value of the key with a function of its current value, keeping a deadline of the
+     * entry.
+     *
+     * @param now      The time in milliseconds since the epoch by which an entry past its deadline
+     *                 does not exist, so that every learner applying the same update sees the same
+     *                 value.
+     * @param function Receives the current value, or null if the key does not exist, and returns
+     *                 the new value, or null to leave the key as it is. Exceptions it throws are
+     *                 passed on, and nothing is written then.
+     * @return The new value, or null if the function returned null.
+     */
+    public String update(String key, long now, UnaryOperator<String> function) {
+        clock = now;
+        if (isExpired(key, now)) {
+            engine.delete(key);
+            deadlines.remove(key);
+            dropVersion(key);
+        }
+        String value = function.apply(engine.get(key));
+        if (value != null) {
+            Long deadline = engine.keepsDeadlines() ? deadlines.get(key) : null;
+            if (deadline != null) {
+                engine.put(key, value, deadline);
+            } else {
+                engine.put(key, value);
+            }
+            bumpVersion(key);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the version of the entry of the key, which every write of the key changes to a value
+     * it never had before, or 0 if the key does not exist or was not written since it was
+     * restored. A write changes the value before the version, so a version read before the value
+     * is never newer than the value.
+     *
+     * @param key The key.
+     * @return The version.
+     */
+    public long getVersion(String key) {
+        Long version = versions.get(key);
+        return version != null ? version : 0;
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value) {
+        if (isExpired(key, System.currentTimeMillis())) {
+            engine.delete(key);
+            deadlines.remove(key);
+            dropVersion(key);
+        }
+        if (!engine.putIfAbsent(key, value)) {
+            return false;
+        }
+        bumpVersion(key);
+        return true;
+    }
+
+    @Override
+    public boolean delete(String key) {
+        boolean expired = isExpired(key, System.currentTimeMillis());
+        boolean deleted = engine.delete(key);
+        deadlines.remove(key);
+        dropVersion(key);
+        return deleted && !expired;
+    }
+
+    /**
+     * Removes the entries whose deadlines have passed by the given time.
+     *
+     * @param now The time in milliseconds since the epoch.
+     * @return The keys of the removed entries.
+     */
+    public List<String> expire(long now) {
+        clock = now;
+        for (Iterator<Long> it = tombstones.values().iterator(); it.hasNext(); ) {
+            if (Versions.timeOf(it.next()) + TOMBSTONE_MILLIS > now) {
+                break;
+            }
+            it.remove();
+        }
+        List<String> removed = new ArrayList<>();
+        wheel.advance(now, (key, deadline) -> {
+            Long current = deadlines.get(key);
+            if (current != null && current == deadline) {
+                engine.delete(key);
+                deadlines.remove(key);
+                dropVersion(key);
+                removed.add(key);
+            }
+        });
+        return removed;
+    }
+
+    @Override
+    public void scan(BiPredicate<String, String> visitor) {
+        long now = System.currentTimeMillis();
+        engine.scan((key, value) -> isExpired(key, now) || visitor.test(key, value));
+    }
+
+    @Override
+    public int size() {
+        return engine.size();
+    }
+
+    @Override
+    public Map<String, String> snapshot() {
+        long now = System.currentTimeMillis();
+        Map<String, String> entries = engine.snapshot();
+        if (!deadlines.isEmpty()) {
+            entries.keySet().removeIf(key -> isExpired(key, now));
+        }
+        return entries;
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        engine.checkpoint();
+    }
+
+    @Override
+    public void close() throws IOException {
+        engine.close();
+    }
+
+    /**
+     * Gives the entry of the key just written a new version.
+     */
+    private void bumpVersion(String key) {
+        Long previous = versions.get(key);
+        if (previous == null) {
+            previous = tombstones.remove(key);
+        }
+        versions.put(key, Versions.next(previous != null ? previous : 0, clock));
+    }
+
+    /**
+     * Keeps the version of the key just removed as a tombstone.
+     */
+    private void dropVersion(String key) {
+        Long version = versions.remove(key);
+        if (version != null) {
+            // moves the key to the end, since it is now the most recently deleted
+            tombstones.remove(key);
+            tombstones.put(key, version);
+        }
+    }
+
+    private boolean isExpired(String key, long now) {
+        if (deadlines.isEmpty()) {
+            return false;
+        }
+        Long deadline = deadlines.get(key);
+        return deadline != null && deadline <= now;
+    }
+}
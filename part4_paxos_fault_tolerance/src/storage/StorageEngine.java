@@ -0,0 +1,102 @@
+package storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * The data structure that holds the entries of the replicated key-value store.
+ * <p>
+ * The learner applies the chosen operations to an engine, and reads are served from it.
+ * Engines are thread-safe, and each single operation is atomic. Implementations are chosen
+ * by name through {@link StorageEngines}.
+ * </p>
+ */
+public interface StorageEngine extends Closeable {
+
+    /**
+     * Returns the value of the key, or null if the key does not exist.
+     */
+    String get(String key);
+
+    /**
+     * Stores the value, replacing the current value of the key if there is one.
+     */
+    void put(String key, String value);
+
+    /**
+     * Stores the value unless the key already exists.
+     * @return true if the value was stored, false if the key already existed.
+     */
+    boolean putIfAbsent(String key, String value);
+
+    /**
+     * Returns true if the engine keeps the deadlines of its entries across a restart without
+     * enforcing them: it writes the deadlines passed to {@link #put(String, String, long)} to disk
+     * with their entries, drops the entries that expired while it was closed, and passes the
+     * deadlines of the others to {@link #scanDeadlines}. An {@link ExpiringStorageEngine} hands
+     * its deadlines to such an engine.
+     */
+    default boolean keepsDeadlines() {
+        return false;
+    }
+
+    /**
+     * Stores the value with the deadline of its entry, replacing the current value of the key if
+     * there is one.
+     * @param expiresAt The deadline in milliseconds since the epoch, or 0 if the entry does not
+     *                  expire.
+     * @throws UnsupportedOperationException if the engine neither keeps nor enforces deadlines.
+     */
+    default void put(String key, String value, long expiresAt) {
+        throw new UnsupportedOperationException("The storage engine does not keep deadlines");
+    }
+
+    /**
+     * Passes the key and deadline of every entry that has one to the visitor. Engines that do not
+     * keep deadlines pass nothing.
+     */
+    default void scanDeadlines(ObjLongConsumer<String> visitor) {
+    }
+
+    /**
+     * Removes the key.
+     * @return true if the key existed.
+     */
+    boolean delete(String key);
+
+    /**
+     * Passes the entries to the visitor until it returns false, in an order defined by the
+     * engine. Entries written during the scan may or may not be visited.
+     */
+    void scan(BiPredicate<String, String> visitor);
+
+    /**
+     * Returns the number of entries.
+     */
+    int size();
+
+    /**
+     * Returns a copy of the entries that no later write affects, for persisting or shipping the
+     * store. Writers are not stopped while it is taken, so every entry reflects a state at or
+     * after the start of the call.
+     */
+    Map<String, String> snapshot();
+
+    /**
+     * Persists the entries, so that a restart does not have to replay the writes made so far.
+     * Engines that keep nothing on disk do nothing.
+     * @throws IOException if the entries cannot be written.
+     */
+    default void checkpoint() throws IOException {
+    }
+
+    /**
+     * Releases the files held by the engine. The engine must not be used afterwards.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
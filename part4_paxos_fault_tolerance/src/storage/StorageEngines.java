@@ -0,0 +1,106 @@
+package storage;
+
+import util.LoggerUtil;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+
+/**
+ * Creates storage engines by name, so that a server can be started with any engine.
+ * <p>
+ * The server uses the engine named by the system property {@value #ENGINE_PROPERTY}
+ * (e.g. {@code -Dkvstore.engine=concurrent}), and {@value #DEFAULT_ENGINE} if it is not set.
+ * </p>
+ * <p>
+ * Setting {@value #WAL_DIR_PROPERTY} to a directory makes the writes durable: the engine is
+ * wrapped in a {@link LoggedStorageEngine} logging to that directory, restored from it on
+ * startup and closed when the JVM exits. {@value #WAL_DURABILITY_PROPERTY} chooses when the log is
+ * forced to disk: none, batched (the default) or per_op. The server writes a snapshot of the
+ * store every {@value #SNAPSHOT_INTERVAL_PROPERTY} seconds ({@value #DEFAULT_SNAPSHOT_INTERVAL} by
+ * default, 0 to disable), after which a restart replays only the log written since.
+ * </p>
+ */
+public final class StorageEngines {
+    public static final String ENGINE_PROPERTY = "kvstore.engine";
+    public static final String WAL_DIR_PROPERTY = "kvstore.wal.dir";
+    public static final String WAL_DURABILITY_PROPERTY = "kvstore.wal.durability";
+    public static final String SNAPSHOT_INTERVAL_PROPERTY = "kvstore.snapshot.interval";
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 300;
+    public static final String DEFAULT_ENGINE = "concurrent";
+
+    private StorageEngines() {
+    }
+
+    /**
+     * Creates an empty engine.
+     * @param name The name of the engine: concurrent, openhash or art.
+     * @throws IllegalArgumentException if there is no engine with this name.
+     */
+    public static StorageEngine create(String name) {
+        switch (name.toLowerCase()) {
+            case "concurrent":
+                return new ConcurrentMapStorageEngine();
+            case "openhash":
+                return new OpenHashStorageEngine();
+            case "art":
+                return new ArtStorageEngine();
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + name);
+        }
+    }
+
+    /**
+     * Creates the engine configured by the system properties, restoring its entries from the
+     * write-ahead log if one is configured.
+     * @throws IllegalArgumentException if the engine name or the durability is unknown.
+     * @throws UncheckedIOException if the snapshot or the write-ahead log cannot be loaded.
+     */
+    public static StorageEngine fromSystemProperty() {
+        StorageEngine engine = create(System.getProperty(ENGINE_PROPERTY, DEFAULT_ENGINE));
+        String directory = System.getProperty(WAL_DIR_PROPERTY);
+        if (directory == null) {
+            return engine;
+        }
+
+        String durabilityName = System.getProperty(WAL_DURABILITY_PROPERTY, "batched");
+        WriteAheadLog.Durability durability;
+        try {
+            durability = WriteAheadLog.Durability.valueOf(durabilityName.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown durability: " + durabilityName);
+        }
+        try {
+            StorageEngine logged = new LoggedStorageEngine(engine, Paths.get(directory), durability);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    logged.close();
+                } catch (IOException e) {
+                    LoggerUtil.logError("Failed to close the write-ahead log: %s", e.getMessage());
+                    // the hooks run concurrently, so the one of the log writer may be done already
+                    LoggerUtil.flush();
+                }
+            }, "storage-shutdown"));
+            return logged;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open the write-ahead log in " + directory, e);
+        }
+    }
+
+    /**
+     * Returns the configured seconds between snapshots, 0 if snapshots are disabled.
+     * @throws IllegalArgumentException if the interval is not a non-negative number.
+     */
+    public static long snapshotInterval() {
+        String value = System.getProperty(SNAPSHOT_INTERVAL_PROPERTY, Long.toString(DEFAULT_SNAPSHOT_INTERVAL));
+        try {
+            long interval = Long.parseLong(value);
+            if (interval >= 0) {
+                return interval;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid snapshot interval: " + value);
+    }
+}
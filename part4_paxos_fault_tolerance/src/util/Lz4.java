@@ -0,0 +1,225 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * A compressor and decompressor of the LZ4 block format, in plain Java.
+ * <p>
+ * A block is a series of sequences, each made of a token, literal bytes copied as they are, and a
+ * match: an offset of up to 65535 bytes back into the output and a length of at least 4 bytes to
+ * copy from there. The token holds the literal and match lengths up to 15, and longer lengths
+ * continue in bytes of 255 ending with a smaller one. The last sequence has literals only, and the
+ * last 5 bytes of the input are always literals.
+ * </p>
+ * <p>
+ * The compressor finds matches through a table of the last position of every hashed 4-byte word,
+ * and skips ahead faster the longer it finds none, so incompressible data passes quickly. It does
+ * not search for the longest match, which keeps it fast at the cost of some ratio. Blocks do not
+ * record their uncompressed length; callers keep it next to them.
+ * </p>
+ */
+public final class Lz4 {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    // matches start at least this many bytes before the end of the input
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int HASH_LOG = 12;
+    // the number of missed positions after which the compressor skips one more byte per step
+    private static final int SKIP_TRIGGER = 6;
+
+    private Lz4() {
+    }
+
+    /**
+     * Returns the largest block the compression of a number of bytes can produce.
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Returns the largest number of bytes a block of a length can decompress to: no byte of a
+     * block stands for more than 255 output bytes, which the length bytes of a long match do.
+     */
+    public static long maxDecompressedLength(int length) {
+        return 255L * length;
+    }
+
+    /**
+     * Compresses a byte range into a new block.
+     */
+    public static byte[] compress(byte[] src, int offset, int length) {
+        byte[] dst = new byte[maxCompressedLength(length)];
+        return Arrays.copyOf(dst, compress(src, offset, length, dst, 0));
+    }
+
+    /**
+     * Compresses a byte range into an array with at least {@link #maxCompressedLength} bytes left.
+     * @return The length of the block.
+     */
+    public static int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        int end = offset + length;
+        int dp = dstOffset;
+        int anchor = offset;
+        if (length > MATCH_FIND_LIMIT) {
+            int[] table = new int[1 << HASH_LOG];
+            Arrays.fill(table, -1);
+            int matchStartLimit = end - MATCH_FIND_LIMIT;
+            int matchEndLimit = end - LAST_LITERALS;
+            int sp = offset;
+            while (sp < matchStartLimit) {
+                int word = readInt(src, sp);
+                int hash = hash(word);
+                int ref = table[hash];
+                table[hash] = sp;
+                if (ref < 0 || sp - ref > MAX_DISTANCE || readInt(src, ref) != word) {
+                    sp += 1 + ((sp - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+                while (sp > anchor && ref > offset && src[sp - 1] == src[ref - 1]) {
+                    sp--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (sp + matchLength < matchEndLimit && src[sp + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+                dp = writeSequence(src, anchor, sp - anchor, sp - ref, matchLength, dst, dp);
+                sp += matchLength;
+                anchor = sp;
+                if (sp - 2 < matchStartLimit) {
+                    table[hash(readInt(src, sp - 2))] = sp - 2;
+                }
+            }
+        }
+        dp = writeSequence(src, anchor, end - anchor, 0, 0, dst, dp);
+        return dp - dstOffset;
+    }
+
+    /**
+     * Decompresses a block into a new array.
+     * @param length         The length of the block.
+     * @param originalLength The length of the uncompressed bytes.
+     * @throws IllegalArgumentException if the block is corrupt or does not decompress to exactly
+     *                                  originalLength bytes.
+     */
+    public static byte[] decompress(byte[] src, int offset, int length, int originalLength) {
+        byte[] dst = new byte[originalLength];
+        int sp = offset;
+        int end = offset + length;
+        int dp = 0;
+        while (true) {
+            if (sp >= end) {
+                throw corrupt();
+            }
+            int token = src[sp++] & 0xFF;
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    if (sp >= end) {
+                        throw corrupt();
+                    }
+                    b = src[sp++] & 0xFF;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (literalLength > end - sp || literalLength > originalLength - dp) {
+                throw corrupt();
+            }
+            System.arraycopy(src, sp, dst, dp, literalLength);
+            sp += literalLength;
+            dp += literalLength;
+            if (sp == end) {
+                break;
+            }
+
+            if (end - sp < 2) {
+                throw corrupt();
+            }
+            int distance = (src[sp] & 0xFF) | (src[sp + 1] & 0xFF) << 8;
+            sp += 2;
+            if (distance == 0 || distance > dp) {
+                throw corrupt();
+            }
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (sp >= end) {
+                        throw corrupt();
+                    }
+                    b = src[sp++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > originalLength - dp) {
+                throw corrupt();
+            }
+            int ref = dp - distance;
+            if (distance >= matchLength) {
+                System.arraycopy(dst, ref, dst, dp, matchLength);
+            } else {
+                // the match overlaps the bytes it produces, repeating the last distance bytes
+                for (int i = 0; i < matchLength; i++) {
+                    dst[dp + i] = dst[ref + i];
+                }
+            }
+            dp += matchLength;
+        }
+        if (dp != originalLength) {
+            throw corrupt();
+        }
+        return dst;
+    }
+
+    /**
+     * Writes a sequence of literals followed by a match, or by nothing if the match length is 0.
+     * @return The position after the sequence.
+     */
+    private static int writeSequence(byte[] src, int literalOffset, int literalLength, int distance,
+                                     int matchLength, byte[] dst, int dp) {
+        int tokenPosition = dp++;
+        int token = Math.min(literalLength, 15) << 4;
+        if (literalLength >= 15) {
+            dp = writeLength(literalLength - 15, dst, dp);
+        }
+        System.arraycopy(src, literalOffset, dst, dp, literalLength);
+        dp += literalLength;
+        if (matchLength > 0) {
+            int extra = matchLength - MIN_MATCH;
+            token |= Math.min(extra, 15);
+            dst[dp++] = (byte) distance;
+            dst[dp++] = (byte) (distance >>> 8);
+            if (extra >= 15) {
+                dp = writeLength(extra - 15, dst, dp);
+            }
+        }
+        dst[tokenPosition] = (byte) token;
+        return dp;
+    }
+
+    private static int writeLength(int length, byte[] dst, int dp) {
+        while (length >= 255) {
+            dst[dp++] = (byte) 255;
+            length -= 255;
+        }
+        dst[dp++] = (byte) length;
+        return dp;
+    }
+
+    private static int readInt(byte[] src, int offset) {
+        return (src[offset] & 0xFF) | (src[offset + 1] & 0xFF) << 8 | (src[offset + 2] & 0xFF) << 16
+            | (src[offset + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(int word) {
+        return (word * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static IllegalArgumentException corrupt() {
+        return new IllegalArgumentException("Corrupt LZ4 block");
+    }
+}
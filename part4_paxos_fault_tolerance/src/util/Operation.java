@@ -1,15 +1,48 @@
 package util;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Represents an operation in the Key-Value Store for Paxos consensus.
  * <p>
- * Encapsulates PUT, DELETE, and NOOP operations with their associated key and value.
+ * Encapsulates PUT, DELETE, NOOP, and the updates UPSERT, CAS, INCR and APPEND with their
+ * associated key and value.
+ * The leader stamps every operation with the time it was proposed, which the learners
+ * use as the current time when they apply it, and a PUT may carry the deadline of its entry.
+ * </p>
+ * <p>
+ * A value at least as long as the {@value #COMPRESSION_THRESHOLD_PROPERTY} system property (1024
+ * characters by default, 0 to disable) is kept as an {@link Lz4} block if that is smaller, which
+ * shrinks the accept messages and the operations the acceptors retain. It is only decompressed by
+ * {@link #getValue()}, when a learner applies the operation.
+ * </p>
+ * <p>
+ * The updates compute the new value of the key from its current value, and a CAS from its current
+ * version, on every learner, through {@link #apply}. Their argument is the expected {@link Versions version} of a CAS or the delta of
+ * an INCR.
+ * </p>
+ * <p>
+ * Operations travel in every paxosAccept and paxosDecide call, so they write their own binary
+ * form instead of the default serialization, which described every field by name and type and the
+ * Type enum by its class: the type ordinal, a flags byte, the key and value as {@link Varints}
+ * strings (or the length and Lz4 block of a compressed value), then the timestamp, deadline and
+ * argument as varints. Types are written by ordinal, so new ones must be appended.
  * </p>
  */
-public class Operation implements Serializable {
-    private static final long serialVersionUID = 1L;
+public class Operation implements Externalizable {
+    private static final long serialVersionUID = 2L;
+    // the flags of the binary form
+    private static final int HAS_VALUE = 1;
+    private static final int COMPRESSED = 2;
+
+    /** The system property holding the value length from which values are compressed, 0 to disable. */
+    public static final String COMPRESSION_THRESHOLD_PROPERTY = "kvstore.compression.threshold";
+    private static final int COMPRESSION_THRESHOLD = Integer.getInteger(COMPRESSION_THRESHOLD_PROPERTY, 1024);
 
     /**
      * The type of operation.
@@ -22,24 +55,92 @@ public class Operation implements Serializable {
         DELETE,
 
         /** No-op operation, used for heartbeats or no-op proposals. */
-        NOOP
+        NOOP,
+
+        /** Put a value whether or not the key exists. */
+        UPSERT,
+
+        /** Replace the value of a key if it still has the expected version. */
+        CAS,
+
+        /** Add a delta to the decimal number stored under a key. */
+        INCR,
+
+        /** Append the value to the value of a key. */
+        APPEND
     }
 
-    private final Type type;
-    private final String key;
-    private final String value;
+    private Type type;
+    private String key;
+    // null if the value is compressed
+    private String value;
+    // the Lz4 block of a compressed value, and the length of its UTF-8 bytes
+    private byte[] compressedValue;
+    private int valueLength;
+    private long timestamp;
+    private long expiresAt;
+    // the expected version of a CAS or the delta of an INCR, 0 otherwise
+    private long argument;
 
     /**
-     * Constructs a new Operation.
+     * Constructs an empty Operation, for deserialization only.
+     */
+    public Operation() {
+    }
+
+    /**
+     * Constructs a new Operation stamped with the current time, whose entry does not expire.
      *
      * @param type  The operation type (PUT, DELETE, or NOOP).
      * @param key   The key to operate on (empty string for NOOP).
      * @param value The value to associate (only for PUT; null or empty for DELETE/NOOP).
      */
     public Operation(Type type, String key, String value) {
+        this(type, key, value, System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * Constructs a new Operation, compressing the value if it is long enough.
+     *
+     * @param type      The operation type (PUT, DELETE, or NOOP).
+     * @param key       The key to operate on (empty string for NOOP).
+     * @param value     The value to associate (only for PUT; null or empty for DELETE/NOOP).
+     * @param timestamp The time the operation was proposed, in milliseconds since the epoch.
+     * @param expiresAt The deadline of the entry in milliseconds since the epoch, 0 for none.
+     */
+    public Operation(Type type, String key, String value, long timestamp, long expiresAt) {
+        this(type, key, value, timestamp, expiresAt, 0);
+    }
+
+    /**
+     * Constructs a new Operation, compressing the value if it is long enough.
+     *
+     * @param type      The operation type.
+     * @param key       The key to operate on (empty string for NOOP).
+     * @param value     The value to associate (null for DELETE and INCR).
+     * @param timestamp The time the operation was proposed, in milliseconds since the epoch.
+     * @param expiresAt The deadline of the entry in milliseconds since the epoch, 0 for none.
+     * @param argument  The expected version of a CAS or the delta of an INCR.
+     */
+    public Operation(Type type, String key, String value, long timestamp, long expiresAt, long argument) {
         this.type = type;
+        this.argument = argument;
         this.key = key;
-        this.value = value;
+        this.timestamp = timestamp;
+        this.expiresAt = expiresAt;
+        byte[] block = null;
+        int length = 0;
+        if (value != null && COMPRESSION_THRESHOLD > 0 && value.length() >= COMPRESSION_THRESHOLD) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            block = Lz4.compress(bytes, 0, bytes.length);
+            length = bytes.length;
+            if (block.length >= length) {
+                block = null;
+            }
+        }
+        this.value = block == null ? value : null;
+        this.compressedValue = block;
+        this.valueLength = length;
     }
 
     /**
@@ -61,11 +162,120 @@ public class Operation implements Serializable {
     }
 
     /**
-     * Returns the value for this operation.
+     * Returns the value for this operation, decompressing it on every call if it is compressed.
      *
      * @return The value (only meaningful for PUT operations).
      */
     public String getValue() {
+        if (compressedValue != null) {
+            byte[] bytes = Lz4.decompress(compressedValue, 0, compressedValue.length, valueLength);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
         return value;
     }
+
+    /**
+     * Returns whether the value of this operation is kept compressed.
+     *
+     * @return True if the value is an Lz4 block.
+     */
+    public boolean isCompressed() {
+        return compressedValue != null;
+    }
+
+    /**
+     * Returns the time this operation was proposed.
+     *
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the deadline of the entry written by this operation.
+     *
+     * @return The deadline in milliseconds since the epoch, or 0 if the entry does not expire.
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Returns the argument of this operation.
+     *
+     * @return The expected version of a CAS, the delta of an INCR, or 0.
+     */
+    public long getArgument() {
+        return argument;
+    }
+
+    /**
+     * Computes the value this operation leaves under its key.
+     *
+     * @param current The current value of the key, or null if it does not exist.
+     * @param version The current version of the key, see {@link Versions}.
+     * @return The new value, or null if the key is left as it is or removed.
+     * @throws NumberFormatException if an INCR finds a value that is not a number.
+     * @throws ArithmeticException   if an INCR overflows.
+     */
+    public String apply(String current, long version) {
+        switch (type) {
+            case CAS:
+                return current != null && version == argument ? getValue() : null;
+            case INCR:
+                return Long.toString(Math.addExact(current == null ? 0 : Long.parseLong(current), argument));
+            case APPEND:
+                return current == null ? getValue() : current + getValue();
+            case PUT:
+            case UPSERT:
+                return getValue();
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(type.ordinal());
+        out.writeByte((value != null || compressedValue != null ? HAS_VALUE : 0)
+            | (compressedValue != null ? COMPRESSED : 0));
+        Varints.writeString(out, key);
+        if (compressedValue != null) {
+            Varints.writeLong(out, valueLength);
+            Varints.writeBytes(out, compressedValue);
+        } else if (value != null) {
+            Varints.writeString(out, value);
+        }
+        Varints.writeLong(out, timestamp);
+        Varints.writeLong(out, expiresAt);
+        Varints.writeSignedLong(out, argument);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        Type[] types = Type.values();
+        if (ordinal >= types.length) {
+            throw new InvalidObjectException("Unknown operation type: " + ordinal);
+        }
+        type = types[ordinal];
+        int flags = in.readUnsignedByte();
+        key = Varints.readString(in);
+        if ((flags & COMPRESSED) != 0) {
+            long length = Varints.readLong(in);
+            compressedValue = Varints.readBytes(in);
+            // the writer only keeps blocks shorter than the value
+            if (compressedValue == null || length <= compressedValue.length
+                || length > Math.min(Lz4.maxDecompressedLength(compressedValue.length), Integer.MAX_VALUE - 8)) {
+                throw new InvalidObjectException("Invalid compressed value length: " + length);
+            }
+            valueLength = (int) length;
+        } else if ((flags & HAS_VALUE) != 0) {
+            value = Varints.readString(in);
+        }
+        timestamp = Varints.readLong(in);
+        expiresAt = Varints.readLong(in);
+        argument = Varints.readSignedLong(in);
+    }
 }
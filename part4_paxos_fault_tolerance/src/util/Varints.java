@@ -0,0 +1,142 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes and reads the variable-length numbers and strings of the hand-written
+ * binary forms of the messages sent between replicas, such as {@link Operation}.
+ * <p>
+ * A varint holds 7 bits per byte, lowest first, with the high bit set on every
+ * byte but the last, so small numbers take one byte. Signed numbers are
+ * zigzag-encoded first, so that small negative numbers are short too. A string
+ * is the varint of its UTF-8 length plus one, 0 for null, followed by its bytes.
+ * </p>
+ */
+public final class Varints {
+    private Varints() {
+    }
+
+    /**
+     * Writes a number as a varint, in 1 to 10 bytes.
+     *
+     * @param out   The output to write to.
+     * @param value The number, taken as unsigned.
+     * @throws IOException if the output fails.
+     */
+    public static void writeLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a number written by {@link #writeLong}.
+     *
+     * @param in The input to read from.
+     * @return The number.
+     * @throws IOException if the input fails or the varint is longer than 10 bytes.
+     */
+    public static long readLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Varint too long");
+    }
+
+    /**
+     * Writes a signed number zigzag-encoded as a varint.
+     *
+     * @param out   The output to write to.
+     * @param value The number.
+     * @throws IOException if the output fails.
+     */
+    public static void writeSignedLong(DataOutput out, long value) throws IOException {
+        writeLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Reads a number written by {@link #writeSignedLong}.
+     *
+     * @param in The input to read from.
+     * @return The number.
+     * @throws IOException if the input fails.
+     */
+    public static long readSignedLong(DataInput in) throws IOException {
+        long value = readLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes a string, or null, as its varint length and UTF-8 bytes.
+     *
+     * @param out   The output to write to.
+     * @param value The string, or null.
+     * @throws IOException if the output fails.
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            writeLong(out, 0);
+            return;
+        }
+        writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads a string written by {@link #writeString}.
+     *
+     * @param in The input to read from.
+     * @return The string, or null.
+     * @throws IOException if the input fails or holds an invalid length.
+     */
+    public static String readString(DataInput in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a byte array, or null, as its varint length and bytes.
+     *
+     * @param out   The output to write to.
+     * @param value The bytes, or null.
+     * @throws IOException if the output fails.
+     */
+    public static void writeBytes(DataOutput out, byte[] value) throws IOException {
+        if (value == null) {
+            writeLong(out, 0);
+            return;
+        }
+        writeLong(out, value.length + 1L);
+        out.write(value);
+    }
+
+    /**
+     * Reads a byte array written by {@link #writeBytes}.
+     *
+     * @param in The input to read from.
+     * @return The bytes, or null.
+     * @throws IOException if the input fails or holds an invalid length.
+     */
+    public static byte[] readBytes(DataInput in) throws IOException {
+        long length = readLong(in);
+        if (length == 0) {
+            return null;
+        }
+        if (length < 0 || length - 1 > Integer.MAX_VALUE - 8) {
+            throw new StreamCorruptedException("Invalid length: " + (length - 1));
+        }
+        byte[] bytes = new byte[(int) (length - 1)];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,48 @@
+package util;
+
+/**
+ * The versions compared by {@code KeyValueStoreRemote.compareAndSet}.
+ * <p>
+ * Every write of a key gives its entry a new version, which the replicas keep next to the entry and
+ * return from {@code KeyValueStoreRemote.getVersion}: the leader's timestamp of the operation in
+ * milliseconds, shifted left by {@value #SEQUENCE_BITS} bits, or one more than the previous version
+ * of the key if that is larger. Every learner applies the same operations in the same order, so
+ * every replica gives a key the same versions, and the versions of a key only grow. A
+ * compare-and-set therefore fails whenever the key was written since the client read its version,
+ * even if the value was changed back in the meantime.
+ * </p>
+ * <p>
+ * {@link storage.ExpiringStorageEngine} remembers the version of a deleted key for a while, so that
+ * the key written again continues from it. An entry restored from disk after a restart has version
+ * 0 until it is written again.
+ * </p>
+ */
+public final class Versions {
+    // the bits below the time, which number the writes of a key within one millisecond
+    private static final int SEQUENCE_BITS = 20;
+
+    private Versions() {
+    }
+
+    /**
+     * Returns the version following the previous version of a key.
+     *
+     * @param previous The previous version of the key, or 0.
+     * @param now      The time of the write in milliseconds since the epoch.
+     * @return The next version.
+     */
+    public static long next(long previous, long now) {
+        return Math.max(previous + 1, now << SEQUENCE_BITS);
+    }
+
+    /**
+     * Returns the time a version was handed out at, or a later time if the writes of its key ran
+     * ahead of the clock.
+     *
+     * @param version A version returned by {@link #next}.
+     * @return The time in milliseconds since the epoch.
+     */
+    public static long timeOf(long version) {
+        return version >>> SEQUENCE_BITS;
+    }
+}